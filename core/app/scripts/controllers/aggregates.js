@@ -179,9 +179,12 @@ glowroot.controller('AggregatesCtrl', [
       var x = item.pageX;
       var y = item.pageY;
       var captureTime = item.datapoint[0];
-      var from = $filter('date')(captureTime - fixedAggregateIntervalMillis, 'mediumTime');
+      var point = plot.getData()[item.seriesIndex].data[item.dataIndex];
+      // each point has its own interval since the most recent points may not have been rolled up yet
+      var intervalMillis = point[3] * 1000;
+      var from = $filter('date')(captureTime - intervalMillis, 'mediumTime');
       var to = $filter('date')(captureTime, 'mediumTime');
-      var traceCount = plot.getData()[item.seriesIndex].data[item.dataIndex][2];
+      var traceCount = point[2];
       var average;
       if (traceCount === 0) {
         average = '--';
@@ -59,10 +59,26 @@ glowroot.controller('PointcutListCtrl', [
     $scope.retransformClasses = function (deferred) {
       $http.post('backend/admin/pointcuts/reweave', '')
           .success(function (data) {
-            $scope.page.dirty = false;
-            deferred.resolve('Success');
+            // the reweave runs in the background, so poll until it completes
+            pollReweaveProgress(data, deferred);
           })
           .error(httpErrors.handler($scope, deferred));
     };
+
+    function pollReweaveProgress(progress, deferred) {
+      if (!progress.batchMillis || progress.completed) {
+        // empty response means that retransforming classes is not supported
+        $scope.page.dirty = false;
+        deferred.resolve('Success');
+        return;
+      }
+      $timeout(function () {
+        $http.get('backend/admin/pointcuts/reweave-progress')
+            .success(function (data) {
+              pollReweaveProgress(data, deferred);
+            })
+            .error(httpErrors.handler($scope, deferred));
+      }, 500);
+    }
   }
 ]);
@@ -93,7 +93,7 @@ public class GlowrootModule {
         traceModule = new TraceModule(ticker, clock, configModule,
                 collectorModule.getTraceCollector(),
                 jvmModule.getThreadAllocatedBytes().getService(), instrumentation,
-                scheduledExecutor);
+                scheduledExecutor, dataDir, properties, version);
         uiModule = new LocalUiModule(ticker, clock, dataDir, jvmModule, configModule,
                 storageModule, collectorModule, traceModule, instrumentation, properties, version);
     }
@@ -28,6 +28,7 @@ public class Aggregate {
 
     private long durationTotal;
     private long traceCount;
+    private final Histogram histogram = new Histogram();
 
     Aggregate() {}
 
@@ -37,6 +38,13 @@ public class Aggregate {
         this.traceCount = traceCount;
     }
 
+    @OnlyUsedByTests
+    public Aggregate(long durationTotal, long traceCount, Histogram histogram) {
+        this.durationTotal = durationTotal;
+        this.traceCount = traceCount;
+        this.histogram.merge(histogram);
+    }
+
     public long getDurationTotal() {
         return durationTotal;
     }
@@ -45,8 +53,19 @@ public class Aggregate {
         return traceCount;
     }
 
+    public Histogram getHistogram() {
+        return histogram;
+    }
+
     void add(long duration) {
         durationTotal += duration;
         traceCount++;
+        histogram.add(duration);
+    }
+
+    void add(Aggregate aggregate) {
+        durationTotal += aggregate.durationTotal;
+        traceCount += aggregate.traceCount;
+        histogram.merge(aggregate.histogram);
     }
 }
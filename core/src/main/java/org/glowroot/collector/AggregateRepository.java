@@ -1,5 +1,5 @@
 /*
- * Copyright 2013 the original author or authors.
+ * Copyright 2013-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,6 +17,8 @@ package org.glowroot.collector;
 
 import java.util.Map;
 
+import com.google.common.io.CharSource;
+
 /**
  * Interface for storing aggregates.
  * 
@@ -27,5 +29,9 @@ public interface AggregateRepository {
 
     // implementations must be aware that Aggregate instances are not thread safe and cannot be
     // retained for later use
-    void store(long captureTime, Aggregate aggregate, Map<String, Aggregate> groupingAggregates);
+    //
+    // groupingProfiles are the merged stack trees (in json) of the stack trace samples captured
+    // for each grouping during the interval, there is no entry for groupings with no samples
+    void store(long captureTime, Aggregate aggregate, Map<String, Aggregate> groupingAggregates,
+            Map<String, CharSource> groupingProfiles);
 }
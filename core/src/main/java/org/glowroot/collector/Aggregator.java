@@ -15,27 +15,39 @@
  */
 package org.glowroot.collector;
 
+import java.lang.management.ThreadInfo;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 
 import checkers.lock.quals.GuardedBy;
 import com.google.common.collect.Maps;
+import com.google.common.io.CharSource;
 
 import org.glowroot.common.Clock;
 import org.glowroot.markers.Singleton;
+import org.glowroot.trace.model.MergedStackTree;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
+ * Aggregates are accumulated into stripes (selected by thread id) so that concurrently completing
+ * traces rarely contend on the same lock, and the stripes are only merged at flush time.
+ *
+ * Low-rate stack trace samples of active traces are merged into a stack tree per grouping for the
+ * same interval, which gives a profile per grouping over time without storing individual traces.
+ * These samples are only added by a single background thread, so they are not striped.
+ *
  * @author Trask Stalnaker
  * @since 0.5
  */
 @Singleton
 class Aggregator {
 
-    @GuardedBy("lock")
-    private volatile Aggregates currentAggregates;
-    private final Object lock = new Object();
+    private static final int STRIPE_COUNT = getStripeCount();
+
+    private final AtomicReference<Aggregates> currentAggregates;
 
     private final ScheduledExecutorService scheduledExecutor;
     private final AggregateRepository aggregateRepository;
@@ -66,68 +78,150 @@ class Aggregator {
         this.aggregateRepository = aggregateRepository;
         this.clock = clock;
         this.fixedAggregateIntervalMillis = fixedAggregateIntervalSeconds * 1000;
-        currentAggregates = new Aggregates(clock.currentTimeMillis());
+        currentAggregates =
+                new AtomicReference<Aggregates>(new Aggregates(clock.currentTimeMillis()));
     }
 
     long add(String grouping, long duration) {
-        // this first synchronized block is to ensure atomicity between updates and flushes
-        synchronized (lock) {
+        while (true) {
+            Aggregates aggregates = currentAggregates.get();
             long captureTime = clock.currentTimeMillis();
-            if (captureTime > currentAggregates.captureTime) {
-                final Aggregates completedAggregates = currentAggregates;
-                currentAggregates = new Aggregates(captureTime);
-                // flush in separate thread
-                scheduledExecutor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        flush(completedAggregates);
-                    }
-                });
+            if (captureTime > aggregates.captureTime) {
+                rollOver(aggregates, captureTime, true);
+                continue;
             }
-            // this second synchronized block is to ensure visibility of updates to this particular
-            // currentAggregates
-            synchronized (currentAggregates) {
-                currentAggregates.add(grouping, duration);
+            Stripe stripe = aggregates.getStripe();
+            // the stripe lock is only contended by threads that share the same stripe and by
+            // the flush, and it ensures that the update either lands before the stripe is merged
+            // or is retried against the next aggregates
+            synchronized (stripe) {
+                if (!stripe.closed) {
+                    stripe.add(grouping, duration);
+                    return captureTime;
+                }
             }
-            return captureTime;
         }
     }
 
-    private void flush() {
-        Aggregates completedAggregates = null;
-        // this synchronized block is to ensure atomicity between updates and flushes
-        synchronized (lock) {
-            if (clock.currentTimeMillis() > currentAggregates.captureTime) {
-                completedAggregates = currentAggregates;
-                currentAggregates = new Aggregates(clock.currentTimeMillis());
+    void addStackTrace(String grouping, ThreadInfo threadInfo) {
+        while (true) {
+            Aggregates aggregates = currentAggregates.get();
+            long captureTime = clock.currentTimeMillis();
+            if (captureTime > aggregates.captureTime) {
+                rollOver(aggregates, captureTime, true);
+                continue;
+            }
+            // same close protocol as the stripes in add() above
+            synchronized (aggregates.profileLock) {
+                if (!aggregates.profilesClosed) {
+                    MergedStackTree profile = aggregates.groupingProfiles.get(grouping);
+                    if (profile == null) {
+                        profile = new MergedStackTree();
+                        aggregates.groupingProfiles.put(grouping, profile);
+                    }
+                    profile.addStackTrace(threadInfo);
+                    return;
+                }
             }
         }
-        if (completedAggregates != null) {
+    }
+
+    private void flush() {
+        Aggregates aggregates = currentAggregates.get();
+        long currentTime = clock.currentTimeMillis();
+        if (currentTime > aggregates.captureTime) {
             // the actual flushing does not block the add() method above
+            rollOver(aggregates, currentTime, false);
+        }
+    }
+
+    // only the thread that wins the compare-and-set flushes the completed aggregates, which
+    // guarantees that each aggregates is flushed exactly once, and that capture times returned from
+    // add() are monotonically increasing with respect to flushes
+    private void rollOver(final Aggregates completedAggregates, long currentTime,
+            boolean flushInSeparateThread) {
+        if (!currentAggregates.compareAndSet(completedAggregates, new Aggregates(currentTime))) {
+            // another thread rolled over first
+            return;
+        }
+        if (flushInSeparateThread) {
+            scheduledExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush(completedAggregates);
+                }
+            });
+        } else {
             flush(completedAggregates);
         }
     }
 
     private void flush(Aggregates aggregates) {
-        // this synchronized block is to ensure visibility of updates to this particular
-        // currentAggregates
-        synchronized (aggregates) {
-            aggregateRepository.store(aggregates.captureTime, aggregates.aggregate,
-                    aggregates.groupingAggregates);
+        Aggregate aggregate = new Aggregate();
+        Map<String, Aggregate> groupingAggregates = Maps.newHashMap();
+        for (Stripe stripe : aggregates.stripes) {
+            // closing the stripe under its lock waits for any in-flight update to the stripe, and
+            // causes any later update to retry against the next aggregates
+            synchronized (stripe) {
+                stripe.closed = true;
+                stripe.mergeInto(aggregate, groupingAggregates);
+            }
         }
+        Map<String, MergedStackTree> groupingProfiles;
+        synchronized (aggregates.profileLock) {
+            aggregates.profilesClosed = true;
+            groupingProfiles = aggregates.groupingProfiles;
+        }
+        Map<String, CharSource> groupingProfileSources = Maps.newHashMap();
+        for (Entry<String, MergedStackTree> entry : groupingProfiles.entrySet()) {
+            CharSource profileSource = SnapshotCreator.createCharSource(entry.getValue());
+            if (profileSource != null) {
+                groupingProfileSources.put(entry.getKey(), profileSource);
+            }
+        }
+        aggregateRepository.store(aggregates.captureTime, aggregate, groupingAggregates,
+                groupingProfileSources);
+    }
+
+    private static int getStripeCount() {
+        int availableProcessors = Runtime.getRuntime().availableProcessors();
+        // use a power of 2 to select the stripe by masking
+        return Integer.highestOneBit(Math.max(availableProcessors, 1) * 2 - 1) * 2;
     }
 
     private class Aggregates {
 
         private final long captureTime;
-        private final Aggregate aggregate = new Aggregate();
-        private final Map<String, Aggregate> groupingAggregates = Maps.newHashMap();
+        private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+        private final Object profileLock = new Object();
+        @GuardedBy("profileLock")
+        private final Map<String, MergedStackTree> groupingProfiles = Maps.newHashMap();
+        @GuardedBy("profileLock")
+        private boolean profilesClosed;
 
         private Aggregates(long currentTime) {
             this.captureTime = (long) Math.ceil(currentTime
                     / (double) fixedAggregateIntervalMillis) * fixedAggregateIntervalMillis;
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new Stripe();
+            }
         }
 
+        private Stripe getStripe() {
+            return stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+        }
+    }
+
+    private static class Stripe {
+
+        @GuardedBy("this")
+        private final Aggregate aggregate = new Aggregate();
+        @GuardedBy("this")
+        private final Map<String, Aggregate> groupingAggregates = Maps.newHashMap();
+        @GuardedBy("this")
+        private boolean closed;
+
         private void add(String grouping, long duration) {
             aggregate.add(duration);
             Aggregate groupingAggregate = groupingAggregates.get(grouping);
@@ -137,5 +231,18 @@ class Aggregator {
             }
             groupingAggregate.add(duration);
         }
+
+        private void mergeInto(Aggregate totalAggregate,
+                Map<String, Aggregate> totalGroupingAggregates) {
+            totalAggregate.add(aggregate);
+            for (Entry<String, Aggregate> entry : groupingAggregates.entrySet()) {
+                Aggregate totalGroupingAggregate = totalGroupingAggregates.get(entry.getKey());
+                if (totalGroupingAggregate == null) {
+                    totalGroupingAggregate = new Aggregate();
+                    totalGroupingAggregates.put(entry.getKey(), totalGroupingAggregate);
+                }
+                totalGroupingAggregate.add(entry.getValue());
+            }
+        }
     }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.collector;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+import checkers.igj.quals.Immutable;
+import checkers.igj.quals.ReadOnly;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+import org.glowroot.collector.SpansDecoder.MissingSharedStringException;
+import org.glowroot.trace.model.Span;
+
+/**
+ * Spans json that is backed by the binary encoded spans (see {@link SpansEncoder}), which is what
+ * gets stored in the rolling file. The json is only decoded when the stream is opened (e.g. when
+ * the trace is viewed in the UI).
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@Immutable
+public class EncodedSpansCharSource extends Utf8CharSource {
+
+    private final ByteSource encoded;
+
+    static EncodedSpansCharSource encode(@ReadOnly Iterable<Span> spans, long captureTick)
+            throws IOException {
+        return new EncodedSpansCharSource(ByteSource.wrap(SpansEncoder.encode(spans,
+                captureTick)));
+    }
+
+    // stored spans can be either binary encoded or json text (e.g. the rolled over response, or
+    // spans that were stored before spans were binary encoded)
+    public static Utf8CharSource fromStored(ByteSource stored,
+            SharedStringRepository sharedStringRepository, String rolledOverResponse) {
+        return new StoredSpansCharSource(stored, sharedStringRepository, rolledOverResponse);
+    }
+
+    private EncodedSpansCharSource(ByteSource encoded) {
+        this.encoded = encoded;
+    }
+
+    public ByteSource getEncoded() {
+        return encoded;
+    }
+
+    // the returned encoding references the shared copies of the strings that the repository
+    // shares, instead of containing its own copies
+    public ByteSource getEncoded(SharedStringRepository sharedStringRepository)
+            throws IOException {
+        return ByteSource.wrap(SpansEncoder.shareStrings(encoded.read(), sharedStringRepository));
+    }
+
+    @Override
+    public InputStream openUtf8Stream() throws IOException {
+        try {
+            return new SpansDecoder(encoded.read(), 1, null);
+        } catch (MissingSharedStringException e) {
+            // strings are only shared in the stored encoding
+            throw new AssertionError(e);
+        }
+    }
+
+    @Immutable
+    private static class StoredSpansCharSource extends Utf8CharSource {
+
+        private final ByteSource stored;
+        private final SharedStringRepository sharedStringRepository;
+        private final String rolledOverResponse;
+
+        private StoredSpansCharSource(ByteSource stored,
+                SharedStringRepository sharedStringRepository, String rolledOverResponse) {
+            this.stored = stored;
+            this.sharedStringRepository = sharedStringRepository;
+            this.rolledOverResponse = rolledOverResponse;
+        }
+
+        @Override
+        public InputStream openUtf8Stream() throws IOException {
+            PushbackInputStream in = new PushbackInputStream(stored.openStream());
+            int b = in.read();
+            if (b == SpansEncoder.MAGIC) {
+                try {
+                    return new SpansDecoder(ByteStreams.toByteArray(in), 0,
+                            sharedStringRepository);
+                } catch (MissingSharedStringException e) {
+                    // the shared copy of a string was lost before these spans rolled over, which
+                    // the repository should only let happen in edge cases
+                    return new ByteArrayInputStream(rolledOverResponse.getBytes(Charsets.UTF_8));
+                } finally {
+                    in.close();
+                }
+            }
+            if (b != -1) {
+                in.unread(b);
+            }
+            return in;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.collector;
+
+import java.io.ByteArrayOutputStream;
+
+import com.google.common.base.Objects;
+import dataflow.quals.Pure;
+
+import org.glowroot.markers.NotThreadSafe;
+
+/**
+ * Mergeable log-linear histogram of trace durations with bounded memory.
+ *
+ * Durations are recorded with microsecond resolution. Each power of 2 is divided into
+ * {@link #SUB_BUCKET_COUNT} linear sub-buckets, so the width of a bucket is never more than about
+ * 6% of the values it holds. The last power of 2 is [2^36, 2^37) microseconds (about 19 to 38
+ * hours), so the last bucket covers [31 * 2^32, 2^37) microseconds (about 37 to 38 hours), and
+ * durations of 2^37 microseconds and above are also counted in the last bucket (percentiles that
+ * fall into the last bucket are capped at the max recorded duration). The bucket array is only
+ * grown as far as the largest recorded duration requires.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+// must be used under an appropriate lock
+@NotThreadSafe
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MICROS_BITS = 36;
+    private static final int BUCKET_COUNT = (MAX_MICROS_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT
+            + 2 * SUB_BUCKET_COUNT;
+
+    private static final int ENCODING_VERSION = 1;
+
+    private long[] counts = new long[0];
+    private long totalCount;
+    private long maxDuration;
+
+    public Histogram() {}
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    // in nanoseconds
+    public long getMaxDuration() {
+        return maxDuration;
+    }
+
+    // returns the (inclusive) upper bound in nanoseconds of the bucket which contains the duration
+    // at the given percentile, capped at the max recorded duration
+    public long getDurationAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(percentile / 100 * totalCount), 1);
+        long cumulativeCount = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= rank) {
+                return Math.min(getUpperBoundMicros(i) * 1000 + 999, maxDuration);
+            }
+        }
+        return maxDuration;
+    }
+
+    public void merge(Histogram histogram) {
+        if (histogram.counts.length > counts.length) {
+            growTo(histogram.counts.length);
+        }
+        for (int i = 0; i < histogram.counts.length; i++) {
+            counts[i] += histogram.counts[i];
+        }
+        totalCount += histogram.totalCount;
+        maxDuration = Math.max(maxDuration, histogram.maxDuration);
+    }
+
+    // only the non-empty buckets are encoded, using variable length integers
+    public byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ENCODING_VERSION);
+        writeVarLong(maxDuration, out);
+        int nonEmptyBucketCount = 0;
+        for (long count : counts) {
+            if (count != 0) {
+                nonEmptyBucketCount++;
+            }
+        }
+        writeVarLong(nonEmptyBucketCount, out);
+        int lastIndex = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                writeVarLong(i - lastIndex, out);
+                writeVarLong(counts[i], out);
+                lastIndex = i;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public static Histogram decode(byte/*@Nullable*/[] bytes) {
+        Histogram histogram = new Histogram();
+        if (bytes == null || bytes.length == 0 || bytes[0] != ENCODING_VERSION) {
+            return histogram;
+        }
+        int[] position = {1};
+        histogram.maxDuration = readVarLong(bytes, position);
+        long nonEmptyBucketCount = readVarLong(bytes, position);
+        int index = 0;
+        for (long i = 0; i < nonEmptyBucketCount; i++) {
+            index += (int) readVarLong(bytes, position);
+            long count = readVarLong(bytes, position);
+            if (index < 0 || index >= BUCKET_COUNT) {
+                // corrupt data
+                return new Histogram();
+            }
+            if (index >= histogram.counts.length) {
+                histogram.growTo(index + 1);
+            }
+            histogram.counts[index] += count;
+            histogram.totalCount += count;
+        }
+        return histogram;
+    }
+
+    // duration is in nanoseconds
+    public void add(long duration) {
+        int index = getBucketIndex(duration / 1000);
+        if (index >= counts.length) {
+            growTo(index + 1);
+        }
+        counts[index]++;
+        totalCount++;
+        maxDuration = Math.max(maxDuration, duration);
+    }
+
+    private void growTo(int length) {
+        long[] newCounts = new long[length];
+        System.arraycopy(counts, 0, newCounts, 0, counts.length);
+        counts = newCounts;
+    }
+
+    @Override
+    @Pure
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("totalCount", totalCount)
+                .add("maxDuration", maxDuration)
+                .toString();
+    }
+
+    // values below 2 * SUB_BUCKET_COUNT each get their own bucket, above that each power of 2 is
+    // split into SUB_BUCKET_COUNT buckets
+    private static int getBucketIndex(long micros) {
+        if (micros < 2 * SUB_BUCKET_COUNT) {
+            return (int) Math.max(micros, 0);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        int index = (int) (shift * SUB_BUCKET_COUNT + (micros >>> shift));
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    private static long getUpperBoundMicros(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index - shift * SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    private static void writeVarLong(long value, ByteArrayOutputStream out) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.write((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        out.write((int) remaining);
+    }
+
+    private static long readVarLong(byte[] bytes, int[] position) {
+        long value = 0;
+        int shift = 0;
+        while (position[0] < bytes.length) {
+            byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.collector;
+
+import checkers.nullness.quals.Nullable;
+
+/**
+ * Interface for storing strings that are shared across the stored spans of many traces (e.g. sql
+ * that is executed over and over), so that each stored trace only needs to hold a reference to the
+ * string instead of its own copy, see {@link EncodedSpansCharSource#getEncoded(
+ * SharedStringRepository)}.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public interface SharedStringRepository {
+
+    // returns the reference to the shared copy of the string, or null if the string should be
+    // stored inline instead
+    @Nullable
+    byte[] share(String string);
+
+    // returns null if the shared copy of the string is no longer available
+    @Nullable
+    String read(byte[] ref);
+}
@@ -32,7 +32,7 @@ import dataflow.quals.Pure;
 @Immutable
 public class Snapshot {
 
-    private final String id;
+    private final long id;
     private final boolean active;
     private final boolean stuck;
     private final long startTime;
@@ -59,7 +59,7 @@ public class Snapshot {
     @Nullable
     private final CharSource fineMergedStackTree; // json data
 
-    private Snapshot(String id, boolean active, boolean stuck, long startTime, long captureTime,
+    private Snapshot(long id, boolean active, boolean stuck, long startTime, long captureTime,
             long duration, boolean background, String grouping, @Nullable String error,
             @Nullable String user, @Nullable String attributes, @Nullable String metrics,
             @Nullable String jvmInfo, @Immutable @Nullable CharSource spans,
@@ -83,7 +83,7 @@ public class Snapshot {
         this.fineMergedStackTree = fineMergedStackTree;
     }
 
-    public String getId() {
+    public long getId() {
         return id;
     }
 
@@ -183,8 +183,7 @@ public class Snapshot {
 
     public static class Builder {
 
-        @MonotonicNonNull
-        private String id;
+        private long id;
         private boolean active;
         private boolean stuck;
         private long startTime;
@@ -215,7 +214,7 @@ public class Snapshot {
 
         private Builder() {}
 
-        public Builder id(String id) {
+        public Builder id(long id) {
             this.id = id;
             return this;
         }
@@ -296,7 +295,7 @@ public class Snapshot {
             return this;
         }
 
-        @RequiresNonNull({"id", "grouping"})
+        @RequiresNonNull("grouping")
         public Snapshot build() {
             return new Snapshot(id, active, stuck, startTime, captureTime, duration, background,
                     grouping, error, user, attributes, metrics, jvmInfo, spans,
@@ -65,23 +65,36 @@ public class SnapshotCreator {
 
     public static Snapshot createActiveSnapshot(Trace trace, long captureTime, long captureTick,
             boolean summary) throws IOException {
-        return createSnapshot(trace, true, trace.isStuck(), captureTime, captureTick, summary);
+        return createSnapshot(trace, true, trace.isStuck(), captureTime, captureTick, summary,
+                false);
     }
 
     public static Snapshot createPendingSnapshot(Trace trace, long captureTime, long captureTick,
             boolean summary) throws IOException {
-        return createSnapshot(trace, false, trace.isStuck(), captureTime, captureTick, summary);
+        return createSnapshot(trace, false, trace.isStuck(), captureTime, captureTick, summary,
+                false);
     }
 
     static Snapshot createCompletedSnapshot(Trace trace, long captureTime) throws IOException {
-        return createSnapshot(trace, false, false, captureTime, trace.getEndTick(), false);
+        return createSnapshot(trace, false, false, captureTime, trace.getEndTick(), false, true);
+    }
+
+    static Snapshot createStuckSnapshot(Trace trace, long captureTime, long captureTick)
+            throws IOException {
+        return createSnapshot(trace, true, trace.isStuck(), captureTime, captureTick, false,
+                true);
     }
 
     // timings for traces that are still active are normalized to the capture tick in order to
     // *attempt* to present a picture of the trace at that exact tick
     // (without using synchronization to block updates to the trace while it is being read)
+    //
+    // spans of snapshots that are going to be stored are binary encoded up front (see
+    // SpansEncoder), while spans of snapshots that are only going to be viewed are streamed
+    // directly as json
     private static Snapshot createSnapshot(Trace trace, boolean active, boolean stuck,
-            long captureTime, long captureTick, boolean summary) throws IOException {
+            long captureTime, long captureTick, boolean summary, boolean forStorage)
+            throws IOException {
         Snapshot.Builder builder = Snapshot.builder();
         builder.id(trace.getId());
         builder.active(active);
@@ -97,7 +110,11 @@ public class SnapshotCreator {
         builder.metrics(writeMetricsAsString(trace.getMetrics()));
         builder.jvmInfo(trace.getJvmInfoJson());
         if (!summary) {
-            builder.spans(new SpansCharSource(trace.getSpans(), captureTick));
+            if (forStorage) {
+                builder.spans(EncodedSpansCharSource.encode(trace.getSpans(), captureTick));
+            } else {
+                builder.spans(new SpansCharSource(trace.getSpans(), captureTick));
+            }
             builder.coarseMergedStackTree(createCharSource(trace.getCoarseMergedStackTree()));
             builder.fineMergedStackTree(createCharSource(trace.getFineMergedStackTree()));
         }
@@ -186,6 +203,23 @@ public class SnapshotCreator {
         }
     }
 
+    static void writeErrorMessage(ReadableErrorMessage errorMessage, JsonGenerator jg)
+            throws IOException {
+        jg.writeStartObject();
+        jg.writeStringField("text", errorMessage.getText());
+        Map<String, ? extends /*@Nullable*/Object> errorDetail = errorMessage.getDetail();
+        if (errorDetail != null) {
+            jg.writeFieldName("detail");
+            new DetailMapWriter(jg).write(errorDetail);
+        }
+        ExceptionInfo exception = errorMessage.getExceptionInfo();
+        if (exception != null) {
+            jg.writeFieldName("exception");
+            writeException(exception, jg);
+        }
+        jg.writeEndObject();
+    }
+
     private static void writeException(ExceptionInfo exception, JsonGenerator jg)
             throws IOException {
         jg.writeStartObject();
@@ -201,7 +235,7 @@ public class SnapshotCreator {
         jg.writeEndObject();
     }
 
-    private static void writeStackTrace(@ReadOnly List<StackTraceElement> stackTrace,
+    static void writeStackTrace(@ReadOnly List<StackTraceElement> stackTrace,
             JsonGenerator jw)
             throws IOException {
         jw.writeStartArray();
@@ -317,7 +351,7 @@ public class SnapshotCreator {
             ReadableErrorMessage errorMessage = span.getErrorMessage();
             if (errorMessage != null) {
                 jg.writeFieldName("error");
-                writeErrorMessage(errorMessage);
+                writeErrorMessage(errorMessage, jg);
             }
             List<StackTraceElement> stackTrace = span.getStackTrace();
             if (stackTrace != null) {
@@ -338,21 +372,6 @@ public class SnapshotCreator {
             jg.writeEndObject();
         }
 
-        private void writeErrorMessage(ReadableErrorMessage errorMessage) throws IOException {
-            jg.writeStartObject();
-            jg.writeStringField("text", errorMessage.getText());
-            Map<String, ? extends /*@Nullable*/Object> errorDetail = errorMessage.getDetail();
-            if (errorDetail != null) {
-                jg.writeFieldName("detail");
-                new DetailMapWriter(jg).write(errorDetail);
-            }
-            ExceptionInfo exception = errorMessage.getExceptionInfo();
-            if (exception != null) {
-                jg.writeFieldName("exception");
-                writeException(exception, jg);
-            }
-            jg.writeEndObject();
-        }
     }
 
     private static class MergedStackTreeWriter {
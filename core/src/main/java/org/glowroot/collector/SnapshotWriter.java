@@ -16,16 +16,23 @@
 package org.glowroot.collector;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.util.List;
 
+import checkers.igj.quals.Immutable;
 import checkers.igj.quals.ReadOnly;
 import checkers.nullness.quals.Nullable;
 import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
 import com.google.common.io.CharSource;
 
+import org.glowroot.markers.NotThreadSafe;
 import org.glowroot.markers.OnlyUsedByTests;
+import org.glowroot.trace.model.TraceUniqueId;
 
 /**
  * @author Trask Stalnaker
@@ -42,13 +49,33 @@ public class SnapshotWriter {
         return new SnapshotWriter().toCharSourceInternal(snapshot, summary);
     }
 
+    // the json is streamed as UTF-8 bytes, and the parts that are already UTF-8 encoded (e.g. spans
+    // and merged stack trees read from the rolling file) are passed through without being decoded
+    // into chars and then re-encoded
+    @ReadOnly
+    public static ByteSource toByteSource(Snapshot snapshot, boolean summary)
+            throws UnsupportedEncodingException {
+        SnapshotWriter snapshotWriter = new SnapshotWriter();
+        snapshotWriter.write(snapshot, summary);
+        List<ByteSource> byteSources = Lists.newArrayList();
+        for (CharSource charSource : snapshotWriter.charSources) {
+            byteSources.add(new Utf8ByteSource(charSource));
+        }
+        return ByteSource.concat(byteSources);
+    }
+
     private SnapshotWriter() {}
 
     @ReadOnly
     private CharSource toCharSourceInternal(Snapshot snapshot, boolean summary)
             throws UnsupportedEncodingException {
+        write(snapshot, summary);
+        return CharSource.concat(charSources);
+    }
+
+    private void write(Snapshot snapshot, boolean summary) throws UnsupportedEncodingException {
         sb.append("{\"id\":\"");
-        sb.append(snapshot.getId());
+        sb.append(TraceUniqueId.toHex(snapshot.getId()));
         sb.append("\",\"active\":");
         sb.append(snapshot.isActive());
         sb.append(",\"stuck\":");
@@ -78,7 +105,6 @@ public class SnapshotWriter {
         }
         sb.append("}");
         flushStringBuilder();
-        return CharSource.concat(charSources);
     }
 
     private void writeErrorMessage(Snapshot snapshot) {
@@ -137,4 +163,90 @@ public class SnapshotWriter {
     public static String toString(Snapshot snapshot, boolean summary) throws IOException {
         return toCharSource(snapshot, summary).read();
     }
+
+    @Immutable
+    private static class Utf8ByteSource extends ByteSource {
+
+        @ReadOnly
+        private final CharSource charSource;
+
+        private Utf8ByteSource(@ReadOnly CharSource charSource) {
+            this.charSource = charSource;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            if (charSource instanceof Utf8CharSource) {
+                return ((Utf8CharSource) charSource).openUtf8Stream();
+            }
+            return new Utf8EncodingInputStream(charSource.openStream());
+        }
+    }
+
+    @NotThreadSafe
+    private static class Utf8EncodingInputStream extends InputStream {
+
+        private static final int CHUNK_SIZE = 8192;
+
+        private final Reader reader;
+        private final char[] chars = new char[CHUNK_SIZE];
+        // a high surrogate at the end of a chunk is held back until its low surrogate is read
+        private boolean heldHighSurrogate;
+        private byte[] bytes = new byte[0];
+        private int bytesIndex;
+
+        private Utf8EncodingInputStream(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (bytesIndex == bytes.length) {
+                if (!encodeNextChunk()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, bytes.length - bytesIndex);
+            System.arraycopy(bytes, bytesIndex, b, off, n);
+            bytesIndex += n;
+            return n;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            if (read(b, 0, 1) == -1) {
+                return -1;
+            }
+            return b[0] & 0xFF;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
+        private boolean encodeNextChunk() throws IOException {
+            int start = heldHighSurrogate ? 1 : 0;
+            int n = reader.read(chars, start, chars.length - start);
+            if (n == -1) {
+                if (!heldHighSurrogate) {
+                    return false;
+                }
+                // unpaired high surrogate at the very end
+                n = 0;
+            }
+            int count = start + n;
+            heldHighSurrogate = n > 0 && Character.isHighSurrogate(chars[count - 1]);
+            if (heldHighSurrogate) {
+                count--;
+            }
+            bytes = new String(chars, 0, count).getBytes(Charsets.UTF_8);
+            bytesIndex = 0;
+            if (heldHighSurrogate) {
+                chars[0] = chars[count];
+            }
+            return true;
+        }
+    }
 }
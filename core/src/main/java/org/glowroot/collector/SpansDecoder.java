@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.collector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import checkers.igj.quals.ReadOnly;
+import checkers.nullness.quals.Nullable;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Charsets;
+
+import org.glowroot.collector.SpansEncoder.Column;
+import org.glowroot.markers.NotThreadSafe;
+
+/**
+ * Streams binary encoded spans (see {@link SpansEncoder}) as the same UTF-8 json that
+ * SnapshotCreator.SpansReader produces, decoding one span at a time as the stream is read, so the
+ * json for the whole trace never needs to be held in memory.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@NotThreadSafe
+class SpansDecoder extends InputStream {
+
+    @ReadOnly
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final byte[] encoded;
+    private final int spanCount;
+    // string table entries are only decoded the first time they are referenced
+    private final int[] stringOffsets;
+    private final int[] stringLengths;
+    private final String/*@Nullable*/[] strings;
+    // one read position per column
+    private final ByteBuffer[] columns = new ByteBuffer[Column.values().length];
+
+    private final ResettableByteArrayOutputStream buffer;
+    private final JsonGenerator jg;
+    private int bufferIndex;
+    private int spanIndex;
+    private long prevOffset;
+
+    // start is the position of the version byte (just after the magic byte)
+    SpansDecoder(byte[] encoded, int start,
+            @Nullable SharedStringRepository sharedStringRepository)
+            throws IOException, MissingSharedStringException {
+        this.encoded = encoded;
+        ByteBuffer header = ByteBuffer.wrap(encoded, start, encoded.length - start);
+        int version = header.get();
+        if (version != SpansEncoder.VERSION) {
+            throw new IOException("Unexpected encoded spans version: " + version);
+        }
+        spanCount = (int) readVarint(header);
+        int stringCount = (int) readVarint(header);
+        stringOffsets = new int[stringCount];
+        stringLengths = new int[stringCount];
+        strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            int stringHeader = (int) readVarint(header);
+            int length = stringHeader >>> 1;
+            if ((stringHeader & 1) == SpansEncoder.SHARED_STRING) {
+                // shared strings are resolved up front so that a missing one is found before any
+                // json has been streamed
+                byte[] ref = new byte[length];
+                header.get(ref);
+                String string = null;
+                if (sharedStringRepository != null) {
+                    string = sharedStringRepository.read(ref);
+                }
+                if (string == null) {
+                    throw new MissingSharedStringException();
+                }
+                strings[i] = string;
+            } else {
+                stringLengths[i] = length;
+                stringOffsets[i] = header.position();
+                header.position(header.position() + length);
+            }
+        }
+        for (int i = 0; i < columns.length; i++) {
+            int length = (int) readVarint(header);
+            columns[i] = ByteBuffer.wrap(encoded, header.position(), length);
+            header.position(header.position() + length);
+        }
+        buffer = new ResettableByteArrayOutputStream();
+        jg = jsonFactory.createGenerator(buffer, JsonEncoding.UTF8);
+        jg.writeStartArray();
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        int bufferRemaining = buffer.size() - bufferIndex;
+        while (bufferRemaining == 0) {
+            if (spanIndex > spanCount) {
+                return -1;
+            }
+            buffer.reset();
+            bufferIndex = 0;
+            if (spanIndex == spanCount) {
+                jg.writeEndArray();
+                jg.close();
+            } else {
+                writeSpan();
+                jg.flush();
+            }
+            spanIndex++;
+            bufferRemaining = buffer.size();
+        }
+        int nBytes = Math.min(len, bufferRemaining);
+        buffer.arraycopy(bufferIndex, bytes, off, nBytes);
+        bufferIndex += nBytes;
+        return nBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] bytes = new byte[1];
+        if (read(bytes, 0, 1) == -1) {
+            return -1;
+        }
+        return bytes[0] & 0xff;
+    }
+
+    private void writeSpan() throws IOException {
+        int kind = column(Column.KIND).get();
+        if (kind == SpansEncoder.LIMIT_EXCEEDED_MARKER) {
+            jg.writeStartObject();
+            jg.writeBooleanField("limitExceededMarker", true);
+            jg.writeEndObject();
+            return;
+        }
+        if (kind == SpansEncoder.LIMIT_EXTENDED_MARKER) {
+            jg.writeStartObject();
+            jg.writeBooleanField("limitExtendedMarker", true);
+            jg.writeEndObject();
+            return;
+        }
+        long offset = prevOffset + readSignedVarint(column(Column.OFFSET));
+        prevOffset = offset;
+        jg.writeStartObject();
+        jg.writeNumberField("offset", offset);
+        jg.writeNumberField("duration", readVarint(column(Column.DURATION)));
+        if (kind == SpansEncoder.ACTIVE_SPAN) {
+            jg.writeBooleanField("active", true);
+        }
+        jg.writeNumberField("nestingLevel", (int) readVarint(column(Column.NESTING_LEVEL)));
+        String messageText = readStringRef(Column.MESSAGE_TEXT);
+        String messageDetail = readStringRef(Column.MESSAGE_DETAIL);
+        if (messageText != null) {
+            jg.writeFieldName("message");
+            jg.writeStartObject();
+            jg.writeStringField("text", messageText);
+            if (messageDetail != null) {
+                jg.writeFieldName("detail");
+                jg.writeRawValue(messageDetail);
+            }
+            jg.writeEndObject();
+        }
+        String error = readStringRef(Column.ERROR);
+        if (error != null) {
+            jg.writeFieldName("error");
+            jg.writeRawValue(error);
+        }
+        String stackTrace = readStringRef(Column.STACK_TRACE);
+        if (stackTrace != null) {
+            jg.writeFieldName("stackTrace");
+            jg.writeRawValue(stackTrace);
+        }
+        jg.writeEndObject();
+    }
+
+    private ByteBuffer column(Column column) {
+        return columns[column.ordinal()];
+    }
+
+    @Nullable
+    private String readStringRef(Column column) {
+        int ref = (int) readVarint(column(column));
+        if (ref == SpansEncoder.NO_STRING) {
+            return null;
+        }
+        int index = ref - 1;
+        String string = strings[index];
+        if (string == null) {
+            string = new String(encoded, stringOffsets[index], stringLengths[index],
+                    Charsets.UTF_8);
+            strings[index] = string;
+        }
+        return string;
+    }
+
+    static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static long readSignedVarint(ByteBuffer buffer) {
+        long value = readVarint(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    @SuppressWarnings("serial")
+    static class MissingSharedStringException extends Exception {}
+
+    @NotThreadSafe
+    private static class ResettableByteArrayOutputStream extends ByteArrayOutputStream {
+
+        // provides access to protected byte buffer
+        private void arraycopy(int srcPos, byte[] dest, int destPos, int length) {
+            System.arraycopy(buf, srcPos, dest, destPos, length);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.collector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import checkers.igj.quals.ReadOnly;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.api.MessageSupplier;
+import org.glowroot.api.internal.ReadableErrorMessage;
+import org.glowroot.api.internal.ReadableMessage;
+import org.glowroot.markers.NotThreadSafe;
+import org.glowroot.trace.model.Span;
+
+/**
+ * Encodes the spans of a trace into the compact binary form that is stored in the rolling file,
+ * see {@link SpansDecoder} for decoding them back into the json that the UI expects.
+ *
+ * The encoding is columnar, one column per span field, so that each column compresses well on its
+ * own (e.g. nesting levels are almost always a single byte and offsets are stored as deltas from
+ * the previous span). All strings (message text, which is often repeated sql, and the json of
+ * message details, errors and stack traces) go into a single per-trace string table and the
+ * columns only hold references into it, so repeated strings are only stored once per trace.
+ *
+ * Layout (all integers are unsigned varints, except the magic and version bytes):
+ *
+ * <pre>
+ * magic, version, span count, string count, (string header, string bytes)*,
+ * (column byte length, column bytes)* for each of the columns in {@link Column} order
+ * </pre>
+ *
+ * The string header is the byte length shifted left by one, with the low bit set when the bytes
+ * are a reference to a string in the {@link SharedStringRepository} instead of the string's utf-8
+ * bytes (see {@link #shareStrings(byte[], SharedStringRepository)}).
+ *
+ * References into the string table are the string's index plus one, with zero meaning none.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@NotThreadSafe
+class SpansEncoder {
+
+    // this can never be the first byte of json text (or of any utf-8 text), so the spans stored in
+    // the rolling file can be either binary encoded or json text
+    static final int MAGIC = 0xff;
+    static final int VERSION = 1;
+
+    static final int NORMAL_SPAN = 0;
+    static final int ACTIVE_SPAN = 1;
+    static final int LIMIT_EXCEEDED_MARKER = 2;
+    static final int LIMIT_EXTENDED_MARKER = 3;
+
+    static final int NO_STRING = 0;
+
+    static final int INLINE_STRING = 0;
+    static final int SHARED_STRING = 1;
+
+    @ReadOnly
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final long captureTick;
+
+    private final Map<String, Integer> stringRefs = Maps.newHashMap();
+    private final List<String> strings = Lists.newArrayList();
+
+    private final VarintOutputStream[] columns = new VarintOutputStream[Column.values().length];
+
+    private int spanCount;
+    private long prevOffset;
+
+    static byte[] encode(@ReadOnly Iterable<Span> spans, long captureTick) throws IOException {
+        SpansEncoder encoder = new SpansEncoder(captureTick);
+        for (Span span : spans) {
+            encoder.addSpan(span);
+        }
+        return encoder.toByteArray();
+    }
+
+    // rewrites the string table, replacing strings that the repository shares across traces with
+    // references to the shared copies, the columns are copied as is since they only refer to
+    // string table indexes
+    static byte[] shareStrings(byte[] encoded, SharedStringRepository sharedStringRepository) {
+        ByteBuffer in = ByteBuffer.wrap(encoded);
+        VarintOutputStream out = new VarintOutputStream();
+        // magic and version
+        out.write(in.get());
+        out.write(in.get());
+        out.writeVarint(SpansDecoder.readVarint(in));
+        int stringCount = (int) SpansDecoder.readVarint(in);
+        out.writeVarint(stringCount);
+        for (int i = 0; i < stringCount; i++) {
+            int header = (int) SpansDecoder.readVarint(in);
+            int length = header >>> 1;
+            byte[] ref = null;
+            if ((header & 1) == INLINE_STRING) {
+                ref = sharedStringRepository.share(new String(encoded, in.position(), length,
+                        Charsets.UTF_8));
+            }
+            if (ref == null) {
+                out.writeVarint(header);
+                out.write(encoded, in.position(), length);
+            } else {
+                out.writeVarint(ref.length << 1 | SHARED_STRING);
+                out.write(ref, 0, ref.length);
+            }
+            in.position(in.position() + length);
+        }
+        out.write(encoded, in.position(), in.remaining());
+        return out.toByteArray();
+    }
+
+    private SpansEncoder(long captureTick) {
+        this.captureTick = captureTick;
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new VarintOutputStream();
+        }
+    }
+
+    // timings for traces that are still active are normalized to the capture tick in the same way
+    // as SnapshotCreator.SpansReader does for the json
+    private void addSpan(Span span) throws IOException {
+        if (span.getStartTick() > captureTick) {
+            // this span started after the capture tick
+            return;
+        }
+        spanCount++;
+        if (span.isLimitExceededMarker()) {
+            column(Column.KIND).write(LIMIT_EXCEEDED_MARKER);
+            return;
+        }
+        if (span.isLimitExtendedMarker()) {
+            column(Column.KIND).write(LIMIT_EXTENDED_MARKER);
+            return;
+        }
+        long endTick = span.getEndTick();
+        boolean active = endTick == 0 || endTick > captureTick;
+        column(Column.KIND).write(active ? ACTIVE_SPAN : NORMAL_SPAN);
+        long offset = span.getOffset();
+        column(Column.OFFSET).writeSignedVarint(offset - prevOffset);
+        prevOffset = offset;
+        if (active) {
+            column(Column.DURATION).writeVarint(captureTick - span.getStartTick());
+        } else {
+            column(Column.DURATION).writeVarint(endTick - span.getStartTick());
+        }
+        column(Column.NESTING_LEVEL).writeVarint(span.getNestingLevel());
+        MessageSupplier messageSupplier = span.getMessageSupplier();
+        if (messageSupplier == null) {
+            column(Column.MESSAGE_TEXT).writeVarint(NO_STRING);
+            column(Column.MESSAGE_DETAIL).writeVarint(NO_STRING);
+        } else {
+            ReadableMessage message = (ReadableMessage) messageSupplier.get();
+            column(Column.MESSAGE_TEXT).writeVarint(getStringRef(message.getText()));
+            Map<String, ? extends /*@Nullable*/Object> detail = message.getDetail();
+            if (detail.isEmpty()) {
+                column(Column.MESSAGE_DETAIL).writeVarint(NO_STRING);
+            } else {
+                column(Column.MESSAGE_DETAIL).writeVarint(getStringRef(toJson(detail)));
+            }
+        }
+        ReadableErrorMessage errorMessage = span.getErrorMessage();
+        if (errorMessage == null) {
+            column(Column.ERROR).writeVarint(NO_STRING);
+        } else {
+            column(Column.ERROR).writeVarint(getStringRef(toJson(errorMessage)));
+        }
+        List<StackTraceElement> stackTrace = span.getStackTrace();
+        if (stackTrace == null) {
+            column(Column.STACK_TRACE).writeVarint(NO_STRING);
+        } else {
+            column(Column.STACK_TRACE).writeVarint(getStringRef(toJson(stackTrace)));
+        }
+    }
+
+    private byte[] toByteArray() {
+        VarintOutputStream out = new VarintOutputStream();
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.writeVarint(spanCount);
+        out.writeVarint(strings.size());
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(Charsets.UTF_8);
+            out.writeVarint(bytes.length << 1 | INLINE_STRING);
+            out.write(bytes, 0, bytes.length);
+        }
+        for (VarintOutputStream column : columns) {
+            out.writeVarint(column.size());
+            column.copyTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    private VarintOutputStream column(Column column) {
+        return columns[column.ordinal()];
+    }
+
+    private int getStringRef(String string) {
+        Integer ref = stringRefs.get(string);
+        if (ref == null) {
+            strings.add(string);
+            ref = strings.size();
+            stringRefs.put(string, ref);
+        }
+        return ref;
+    }
+
+    private static String toJson(@ReadOnly Map<String, ? extends /*@Nullable*/Object> detail)
+            throws IOException {
+        StringWriter sw = new StringWriter();
+        JsonGenerator jg = jsonFactory.createGenerator(sw);
+        new DetailMapWriter(jg).write(detail);
+        jg.close();
+        return sw.toString();
+    }
+
+    private static String toJson(ReadableErrorMessage errorMessage) throws IOException {
+        StringWriter sw = new StringWriter();
+        JsonGenerator jg = jsonFactory.createGenerator(sw);
+        SnapshotCreator.writeErrorMessage(errorMessage, jg);
+        jg.close();
+        return sw.toString();
+    }
+
+    private static String toJson(@ReadOnly List<StackTraceElement> stackTrace)
+            throws IOException {
+        StringWriter sw = new StringWriter();
+        JsonGenerator jg = jsonFactory.createGenerator(sw);
+        SnapshotCreator.writeStackTrace(stackTrace, jg);
+        jg.close();
+        return sw.toString();
+    }
+
+    // the kind column has one entry per span, and the other columns only have entries for normal
+    // and active spans (not for limit markers)
+    static enum Column {
+        KIND, OFFSET, DURATION, NESTING_LEVEL, MESSAGE_TEXT, MESSAGE_DETAIL, ERROR, STACK_TRACE
+    }
+
+    @NotThreadSafe
+    private static class VarintOutputStream extends ByteArrayOutputStream {
+
+        private void writeVarint(long value) {
+            long remaining = value;
+            while ((remaining & ~0x7fL) != 0) {
+                write((int) ((remaining & 0x7f) | 0x80));
+                remaining >>>= 7;
+            }
+            write((int) remaining);
+        }
+
+        // zig-zag encoded so that small negative values are also small
+        private void writeSignedVarint(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        // unlike ByteArrayOutputStream.writeTo(), this is not declared to throw IOException
+        private void copyTo(VarintOutputStream out) {
+            out.write(buf, 0, count);
+        }
+    }
+}
@@ -16,15 +16,23 @@
 package org.glowroot.collector;
 
 import java.io.IOException;
+import java.lang.management.ThreadInfo;
 import java.util.Collection;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import checkers.lock.quals.GuardedBy;
 import checkers.nullness.quals.Nullable;
 import com.google.common.base.Objects;
 import com.google.common.base.Ticker;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.RateLimiter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +56,8 @@ public class TraceCollectorImpl implements TraceCollector {
     private static final Logger logger = LoggerFactory.getLogger(TraceCollectorImpl.class);
 
     private static final int PENDING_LIMIT = 100;
+    // completed traces are drained from the pending queue and stored in batches of up to this size
+    private static final int MAX_BATCH_SIZE = 20;
 
     private final ExecutorService executorService;
     private final ConfigService configService;
@@ -56,7 +66,18 @@ public class TraceCollectorImpl implements TraceCollector {
     private final Aggregator aggregator;
     private final Clock clock;
     private final Ticker ticker;
-    private final Set<Trace> pendingCompleteTraces = Sets.newCopyOnWriteArraySet();
+    // keyed by trace id so that a pending trace can be looked up by id without scanning
+    private final ConcurrentMap<Long, Trace> pendingCompleteTraces = Maps.newConcurrentMap();
+    private final BlockingQueue<PendingTrace> pendingQueue =
+            new ArrayBlockingQueue<PendingTrace>(PENDING_LIMIT);
+    // only one drain task is submitted to the executor service at a time
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Runnable drainTask = new DrainTask();
+
+    private final AtomicLong droppedTraceCount = new AtomicLong();
+    private final AtomicLong storedTraceCount = new AtomicLong();
+    private final AtomicLong storedBatchCount = new AtomicLong();
+    private final AtomicInteger maxBatchSize = new AtomicInteger();
 
     private final RateLimiter warningRateLimiter = RateLimiter.create(1.0 / 60);
     @GuardedBy("warningLock")
@@ -98,18 +119,43 @@ public class TraceCollectorImpl implements TraceCollector {
     }
 
     public Collection<Trace> getPendingCompleteTraces() {
-        return pendingCompleteTraces;
+        return pendingCompleteTraces.values();
+    }
+
+    @Nullable
+    public Trace getPendingCompleteTrace(long id) {
+        return pendingCompleteTraces.get(id);
+    }
+
+    public int getPendingQueueDepth() {
+        return pendingQueue.size();
+    }
+
+    public long getDroppedTraceCount() {
+        return droppedTraceCount.get();
+    }
+
+    public long getStoredTraceCount() {
+        return storedTraceCount.get();
+    }
+
+    public long getStoredBatchCount() {
+        return storedBatchCount.get();
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize.get();
     }
 
     @Override
-    public void onCompletedTrace(final Trace trace) {
+    public boolean onCompletedTrace(Trace trace) {
         // capture time is calculated by the aggregator because it depends on monotonically
         // increasing capture times so it can flush aggregates without concern for new data points
         // arriving with a prior capture time
         // this is a reasonable place to get the capture time since this code is still being
         // executed by the trace thread
         String grouping = Objects.firstNonNull(trace.getGrouping(), "<no grouping provided>");
-        final long captureTime;
+        long captureTime;
         if (aggregator == null) {
             captureTime = clock.currentTimeMillis();
         } else {
@@ -118,26 +164,22 @@ public class TraceCollectorImpl implements TraceCollector {
         if (shouldStore(trace)) {
             // onCompleteAndShouldStore must be called by the trace thread
             trace.onCompleteAndShouldStore();
-            if (pendingCompleteTraces.size() >= PENDING_LIMIT) {
+            // add to pending complete traces prior to queueing so that the drain task cannot
+            // remove it before it is added
+            pendingCompleteTraces.put(trace.getId(), trace);
+            if (!pendingQueue.offer(new PendingTrace(trace, captureTime))) {
+                pendingCompleteTraces.remove(trace.getId());
+                droppedTraceCount.incrementAndGet();
                 logPendingLimitWarning();
-                return;
+                // the trace was briefly visible via getPendingCompleteTraces()
+                return true;
             }
-            pendingCompleteTraces.add(trace);
-            executorService.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        Snapshot snapshot =
-                                SnapshotCreator.createCompletedSnapshot(trace, captureTime);
-                        snapshotRepository.store(snapshot);
-                        pendingCompleteTraces.remove(trace);
-                    } catch (Throwable t) {
-                        // log and terminate successfully
-                        logger.error(t.getMessage(), t);
-                    }
-                }
-            });
+            if (draining.compareAndSet(false, true)) {
+                executorService.execute(drainTask);
+            }
+            return true;
         }
+        return false;
     }
 
     // no need to throttle stuck trace storage since throttling is handled upstream by using a
@@ -145,8 +187,8 @@ public class TraceCollectorImpl implements TraceCollector {
     @Override
     public void onStuckTrace(Trace trace) {
         try {
-            Snapshot snaphsot = SnapshotCreator.createActiveSnapshot(trace,
-                    clock.currentTimeMillis(), ticker.read(), false);
+            Snapshot snaphsot = SnapshotCreator.createStuckSnapshot(trace,
+                    clock.currentTimeMillis(), ticker.read());
             if (!trace.isCompleted()) {
                 snapshotRepository.store(snaphsot);
             }
@@ -155,6 +197,19 @@ public class TraceCollectorImpl implements TraceCollector {
         }
     }
 
+    @Override
+    public boolean isAggregateProfilingEnabled() {
+        return aggregator != null;
+    }
+
+    @Override
+    public void onStackTraceSample(Trace trace, ThreadInfo threadInfo) {
+        if (aggregator != null) {
+            String grouping = Objects.firstNonNull(trace.getGrouping(), "<no grouping provided>");
+            aggregator.addStackTrace(grouping, threadInfo);
+        }
+    }
+
     private void logPendingLimitWarning() {
         synchronized (warningRateLimiter) {
             if (warningRateLimiter.tryAcquire(0, MILLISECONDS)) {
@@ -174,4 +229,73 @@ public class TraceCollectorImpl implements TraceCollector {
         return storeThresholdMillis != GeneralConfig.STORE_THRESHOLD_DISABLED
                 && trace.getDuration() >= MILLISECONDS.toNanos(storeThresholdMillis);
     }
+
+    private void storeBatch(List<PendingTrace> batch) {
+        List<Snapshot> snapshots = Lists.newArrayListWithCapacity(batch.size());
+        for (PendingTrace pendingTrace : batch) {
+            try {
+                snapshots.add(SnapshotCreator.createCompletedSnapshot(pendingTrace.trace,
+                        pendingTrace.captureTime));
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        try {
+            snapshotRepository.storeAll(snapshots);
+        } finally {
+            for (PendingTrace pendingTrace : batch) {
+                pendingCompleteTraces.remove(pendingTrace.trace.getId());
+            }
+        }
+        storedTraceCount.addAndGet(snapshots.size());
+        storedBatchCount.incrementAndGet();
+        while (true) {
+            int currMaxBatchSize = maxBatchSize.get();
+            if (batch.size() <= currMaxBatchSize
+                    || maxBatchSize.compareAndSet(currMaxBatchSize, batch.size())) {
+                break;
+            }
+        }
+    }
+
+    // stores one batch per execution and then re-submits itself if there are more pending traces,
+    // so that it does not monopolize the (shared) executor service while there is a backlog
+    private class DrainTask implements Runnable {
+        @Override
+        public void run() {
+            List<PendingTrace> batch = Lists.newArrayListWithCapacity(MAX_BATCH_SIZE);
+            pendingQueue.drainTo(batch, MAX_BATCH_SIZE);
+            try {
+                if (!batch.isEmpty()) {
+                    storeBatch(batch);
+                }
+            } catch (Throwable t) {
+                // log and terminate successfully
+                logger.error(t.getMessage(), t);
+            } finally {
+                if (!pendingQueue.isEmpty()) {
+                    executorService.execute(this);
+                } else {
+                    draining.set(false);
+                    // re-check in case a trace was queued after the isEmpty() check above but
+                    // before the draining flag was cleared (in which case no drain task was
+                    // submitted for it)
+                    if (!pendingQueue.isEmpty() && draining.compareAndSet(false, true)) {
+                        executorService.execute(this);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class PendingTrace {
+
+        private final Trace trace;
+        private final long captureTime;
+
+        private PendingTrace(Trace trace, long captureTime) {
+            this.trace = trace;
+            this.captureTime = captureTime;
+        }
+    }
 }
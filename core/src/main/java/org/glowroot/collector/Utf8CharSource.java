@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.collector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import checkers.igj.quals.Immutable;
+import com.google.common.base.Charsets;
+import com.google.common.io.CharSource;
+
+/**
+ * CharSource whose underlying data is UTF-8 encoded bytes (e.g. a block of the rolling file), so
+ * that it can be streamed as bytes (e.g. to an http response) without decoding it into chars and
+ * then re-encoding it.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@Immutable
+public abstract class Utf8CharSource extends CharSource {
+
+    public abstract InputStream openUtf8Stream() throws IOException;
+
+    @Override
+    public Reader openStream() throws IOException {
+        return new InputStreamReader(openUtf8Stream(), Charsets.UTF_8);
+    }
+}
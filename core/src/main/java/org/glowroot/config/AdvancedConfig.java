@@ -38,6 +38,7 @@ public class AdvancedConfig {
     private final boolean metricWrapperMethodsDisabled;
     private final boolean warnOnSpanOutsideTrace;
     private final boolean weavingDisabled;
+    private final boolean aggregateProfilingDisabled;
 
     private final String version;
 
@@ -45,8 +46,9 @@ public class AdvancedConfig {
         final boolean metricWrapperMethodsDisabled = false;
         final boolean warnOnSpanOutsideTrace = false;
         final boolean weavingDisabled = false;
+        final boolean aggregateProfilingDisabled = false;
         return new AdvancedConfig(metricWrapperMethodsDisabled, warnOnSpanOutsideTrace,
-                weavingDisabled);
+                weavingDisabled, aggregateProfilingDisabled);
     }
 
     public static Overlay overlay(AdvancedConfig base) {
@@ -55,12 +57,13 @@ public class AdvancedConfig {
 
     @VisibleForTesting
     public AdvancedConfig(boolean metricWrapperMethodsDisabled, boolean warnOnSpanOutsideTrace,
-            boolean weavingDisabled) {
+            boolean weavingDisabled, boolean aggregateProfilingDisabled) {
         this.metricWrapperMethodsDisabled = metricWrapperMethodsDisabled;
         this.warnOnSpanOutsideTrace = warnOnSpanOutsideTrace;
         this.weavingDisabled = weavingDisabled;
+        this.aggregateProfilingDisabled = aggregateProfilingDisabled;
         this.version = VersionHashes.sha1(metricWrapperMethodsDisabled, warnOnSpanOutsideTrace,
-                weavingDisabled);
+                weavingDisabled, aggregateProfilingDisabled);
     }
 
     public boolean isMetricWrapperMethodsDisabled() {
@@ -75,6 +78,10 @@ public class AdvancedConfig {
         return weavingDisabled;
     }
 
+    public boolean isAggregateProfilingDisabled() {
+        return aggregateProfilingDisabled;
+    }
+
     @JsonView(UiView.class)
     public String getVersion() {
         return version;
@@ -87,6 +94,7 @@ public class AdvancedConfig {
                 .add("metricWrapperMethodsDisabled", metricWrapperMethodsDisabled)
                 .add("warnOnSpanOutsideTrace", warnOnSpanOutsideTrace)
                 .add("weavingDisabled", weavingDisabled)
+                .add("aggregateProfilingDisabled", aggregateProfilingDisabled)
                 .add("version", version)
                 .toString();
     }
@@ -98,11 +106,13 @@ public class AdvancedConfig {
         private boolean metricWrapperMethodsDisabled;
         private boolean warnOnSpanOutsideTrace;
         private boolean weavingDisabled;
+        private boolean aggregateProfilingDisabled;
 
         private Overlay(AdvancedConfig base) {
             metricWrapperMethodsDisabled = base.metricWrapperMethodsDisabled;
             warnOnSpanOutsideTrace = base.warnOnSpanOutsideTrace;
             weavingDisabled = base.weavingDisabled;
+            aggregateProfilingDisabled = base.aggregateProfilingDisabled;
         }
         public void setMetricWrapperMethodsDisabled(boolean metricWrapperMethodsDisabled) {
             this.metricWrapperMethodsDisabled = metricWrapperMethodsDisabled;
@@ -113,9 +123,12 @@ public class AdvancedConfig {
         public void setWeavingDisabled(boolean weavingDisabled) {
             this.weavingDisabled = weavingDisabled;
         }
+        public void setAggregateProfilingDisabled(boolean aggregateProfilingDisabled) {
+            this.aggregateProfilingDisabled = aggregateProfilingDisabled;
+        }
         public AdvancedConfig build() {
             return new AdvancedConfig(metricWrapperMethodsDisabled, warnOnSpanOutsideTrace,
-                    weavingDisabled);
+                    weavingDisabled, aggregateProfilingDisabled);
         }
     }
 }
@@ -15,26 +15,55 @@
  */
 package org.glowroot.local.store;
 
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import checkers.igj.quals.Immutable;
+import checkers.nullness.quals.Nullable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.CharSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.collector.Aggregate;
 import org.glowroot.collector.AggregateRepository;
+import org.glowroot.collector.Histogram;
 import org.glowroot.local.store.DataSource.BatchAdder;
 import org.glowroot.local.store.DataSource.RowMapper;
 import org.glowroot.local.store.Schemas.Column;
+import org.glowroot.local.store.Schemas.Index;
 import org.glowroot.markers.Singleton;
 import org.glowroot.markers.ThreadSafe;
 
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+
 /**
+ * Raw aggregates are stored at the fixed aggregate interval (rollup level 0), and are rolled up
+ * incrementally into coarser rollup levels, each one rolled up from the level below it, so that
+ * reading long time ranges doesn't need to scan all of the raw aggregates. Since the most recent
+ * data which has not been rolled up yet is read from the raw aggregates, each point that is read
+ * reports its own rollup level.
+ *
+ * An interval is only rolled up once a raw aggregate at or after the end of the interval has been
+ * stored (the watermark), since raw aggregates are flushed in capture time order (see Aggregator),
+ * so raw aggregates that are flushed late are still included in the rollup.
+ *
+ * Grouping profiles (merged stack trees in json) are rolled up the same way, by merging them with
+ * {@link ProfileMerger}. Reading a grouping profile merges the profiles across the requested
+ * intervals, so the number of profiles read is capped at {@link #MAX_PROFILE_READ_COUNT} (the most
+ * recent profiles are read first) so that a single request cannot parse an unbounded amount of
+ * json.
+ *
  * @author Trask Stalnaker
  * @since 0.5
  */
@@ -44,77 +73,231 @@ public class AggregateDao implements AggregateRepository {
     private static final Logger logger = LoggerFactory.getLogger(AggregateDao.class);
 
     private static final ImmutableList<Column> aggregateColumns = ImmutableList.of(
-            new Column("capture_time", Types.BIGINT), // capture time rounded up to nearest 5 min
+            new Column("capture_time", Types.BIGINT), // capture time rounded up to nearest interval
             new Column("duration_total", Types.BIGINT),
-            new Column("trace_count", Types.BIGINT));
+            new Column("trace_count", Types.BIGINT),
+            new Column("histogram", Types.VARBINARY)); // encoded Histogram
 
     private static final ImmutableList<Column> groupingAggregateColumns = ImmutableList.of(
             new Column("grouping", Types.VARCHAR),
-            new Column("capture_time", Types.BIGINT), // capture time rounded up to nearest 5 min
+            new Column("capture_time", Types.BIGINT), // capture time rounded up to nearest interval
             new Column("duration_total", Types.BIGINT),
-            new Column("trace_count", Types.BIGINT));
+            new Column("trace_count", Types.BIGINT),
+            new Column("histogram", Types.VARBINARY)); // encoded Histogram
+
+    // the requested rollup level is normally picked to give no more than about 300 points (see
+    // AggregateJsonService), plus the raw profiles that have not been rolled up yet
+    private static final int MAX_PROFILE_READ_COUNT =
+            Integer.getInteger("glowroot.experimental.maxProfileReadCount", 500);
+
+    private static final ImmutableList<Column> groupingProfileColumns = ImmutableList.of(
+            new Column("grouping", Types.VARCHAR),
+            new Column("capture_time", Types.BIGINT), // capture time rounded up to nearest interval
+            new Column("profile", Types.CLOB)); // merged stack tree json
+
+    // the interval for level 0 is the fixed aggregate interval, which is not needed here
+    private static final ImmutableList<RollupLevel> rollupLevels = ImmutableList.of(
+            new RollupLevel(0, "", 0, DAYS.toMillis(30)),
+            new RollupLevel(1, "_rollup_1h", HOURS.toMillis(1), DAYS.toMillis(180)),
+            new RollupLevel(2, "_rollup_1d", DAYS.toMillis(1), DAYS.toMillis(3650)));
 
     private final DataSource dataSource;
 
+    // last capture time rolled up for each rollup level (index 0 is unused)
+    private final AtomicLongArray lastRollupCaptureTimes;
+
+    // the rollup watermark, max capture time of the raw aggregates stored so far
+    private final AtomicLong lastStoredCaptureTime;
+
     AggregateDao(DataSource dataSource) throws SQLException {
         this.dataSource = dataSource;
-        dataSource.syncTable("aggregate", aggregateColumns);
-        dataSource.syncTable("grouping_aggregate", groupingAggregateColumns);
+        lastRollupCaptureTimes = new AtomicLongArray(rollupLevels.size());
+        for (int i = 0; i < rollupLevels.size(); i++) {
+            RollupLevel rollupLevel = rollupLevels.get(i);
+            dataSource.syncTable(rollupLevel.aggregateTable, aggregateColumns);
+            dataSource.syncIndexes(rollupLevel.aggregateTable, ImmutableList.of(new Index(
+                    rollupLevel.aggregateTable + "_idx", ImmutableList.of("capture_time"))));
+            dataSource.syncTable(rollupLevel.groupingAggregateTable, groupingAggregateColumns);
+            dataSource.syncIndexes(rollupLevel.groupingAggregateTable, ImmutableList.of(new Index(
+                    rollupLevel.groupingAggregateTable + "_idx",
+                    ImmutableList.of("capture_time"))));
+            dataSource.syncTable(rollupLevel.groupingProfileTable, groupingProfileColumns);
+            dataSource.syncIndexes(rollupLevel.groupingProfileTable, ImmutableList.of(new Index(
+                    rollupLevel.groupingProfileTable + "_idx",
+                    ImmutableList.of("grouping", "capture_time"))));
+            if (i > 0) {
+                lastRollupCaptureTimes.set(i, dataSource.queryForLong(
+                        "select max(capture_time) from " + rollupLevel.aggregateTable));
+            }
+        }
+        lastStoredCaptureTime = new AtomicLong(dataSource.queryForLong(
+                "select max(capture_time) from " + rollupLevels.get(0).aggregateTable));
     }
 
     @Override
-    public void store(final long captureTime, Aggregate aggregate,
-            final Map<String, Aggregate> groupingAggregates) {
+    public void store(long captureTime, Aggregate aggregate,
+            Map<String, Aggregate> groupingAggregates, Map<String, CharSource> groupingProfiles) {
         logger.debug("store(): captureTime={}, aggregate={}, groupingAggregates={}", captureTime,
                 aggregate, groupingAggregates);
+        Map<String, MergedAggregate> mergedGroupingAggregates = Maps.newHashMap();
+        for (Entry<String, Aggregate> entry : groupingAggregates.entrySet()) {
+            mergedGroupingAggregates.put(entry.getKey(), new MergedAggregate(entry.getValue()));
+        }
         try {
-            dataSource.update("insert into aggregate (capture_time, duration_total, trace_count)"
-                    + " values (?, ?, ?)", captureTime, aggregate.getDurationTotal(),
-                    aggregate.getTraceCount());
-            dataSource.batchUpdate("insert into grouping_aggregate (grouping, capture_time,"
-                    + " duration_total, trace_count) values (?, ?, ?, ?)", new BatchAdder() {
-                @Override
-                public void addBatches(PreparedStatement preparedStatement)
-                        throws SQLException {
-                    for (Entry<String, Aggregate> entry : groupingAggregates.entrySet()) {
-                        preparedStatement.setString(1, entry.getKey());
-                        preparedStatement.setLong(2, captureTime);
-                        Aggregate aggregate = entry.getValue();
-                        preparedStatement.setLong(3, aggregate.getDurationTotal());
-                        preparedStatement.setLong(4, aggregate.getTraceCount());
-                        preparedStatement.addBatch();
-                    }
-                }
-            });
+            insert(rollupLevels.get(0), captureTime, new MergedAggregate(aggregate),
+                    mergedGroupingAggregates);
+            if (!groupingProfiles.isEmpty()) {
+                insertGroupingProfiles(rollupLevels.get(0), captureTime,
+                        readGroupingProfiles(groupingProfiles));
+            }
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
         }
+        // the watermark is advanced even if the insert failed, otherwise a single failed insert
+        // would hold back the rollup indefinitely
+        while (true) {
+            long current = lastStoredCaptureTime.get();
+            if (captureTime <= current
+                    || lastStoredCaptureTime.compareAndSet(current, captureTime)) {
+                break;
+            }
+        }
+    }
+
+    public int getRollupLevelCount() {
+        return rollupLevels.size();
+    }
+
+    public long getRollupIntervalMillis(int rollupLevel) {
+        return rollupLevels.get(rollupLevel).intervalMillis;
+    }
+
+    public long getRollupExpirationMillis(int rollupLevel) {
+        return rollupLevels.get(rollupLevel).expirationMillis;
     }
 
     public ImmutableList<AggregatePoint> readAggregates(long captureTimeFrom, long captureTimeTo) {
-        logger.debug("readAggregates(): captureTimeFrom={}, captureTimeTo={}", captureTimeFrom,
-                captureTimeTo);
+        return readAggregates(captureTimeFrom, captureTimeTo, 0);
+    }
+
+    // the most recent data which has not been rolled up yet is read from the raw aggregates
+    public ImmutableList<AggregatePoint> readAggregates(long captureTimeFrom, long captureTimeTo,
+            int rollupLevel) {
+        logger.debug("readAggregates(): captureTimeFrom={}, captureTimeTo={}, rollupLevel={}",
+                captureTimeFrom, captureTimeTo, rollupLevel);
         try {
-            return dataSource.query("select capture_time, duration_total, trace_count from"
-                    + " aggregate where capture_time >= ? and capture_time <= ?",
-                    ImmutableList.of(captureTimeFrom, captureTimeTo),
-                    new AggregateIntervalRowMapper());
+            if (rollupLevel == 0) {
+                return readAggregatePoints(rollupLevels.get(0), null, captureTimeFrom,
+                        captureTimeTo);
+            }
+            long lastRollupCaptureTime = lastRollupCaptureTimes.get(rollupLevel);
+            return ImmutableList.<AggregatePoint>builder()
+                    .addAll(readAggregatePoints(rollupLevels.get(rollupLevel), null,
+                            captureTimeFrom, Math.min(captureTimeTo, lastRollupCaptureTime)))
+                    .addAll(readAggregatePoints(rollupLevels.get(0), null,
+                            Math.max(captureTimeFrom, lastRollupCaptureTime + 1), captureTimeTo))
+                    .build();
+        } catch (SQLException e) {
+            logger.error(e.getMessage(), e);
+            return ImmutableList.of();
+        }
+    }
+
+    public ImmutableList<AggregatePoint> readGroupingAggregates(String grouping,
+            long captureTimeFrom, long captureTimeTo) {
+        return readGroupingAggregates(grouping, captureTimeFrom, captureTimeTo, 0);
+    }
+
+    public ImmutableList<AggregatePoint> readGroupingAggregates(String grouping,
+            long captureTimeFrom, long captureTimeTo, int rollupLevel) {
+        logger.debug("readGroupingAggregates(): grouping={}, captureTimeFrom={},"
+                + " captureTimeTo={}, rollupLevel={}", grouping, captureTimeFrom, captureTimeTo,
+                rollupLevel);
+        try {
+            if (rollupLevel == 0) {
+                return readAggregatePoints(rollupLevels.get(0), grouping, captureTimeFrom,
+                        captureTimeTo);
+            }
+            long lastRollupCaptureTime = lastRollupCaptureTimes.get(rollupLevel);
+            return ImmutableList.<AggregatePoint>builder()
+                    .addAll(readAggregatePoints(rollupLevels.get(rollupLevel), grouping,
+                            captureTimeFrom, Math.min(captureTimeTo, lastRollupCaptureTime)))
+                    .addAll(readAggregatePoints(rollupLevels.get(0), grouping,
+                            Math.max(captureTimeFrom, lastRollupCaptureTime + 1), captureTimeTo))
+                    .build();
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
             return ImmutableList.of();
         }
     }
 
+    // returns the merged stack tree json merged across the requested intervals, or null if there
+    // are no profiles in the requested intervals
+    @Nullable
+    public String readGroupingProfile(String grouping, long captureTimeFrom, long captureTimeTo,
+            int rollupLevel) {
+        logger.debug("readGroupingProfile(): grouping={}, captureTimeFrom={}, captureTimeTo={},"
+                + " rollupLevel={}", grouping, captureTimeFrom, captureTimeTo, rollupLevel);
+        long lastRollupCaptureTime;
+        if (rollupLevel == 0) {
+            lastRollupCaptureTime = captureTimeFrom - 1;
+        } else {
+            lastRollupCaptureTime = lastRollupCaptureTimes.get(rollupLevel);
+        }
+        ProfileMerger profileMerger = new ProfileMerger();
+        try {
+            // the raw profiles that have not been rolled up yet are the most recent, so they are
+            // read first
+            int readCount = mergeGroupingProfiles(rollupLevels.get(0), grouping,
+                    Math.max(captureTimeFrom, lastRollupCaptureTime + 1), captureTimeTo,
+                    MAX_PROFILE_READ_COUNT, profileMerger);
+            if (rollupLevel != 0) {
+                mergeGroupingProfiles(rollupLevels.get(rollupLevel), grouping, captureTimeFrom,
+                        Math.min(captureTimeTo, lastRollupCaptureTime),
+                        MAX_PROFILE_READ_COUNT - readCount, profileMerger);
+            }
+            if (profileMerger.isEmpty()) {
+                return null;
+            }
+            return profileMerger.write();
+        } catch (SQLException e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
     // returns list ordered and limited by average descending
     public ImmutableList<GroupingAggregate> readGroupingAggregates(long captureTimeFrom,
             long captureTimeTo, int limit) {
-        logger.debug("readAggregates(): captureTimeFrom={}, captureTimeTo={}, limit={}",
-                captureTimeFrom, captureTimeTo, limit);
+        return readGroupingAggregates(captureTimeFrom, captureTimeTo, limit, 0);
+    }
+
+    // returns list ordered and limited by average descending
+    public ImmutableList<GroupingAggregate> readGroupingAggregates(long captureTimeFrom,
+            long captureTimeTo, int limit, int rollupLevel) {
+        logger.debug("readGroupingAggregates(): captureTimeFrom={}, captureTimeTo={}, limit={},"
+                + " rollupLevel={}", captureTimeFrom, captureTimeTo, limit, rollupLevel);
+        long lastRollupCaptureTime;
+        if (rollupLevel == 0) {
+            lastRollupCaptureTime = captureTimeFrom - 1;
+        } else {
+            lastRollupCaptureTime = lastRollupCaptureTimes.get(rollupLevel);
+        }
         try {
             return dataSource.query("select grouping, sum(duration_total), sum(trace_count) from"
-                    + " grouping_aggregate where capture_time >= ? and capture_time <= ? group by"
-                    + " grouping order by sum(duration_total) / sum(trace_count) desc limit ?",
-                    ImmutableList.of(captureTimeFrom, captureTimeTo, limit),
+                    + " (select grouping, duration_total, trace_count from "
+                    + rollupLevels.get(rollupLevel).groupingAggregateTable
+                    + " where capture_time >= ? and capture_time <= ? union all select grouping,"
+                    + " duration_total, trace_count from grouping_aggregate where capture_time >= ?"
+                    + " and capture_time <= ?) group by grouping order by sum(duration_total)"
+                    + " / sum(trace_count) desc limit ?",
+                    ImmutableList.of(captureTimeFrom,
+                            Math.min(captureTimeTo, lastRollupCaptureTime),
+                            Math.max(captureTimeFrom, lastRollupCaptureTime + 1), captureTimeTo,
+                            limit),
                     new GroupingAggregateRowMapper());
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
@@ -122,15 +305,331 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    // rolls up all complete intervals that have not been rolled up yet
+    synchronized void rollup() {
+        for (int i = 1; i < rollupLevels.size(); i++) {
+            RollupLevel fromLevel = rollupLevels.get(i - 1);
+            RollupLevel toLevel = rollupLevels.get(i);
+            long safeCaptureTime;
+            if (i == 1) {
+                safeCaptureTime = lastStoredCaptureTime.get();
+            } else {
+                safeCaptureTime = lastRollupCaptureTimes.get(i - 1);
+            }
+            try {
+                rollup(fromLevel, toLevel, i, safeCaptureTime);
+            } catch (SQLException e) {
+                logger.error(e.getMessage(), e);
+                return;
+            }
+        }
+    }
+
+    void deleteExpiredAggregates(long currentTime) {
+        for (RollupLevel rollupLevel : rollupLevels) {
+            long captureTime = currentTime - rollupLevel.expirationMillis;
+            logger.debug("deleteExpiredAggregates(): table={}, captureTime={}",
+                    rollupLevel.aggregateTable, captureTime);
+            try {
+                dataSource.update("delete from " + rollupLevel.aggregateTable
+                        + " where capture_time < ?", captureTime);
+                dataSource.update("delete from " + rollupLevel.groupingAggregateTable
+                        + " where capture_time < ?", captureTime);
+                dataSource.update("delete from " + rollupLevel.groupingProfileTable
+                        + " where capture_time < ?", captureTime);
+            } catch (SQLException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    // skips over gaps with no data (e.g. while the server was down) instead of stepping through
+    // each empty interval
+    private void rollup(RollupLevel fromLevel, RollupLevel toLevel, int toLevelIndex,
+            long safeCaptureTime) throws SQLException {
+        long intervalMillis = toLevel.intervalMillis;
+        long lastRollupCaptureTime = lastRollupCaptureTimes.get(toLevelIndex);
+        while (true) {
+            long nextCaptureTime = dataSource.queryForLong("select min(capture_time) from "
+                    + fromLevel.aggregateTable + " where capture_time > ?", lastRollupCaptureTime);
+            if (nextCaptureTime == 0) {
+                return;
+            }
+            long rollupCaptureTime = (long) Math.ceil(nextCaptureTime / (double) intervalMillis)
+                    * intervalMillis;
+            if (rollupCaptureTime > safeCaptureTime) {
+                // interval is not complete yet
+                return;
+            }
+            rollupInterval(fromLevel, toLevel, rollupCaptureTime - intervalMillis,
+                    rollupCaptureTime);
+            lastRollupCaptureTime = rollupCaptureTime;
+            lastRollupCaptureTimes.set(toLevelIndex, lastRollupCaptureTime);
+        }
+    }
+
+    private void rollupInterval(RollupLevel fromLevel, RollupLevel toLevel,
+            long captureTimeExclusive, long captureTimeInclusive) throws SQLException {
+        MergedAggregate aggregate = new MergedAggregate();
+        for (AggregatePoint point : readAggregatePoints(fromLevel, null, captureTimeExclusive + 1,
+                captureTimeInclusive)) {
+            aggregate.add(point);
+        }
+        Map<String, MergedAggregate> groupingAggregates = Maps.newHashMap();
+        ImmutableList<GroupingAggregatePoint> groupingPoints = dataSource.query(
+                "select grouping, capture_time, duration_total, trace_count, histogram from "
+                        + fromLevel.groupingAggregateTable
+                        + " where capture_time > ? and capture_time <= ?",
+                ImmutableList.of(captureTimeExclusive, captureTimeInclusive),
+                new GroupingAggregatePointRowMapper(fromLevel.level));
+        for (GroupingAggregatePoint groupingPoint : groupingPoints) {
+            MergedAggregate groupingAggregate = groupingAggregates.get(groupingPoint.grouping);
+            if (groupingAggregate == null) {
+                groupingAggregate = new MergedAggregate();
+                groupingAggregates.put(groupingPoint.grouping, groupingAggregate);
+            }
+            groupingAggregate.add(groupingPoint.point);
+        }
+        insert(toLevel, captureTimeInclusive, aggregate, groupingAggregates);
+        rollupGroupingProfiles(fromLevel, toLevel, captureTimeExclusive, captureTimeInclusive);
+    }
+
+    // the profiles are merged one grouping at a time to limit the number of merged profiles that
+    // are held in memory at the same time
+    private void rollupGroupingProfiles(RollupLevel fromLevel, RollupLevel toLevel,
+            long captureTimeExclusive, long captureTimeInclusive) throws SQLException {
+        ImmutableList<String> groupings = dataSource.query("select distinct grouping from "
+                + fromLevel.groupingProfileTable + " where capture_time > ? and capture_time <= ?",
+                ImmutableList.of(captureTimeExclusive, captureTimeInclusive),
+                new StringRowMapper());
+        for (String grouping : groupings) {
+            ProfileMerger profileMerger = new ProfileMerger();
+            // rows read are not capped here since the number of rows per grouping is bounded by
+            // the ratio of the rollup intervals
+            mergeGroupingProfiles(fromLevel, grouping, captureTimeExclusive + 1,
+                    captureTimeInclusive, Integer.MAX_VALUE, profileMerger);
+            if (profileMerger.isEmpty()) {
+                continue;
+            }
+            String profile;
+            try {
+                profile = profileMerger.write();
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+                continue;
+            }
+            insertGroupingProfiles(toLevel, captureTimeInclusive,
+                    ImmutableMap.of(grouping, profile));
+        }
+    }
+
+    // returns the number of profiles that were read
+    private int mergeGroupingProfiles(RollupLevel rollupLevel, String grouping,
+            long captureTimeFrom, long captureTimeTo, int limit, ProfileMerger profileMerger)
+            throws SQLException {
+        if (captureTimeFrom > captureTimeTo || limit <= 0) {
+            return 0;
+        }
+        ImmutableList<String> profiles = dataSource.query("select profile from "
+                + rollupLevel.groupingProfileTable + " where grouping = ? and capture_time >= ?"
+                + " and capture_time <= ? order by capture_time desc limit ?",
+                ImmutableList.of(grouping, captureTimeFrom, captureTimeTo, limit),
+                new StringRowMapper());
+        if (profiles.size() == limit && limit != Integer.MAX_VALUE) {
+            logger.debug("mergeGroupingProfiles(): profile read count capped at {}", limit);
+        }
+        for (String profile : profiles) {
+            try {
+                profileMerger.merge(profile);
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        return profiles.size();
+    }
+
+    private ImmutableList<AggregatePoint> readAggregatePoints(RollupLevel rollupLevel,
+            @Nullable String grouping, long captureTimeFrom, long captureTimeTo)
+            throws SQLException {
+        if (captureTimeFrom > captureTimeTo) {
+            return ImmutableList.of();
+        }
+        if (grouping == null) {
+            return dataSource.query("select capture_time, duration_total, trace_count,"
+                    + " histogram from " + rollupLevel.aggregateTable
+                    + " where capture_time >= ? and capture_time <= ? order by capture_time",
+                    ImmutableList.of(captureTimeFrom, captureTimeTo),
+                    new AggregateIntervalRowMapper(rollupLevel.level));
+        } else {
+            return dataSource.query("select capture_time, duration_total, trace_count,"
+                    + " histogram from " + rollupLevel.groupingAggregateTable
+                    + " where grouping = ? and capture_time >= ? and capture_time <= ?"
+                    + " order by capture_time",
+                    ImmutableList.of(grouping, captureTimeFrom, captureTimeTo),
+                    new AggregateIntervalRowMapper(rollupLevel.level));
+        }
+    }
+
+    private void insert(RollupLevel rollupLevel, final long captureTime,
+            MergedAggregate aggregate, final Map<String, MergedAggregate> groupingAggregates)
+            throws SQLException {
+        dataSource.update("insert into " + rollupLevel.aggregateTable + " (capture_time,"
+                + " duration_total, trace_count, histogram) values (?, ?, ?, ?)", captureTime,
+                aggregate.durationTotal, aggregate.traceCount, aggregate.histogram.encode());
+        dataSource.batchUpdate("insert into " + rollupLevel.groupingAggregateTable + " (grouping,"
+                + " capture_time, duration_total, trace_count, histogram) values (?, ?, ?, ?, ?)",
+                new BatchAdder() {
+                    @Override
+                    public void addBatches(PreparedStatement preparedStatement)
+                            throws SQLException {
+                        for (Entry<String, MergedAggregate> entry : groupingAggregates
+                                .entrySet()) {
+                            MergedAggregate aggregate = entry.getValue();
+                            preparedStatement.setString(1, entry.getKey());
+                            preparedStatement.setLong(2, captureTime);
+                            preparedStatement.setLong(3, aggregate.durationTotal);
+                            preparedStatement.setLong(4, aggregate.traceCount);
+                            preparedStatement.setBytes(5, aggregate.histogram.encode());
+                            preparedStatement.addBatch();
+                        }
+                    }
+                });
+    }
+
+    private void insertGroupingProfiles(RollupLevel rollupLevel, final long captureTime,
+            final Map<String, String> profiles) throws SQLException {
+        dataSource.batchUpdate("insert into " + rollupLevel.groupingProfileTable + " (grouping,"
+                + " capture_time, profile) values (?, ?, ?)", new BatchAdder() {
+            @Override
+            public void addBatches(PreparedStatement preparedStatement) throws SQLException {
+                for (Entry<String, String> entry : profiles.entrySet()) {
+                    preparedStatement.setString(1, entry.getKey());
+                    preparedStatement.setLong(2, captureTime);
+                    preparedStatement.setString(3, entry.getValue());
+                    preparedStatement.addBatch();
+                }
+            }
+        });
+    }
+
+    private static Map<String, String> readGroupingProfiles(
+            Map<String, CharSource> groupingProfiles) {
+        Map<String, String> profiles = Maps.newHashMap();
+        for (Entry<String, CharSource> entry : groupingProfiles.entrySet()) {
+            try {
+                profiles.put(entry.getKey(), entry.getValue().read());
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        return profiles;
+    }
+
+    @Immutable
+    private static class RollupLevel {
+
+        private final int level;
+        private final String aggregateTable;
+        private final String groupingAggregateTable;
+        private final String groupingProfileTable;
+        private final long intervalMillis;
+        private final long expirationMillis;
+
+        private RollupLevel(int level, String tableSuffix, long intervalMillis,
+                long expirationMillis) {
+            this.level = level;
+            aggregateTable = "aggregate" + tableSuffix;
+            groupingAggregateTable = "grouping_aggregate" + tableSuffix;
+            groupingProfileTable = "grouping_profile" + tableSuffix;
+            this.intervalMillis = intervalMillis;
+            this.expirationMillis = expirationMillis;
+        }
+    }
+
+    // collector.Aggregate can only be built up from individual trace durations, while rollups
+    // need to be built up from already aggregated rows
+    private static class MergedAggregate {
+
+        private long durationTotal;
+        private long traceCount;
+        private final Histogram histogram;
+
+        private MergedAggregate() {
+            histogram = new Histogram();
+        }
+
+        private MergedAggregate(Aggregate aggregate) {
+            durationTotal = aggregate.getDurationTotal();
+            traceCount = aggregate.getTraceCount();
+            histogram = aggregate.getHistogram();
+        }
+
+        private void add(AggregatePoint point) {
+            durationTotal += point.getDurationTotal();
+            traceCount += point.getTraceCount();
+            histogram.merge(point.getHistogram());
+        }
+    }
+
+    private static class GroupingAggregatePoint {
+
+        private final String grouping;
+        private final AggregatePoint point;
+
+        private GroupingAggregatePoint(String grouping, AggregatePoint point) {
+            this.grouping = grouping;
+            this.point = point;
+        }
+    }
+
     @ThreadSafe
     private static class AggregateIntervalRowMapper implements RowMapper<AggregatePoint> {
 
+        private final int rollupLevel;
+
+        private AggregateIntervalRowMapper(int rollupLevel) {
+            this.rollupLevel = rollupLevel;
+        }
+
         @Override
         public AggregatePoint mapRow(ResultSet resultSet) throws SQLException {
             long captureTime = resultSet.getLong(1);
             long durationTotal = resultSet.getLong(2);
             long traceCount = resultSet.getLong(3);
-            return new AggregatePoint(captureTime, durationTotal, traceCount);
+            Histogram histogram = Histogram.decode(resultSet.getBytes(4));
+            return new AggregatePoint(captureTime, durationTotal, traceCount, histogram,
+                    rollupLevel);
+        }
+    }
+
+    @ThreadSafe
+    private static class GroupingAggregatePointRowMapper implements
+            RowMapper<GroupingAggregatePoint> {
+
+        private final int rollupLevel;
+
+        private GroupingAggregatePointRowMapper(int rollupLevel) {
+            this.rollupLevel = rollupLevel;
+        }
+
+        @Override
+        public GroupingAggregatePoint mapRow(ResultSet resultSet) throws SQLException {
+            String grouping = resultSet.getString(1);
+            long captureTime = resultSet.getLong(2);
+            long durationTotal = resultSet.getLong(3);
+            long traceCount = resultSet.getLong(4);
+            Histogram histogram = Histogram.decode(resultSet.getBytes(5));
+            return new GroupingAggregatePoint(grouping, new AggregatePoint(captureTime,
+                    durationTotal, traceCount, histogram, rollupLevel));
+        }
+    }
+
+    @ThreadSafe
+    private static class StringRowMapper implements RowMapper<String> {
+
+        @Override
+        public String mapRow(ResultSet resultSet) throws SQLException {
+            return resultSet.getString(1);
         }
     }
 
@@ -15,6 +15,8 @@
  */
 package org.glowroot.local.store;
 
+import org.glowroot.collector.Histogram;
+
 /**
  * @author Trask Stalnaker
  * @since 0.5
@@ -24,11 +26,19 @@ public class AggregatePoint {
     private final long captureTime;
     private final long durationTotal;
     private final long traceCount;
+    private final Histogram histogram;
+    // the rollup level that the point was read from, which is not necessarily the requested rollup
+    // level, since the most recent data which has not been rolled up yet is read from the raw
+    // aggregates (rollup level 0)
+    private final int rollupLevel;
 
-    AggregatePoint(long captureTime, long durationTotal, long traceCount) {
+    AggregatePoint(long captureTime, long durationTotal, long traceCount, Histogram histogram,
+            int rollupLevel) {
         this.captureTime = captureTime;
         this.durationTotal = durationTotal;
         this.traceCount = traceCount;
+        this.histogram = histogram;
+        this.rollupLevel = rollupLevel;
     }
 
     public long getCaptureTime() {
@@ -42,4 +52,12 @@ public class AggregatePoint {
     public long getTraceCount() {
         return traceCount;
     }
+
+    public Histogram getHistogram() {
+        return histogram;
+    }
+
+    public int getRollupLevel() {
+        return rollupLevel;
+    }
 }
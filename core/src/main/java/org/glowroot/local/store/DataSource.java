@@ -23,7 +23,10 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import checkers.igj.quals.ReadOnly;
 import checkers.lock.quals.GuardedBy;
@@ -41,13 +44,23 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.local.store.Schemas.Column;
 import org.glowroot.local.store.Schemas.Index;
+import org.glowroot.markers.NotThreadSafe;
 import org.glowroot.markers.OnlyUsedByTests;
 import org.glowroot.markers.ThreadSafe;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 /**
  * DataSource is a cross between javax.sql.DataSource and spring's JdbcTemplate. Ideally would have
  * just used/wrapped JdbcTemplate but want to keep external dependencies down where reasonable.
  * 
+ * Updates and schema changes go through a single writer connection, while queries are executed on
+ * a small pool of read connections. The database is opened in h2's mvcc mode, so queries do not
+ * take table locks and writes never fail with a lock timeout behind a query. This does not isolate
+ * writes from queries though, since h2 (as of 1.3.167) still executes one statement at a time
+ * across all connections, so a write waits for any query that is currently executing. To bound
+ * that wait, queries on the read connections are cancelled once they exceed a query timeout.
+ * 
  * @author Trask Stalnaker
  * @since 0.5
  */
@@ -58,6 +71,15 @@ public class DataSource {
 
     private static final boolean h2LocalServer;
 
+    private static final int READ_CONNECTION_COUNT = 4;
+
+    // queries (which are all driven by the UI) that take longer than this are cancelled, since
+    // the collector's writes have to wait for them, see class comment, 0 disables the timeout
+    private static final int QUERY_TIMEOUT_SECONDS =
+            Integer.getInteger("glowroot.experimental.queryTimeoutSeconds", 30);
+
+    private static final AtomicInteger memDbCounter = new AtomicInteger();
+
     static {
         // this is used for the demo site so there can be a standby instance against the same db
         h2LocalServer = Boolean.getBoolean("glowroot.internal.h2.localServer");
@@ -66,24 +88,23 @@ public class DataSource {
     // null means use memDb
     @Nullable
     private final File dbFile;
+    private final String url;
     private final Thread shutdownHookThread;
     private final Object lock = new Object();
     @GuardedBy("lock")
-    private Connection connection;
+    private CachingConnection writeConnection;
+    // read connections are checked out of this queue for the duration of each query
+    private final BlockingQueue<CachingConnection> readConnections =
+            new ArrayBlockingQueue<CachingConnection>(READ_CONNECTION_COUNT);
     private volatile boolean closing = false;
 
-    private final LoadingCache<String, PreparedStatement> preparedStatementCache = CacheBuilder
-            .newBuilder().weakKeys().build(new CacheLoader<String, PreparedStatement>() {
-                @Override
-                public PreparedStatement load(String sql) throws SQLException {
-                    return connection.prepareStatement(sql);
-                }
-            });
-
     // creates an in-memory database
     DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        // the in-memory database needs a name so that it can be shared by multiple connections
+        url = "jdbc:h2:mem:glowroot" + memDbCounter.getAndIncrement() + ";mvcc=true";
+        writeConnection = new CachingConnection(url, 0);
+        createReadConnections();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -94,7 +115,9 @@ public class DataSource {
         } else {
             this.dbFile = new File(dbFile.getParent(), dbFile.getName() + ".h2.db");
         }
-        connection = createConnection(dbFile);
+        url = getUrl(dbFile);
+        writeConnection = new CachingConnection(url, 0);
+        createReadConnections();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -107,9 +130,15 @@ public class DataSource {
             if (closing) {
                 return;
             }
+            // all read connections need to be checked in since shutdown closes the database out
+            // from under every connection
+            List<CachingConnection> connections = checkOutAllReadConnections();
             execute("shutdown compact");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
+            for (CachingConnection connection : connections) {
+                connection.closeQuietly();
+            }
+            writeConnection = new CachingConnection(url, 0);
+            createReadConnections();
         }
     }
 
@@ -118,7 +147,7 @@ public class DataSource {
             if (closing) {
                 return;
             }
-            Statement statement = connection.createStatement();
+            Statement statement = writeConnection.connection.createStatement();
             try {
                 statement.execute(sql);
             } finally {
@@ -128,11 +157,13 @@ public class DataSource {
     }
 
     long queryForLong(final String sql, Object... args) throws SQLException {
-        synchronized (lock) {
-            if (closing) {
-                return 0;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor<Long>() {
+        CachingConnection readConnection = checkOutReadConnection();
+        if (readConnection == null) {
+            // closing
+            return 0;
+        }
+        try {
+            return query(readConnection, sql, args, new ResultSetExtractor<Long>() {
                 @Override
                 public Long extractData(ResultSet resultSet) throws SQLException {
                     if (resultSet.next()) {
@@ -149,30 +180,33 @@ public class DataSource {
                     }
                 }
             });
+        } finally {
+            readConnections.add(readConnection);
         }
     }
 
     <T extends /*@NonNull*/Object> ImmutableList<T> query(String sql, @ReadOnly List<?> args,
-            RowMapper<T> rowMapper) throws SQLException {
-        synchronized (lock) {
-            if (closing) {
-                return ImmutableList.of();
-            }
-            PreparedStatement preparedStatement = prepareStatement(sql);
-            for (int i = 0; i < args.size(); i++) {
-                preparedStatement.setObject(i + 1, args.get(i));
-            }
-            ResultSet resultSet = preparedStatement.executeQuery();
-            try {
-                ImmutableList.Builder<T> mappedRows = ImmutableList.builder();
-                while (resultSet.next()) {
-                    mappedRows.add(rowMapper.mapRow(resultSet));
-                }
-                return mappedRows.build();
-            } finally {
-                resultSet.close();
-            }
-            // don't need to close statement since they are all cached and used under lock
+            final RowMapper<T> rowMapper) throws SQLException {
+        CachingConnection readConnection = checkOutReadConnection();
+        if (readConnection == null) {
+            // closing
+            return ImmutableList.of();
+        }
+        try {
+            return query(readConnection, sql, args.toArray(),
+                    new ResultSetExtractor<ImmutableList<T>>() {
+                        @Override
+                        public ImmutableList<T> extractData(ResultSet resultSet)
+                                throws SQLException {
+                            ImmutableList.Builder<T> mappedRows = ImmutableList.builder();
+                            while (resultSet.next()) {
+                                mappedRows.add(rowMapper.mapRow(resultSet));
+                            }
+                            return mappedRows.build();
+                        }
+                    });
+        } finally {
+            readConnections.add(readConnection);
         }
     }
 
@@ -187,7 +221,7 @@ public class DataSource {
             if (closing) {
                 return 0;
             }
-            PreparedStatement preparedStatement = prepareStatement(sql);
+            PreparedStatement preparedStatement = writeConnection.prepareStatement(sql);
             for (int i = 0; i < args.length; i++) {
                 preparedStatement.setObject(i + 1, args[i]);
             }
@@ -208,7 +242,7 @@ public class DataSource {
             if (closing) {
                 return new int[0];
             }
-            PreparedStatement preparedStatement = prepareStatement(sql);
+            PreparedStatement preparedStatement = writeConnection.prepareStatement(sql);
             batchAdder.addBatches(preparedStatement);
             return preparedStatement.executeBatch();
             // don't need to close statement since they are all cached and used under lock
@@ -220,7 +254,7 @@ public class DataSource {
             if (closing) {
                 return;
             }
-            Schemas.syncTable(tableName, columns, connection);
+            Schemas.syncTable(tableName, columns, writeConnection.connection);
         }
     }
 
@@ -229,7 +263,7 @@ public class DataSource {
             if (closing) {
                 return;
             }
-            Schemas.syncIndexes(tableName, indexes, connection);
+            Schemas.syncIndexes(tableName, indexes, writeConnection.connection);
         }
     }
 
@@ -238,13 +272,22 @@ public class DataSource {
             if (closing) {
                 return ImmutableList.of();
             }
-            return Schemas.getColumns(tableName, connection);
+            return Schemas.getColumns(tableName, writeConnection.connection);
+        }
+    }
+
+    ImmutableList<String> getTableNames() throws SQLException {
+        synchronized (lock) {
+            if (closing) {
+                return ImmutableList.of();
+            }
+            return Schemas.getTableNames(writeConnection.connection);
         }
     }
 
     boolean tableExists(String tableName) throws SQLException {
         synchronized (lock) {
-            return !closing && Schemas.tableExists(tableName, connection);
+            return !closing && Schemas.tableExists(tableName, writeConnection.connection);
         }
     }
 
@@ -256,15 +299,64 @@ public class DataSource {
                 return;
             }
             closing = true;
-            connection.close();
+            for (CachingConnection readConnection : checkOutAllReadConnections()) {
+                readConnection.connection.close();
+            }
+            writeConnection.connection.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
-    // lock must be acquired prior to calling this method
-    private <T> T queryUnderLock(String sql, Object[] args, ResultSetExtractor<T> rse)
-            throws SQLException {
-        PreparedStatement preparedStatement = prepareStatement(sql);
+    @GuardedBy("lock")
+    private void createReadConnections() throws SQLException {
+        for (int i = 0; i < READ_CONNECTION_COUNT; i++) {
+            readConnections.add(new CachingConnection(url, QUERY_TIMEOUT_SECONDS));
+        }
+    }
+
+    // returns null if closing
+    @Nullable
+    private CachingConnection checkOutReadConnection() throws SQLException {
+        try {
+            while (!closing) {
+                // poll so that callers that were already waiting for a read connection do not
+                // wait forever once the data source is closed
+                CachingConnection readConnection = readConnections.poll(100, MILLISECONDS);
+                if (readConnection != null) {
+                    return readConnection;
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            SQLException f = new SQLException(e.getMessage());
+            f.initCause(e);
+            throw f;
+        }
+    }
+
+    // this blocks until all of the read connections are returned, which is ok since queries are
+    // never executed while holding the (writer) lock
+    @GuardedBy("lock")
+    private List<CachingConnection> checkOutAllReadConnections() {
+        List<CachingConnection> connections = Lists.newArrayList();
+        boolean interrupted = false;
+        while (connections.size() < READ_CONNECTION_COUNT) {
+            try {
+                connections.add(readConnections.take());
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return connections;
+    }
+
+    private static <T> T query(CachingConnection connection, String sql, Object[] args,
+            ResultSetExtractor<T> rse) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(sql);
         for (int i = 0; i < args.length; i++) {
             preparedStatement.setObject(i + 1, args[i]);
         }
@@ -274,22 +366,8 @@ public class DataSource {
         } finally {
             resultSet.close();
         }
-        // don't need to close statement since they are all cached and used under lock
-    }
-
-    private PreparedStatement prepareStatement(String sql) throws SQLException {
-        try {
-            return preparedStatementCache.get(sql);
-        } catch (ExecutionException e) {
-            Throwable cause = e.getCause();
-            Throwables.propagateIfPossible(cause, SQLException.class);
-            // it should not really be possible to get here since the only checked exception that
-            // preparedStatementCache's CacheLoader throws is SQLException
-            logger.error(e.getMessage(), e);
-            SQLException f = new SQLException(e.getMessage());
-            f.initCause(e);
-            throw f;
-        }
+        // don't need to close statement since they are all cached and the connection is only
+        // used by one thread at a time
     }
 
     public static void tryUnlockDatabase(File dbFile) throws SQLException {
@@ -298,27 +376,22 @@ public class DataSource {
         }
     }
 
-    private static Connection createConnection(@Nullable File dbFile) throws SQLException {
-        // do not use java.sql.DriverManager or org.h2.Driver because these register the driver
-        // globally with the JVM
-        if (dbFile == null) {
-            return new JdbcConnection("jdbc:h2:mem:", new Properties());
+    private static String getUrl(File dbFile) {
+        String dbPath = dbFile.getPath();
+        dbPath = dbPath.replaceFirst(".h2.db$", "");
+        String url;
+        if (h2LocalServer) {
+            url = "jdbc:h2:tcp://localhost/" + dbPath;
         } else {
-            String dbPath = dbFile.getPath();
-            dbPath = dbPath.replaceFirst(".h2.db$", "");
-            Properties props = new Properties();
-            props.setProperty("user", "sa");
-            props.setProperty("password", "");
-            // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
-            String url;
-            if (h2LocalServer) {
-                url = "jdbc:h2:tcp://localhost/" + dbPath;
-            } else {
-                url = "jdbc:h2:" + dbPath;
-            }
-            url += ";db_close_on_exit=false;compress_lob=lzf";
-            return new JdbcConnection(url, props);
+            url = "jdbc:h2:" + dbPath;
         }
+        // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
+        //
+        // mvcc=true so that queries on the read connections do not take shared table locks, which
+        // would otherwise make the writer fail with a lock timeout while a slow query is scanning
+        // the same table (h2 does not support combining mvcc with multi_threaded as of 1.3.167, so
+        // statements are still executed one at a time by the h2 engine, see class comment)
+        return url + ";db_close_on_exit=false;compress_lob=lzf;mvcc=true";
     }
 
     interface BatchAdder {
@@ -333,6 +406,59 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws SQLException;
     }
 
+    // each connection has its own prepared statement cache since prepared statements are bound to
+    // the connection that created them
+    //
+    // queryTimeoutSeconds is applied to every prepared statement, 0 means no timeout
+    @NotThreadSafe
+    private static class CachingConnection {
+
+        private final Connection connection;
+        private final LoadingCache<String, PreparedStatement> preparedStatementCache;
+
+        private CachingConnection(String url, final int queryTimeoutSeconds) throws SQLException {
+            // do not use java.sql.DriverManager or org.h2.Driver because these register the driver
+            // globally with the JVM
+            Properties props = new Properties();
+            props.setProperty("user", "sa");
+            props.setProperty("password", "");
+            connection = new JdbcConnection(url, props);
+            preparedStatementCache = CacheBuilder.newBuilder().weakKeys()
+                    .build(new CacheLoader<String, PreparedStatement>() {
+                        @Override
+                        public PreparedStatement load(String sql) throws SQLException {
+                            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+                            preparedStatement.setQueryTimeout(queryTimeoutSeconds);
+                            return preparedStatement;
+                        }
+                    });
+        }
+
+        private PreparedStatement prepareStatement(String sql) throws SQLException {
+            try {
+                return preparedStatementCache.get(sql);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                Throwables.propagateIfPossible(cause, SQLException.class);
+                // it should not really be possible to get here since the only checked exception
+                // that preparedStatementCache's CacheLoader throws is SQLException
+                logger.error(e.getMessage(), e);
+                SQLException f = new SQLException(e.getMessage());
+                f.initCause(e);
+                throw f;
+            }
+        }
+
+        // used after "shutdown compact" which has already closed the underlying database
+        private void closeQuietly() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -345,7 +471,10 @@ public class DataSource {
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closing = true;
                 synchronized (lock) {
-                    connection.close();
+                    for (CachingConnection readConnection : checkOutAllReadConnections()) {
+                        readConnection.connection.close();
+                    }
+                    writeConnection.connection.close();
                 }
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
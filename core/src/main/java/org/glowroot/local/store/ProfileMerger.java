@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.local.store;
+
+import java.io.IOException;
+import java.util.Map;
+
+import checkers.igj.quals.ReadOnly;
+import checkers.nullness.quals.Nullable;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Maps;
+import com.google.common.io.CharStreams;
+
+import org.glowroot.common.ObjectMappers;
+import org.glowroot.markers.NotThreadSafe;
+
+/**
+ * Merges merged stack trees (in the json format written by the collector) from multiple
+ * aggregate intervals into a single merged stack tree, in the same json format.
+ *
+ * Nodes are matched by stack trace element and leaf thread state, and metric names are merged
+ * using the same superset rule as when merging stack traces into a merged stack tree.
+ *
+ * This is used both to roll up the grouping profiles into coarser rollup levels, and to merge the
+ * grouping profiles across the requested intervals at read time.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@NotThreadSafe
+class ProfileMerger {
+
+    private static final String MULTIPLE_ROOT_NODES = "<multiple root nodes>";
+
+    @ReadOnly
+    private static final ObjectMapper mapper = ObjectMappers.create();
+
+    // holds the real root nodes
+    private final Node syntheticRootNode = new Node(MULTIPLE_ROOT_NODES, null, null);
+
+    void merge(String profile) throws IOException {
+        JsonNode rootNode = mapper.readTree(profile);
+        // the synthetic root node's sample count is the total of its child nodes
+        syntheticRootNode.sampleCount += rootNode.path("sampleCount").asLong();
+        if (MULTIPLE_ROOT_NODES.equals(rootNode.path("stackTraceElement").asText())) {
+            for (JsonNode childNode : rootNode.path("childNodes")) {
+                merge(childNode, syntheticRootNode);
+            }
+        } else {
+            merge(rootNode, syntheticRootNode);
+        }
+    }
+
+    boolean isEmpty() {
+        return syntheticRootNode.childNodes.isEmpty();
+    }
+
+    String write() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
+        write(jg);
+        jg.close();
+        return sb.toString();
+    }
+
+    private void write(JsonGenerator jg) throws IOException {
+        if (syntheticRootNode.childNodes.size() == 1) {
+            write(syntheticRootNode.childNodes.values().iterator().next(), jg);
+        } else {
+            write(syntheticRootNode, jg);
+        }
+    }
+
+    private static void merge(JsonNode from, Node toParent) {
+        String stackTraceElement = from.path("stackTraceElement").asText();
+        JsonNode leafThreadStateNode = from.get("leafThreadState");
+        String leafThreadState =
+                leafThreadStateNode == null ? null : leafThreadStateNode.asText();
+        String key = leafThreadState == null ? stackTraceElement
+                : stackTraceElement + ' ' + leafThreadState;
+        JsonNode metricNames = from.get("metricNames");
+        Node to = toParent.childNodes.get(key);
+        if (to == null) {
+            to = new Node(stackTraceElement, leafThreadState, metricNames);
+            toParent.childNodes.put(key, to);
+        } else if (metricNames != null
+                && (to.metricNames == null || metricNames.size() > to.metricNames.size())) {
+            // same as in MergedStackTree, the metric names for a given stack element should
+            // always match, unless the line numbers aren't available and overloaded methods are
+            // matched up, or the stack trace was captured while one of the synthetic $metric$
+            // methods was executing in which case one of the metric names may be a subset of the
+            // other, in which case, the superset wins
+            to.metricNames = metricNames;
+        }
+        to.sampleCount += from.path("sampleCount").asLong();
+        for (JsonNode childNode : from.path("childNodes")) {
+            merge(childNode, to);
+        }
+    }
+
+    private static void write(Node node, JsonGenerator jg) throws IOException {
+        jg.writeStartObject();
+        jg.writeStringField("stackTraceElement", node.stackTraceElement);
+        jg.writeNumberField("sampleCount", node.sampleCount);
+        if (node.leafThreadState != null) {
+            jg.writeStringField("leafThreadState", node.leafThreadState);
+        }
+        if (node.metricNames != null) {
+            jg.writeFieldName("metricNames");
+            jg.writeTree(node.metricNames);
+        }
+        if (!node.childNodes.isEmpty()) {
+            jg.writeArrayFieldStart("childNodes");
+            for (Node childNode : node.childNodes.values()) {
+                write(childNode, jg);
+            }
+            jg.writeEndArray();
+        }
+        jg.writeEndObject();
+    }
+
+    private static class Node {
+
+        private final String stackTraceElement;
+        @Nullable
+        private final String leafThreadState;
+        @Nullable
+        private JsonNode metricNames;
+        private long sampleCount;
+        // linked to preserve the order in which child nodes were first seen
+        private final Map<String, Node> childNodes = Maps.newLinkedHashMap();
+
+        private Node(String stackTraceElement, @Nullable String leafThreadState,
+                @Nullable JsonNode metricNames) {
+            this.stackTraceElement = stackTraceElement;
+            this.leafThreadState = leafThreadState;
+            this.metricNames = metricNames;
+        }
+    }
+}
@@ -32,11 +32,14 @@ class ReaperScheduledRunnable extends ScheduledRunnable {
 
     private final ConfigService configService;
     private final SnapshotDao snapshotDao;
+    private final AggregateDao aggregateDao;
     private final Clock clock;
 
-    ReaperScheduledRunnable(ConfigService configService, SnapshotDao snapshotDao, Clock clock) {
+    ReaperScheduledRunnable(ConfigService configService, SnapshotDao snapshotDao,
+            AggregateDao aggregateDao, Clock clock) {
         this.configService = configService;
         this.snapshotDao = snapshotDao;
+        this.aggregateDao = aggregateDao;
         this.clock = clock;
     }
 
@@ -48,5 +51,7 @@ class ReaperScheduledRunnable extends ScheduledRunnable {
             snapshotDao.deleteSnapshotsBefore(clock.currentTimeMillis()
                     - HOURS.toMillis(snapshotExpirationHours));
         }
+        // each rollup level has its own expiration
+        aggregateDao.deleteExpiredAggregates(clock.currentTimeMillis());
     }
 }
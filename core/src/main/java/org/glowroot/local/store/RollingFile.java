@@ -16,21 +16,31 @@
 package org.glowroot.local.store;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
-import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 
 import checkers.igj.quals.Immutable;
 import checkers.igj.quals.ReadOnly;
 import checkers.lock.quals.GuardedBy;
+import checkers.nullness.quals.Nullable;
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
 import com.google.common.io.CharSource;
 import com.google.common.primitives.Longs;
 import com.ning.compress.lzf.LZFInputStream;
@@ -38,6 +48,8 @@ import com.ning.compress.lzf.LZFOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.collector.EncodedSpansCharSource;
+import org.glowroot.collector.Utf8CharSource;
 import org.glowroot.markers.NotThreadSafe;
 import org.glowroot.markers.OnlyUsedByTests;
 import org.glowroot.markers.ThreadSafe;
@@ -56,18 +68,25 @@ public class RollingFile {
     @GuardedBy("lock")
     private final RollingOutputStream out;
     @GuardedBy("lock")
+    private final OutputStream compressedOut;
+    @GuardedBy("lock")
     private final Writer compressedWriter;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
-    private RandomAccessFile inFile;
+    // readers use positional reads on this channel without acquiring the lock, it is only replaced
+    // (under the lock) when the file is resized
+    private volatile FileChannel inChannel;
+    // generation is incremented (under the lock) before and after each resize, so it is odd while a
+    // resize is in progress, and readers use it to detect a resize that occurred during a read
+    private volatile long generation;
     private volatile boolean closing = false;
 
     RollingFile(File file, int requestedRollingSizeKb, ScheduledExecutorService scheduledExecutor,
             Ticker ticker) throws IOException {
         this.file = file;
         out = RollingOutputStream.create(file, requestedRollingSizeKb, scheduledExecutor, ticker);
-        compressedWriter = new OutputStreamWriter(new LZFOutputStream(out), Charsets.UTF_8);
-        inFile = new RandomAccessFile(file, "r");
+        compressedOut = new LZFOutputStream(out);
+        compressedWriter = new OutputStreamWriter(compressedOut, Charsets.UTF_8);
+        inChannel = openInChannel(file);
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -77,16 +96,29 @@ public class RollingFile {
             if (closing) {
                 return FileBlock.expired();
             }
-            out.startBlock();
-            try {
-                charSource.copyTo(compressedWriter);
-                compressedWriter.flush();
-            } catch (IOException e) {
-                logger.error(e.getMessage(), e);
-                return FileBlock.expired();
+            return writeBlock(charSource, null);
+        }
+    }
+
+    // writes all of the blocks under a single lock acquisition so that a batch of snapshots is
+    // appended contiguously without contending with readers between each block
+    //
+    // shared strings that are about to roll over are re-written (if still referenced) before each
+    // block, see SharedStringStore
+    ImmutableList<FileBlock> write(@ReadOnly List<CharSource> charSources,
+            SharedStringStore sharedStringStore) {
+        ImmutableList.Builder<FileBlock> blocks = ImmutableList.builder();
+        synchronized (lock) {
+            for (CharSource charSource : charSources) {
+                if (closing) {
+                    blocks.add(FileBlock.expired());
+                } else {
+                    sharedStringStore.relocateBeforeRollover();
+                    blocks.add(writeBlock(charSource, sharedStringStore));
+                }
             }
-            return out.endBlock();
         }
+        return blocks.build();
     }
 
     @Immutable
@@ -94,15 +126,66 @@ public class RollingFile {
         return new FileBlockCharSource(block, rolledOverResponse);
     }
 
+    // for blocks that may not be UTF-8 text (see EncodedSpansCharSource)
+    @Immutable
+    ByteSource readBytes(FileBlock block, String rolledOverResponse) {
+        return new FileBlockByteSource(block, rolledOverResponse);
+    }
+
+    // returns whether the block will have rolled over once another numBytes have been written
+    boolean isRolledOverAfter(FileBlock block, long numBytes) {
+        return out.isRolledOver(FileBlock.from(block.getStartIndex() - numBytes,
+                block.getLength()));
+    }
+
+    long getRollingSizeBytes() {
+        return out.getRollingSizeBytes();
+    }
+
     public void resize(int newRollingSizeKb) throws IOException {
         synchronized (lock) {
             if (closing) {
                 return;
             }
-            inFile.close();
-            out.resize(newRollingSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            generation++;
+            try {
+                inChannel.close();
+                out.resize(newRollingSizeKb);
+                inChannel = openInChannel(file);
+            } finally {
+                generation++;
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private FileBlock writeBlock(@ReadOnly CharSource charSource,
+            @Nullable SharedStringStore sharedStringStore) {
+        try {
+            if (charSource instanceof EncodedSpansCharSource) {
+                // store the compact binary encoding instead of the json
+                EncodedSpansCharSource spans = (EncodedSpansCharSource) charSource;
+                ByteSource encoded;
+                if (sharedStringStore == null) {
+                    encoded = spans.getEncoded();
+                } else {
+                    // this needs to happen before the block is started since it writes the blocks
+                    // for any newly shared strings
+                    encoded = spans.getEncoded(sharedStringStore);
+                }
+                out.startBlock();
+                encoded.copyTo(compressedOut);
+                compressedOut.flush();
+            } else {
+                out.startBlock();
+                charSource.copyTo(compressedWriter);
+                compressedWriter.flush();
+            }
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return FileBlock.expired();
         }
+        return out.endBlock();
     }
 
     @OnlyUsedByTests
@@ -111,32 +194,71 @@ public class RollingFile {
         synchronized (lock) {
             closing = true;
             out.close();
-            inFile.close();
+            inChannel.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    private void reopenInChannel(FileChannel closedChannel) throws IOException {
+        synchronized (lock) {
+            if (!closing && inChannel == closedChannel) {
+                inChannel = openInChannel(file);
+            }
+        }
+    }
+
+    private static FileChannel openInChannel(File file) throws FileNotFoundException {
+        return new RandomAccessFile(file, "r").getChannel();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long currPosition = position;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, currPosition);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            currPosition += n;
+        }
+    }
+
     @Immutable
-    private class FileBlockCharSource extends CharSource {
+    private class FileBlockCharSource extends Utf8CharSource {
+
+        private final FileBlockByteSource byteSource;
+
+        private FileBlockCharSource(FileBlock block, String rolledOverResponse) {
+            byteSource = new FileBlockByteSource(block, rolledOverResponse);
+        }
+
+        @Override
+        public InputStream openUtf8Stream() throws IOException {
+            return byteSource.openStream();
+        }
+    }
+
+    @Immutable
+    private class FileBlockByteSource extends ByteSource {
 
         private final FileBlock block;
         private final String rolledOverResponse;
 
-        private FileBlockCharSource(FileBlock block, String rolledOverResponse) {
+        private FileBlockByteSource(FileBlock block, String rolledOverResponse) {
             this.block = block;
             this.rolledOverResponse = rolledOverResponse;
         }
 
         @Override
-        public Reader openStream() throws IOException {
+        public InputStream openStream() throws IOException {
             if (out.isRolledOver(block)) {
-                return CharSource.wrap(rolledOverResponse).openStream();
+                return new ByteArrayInputStream(rolledOverResponse.getBytes(Charsets.UTF_8));
             }
             // it's important to wrap FileBlockInputStream in a BufferedInputStream to prevent lots
-            // of small reads from the underlying RandomAccessFile
+            // of small reads from the underlying FileChannel
             final int bufferSize = 32768;
-            return new InputStreamReader(new LZFInputStream(new BufferedInputStream(
-                    new FileBlockInputStream(block), bufferSize)), Charsets.UTF_8);
+            return new LZFInputStream(new BufferedInputStream(new FileBlockInputStream(block),
+                    bufferSize));
         }
     }
 
@@ -150,21 +272,52 @@ public class RollingFile {
             this.block = block;
         }
 
+        // reads without acquiring the lock, and then validates afterwards that the bytes read were
+        // not overwritten (or moved by a resize) in the meantime
         @Override
         public int read(byte[] bytes, int off, int len) throws IOException {
             long blockRemaining = block.getLength() - blockIndex;
             if (blockRemaining == 0) {
                 return -1;
             }
-            synchronized (lock) {
+            while (true) {
+                long currGeneration = generation;
+                FileChannel channel = inChannel;
+                if ((currGeneration & 1) != 0) {
+                    // resize in progress, wait for it to complete
+                    synchronized (lock) {
+                        currGeneration = generation;
+                        channel = inChannel;
+                    }
+                }
                 if (out.isRolledOver(block)) {
                     throw new IOException("Block rolled over mid-read");
                 }
                 long filePosition = out.convertToFilePosition(block.getStartIndex() + blockIndex);
-                inFile.seek(RollingOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long fileRemaining = out.getRollingSizeKb() * 1024L - filePosition;
+                long fileRemaining = out.getRollingSizeBytes() - filePosition;
                 int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
+                try {
+                    readFully(channel, ByteBuffer.wrap(bytes, off, numToRead),
+                            RollingOutputStream.HEADER_SKIP_BYTES + filePosition);
+                } catch (ClosedByInterruptException e) {
+                    // the interrupt closed the shared channel for all readers, so re-open it
+                    reopenInChannel(channel);
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    if (generation == currGeneration) {
+                        // closed
+                        throw e;
+                    }
+                    // the channel was closed by a resize, retry against the resized file
+                    continue;
+                }
+                if (generation != currGeneration) {
+                    // resized mid-read, retry against the resized file
+                    continue;
+                }
+                if (out.isRolledOver(block)) {
+                    throw new IOException("Block rolled over mid-read");
+                }
                 blockIndex += numToRead;
                 return numToRead;
             }
@@ -201,7 +354,7 @@ public class RollingFile {
                 closing = true;
                 synchronized (lock) {
                     out.close();
-                    inFile.close();
+                    inChannel.close();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
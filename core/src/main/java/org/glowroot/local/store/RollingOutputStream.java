@@ -37,6 +37,9 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 /**
  * Needs to be externally synchronized around startBlock()/write()/endBlock().
  * 
+ * isRolledOver() and convertToFilePosition() can be called outside of the external
+ * synchronization, see RollingFile for how readers validate their reads.
+ * 
  * @author Trask Stalnaker
  * @since 0.5
  */
@@ -55,15 +58,18 @@ class RollingOutputStream extends OutputStream {
 
     // currIndex is ever-increasing even over rolling boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
-    private long currIndex;
+    // currIndex is volatile so readers can check outside of the external synchronization whether
+    // a block was overwritten while it was being read (currIndex is always advanced prior to the
+    // corresponding bytes being written)
+    private volatile long currIndex;
     // lastResizeBaseIndex is the smallest currIndex saved during the last resize
-    private long lastResizeBaseIndex;
+    private volatile long lastResizeBaseIndex;
     // currPosition is the current position in the file
     private long currPosition;
-    // rollingSizeKb is volatile so it can be read outside of the external synchronization around
-    // startBlock()/write()/endBlock()
-    private volatile int rollingSizeKb;
-    private long rollingSizeBytes;
+    private int rollingSizeKb;
+    // rollingSizeBytes is volatile so it can be read outside of the external synchronization
+    // around startBlock()/write()/endBlock()
+    private volatile long rollingSizeBytes;
 
     private long blockStartIndex;
 
@@ -130,8 +136,8 @@ class RollingOutputStream extends OutputStream {
     }
 
     // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
-    int getRollingSizeKb() {
-        return rollingSizeKb;
+    long getRollingSizeBytes() {
+        return rollingSizeBytes;
     }
 
     long convertToFilePosition(long index) {
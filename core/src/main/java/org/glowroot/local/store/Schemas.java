@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2013 the original author or authors.
+ * Copyright 2012-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -62,6 +62,7 @@ class Schemas {
         sqlTypeNames.put(Types.BOOLEAN, "boolean");
         sqlTypeNames.put(Types.CLOB, "clob");
         sqlTypeNames.put(Types.DOUBLE, "double");
+        sqlTypeNames.put(Types.VARBINARY, "varbinary");
     }
 
     private Schemas() {}
@@ -72,6 +73,14 @@ class Schemas {
         if (!tableExists(tableName, connection)) {
             createTable(tableName, columns, connection);
         } else if (tableNeedsUpgrade(tableName, columns, connection)) {
+            List<Column> addedColumns = getAddedColumns(tableName, columns, connection);
+            if (addedColumns != null) {
+                // existing data is retained, with null values in the added columns
+                for (Column column : addedColumns) {
+                    addColumn(tableName, column, connection);
+                }
+                return;
+            }
             logger.warn("upgrading table {}, which unfortunately at this point just means"
                     + " dropping and re-create the table (losing existing data)", tableName);
             execute("drop table " + tableName, connection);
@@ -108,6 +117,21 @@ class Schemas {
         }
     }
 
+    // returns lower case table names
+    static ImmutableList<String> getTableNames(Connection connection) throws SQLException {
+        ImmutableList.Builder<String> tableNames = ImmutableList.builder();
+        ResultSet resultSet =
+                connection.getMetaData().getTables(null, null, null, new String[] {"TABLE"});
+        try {
+            while (resultSet.next()) {
+                tableNames.add(resultSet.getString("TABLE_NAME").toLowerCase(Locale.ENGLISH));
+            }
+        } finally {
+            resultSet.close();
+        }
+        return tableNames.build();
+    }
+
     static ImmutableList<Column> getColumns(String tableName, Connection connection)
             throws SQLException {
         ImmutableList.Builder<Column> columns = ImmutableList.builder();
@@ -155,6 +179,48 @@ class Schemas {
         }
     }
 
+    // returns the columns that need to be added to the end of the existing table in order to upgrade
+    // it, or null if the existing columns are not a prefix of the desired columns (or the primary
+    // key has changed), in which case the table cannot be upgraded by just adding columns
+    @Nullable
+    private static List<Column> getAddedColumns(String tableName,
+            @ReadOnly List<Column> columns, Connection connection) throws SQLException {
+        if (primaryKeyNeedsUpgrade(tableName, Iterables.filter(columns, PrimaryKeyColumn.class),
+                connection)) {
+            return null;
+        }
+        ImmutableList<Column> existingColumns = getColumns(tableName, connection);
+        if (existingColumns.size() >= columns.size()) {
+            return null;
+        }
+        for (int i = 0; i < existingColumns.size(); i++) {
+            Column existingColumn = existingColumns.get(i);
+            Column column = columns.get(i);
+            if (!column.getName().equalsIgnoreCase(existingColumn.getName())
+                    || column.getType() != existingColumn.getType()) {
+                return null;
+            }
+        }
+        List<Column> addedColumns = columns.subList(existingColumns.size(), columns.size());
+        for (Column column : addedColumns) {
+            if (column instanceof PrimaryKeyColumn) {
+                return null;
+            }
+        }
+        return addedColumns;
+    }
+
+    private static void addColumn(String tableName, Column column, Connection connection)
+            throws SQLException {
+        String sqlTypeName = sqlTypeNames.get(column.getType());
+        if (sqlTypeName == null) {
+            throw new SQLException("Unexpected sql type '" + column.getType());
+        }
+        logger.debug("upgrading table {} by adding column {}", tableName, column.getName());
+        execute("alter table " + tableName + " add column " + column.getName() + " "
+                + sqlTypeName, connection);
+    }
+
     private static boolean tableNeedsUpgrade(String tableName, @ReadOnly List<Column> columns,
             Connection connection) throws SQLException {
 
@@ -269,7 +335,7 @@ class Schemas {
         String getName() {
             return name;
         }
-        private int getType() {
+        int getType() {
             return type;
         }
     }
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.local.store;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import checkers.lock.quals.GuardedBy;
+import checkers.nullness.quals.Nullable;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharSource;
+import com.google.common.primitives.Longs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.collector.SharedStringRepository;
+import org.glowroot.local.store.DataSource.BatchAdder;
+import org.glowroot.local.store.DataSource.RowMapper;
+import org.glowroot.local.store.FileBlock.InvalidBlockIdFormatException;
+import org.glowroot.local.store.Schemas.Column;
+import org.glowroot.local.store.Schemas.PrimaryKeyColumn;
+import org.glowroot.markers.ThreadSafe;
+
+/**
+ * Content addressed store for strings that are shared across the stored spans of many traces (e.g.
+ * the same few hundred sql statements that show up in millions of traces), so that each distinct
+ * string is written to the rolling file once per trip around the rolling file, instead of once per
+ * trace.
+ *
+ * Shared strings are referenced by the hash of their contents, not by their rolling file block, so
+ * a shared string can be moved to a new block without touching the spans that reference it. This
+ * is what keeps references from dangling as the rolling file rolls over: when a shared string's
+ * block is about to roll over, it is re-written at the head of the rolling file if it has been
+ * referenced since the block was written (since those referencing blocks were written after it,
+ * and would otherwise outlive it), and is dropped otherwise (since every block that references it
+ * is then older than its block and so has already rolled over).
+ *
+ * A string is only shared the second time it is seen, so that strings which only ever show up in
+ * a single trace (e.g. sql with inlined literal values) are not written twice.
+ *
+ * The hash to block mapping is persisted in the embedded H2 database so that the references in
+ * stored spans can still be resolved after a restart.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@ThreadSafe
+class SharedStringStore implements SharedStringRepository {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedStringStore.class);
+
+    private static final int MAX_SHARED_STRINGS =
+            Integer.getInteger("glowroot.experimental.maxSharedStrings", 10000);
+
+    // shorter strings are cheaper to store inline than to reference by hash
+    private static final int MIN_SHARED_STRING_LENGTH = 32;
+
+    // shared strings are re-written once they are within this fraction of the rolling file size of
+    // rolling over, so a single block larger than this fraction can roll over a shared string that
+    // is still referenced (in which case the referencing spans read as rolled over)
+    private static final int RELOCATION_MARGIN_DIVISOR = 8;
+
+    private static final int READ_CACHE_SIZE = 1000;
+
+    private static final HashFunction hashFunction = Hashing.murmur3_128();
+
+    private static final ImmutableList<Column> columns = ImmutableList.of(
+            new PrimaryKeyColumn("hash", Types.VARCHAR),
+            new Column("block", Types.VARCHAR)); // rolling file block id
+
+    private static final Ordering<Entry<HashCode, FileBlock>> startIndexOrdering =
+            new Ordering<Entry<HashCode, FileBlock>>() {
+                @Override
+                public int compare(Entry<HashCode, FileBlock> left,
+                        Entry<HashCode, FileBlock> right) {
+                    return Longs.compare(left.getValue().getStartIndex(),
+                            right.getValue().getStartIndex());
+                }
+            };
+
+    private final DataSource dataSource;
+    private final RollingFile rollingFile;
+
+    // readers resolve references without acquiring any lock
+    private final ConcurrentMap<HashCode, FileBlock> blocks = Maps.newConcurrentMap();
+    // shared strings are immutable, so cached values never go stale
+    private final Cache<HashCode, String> readCache =
+            CacheBuilder.newBuilder().maximumSize(READ_CACHE_SIZE).build();
+
+    // the fields below are only accessed while holding the rolling file lock, since share() and
+    // relocateBeforeRollover() are only called from RollingFile.write(List, SharedStringStore)
+    //
+    // this is the order that the blocks were written, which is also the order they roll over
+    private final Queue<HashCode> writeOrder = Queues.newArrayDeque();
+    private final Set<HashCode> referencedSinceWritten = Sets.newHashSet();
+    private final Cache<HashCode, Boolean> seenOnce =
+            CacheBuilder.newBuilder().maximumSize(MAX_SHARED_STRINGS).build();
+
+    private final Object pendingLock = new Object();
+    // block id is null for shared strings that were dropped
+    @GuardedBy("pendingLock")
+    private final Map<HashCode, /*@Nullable*/String> pendingUpdates = Maps.newLinkedHashMap();
+    // held while flushing so that two flushes cannot write updates for the same hash out of order
+    private final Object flushLock = new Object();
+
+    SharedStringStore(DataSource dataSource, RollingFile rollingFile) throws SQLException {
+        this.dataSource = dataSource;
+        this.rollingFile = rollingFile;
+        dataSource.syncTable("shared_string", columns);
+        List<Entry<HashCode, FileBlock>> entries = Lists.newArrayList();
+        for (Entry<String, String> row : dataSource.query("select hash, block from shared_string",
+                ImmutableList.of(), new SharedStringRowMapper())) {
+            try {
+                entries.add(Maps.immutableEntry(HashCode.fromString(row.getKey()),
+                        FileBlock.from(row.getValue())));
+            } catch (IllegalArgumentException e) {
+                logger.warn(e.getMessage(), e);
+            } catch (InvalidBlockIdFormatException e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
+        for (Entry<HashCode, FileBlock> entry : startIndexOrdering.sortedCopy(entries)) {
+            blocks.put(entry.getKey(), entry.getValue());
+            writeOrder.add(entry.getKey());
+            // it is not known which of these were referenced since their blocks were written, so
+            // they are all kept for (at most) one more trip around the rolling file
+            referencedSinceWritten.add(entry.getKey());
+        }
+    }
+
+    // must be called while holding the rolling file lock
+    @Override
+    @Nullable
+    public byte[] share(String string) {
+        if (string.length() < MIN_SHARED_STRING_LENGTH) {
+            return null;
+        }
+        HashCode hash = hashFunction.hashString(string, Charsets.UTF_8);
+        if (blocks.containsKey(hash)) {
+            referencedSinceWritten.add(hash);
+            return hash.asBytes();
+        }
+        if (blocks.size() >= MAX_SHARED_STRINGS) {
+            return null;
+        }
+        if (seenOnce.getIfPresent(hash) == null) {
+            seenOnce.put(hash, true);
+            return null;
+        }
+        FileBlock block = rollingFile.write(CharSource.wrap(string));
+        if (rollingFile.isRolledOverAfter(block, 0)) {
+            // expired block, e.g. the rolling file is closing
+            return null;
+        }
+        seenOnce.invalidate(hash);
+        blocks.put(hash, block);
+        writeOrder.add(hash);
+        referencedSinceWritten.add(hash);
+        addPendingUpdate(hash, block);
+        return hash.asBytes();
+    }
+
+    @Override
+    @Nullable
+    public String read(byte[] ref) {
+        HashCode hash = HashCode.fromBytes(ref);
+        String string = readCache.getIfPresent(hash);
+        if (string != null) {
+            return string;
+        }
+        FileBlock block = blocks.get(hash);
+        while (block != null) {
+            string = readBlock(hash, block);
+            if (string != null) {
+                readCache.put(hash, string);
+                return string;
+            }
+            FileBlock currBlock = blocks.get(hash);
+            if (currBlock == block) {
+                return null;
+            }
+            // the shared string was re-written to a new block while it was being read
+            block = currBlock;
+        }
+        return null;
+    }
+
+    // must be called while holding the rolling file lock
+    void relocateBeforeRollover() {
+        long margin = rollingFile.getRollingSizeBytes() / RELOCATION_MARGIN_DIVISOR;
+        HashCode hash;
+        while ((hash = writeOrder.peek()) != null) {
+            FileBlock block = blocks.get(hash);
+            if (block != null && !rollingFile.isRolledOverAfter(block, margin)) {
+                return;
+            }
+            writeOrder.remove();
+            if (block != null && referencedSinceWritten.remove(hash)) {
+                FileBlock newBlock = rewrite(hash, block);
+                if (newBlock != null) {
+                    blocks.put(hash, newBlock);
+                    writeOrder.add(hash);
+                    addPendingUpdate(hash, newBlock);
+                    continue;
+                }
+                logger.debug("shared string rolled over before it could be re-written: {}", hash);
+            }
+            blocks.remove(hash);
+            addPendingUpdate(hash, null);
+        }
+    }
+
+    // persists the changes to the hash to block mapping since the last flush, this is called after
+    // writing to the rolling file so that the embedded database is not written to while holding
+    // the rolling file lock
+    void flush() {
+        synchronized (flushLock) {
+            final Map<String, String> merges = Maps.newLinkedHashMap();
+            final List<String> deletes = Lists.newArrayList();
+            synchronized (pendingLock) {
+                for (Entry<HashCode, /*@Nullable*/String> update : pendingUpdates.entrySet()) {
+                    String blockId = update.getValue();
+                    if (blockId == null) {
+                        deletes.add(update.getKey().toString());
+                    } else {
+                        merges.put(update.getKey().toString(), blockId);
+                    }
+                }
+                pendingUpdates.clear();
+            }
+            try {
+                if (!merges.isEmpty()) {
+                    dataSource.batchUpdate("merge into shared_string (hash, block) values (?, ?)",
+                            new BatchAdder() {
+                                @Override
+                                public void addBatches(PreparedStatement preparedStatement)
+                                        throws SQLException {
+                                    for (Entry<String, String> merge : merges.entrySet()) {
+                                        preparedStatement.setString(1, merge.getKey());
+                                        preparedStatement.setString(2, merge.getValue());
+                                        preparedStatement.addBatch();
+                                    }
+                                }
+                            });
+                }
+                if (!deletes.isEmpty()) {
+                    dataSource.batchUpdate("delete from shared_string where hash = ?",
+                            new BatchAdder() {
+                                @Override
+                                public void addBatches(PreparedStatement preparedStatement)
+                                        throws SQLException {
+                                    for (String hash : deletes) {
+                                        preparedStatement.setString(1, hash);
+                                        preparedStatement.addBatch();
+                                    }
+                                }
+                            });
+                }
+            } catch (SQLException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    @Nullable
+    private FileBlock rewrite(HashCode hash, FileBlock block) {
+        String string = readBlock(hash, block);
+        if (string == null) {
+            return null;
+        }
+        FileBlock newBlock = rollingFile.write(CharSource.wrap(string));
+        if (rollingFile.isRolledOverAfter(newBlock, 0)) {
+            return null;
+        }
+        return newBlock;
+    }
+
+    // returns null if the block has rolled over
+    @Nullable
+    private String readBlock(HashCode hash, FileBlock block) {
+        String string;
+        try {
+            string = rollingFile.read(block, "").read();
+        } catch (IOException e) {
+            // rolled over mid-read
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+        // this also catches the (empty) rolled over response
+        if (!hashFunction.hashString(string, Charsets.UTF_8).equals(hash)) {
+            return null;
+        }
+        return string;
+    }
+
+    private void addPendingUpdate(HashCode hash, @Nullable FileBlock block) {
+        synchronized (pendingLock) {
+            pendingUpdates.put(hash, block == null ? null : block.getId());
+        }
+    }
+
+    @ThreadSafe
+    private static class SharedStringRowMapper implements RowMapper<Entry<String, String>> {
+
+        @Override
+        public Entry<String, String> mapRow(ResultSet resultSet) throws SQLException {
+            return Maps.immutableEntry(resultSet.getString(1), resultSet.getString(2));
+        }
+    }
+}
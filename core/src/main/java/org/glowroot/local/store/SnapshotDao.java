@@ -15,19 +15,35 @@
  */
 package org.glowroot.local.store;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
+import checkers.igj.quals.ReadOnly;
 import checkers.nullness.quals.Nullable;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
 import com.google.common.io.CharSource;
+import com.google.common.primitives.Doubles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.collector.EncodedSpansCharSource;
 import org.glowroot.collector.Snapshot;
 import org.glowroot.collector.SnapshotRepository;
+import org.glowroot.local.store.DataSource.BatchAdder;
 import org.glowroot.local.store.DataSource.RowMapper;
 import org.glowroot.local.store.FileBlock.InvalidBlockIdFormatException;
 import org.glowroot.local.store.Schemas.Column;
@@ -37,10 +53,25 @@ import org.glowroot.local.store.TracePointQuery.ParameterizedSql;
 import org.glowroot.markers.OnlyUsedByTests;
 import org.glowroot.markers.Singleton;
 import org.glowroot.markers.ThreadSafe;
+import org.glowroot.trace.model.TraceUniqueId;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.glowroot.common.Nullness.castNonNull;
 
 /**
  * Data access object for storing and reading trace snapshot data from the embedded H2 database.
  * 
+ * Snapshots are partitioned into one table per hour of trace start time (the start time is
+ * embedded in the trace id, see TraceUniqueId, so a snapshot can be found from its id alone, and
+ * re-storing a stuck trace when it completes replaces the row in the same partition). Expiring old
+ * snapshots then mostly consists of dropping whole tables, instead of a long running delete that
+ * bloats the database file and holds the data source lock the whole time.
+ * 
+ * The partition table names hold the start time and the width (both in milliseconds) of the
+ * partition, so that existing partitions keep their meaning if the partition width is changed
+ * (via glowroot.experimental.snapshotPartitionHours). New partitions are then created with the new
+ * width, but never overlap existing partitions.
+ * 
  * @author Trask Stalnaker
  * @since 0.5
  */
@@ -49,8 +80,22 @@ public class SnapshotDao implements SnapshotRepository {
 
     private static final Logger logger = LoggerFactory.getLogger(SnapshotDao.class);
 
+    private static final long PARTITION_MILLIS = HOURS.toMillis(
+            Integer.getInteger("glowroot.experimental.snapshotPartitionHours", 1));
+
+    private static final String PARTITION_TABLE_PREFIX = "snapshot_";
+    private static final String TRIGRAM_TABLE_SUFFIX = "_trigram";
+
+    // snapshots from before partitioning, see migrateUnpartitionedSnapshots()
+    private static final String UNPARTITIONED_TABLE_NAME = "snapshot";
+    // left behind if a previous version was stopped in the middle of migrating its snapshots to
+    // long ids
+    private static final String STRING_ID_TABLE_NAME = "snapshot_string_id";
+
+    private static final int MIGRATION_PAGE_SIZE = 1000;
+
     private static final ImmutableList<Column> columns = ImmutableList.of(
-            new PrimaryKeyColumn("id", Types.VARCHAR),
+            new PrimaryKeyColumn("id", Types.BIGINT), // see TraceUniqueId
             new Column("stuck", Types.BIGINT),
             new Column("start_time", Types.BIGINT),
             new Column("capture_time", Types.BIGINT),
@@ -70,76 +115,155 @@ public class SnapshotDao implements SnapshotRepository {
 
     // this index includes all of the columns needed for the trace points query so h2 can return
     // result set directly from the index without having to reference the table for each row
-    private static final ImmutableList<Index> indexes = ImmutableList.of(new Index("snapshot_idx",
-            ImmutableList.of("capture_time", "duration", "id", "error")));
+    private static final ImmutableList<String> indexColumns =
+            ImmutableList.of("capture_time", "duration", "id", "error");
+
+    // inverted index from the trigrams of each searchable column value to the snapshot id, see
+    // TracePointQuery
+    private static final ImmutableList<Column> trigramColumns = ImmutableList.of(
+            new Column("name", Types.VARCHAR), // searchable column name
+            new Column("trigram", Types.VARCHAR),
+            new Column("id", Types.BIGINT));
+
+    private static final ImmutableList<String> trigramIndexColumns =
+            ImmutableList.of("name", "trigram", "id");
+
+    private static final Ordering<TracePoint> durationDescOrdering = new Ordering<TracePoint>() {
+        @Override
+        public int compare(TracePoint left, TracePoint right) {
+            return Doubles.compare(right.getDuration(), left.getDuration());
+        }
+    };
 
     private final DataSource dataSource;
     private final RollingFile rollingFile;
+    private final SharedStringStore sharedStringStore;
+
+    // partitions are only created and dropped while holding this lock, and it is also held while
+    // writing to the partitions so that a partition is never dropped out from under a write
+    private final Object partitionLock = new Object();
+    // keyed by partition start time, partitions never overlap
+    private final ConcurrentNavigableMap<Long, Partition> partitions =
+            new ConcurrentSkipListMap<Long, Partition>();
 
     SnapshotDao(DataSource dataSource, RollingFile rollingFile) throws SQLException {
         this.dataSource = dataSource;
         this.rollingFile = rollingFile;
+        sharedStringStore = new SharedStringStore(dataSource, rollingFile);
         upgradeSnapshotTable(dataSource);
-        dataSource.syncTable("snapshot", columns);
-        dataSource.syncIndexes("snapshot", indexes);
+        List<String> tableNames = dataSource.getTableNames();
+        for (String tableName : tableNames) {
+            Partition partition = Partition.fromTableName(tableName);
+            if (partition != null) {
+                syncPartition(partition);
+                partition.maxCaptureTime =
+                        dataSource.queryForLong("select max(capture_time) from " + tableName);
+                partitions.put(partition.startTime, partition);
+            }
+        }
+        // a trigram table is dropped after its partition table, so it can be left behind if the
+        // jvm goes down in between
+        for (String tableName : tableNames) {
+            if (tableName.startsWith(PARTITION_TABLE_PREFIX)
+                    && tableName.endsWith(TRIGRAM_TABLE_SUFFIX)) {
+                Partition partition = Partition.fromTableName(tableName.substring(0,
+                        tableName.length() - TRIGRAM_TABLE_SUFFIX.length()));
+                if (partition != null && !partitions.containsKey(partition.startTime)) {
+                    dataSource.execute("drop table " + tableName);
+                }
+            }
+        }
+        migrateUnpartitionedSnapshots(STRING_ID_TABLE_NAME);
+        migrateUnpartitionedSnapshots(UNPARTITIONED_TABLE_NAME);
     }
 
     @Override
     public void store(Snapshot snapshot) {
-        logger.debug("store(): snapshot={}", snapshot);
-        String spansBlockId = null;
-        CharSource spans = snapshot.getSpans();
-        if (spans != null) {
-            spansBlockId = rollingFile.write(spans).getId();
-        }
-        String coarseMergedStackTreeBlockId = null;
-        CharSource coarseMergedStackTree = snapshot.getCoarseMergedStackTree();
-        if (coarseMergedStackTree != null) {
-            coarseMergedStackTreeBlockId = rollingFile.write(coarseMergedStackTree).getId();
-        }
-        String fineMergedStackTreeBlockId = null;
-        CharSource fineMergedStackTree = snapshot.getFineMergedStackTree();
-        if (fineMergedStackTree != null) {
-            fineMergedStackTreeBlockId = rollingFile.write(fineMergedStackTree).getId();
+        storeAll(ImmutableList.of(snapshot));
+    }
+
+    // the rolling file blocks for the whole batch are written under a single rolling file lock
+    // acquisition, and the rows are written in a single jdbc batch per partition
+    @Override
+    public void storeAll(@ReadOnly List<Snapshot> snapshots) {
+        logger.debug("storeAll(): snapshots={}", snapshots);
+        List<CharSource> charSources = Lists.newArrayList();
+        for (Snapshot snapshot : snapshots) {
+            addIfNotNull(charSources, snapshot.getSpans());
+            addIfNotNull(charSources, snapshot.getCoarseMergedStackTree());
+            addIfNotNull(charSources, snapshot.getFineMergedStackTree());
         }
-        try {
-            dataSource.update("merge into snapshot (id, stuck, start_time, capture_time, duration,"
-                    + " background, error, fine, grouping, error_message, user, attributes,"
-                    + " metrics, jvm_info, spans, coarse_merged_stack_tree,"
-                    + " fine_merged_stack_tree) values (?, ?, ?, ?, ?,"
-                    + " ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", snapshot.getId(),
-                    snapshot.isStuck(), snapshot.getStartTime(), snapshot.getCaptureTime(),
-                    snapshot.getDuration(), snapshot.isBackground(), snapshot.getError() != null,
-                    fineMergedStackTreeBlockId != null, snapshot.getGrouping(),
-                    snapshot.getError(), snapshot.getUser(), snapshot.getAttributes(),
-                    snapshot.getMetrics(), snapshot.getJvmInfo(), spansBlockId,
-                    coarseMergedStackTreeBlockId, fineMergedStackTreeBlockId);
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
+        Iterator<FileBlock> blocks = rollingFile.write(charSources, sharedStringStore).iterator();
+        sharedStringStore.flush();
+        List<SnapshotRow> rows = Lists.newArrayList();
+        for (Snapshot snapshot : snapshots) {
+            // block ids are consumed in the same order the char sources were added
+            String spansBlockId = nextBlockIdIfNotNull(blocks, snapshot.getSpans());
+            String coarseMergedStackTreeBlockId =
+                    nextBlockIdIfNotNull(blocks, snapshot.getCoarseMergedStackTree());
+            String fineMergedStackTreeBlockId =
+                    nextBlockIdIfNotNull(blocks, snapshot.getFineMergedStackTree());
+            rows.add(new SnapshotRow(snapshot, spansBlockId, coarseMergedStackTreeBlockId,
+                    fineMergedStackTreeBlockId));
+        }
+        synchronized (partitionLock) {
+            ListMultimap<Partition, SnapshotRow> partitionRows = ArrayListMultimap.create();
+            for (SnapshotRow row : rows) {
+                try {
+                    partitionRows.put(getOrCreatePartition(row.snapshot.getId()), row);
+                } catch (SQLException e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+            for (Entry<Partition, Collection<SnapshotRow>> entry : partitionRows.asMap()
+                    .entrySet()) {
+                try {
+                    storeRows(entry.getKey(), entry.getValue());
+                } catch (SQLException e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
         }
     }
 
     public ImmutableList<TracePoint> readPoints(TracePointQuery query) {
         logger.debug("readPoints(): query={}", query);
-        try {
-            ParameterizedSql parameterizedSql = query.getParameterizedSql();
-            return dataSource.query(parameterizedSql.getSql(), parameterizedSql.getArgs(),
-                    new PointRowMapper());
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
-            return ImmutableList.of();
+        // the capture time of a snapshot is never before its start time, so only partitions that
+        // start before the end of the query range and have been written to since the beginning of
+        // the query range can have matching rows
+        long captureTimeFrom = query.getCaptureTimeFrom();
+        long captureTimeTo = query.getCaptureTimeTo();
+        List<TracePoint> points = Lists.newArrayList();
+        for (Partition partition : partitions.headMap(captureTimeTo, true).values()) {
+            if (partition.maxCaptureTime < captureTimeFrom) {
+                continue;
+            }
+            ParameterizedSql parameterizedSql =
+                    query.getParameterizedSql(partition.tableName, partition.trigramTableName);
+            try {
+                points.addAll(dataSource.query(parameterizedSql.getSql(),
+                        parameterizedSql.getArgs(), new PointRowMapper()));
+            } catch (SQLException e) {
+                if (partitions.containsKey(partition.startTime)) {
+                    logger.error(e.getMessage(), e);
+                }
+                // otherwise the partition was just expired
+            }
         }
+        // each partition returns its own top results, so these need to be merged
+        return ImmutableList.copyOf(durationDescOrdering.leastOf(points, query.getLimit()));
     }
 
     @Nullable
-    public Snapshot readSnapshot(String id) {
+    public Snapshot readSnapshot(long id) {
         logger.debug("readSnapshot(): id={}", id);
+        Partition partition = getPartition(id);
+        if (partition == null) {
+            return null;
+        }
         List<PartiallyHydratedTrace> partiallyHydratedTraces;
         try {
-            partiallyHydratedTraces = dataSource.query("select id, stuck, start_time,"
-                    + " capture_time, duration, background, grouping, error_message, user,"
-                    + " attributes, metrics, jvm_info, spans, coarse_merged_stack_tree,"
-                    + " fine_merged_stack_tree from snapshot where id = ?", ImmutableList.of(id),
+            partiallyHydratedTraces = dataSource.query(partition.readSql, ImmutableList.of(id),
                     new TraceRowMapper());
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
@@ -155,13 +279,15 @@ public class SnapshotDao implements SnapshotRepository {
     }
 
     @Nullable
-    public Snapshot readSnapshotWithoutDetail(String id) {
+    public Snapshot readSnapshotWithoutDetail(long id) {
         logger.debug("readSnapshot(): id={}", id);
+        Partition partition = getPartition(id);
+        if (partition == null) {
+            return null;
+        }
         List<Snapshot> snapshots;
         try {
-            snapshots = dataSource.query("select id, stuck, start_time, capture_time, duration,"
-                    + " background, grouping, error_message, user, attributes, metrics,"
-                    + " jvm_info from snapshot where id = ?", ImmutableList.of(id),
+            snapshots = dataSource.query(partition.readWithoutDetailSql, ImmutableList.of(id),
                     new SnapshotRowMapper());
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
@@ -177,30 +303,57 @@ public class SnapshotDao implements SnapshotRepository {
 
     public void deleteAllSnapshots() {
         logger.debug("deleteAllSnapshots()");
-        try {
-            dataSource.execute("truncate table snapshot");
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
+        synchronized (partitionLock) {
+            for (Partition partition : partitions.values()) {
+                dropPartition(partition);
+            }
         }
     }
 
     void deleteSnapshotsBefore(long captureTime) {
         logger.debug("deleteSnapshotsBefore(): captureTime={}", captureTime);
-        try {
-            dataSource.update("delete from snapshot where capture_time < ?", captureTime);
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
+        List<Partition> boundaryPartitions = Lists.newArrayList();
+        synchronized (partitionLock) {
+            for (Partition partition : partitions.values()) {
+                if (partition.maxCaptureTime < captureTime) {
+                    dropPartition(partition);
+                } else if (partition.startTime < captureTime) {
+                    boundaryPartitions.add(partition);
+                }
+            }
+        }
+        // these partitions straddle the expiration time (or contain long running traces that were
+        // captured well after they started), so the expired rows in them still need to be deleted,
+        // but this is only a small fraction of the rows
+        //
+        // the trigram rows for the deleted snapshots are left until the whole partition is dropped,
+        // they are harmless since trigram matches only narrow down rows of the partition table
+        for (Partition partition : boundaryPartitions) {
+            try {
+                dataSource.update(partition.deleteBeforeSql, captureTime);
+            } catch (SQLException e) {
+                logger.error(e.getMessage(), e);
+            }
         }
     }
 
     @OnlyUsedByTests
     @Nullable
     public Snapshot getLastSnapshot(boolean summary) throws SQLException {
-        List<String> ids = dataSource.query("select id from snapshot order by capture_time desc"
-                + " limit 1", ImmutableList.of(), new RowMapper<String>() {
+        Partition lastPartition = null;
+        for (Partition partition : partitions.values()) {
+            if (lastPartition == null || partition.maxCaptureTime > lastPartition.maxCaptureTime) {
+                lastPartition = partition;
+            }
+        }
+        if (lastPartition == null) {
+            return null;
+        }
+        List<Long> ids = dataSource.query("select id from " + lastPartition.tableName
+                + " order by capture_time desc limit 1", ImmutableList.of(), new RowMapper<Long>() {
             @Override
-            public String mapRow(ResultSet resultSet) throws SQLException {
-                return resultSet.getString(1);
+            public Long mapRow(ResultSet resultSet) throws SQLException {
+                return resultSet.getLong(1);
             }
         });
         if (ids.isEmpty()) {
@@ -215,17 +368,142 @@ public class SnapshotDao implements SnapshotRepository {
 
     @OnlyUsedByTests
     public long count() {
+        long count = 0;
+        for (Partition partition : partitions.values()) {
+            try {
+                count += dataSource.queryForLong("select count(*) from " + partition.tableName);
+            } catch (SQLException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        return count;
+    }
+
+    @Nullable
+    private Partition getPartition(long id) {
+        long startTime = TraceUniqueId.getStartTime(id);
+        Entry<Long, Partition> entry = partitions.floorEntry(startTime);
+        if (entry == null || startTime >= entry.getValue().endTime) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    // must be called while holding partitionLock
+    private Partition getOrCreatePartition(long id) throws SQLException {
+        Partition partition = getPartition(id);
+        if (partition != null) {
+            return partition;
+        }
+        long startTime = TraceUniqueId.getStartTime(id);
+        long partitionStartTime = startTime - startTime % PARTITION_MILLIS;
+        long partitionEndTime = partitionStartTime + PARTITION_MILLIS;
+        // partitions created with a different partition width can overlap the aligned range, in
+        // which case the new partition is narrowed to the gap between the existing partitions
+        Entry<Long, Partition> priorEntry = partitions.floorEntry(startTime);
+        if (priorEntry != null) {
+            partitionStartTime = Math.max(partitionStartTime, priorEntry.getValue().endTime);
+        }
+        Long nextPartitionStartTime = partitions.higherKey(startTime);
+        if (nextPartitionStartTime != null) {
+            partitionEndTime = Math.min(partitionEndTime, nextPartitionStartTime);
+        }
+        partition = new Partition(partitionStartTime, partitionEndTime);
+        syncPartition(partition);
+        partitions.put(partition.startTime, partition);
+        return partition;
+    }
+
+    private void syncPartition(Partition partition) throws SQLException {
+        dataSource.syncTable(partition.tableName, columns);
+        dataSource.syncIndexes(partition.tableName,
+                ImmutableList.of(new Index(partition.tableName + "_idx", indexColumns)));
+        dataSource.syncTable(partition.trigramTableName, trigramColumns);
+        dataSource.syncIndexes(partition.trigramTableName, ImmutableList.of(
+                new Index(partition.trigramTableName + "_idx", trigramIndexColumns)));
+    }
+
+    // must be called while holding partitionLock
+    private void dropPartition(Partition partition) {
+        // removed first so that queries stop fanning out to the partition
+        partitions.remove(partition.startTime);
         try {
-            return dataSource.queryForLong("select count(*) from snapshot");
+            dataSource.execute("drop table " + partition.tableName);
+            dataSource.execute("drop table " + partition.trigramTableName);
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
-            return 0;
         }
     }
 
+    // must be called while holding partitionLock
+    private void storeRows(Partition partition, final Collection<SnapshotRow> rows)
+            throws SQLException {
+        dataSource.batchUpdate(partition.insertSql, new BatchAdder() {
+            @Override
+            public void addBatches(PreparedStatement preparedStatement) throws SQLException {
+                for (SnapshotRow row : rows) {
+                    Snapshot snapshot = row.snapshot;
+                    int i = 1;
+                    preparedStatement.setLong(i++, snapshot.getId());
+                    preparedStatement.setBoolean(i++, snapshot.isStuck());
+                    preparedStatement.setLong(i++, snapshot.getStartTime());
+                    preparedStatement.setLong(i++, snapshot.getCaptureTime());
+                    preparedStatement.setLong(i++, snapshot.getDuration());
+                    preparedStatement.setBoolean(i++, snapshot.isBackground());
+                    preparedStatement.setBoolean(i++, snapshot.getError() != null);
+                    preparedStatement.setBoolean(i++, row.fineMergedStackTreeBlockId != null);
+                    preparedStatement.setString(i++, snapshot.getGrouping());
+                    preparedStatement.setString(i++, snapshot.getError());
+                    preparedStatement.setString(i++, snapshot.getUser());
+                    preparedStatement.setString(i++, snapshot.getAttributes());
+                    preparedStatement.setString(i++, snapshot.getMetrics());
+                    preparedStatement.setString(i++, snapshot.getJvmInfo());
+                    preparedStatement.setString(i++, row.spansBlockId);
+                    preparedStatement.setString(i++, row.coarseMergedStackTreeBlockId);
+                    preparedStatement.setString(i++, row.fineMergedStackTreeBlockId);
+                    preparedStatement.addBatch();
+                }
+            }
+        });
+        dataSource.batchUpdate(partition.trigramInsertSql, new BatchAdder() {
+            @Override
+            public void addBatches(PreparedStatement preparedStatement) throws SQLException {
+                for (SnapshotRow row : rows) {
+                    Snapshot snapshot = row.snapshot;
+                    addTrigramBatches(preparedStatement, snapshot.getId(), "grouping",
+                            snapshot.getGrouping());
+                    addTrigramBatches(preparedStatement, snapshot.getId(), "error_message",
+                            snapshot.getError());
+                    addTrigramBatches(preparedStatement, snapshot.getId(), "user",
+                            snapshot.getUser());
+                }
+            }
+        });
+        for (SnapshotRow row : rows) {
+            partition.maxCaptureTime =
+                    Math.max(partition.maxCaptureTime, row.snapshot.getCaptureTime());
+        }
+    }
+
+    private static void addIfNotNull(List<CharSource> charSources,
+            @Nullable CharSource charSource) {
+        if (charSource != null) {
+            charSources.add(charSource);
+        }
+    }
+
+    @Nullable
+    private static String nextBlockIdIfNotNull(Iterator<FileBlock> blocks,
+            @Nullable CharSource charSource) {
+        if (charSource == null) {
+            return null;
+        }
+        return blocks.next().getId();
+    }
+
     private static Snapshot.Builder createBuilder(ResultSet resultSet) throws SQLException {
         return Snapshot.builder()
-                .id(resultSet.getString(1))
+                .id(resultSet.getLong(1))
                 .stuck(resultSet.getBoolean(2))
                 .startTime(resultSet.getLong(3))
                 .captureTime(resultSet.getLong(4))
@@ -239,18 +517,77 @@ public class SnapshotDao implements SnapshotRepository {
                 .jvmInfo(resultSet.getString(12));
     }
 
+    private static void addTrigramBatches(PreparedStatement preparedStatement, long id,
+            String name, @Nullable String value) throws SQLException {
+        if (value == null) {
+            return;
+        }
+        // only the beginning of long values is indexed, searches against those values fall back to
+        // the plain like predicate (see Trigrams.LONG_VALUE_TRIGRAM and TracePointQuery)
+        for (String trigram : Trigrams.getValueTrigrams(value)) {
+            preparedStatement.setString(1, name);
+            preparedStatement.setString(2, trigram);
+            preparedStatement.setLong(3, id);
+            preparedStatement.addBatch();
+        }
+    }
+
     private static void upgradeSnapshotTable(DataSource dataSource) throws SQLException {
-        if (!dataSource.tableExists("snapshot")) {
+        if (!dataSource.tableExists(UNPARTITIONED_TABLE_NAME)) {
             return;
         }
         // 'headline' column renamed to 'grouping'
-        for (Column column : dataSource.getColumns("snapshot")) {
+        for (Column column : dataSource.getColumns(UNPARTITIONED_TABLE_NAME)) {
             if (column.getName().equals("headline")) {
-                dataSource.execute("alter table snapshot alter column headline rename to"
-                        + " grouping");
+                dataSource.execute("alter table " + UNPARTITIONED_TABLE_NAME
+                        + " alter column headline rename to grouping");
+                break;
+            }
+        }
+    }
+
+    // snapshots from before partitioning are copied into the partitions a page at a time, and the
+    // old table is only dropped after all rows have been copied (the copy uses merge keyed by id,
+    // so it is safe to re-run if the jvm goes down in the middle of it)
+    //
+    // the id column of tables from before ids were packed into longs is a string (see
+    // TraceUniqueId), and those ids are converted on the way
+    private void migrateUnpartitionedSnapshots(String tableName) throws SQLException {
+        if (!dataSource.tableExists(tableName)) {
+            return;
+        }
+        logger.info("migrating snapshots from a previous version into partitioned tables");
+        boolean stringIds = false;
+        for (Column column : dataSource.getColumns(tableName)) {
+            if (column.getName().equals("id") && column.getType() == Types.VARCHAR) {
+                stringIds = true;
+                break;
+            }
+        }
+        RowMapper<SnapshotRow> rowMapper = new UnpartitionedSnapshotRowMapper(stringIds);
+        int offset = 0;
+        while (true) {
+            List<SnapshotRow> page = dataSource.query("select 0, stuck, start_time,"
+                    + " capture_time, duration, background, grouping, error_message, user,"
+                    + " attributes, metrics, jvm_info, spans, coarse_merged_stack_tree,"
+                    + " fine_merged_stack_tree, id from " + tableName
+                    + " order by id limit ? offset ?",
+                    ImmutableList.of(MIGRATION_PAGE_SIZE, offset), rowMapper);
+            if (page.isEmpty()) {
                 break;
             }
+            synchronized (partitionLock) {
+                ListMultimap<Partition, SnapshotRow> rows = ArrayListMultimap.create();
+                for (SnapshotRow row : page) {
+                    rows.put(getOrCreatePartition(row.snapshot.getId()), row);
+                }
+                for (Entry<Partition, Collection<SnapshotRow>> entry : rows.asMap().entrySet()) {
+                    storeRows(entry.getKey(), entry.getValue());
+                }
+            }
+            offset += page.size();
         }
+        dataSource.execute("drop table " + tableName);
     }
 
     @ThreadSafe
@@ -296,7 +633,9 @@ public class SnapshotDao implements SnapshotRepository {
                 FileBlock block;
                 try {
                     block = FileBlock.from(spansFileBlockId);
-                    builder.spans(rollingFile.read(block, "{\"rolledOver\":true}"));
+                    builder.spans(EncodedSpansCharSource.fromStored(
+                            rollingFile.readBytes(block, "{\"rolledOver\":true}"),
+                            sharedStringStore, "{\"rolledOver\":true}"));
                 } catch (InvalidBlockIdFormatException e) {
                     logger.warn(e.getMessage(), e);
                 }
@@ -328,11 +667,36 @@ public class SnapshotDao implements SnapshotRepository {
 
         @Override
         public TracePoint mapRow(ResultSet resultSet) throws SQLException {
-            return TracePoint.from(resultSet.getString(1), resultSet.getLong(2),
+            return TracePoint.from(resultSet.getLong(1), resultSet.getLong(2),
                     resultSet.getLong(3), resultSet.getBoolean(4));
         }
     }
 
+    @ThreadSafe
+    private static class UnpartitionedSnapshotRowMapper implements RowMapper<SnapshotRow> {
+
+        private final boolean stringIds;
+
+        private UnpartitionedSnapshotRowMapper(boolean stringIds) {
+            this.stringIds = stringIds;
+        }
+
+        @Override
+        public SnapshotRow mapRow(ResultSet resultSet) throws SQLException {
+            Snapshot.Builder builder = createBuilder(resultSet);
+            if (stringIds) {
+                String id = resultSet.getString(16);
+                // id is the primary key so it is never null
+                castNonNull(id);
+                builder.id(TraceUniqueId.fromStringId(resultSet.getLong(3), id));
+            } else {
+                builder.id(resultSet.getLong(16));
+            }
+            return new SnapshotRow(builder.build(), resultSet.getString(13),
+                    resultSet.getString(14), resultSet.getString(15));
+        }
+    }
+
     @ThreadSafe
     private static class SnapshotRowMapper implements RowMapper<Snapshot> {
 
@@ -341,4 +705,85 @@ public class SnapshotDao implements SnapshotRepository {
             return createBuilder(resultSet).build();
         }
     }
+
+    @ThreadSafe
+    private static class Partition {
+
+        private final long startTime;
+        // exclusive
+        private final long endTime;
+        private final String tableName;
+        private final String trigramTableName;
+        // sql strings are built once per partition since the prepared statement caches are keyed
+        // by sql string identity
+        private final String insertSql;
+        private final String readSql;
+        private final String readWithoutDetailSql;
+        private final String deleteBeforeSql;
+        private final String trigramInsertSql;
+        // only updated while holding partitionLock
+        private volatile long maxCaptureTime;
+
+        private Partition(long startTime, long endTime) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            tableName = PARTITION_TABLE_PREFIX + startTime + "_" + (endTime - startTime);
+            trigramTableName = tableName + TRIGRAM_TABLE_SUFFIX;
+            insertSql = "merge into " + tableName + " (id, stuck, start_time, capture_time,"
+                    + " duration, background, error, fine, grouping, error_message, user,"
+                    + " attributes, metrics, jvm_info, spans, coarse_merged_stack_tree,"
+                    + " fine_merged_stack_tree) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?,"
+                    + " ?, ?, ?)";
+            readSql = "select id, stuck, start_time, capture_time, duration, background,"
+                    + " grouping, error_message, user, attributes, metrics, jvm_info, spans,"
+                    + " coarse_merged_stack_tree, fine_merged_stack_tree from " + tableName
+                    + " where id = ?";
+            readWithoutDetailSql = "select id, stuck, start_time, capture_time, duration,"
+                    + " background, grouping, error_message, user, attributes, metrics,"
+                    + " jvm_info from " + tableName + " where id = ?";
+            deleteBeforeSql = "delete from " + tableName + " where capture_time < ?";
+            trigramInsertSql = "insert into " + trigramTableName + " (name, trigram, id) values"
+                    + " (?, ?, ?)";
+        }
+
+        // returns null if the table name is not a partition table name
+        @Nullable
+        private static Partition fromTableName(String tableName) {
+            if (!tableName.startsWith(PARTITION_TABLE_PREFIX)) {
+                return null;
+            }
+            List<String> parts = Splitter.on('_')
+                    .splitToList(tableName.substring(PARTITION_TABLE_PREFIX.length()));
+            if (parts.size() != 2) {
+                return null;
+            }
+            for (String part : parts) {
+                if (part.isEmpty() || !CharMatcher.DIGIT.matchesAllOf(part)) {
+                    return null;
+                }
+            }
+            long startTime = Long.parseLong(parts.get(0));
+            return new Partition(startTime, startTime + Long.parseLong(parts.get(1)));
+        }
+    }
+
+    private static class SnapshotRow {
+
+        private final Snapshot snapshot;
+        @Nullable
+        private final String spansBlockId;
+        @Nullable
+        private final String coarseMergedStackTreeBlockId;
+        @Nullable
+        private final String fineMergedStackTreeBlockId;
+
+        private SnapshotRow(Snapshot snapshot, @Nullable String spansBlockId,
+                @Nullable String coarseMergedStackTreeBlockId,
+                @Nullable String fineMergedStackTreeBlockId) {
+            this.snapshot = snapshot;
+            this.spansBlockId = spansBlockId;
+            this.coarseMergedStackTreeBlockId = coarseMergedStackTreeBlockId;
+            this.fineMergedStackTreeBlockId = fineMergedStackTreeBlockId;
+        }
+    }
 }
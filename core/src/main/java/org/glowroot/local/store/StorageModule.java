@@ -46,12 +46,14 @@ public class StorageModule {
     private static final Logger logger = LoggerFactory.getLogger(StorageModule.class);
 
     private static final long SNAPSHOT_REAPER_PERIOD_MINUTES = 60;
+    private static final long AGGREGATE_ROLLUP_PERIOD_MINUTES = 5;
 
     private final DataSource dataSource;
     private final RollingFile rollingFile;
     private final SnapshotDao snapshotDao;
     private final ReaperScheduledRunnable reaperScheduledRunnable;
     private final AggregateDao aggregateDao;
+    private final AggregateRollupScheduledRunnable aggregateRollupScheduledRunnable;
 
     public StorageModule(File dataDir, @ReadOnly Map<String, String> properties, Ticker ticker,
             Clock clock, ConfigModule configModule, ScheduledExecutorService scheduledExecutor)
@@ -68,11 +70,14 @@ public class StorageModule {
         rollingFile = new RollingFile(new File(dataDir, "glowroot.rolling.db"),
                 rollingSizeMb * 1024, scheduledExecutor, ticker);
         snapshotDao = new SnapshotDao(dataSource, rollingFile);
+        aggregateDao = new AggregateDao(dataSource);
         reaperScheduledRunnable =
-                new ReaperScheduledRunnable(configService, snapshotDao, clock);
+                new ReaperScheduledRunnable(configService, snapshotDao, aggregateDao, clock);
         reaperScheduledRunnable.scheduleAtFixedRate(scheduledExecutor, 0,
                 SNAPSHOT_REAPER_PERIOD_MINUTES, MINUTES);
-        aggregateDao = new AggregateDao(dataSource);
+        aggregateRollupScheduledRunnable = new AggregateRollupScheduledRunnable(aggregateDao);
+        aggregateRollupScheduledRunnable.scheduleAtFixedRate(scheduledExecutor, 0,
+                AGGREGATE_ROLLUP_PERIOD_MINUTES, MINUTES);
     }
 
     public DataSource getDataSource() {
@@ -103,6 +108,7 @@ public class StorageModule {
     public void close() {
         logger.debug("close()");
         reaperScheduledRunnable.cancel();
+        aggregateRollupScheduledRunnable.cancel();
         try {
             rollingFile.close();
         } catch (IOException e) {
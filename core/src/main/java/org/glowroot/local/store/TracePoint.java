@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2013 the original author or authors.
+ * Copyright 2011-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -26,23 +26,23 @@ import dataflow.quals.Pure;
 @Immutable
 public class TracePoint {
 
-    private final String id;
+    private final long id;
     private final long captureTime;
     private final double duration; // nanoseconds
     private final boolean error;
 
-    public static TracePoint from(String id, long captureTime, double duration, boolean error) {
+    public static TracePoint from(long id, long captureTime, double duration, boolean error) {
         return new TracePoint(id, captureTime, duration, error);
     }
 
-    private TracePoint(String id, long captureTime, double duration, boolean error) {
+    private TracePoint(long id, long captureTime, double duration, boolean error) {
         this.id = id;
         this.captureTime = captureTime;
         this.duration = duration;
         this.error = error;
     }
 
-    public String getId() {
+    public long getId() {
         return id;
     }
 
@@ -15,10 +15,13 @@
  */
 package org.glowroot.local.store;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 import checkers.nullness.quals.Nullable;
+import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
 import dataflow.quals.Pure;
@@ -72,10 +75,24 @@ public class TracePointQuery {
         this.limit = limit;
     }
 
-    ParameterizedSql getParameterizedSql() {
+    long getCaptureTimeFrom() {
+        return captureTimeFrom;
+    }
+
+    long getCaptureTimeTo() {
+        return captureTimeTo;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    // the query is run against each snapshot partition table that may have matching rows, along
+    // with the partition's trigram table
+    ParameterizedSql getParameterizedSql(String tableName, String trigramTableName) {
         // all of these columns should be in the same index so h2 can return result set directly
         // from the index without having to reference the table for each row
-        String sql = "select id, capture_time, duration, error from snapshot where"
+        String sql = "select id, capture_time, duration, error from " + tableName + " where"
                 + " capture_time >= ? and capture_time <= ?";
         List<Object> args = Lists.newArrayList();
         args.add(captureTimeFrom);
@@ -101,14 +118,19 @@ public class TracePointQuery {
             args.add(true);
         }
         if (groupingComparator != null && grouping != null) {
+            sql += getTrigramCondition("grouping", groupingComparator, grouping,
+                    trigramTableName, args);
             sql += " and upper(grouping) " + groupingComparator.getComparator() + " ?";
             args.add(groupingComparator.formatParameter(grouping.toUpperCase(Locale.ENGLISH)));
         }
         if (errorComparator != null && error != null) {
+            sql += getTrigramCondition("error_message", errorComparator, error,
+                    trigramTableName, args);
             sql += " and upper(error_message) " + errorComparator.getComparator() + " ?";
             args.add(errorComparator.formatParameter(error.toUpperCase(Locale.ENGLISH)));
         }
         if (userComparator != null && user != null) {
+            sql += getTrigramCondition("user", userComparator, user, trigramTableName, args);
             sql += " and upper(user) " + userComparator.getComparator() + " ?";
             args.add(userComparator.formatParameter(user.toUpperCase(Locale.ENGLISH)));
         }
@@ -117,6 +139,42 @@ public class TracePointQuery {
         return new ParameterizedSql(sql, args);
     }
 
+    // the trigram index narrows down the rows to those that contain every trigram of the search
+    // string, and the like predicate (which is still needed since containing every trigram does not
+    // mean containing the search string) is then only evaluated against those rows, instead of
+    // against every row in the capture time range
+    //
+    // this does not help for NOT_CONTAINS, or for search strings shorter than a trigram
+    //
+    // only the first Trigrams.MAX_INDEXED_LENGTH characters of each value are indexed, so rows
+    // with longer values (which have the Trigrams.LONG_VALUE_TRIGRAM) are always included by the
+    // union and fall back to the plain like predicate (which is still correct, just not as fast),
+    // this is a union instead of an "or" so that the whole condition can still be evaluated using
+    // the indexes
+    //
+    // count(distinct trigram) is used since a stuck trace that is stored again when it completes
+    // has its trigrams stored again too
+    private static String getTrigramCondition(String columnName, StringComparator comparator,
+            String search, String trigramTableName, List<Object> args) {
+        if (comparator == StringComparator.NOT_CONTAINS) {
+            return "";
+        }
+        Set<String> trigrams = Trigrams.getSearchTrigrams(search);
+        if (trigrams.isEmpty()) {
+            return "";
+        }
+        String sql = " and id in (select id from " + trigramTableName + " where name = ? and"
+                + " trigram in (" + Joiner.on(", ").join(Collections.nCopies(trigrams.size(), "?"))
+                + ") group by id having count(distinct trigram) = ? union select id from "
+                + trigramTableName + " where name = ? and trigram = ?)";
+        args.add(columnName);
+        args.addAll(trigrams);
+        args.add(trigrams.size());
+        args.add(columnName);
+        args.add(Trigrams.LONG_VALUE_TRIGRAM);
+        return sql;
+    }
+
     @Override
     @Pure
     public String toString() {
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.local.store;
+
+import java.util.Locale;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+
+import org.glowroot.markers.Static;
+
+/**
+ * Trigrams for the inverted index that backs the grouping, error message and user searches in
+ * {@link TracePointQuery}.
+ *
+ * Both values and search strings are upper cased first since the searches are case insensitive.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@Static
+class Trigrams {
+
+    // only the beginning of each value is indexed, since error messages in particular can be very
+    // long (and searches rarely target text far into them)
+    static final int MAX_INDEXED_LENGTH = 256;
+
+    // added to the trigrams of values that are longer than MAX_INDEXED_LENGTH, so that
+    // TracePointQuery can always pass those rows through to the like predicate, this cannot collide
+    // with a real trigram since it is longer than a trigram
+    static final String LONG_VALUE_TRIGRAM = "\0long";
+
+    private static final int N = 3;
+
+    // these are wildcards in the like predicates that the trigram index narrows down
+    private static final Splitter likeWildcardSplitter =
+            Splitter.on(CharMatcher.anyOf("%_")).omitEmptyStrings();
+
+    private Trigrams() {}
+
+    static ImmutableSet<String> getValueTrigrams(String value) {
+        ImmutableSet.Builder<String> trigrams = ImmutableSet.builder();
+        if (value.length() > MAX_INDEXED_LENGTH) {
+            addTrigrams(value.substring(0, MAX_INDEXED_LENGTH).toUpperCase(Locale.ENGLISH),
+                    trigrams);
+            trigrams.add(LONG_VALUE_TRIGRAM);
+        } else {
+            addTrigrams(value.toUpperCase(Locale.ENGLISH), trigrams);
+        }
+        return trigrams.build();
+    }
+
+    // returns the trigrams that any value matching the search string must contain, which is empty
+    // if the search string is too short to be narrowed down by the trigram index
+    //
+    // since the search string is used in like predicates, trigrams that span a wildcard character
+    // are not included
+    static ImmutableSet<String> getSearchTrigrams(String search) {
+        ImmutableSet.Builder<String> trigrams = ImmutableSet.builder();
+        for (String literal : likeWildcardSplitter.split(search.toUpperCase(Locale.ENGLISH))) {
+            addTrigrams(literal, trigrams);
+        }
+        return trigrams.build();
+    }
+
+    private static void addTrigrams(String upper, ImmutableSet.Builder<String> trigrams) {
+        for (int i = 0; i + N <= upper.length(); i++) {
+            trigrams.add(upper.substring(i, i + N));
+        }
+    }
+}
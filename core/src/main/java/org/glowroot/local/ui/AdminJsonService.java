@@ -20,25 +20,33 @@ import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
 import java.sql.SQLException;
 import java.util.List;
-import java.util.Set;
 
+import checkers.igj.quals.ReadOnly;
+import checkers.lock.quals.GuardedBy;
 import checkers.nullness.quals.Nullable;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.common.io.CharStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.collector.TraceCollectorImpl;
+import org.glowroot.common.ObjectMappers;
 import org.glowroot.config.ConfigService;
-import org.glowroot.config.PointcutConfig;
 import org.glowroot.local.store.DataSource;
 import org.glowroot.local.store.SnapshotDao;
 import org.glowroot.markers.OnlyUsedByTests;
 import org.glowroot.markers.Singleton;
+import org.glowroot.markers.ThreadSafe;
 import org.glowroot.trace.PointcutConfigAdviceCache;
+import org.glowroot.trace.PointcutConfigAdviceCache.AdvisorChanges;
 import org.glowroot.trace.TraceRegistry;
 import org.glowroot.weaving.ParsedTypeCache;
+import org.glowroot.weaving.ParsedTypeCache.LoaderTypeNames;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * Json service for various admin tasks, bound to /backend/admin.
@@ -51,6 +59,11 @@ import org.glowroot.weaving.ParsedTypeCache;
 class AdminJsonService {
 
     private static final Logger logger = LoggerFactory.getLogger(AdminJsonService.class);
+    @ReadOnly
+    private static final ObjectMapper mapper = ObjectMappers.create();
+
+    private static final int REWEAVE_BATCH_SIZE =
+            Integer.getInteger("glowroot.experimental.reweaveBatchSize", 100);
 
     private final SnapshotDao snapshotDao;
     private final ConfigService configService;
@@ -62,6 +75,11 @@ class AdminJsonService {
     private final DataSource dataSource;
     private final TraceRegistry traceRegistry;
 
+    private final Object reweaveLock = new Object();
+    // the progress of the current (or last) reweave
+    @Nullable
+    private volatile ReweaveProgress reweaveProgress;
+
     AdminJsonService(SnapshotDao snapshotDao, ConfigService configService,
             PointcutConfigAdviceCache pointcutConfigAdviceCache, ParsedTypeCache parsedTypeCache,
             @Nullable Instrumentation instrumentation, TraceCollectorImpl traceCollector,
@@ -82,29 +100,108 @@ class AdminJsonService {
         snapshotDao.deleteAllSnapshots();
     }
 
+    // only the classes affected by the pointcut config changes are retransformed, and they are
+    // retransformed in batches, since each retransformClasses() call brings the JVM to a safepoint
+    // for the duration of the call
+    //
+    // this can take a long time when many classes are affected, so the reweave is run in the
+    // background and its progress is polled via /backend/admin/pointcuts/reweave-progress
     @POST("/backend/admin/pointcuts/reweave")
-    void reweavePointcutConfigs() throws UnmodifiableClassException {
+    String reweavePointcutConfigs() throws IOException {
+        logger.debug("reweavePointcutConfigs()");
         if (instrumentation == null) {
             logger.warn("retransformClasses does not work under IsolatedWeavingClassLoader");
-            return;
+            return "{}";
         }
         if (!instrumentation.isRetransformClassesSupported()) {
             logger.warn("retransformClasses is not supported");
-            return;
+            return "{}";
         }
-        List<PointcutConfig> pointcutConfigs = configService.getPointcutConfigs();
-        pointcutConfigAdviceCache.updateAdvisors(pointcutConfigs);
-        Set<String> typeNames = Sets.newHashSet();
-        for (PointcutConfig pointcutConfig : pointcutConfigs) {
-            typeNames.add(pointcutConfig.getTypeName());
+        final Instrumentation instrumentation = this.instrumentation;
+        final ReweaveProgress progress;
+        synchronized (reweaveLock) {
+            ReweaveProgress currentProgress = reweaveProgress;
+            if (currentProgress != null && !currentProgress.isCompleted()) {
+                // only one reweave runs at a time, so the reweave in progress runs again after it
+                // completes in order to pick up any pointcut config changes made in the meantime
+                currentProgress.rerunRequested = true;
+                return currentProgress.toJson();
+            }
+            progress = new ReweaveProgress();
+            reweaveProgress = progress;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        reweave(instrumentation, progress);
+                    } catch (Throwable t) {
+                        // log and continue
+                        logger.error(t.getMessage(), t);
+                    }
+                    synchronized (reweaveLock) {
+                        if (!progress.rerunRequested) {
+                            progress.complete();
+                            return;
+                        }
+                        progress.rerunRequested = false;
+                    }
+                }
+            }
+        });
+        thread.setName("Glowroot-Reweave");
+        thread.setDaemon(true);
+        thread.start();
+        return progress.toJson();
+    }
+
+    @GET("/backend/admin/pointcuts/reweave-progress")
+    String getReweaveProgress() throws IOException {
+        logger.debug("getReweaveProgress()");
+        ReweaveProgress progress = reweaveProgress;
+        if (progress == null) {
+            return "{}";
         }
+        return progress.toJson();
+    }
+
+    private void reweave(Instrumentation instrumentation, ReweaveProgress progress) {
+        AdvisorChanges advisorChanges =
+                pointcutConfigAdviceCache.updateAdvisors(configService.getPointcutConfigs());
+        LoaderTypeNames typeNames = parsedTypeCache.getExistingTypeNamesToReweave(
+                advisorChanges.getAddedAdvisors(), advisorChanges.getRemovedAdvisors());
         List<Class<?>> classes = Lists.newArrayList();
-        classes.addAll(parsedTypeCache.getClassesWithReweavableAdvice());
-        classes.addAll(parsedTypeCache.getExistingSubClasses(typeNames));
-        if (classes.isEmpty()) {
-            return;
+        if (!typeNames.isEmpty()) {
+            // matching against the loaded classes (as opposed to loading the classes by name)
+            // ensures that no class is loaded as a side effect of reweaving
+            //
+            // the class loader is matched too since the type names were found per class loader
+            for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+                if (typeNames.contains(clazz.getClassLoader(), clazz.getName())
+                        && instrumentation.isModifiableClass(clazz)) {
+                    classes.add(clazz);
+                }
+            }
+        }
+        progress.addClassCount(classes.size());
+        int batchCount = (classes.size() + REWEAVE_BATCH_SIZE - 1) / REWEAVE_BATCH_SIZE;
+        int batchIndex = 0;
+        for (List<Class<?>> batch : Lists.partition(classes, REWEAVE_BATCH_SIZE)) {
+            long batchStartTick = System.nanoTime();
+            boolean failed = false;
+            try {
+                instrumentation.retransformClasses(Iterables.toArray(batch, Class.class));
+            } catch (UnmodifiableClassException e) {
+                // continue with the remaining batches
+                logger.error(e.getMessage(), e);
+                failed = true;
+            }
+            long batchMillis = NANOSECONDS.toMillis(System.nanoTime() - batchStartTick);
+            progress.addBatch(batch.size(), failed, batchMillis);
+            logger.debug("reweave(): retransformed batch {} of {} ({} classes) in {}"
+                    + " milliseconds", ++batchIndex, batchCount, batch.size(), batchMillis);
         }
-        instrumentation.retransformClasses(Iterables.toArray(classes, Class.class));
     }
 
     @POST("/backend/admin/data/compact")
@@ -118,6 +215,39 @@ class AdminJsonService {
         }
     }
 
+    @GET("/backend/admin/snapshot-store-stats")
+    String getSnapshotStoreStats() throws IOException {
+        logger.debug("getSnapshotStoreStats()");
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
+        jg.writeStartObject();
+        jg.writeNumberField("pendingQueueDepth", traceCollector.getPendingQueueDepth());
+        jg.writeNumberField("droppedTraceCount", traceCollector.getDroppedTraceCount());
+        jg.writeNumberField("storedTraceCount", traceCollector.getStoredTraceCount());
+        jg.writeNumberField("storedBatchCount", traceCollector.getStoredBatchCount());
+        jg.writeNumberField("maxBatchSize", traceCollector.getMaxBatchSize());
+        jg.writeEndObject();
+        jg.close();
+        return sb.toString();
+    }
+
+    @GET("/backend/admin/parsed-type-cache-stats")
+    String getParsedTypeCacheStats() throws IOException {
+        logger.debug("getParsedTypeCacheStats()");
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
+        jg.writeStartObject();
+        jg.writeNumberField("hitCount", parsedTypeCache.getHitCount());
+        jg.writeNumberField("missCount", parsedTypeCache.getMissCount());
+        jg.writeNumberField("negativeHitCount", parsedTypeCache.getNegativeHitCount());
+        jg.writeNumberField("prefetchCount", parsedTypeCache.getPrefetchCount());
+        jg.writeNumberField("resolveMillis", NANOSECONDS.toMillis(parsedTypeCache
+                .getResolveNanos()));
+        jg.writeEndObject();
+        jg.close();
+        return sb.toString();
+    }
+
     @OnlyUsedByTests
     @POST("/backend/admin/config/reset-all")
     void resetAllConfig() throws IOException {
@@ -145,4 +275,64 @@ class AdminJsonService {
         logger.debug("getNumActiveTraces()");
         return Integer.toString(Iterables.size(traceRegistry.getTraces()));
     }
+
+    @ThreadSafe
+    private static class ReweaveProgress {
+
+        private final long startTick = System.nanoTime();
+        @GuardedBy("this")
+        private int classCount;
+        @GuardedBy("this")
+        private int retransformedClassCount;
+        @GuardedBy("this")
+        private int failedClassCount;
+        @GuardedBy("this")
+        private final List<Long> batchMillis = Lists.newArrayList();
+        private volatile long endTick;
+        private volatile boolean completed;
+        @GuardedBy("reweaveLock")
+        private boolean rerunRequested;
+
+        private synchronized void addClassCount(int classCount) {
+            this.classCount += classCount;
+        }
+
+        private synchronized void addBatch(int classCount, boolean failed, long millis) {
+            if (failed) {
+                failedClassCount += classCount;
+            } else {
+                retransformedClassCount += classCount;
+            }
+            batchMillis.add(millis);
+        }
+
+        private void complete() {
+            endTick = System.nanoTime();
+            completed = true;
+        }
+
+        private boolean isCompleted() {
+            return completed;
+        }
+
+        private synchronized String toJson() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
+            jg.writeStartObject();
+            jg.writeBooleanField("completed", completed);
+            jg.writeNumberField("classCount", classCount);
+            jg.writeNumberField("retransformedClassCount", retransformedClassCount);
+            jg.writeNumberField("failedClassCount", failedClassCount);
+            jg.writeArrayFieldStart("batchMillis");
+            for (long millis : batchMillis) {
+                jg.writeNumber(millis);
+            }
+            jg.writeEndArray();
+            long tick = completed ? endTick : System.nanoTime();
+            jg.writeNumberField("totalMillis", NANOSECONDS.toMillis(tick - startTick));
+            jg.writeEndObject();
+            jg.close();
+            return sb.toString();
+        }
+    }
 }
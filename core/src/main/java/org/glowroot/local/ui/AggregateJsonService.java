@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2013 the original author or authors.
+ * Copyright 2011-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -29,6 +29,8 @@ import com.google.common.io.CharStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.collector.Histogram;
+import org.glowroot.common.Clock;
 import org.glowroot.common.ObjectMappers;
 import org.glowroot.local.store.AggregateDao;
 import org.glowroot.local.store.AggregatePoint;
@@ -51,12 +53,20 @@ class AggregateJsonService {
     @ReadOnly
     private static final ObjectMapper mapper = ObjectMappers.create();
 
+    private static final double[] PERCENTILES = {50, 95, 99};
+
+    // there is no point in reading many more points than can be displayed on the chart
+    private static final long MAX_POINT_COUNT = 300;
+
     private final AggregateDao aggregateDao;
+    private final Clock clock;
 
     private final long fixedAggregateIntervalSeconds;
 
-    AggregateJsonService(AggregateDao aggregateDao, long fixedAggregateIntervalSeconds) {
+    AggregateJsonService(AggregateDao aggregateDao, Clock clock,
+            long fixedAggregateIntervalSeconds) {
         this.aggregateDao = aggregateDao;
+        this.clock = clock;
         this.fixedAggregateIntervalSeconds = fixedAggregateIntervalSeconds;
     }
 
@@ -65,8 +75,9 @@ class AggregateJsonService {
         logger.debug("getPoints(): content={}", content);
         PointsRequest request =
                 ObjectMappers.readRequiredValue(mapper, content, PointsRequest.class);
+        int rollupLevel = getRollupLevel(request.getFrom(), request.getTo());
         List<AggregatePoint> points =
-                aggregateDao.readAggregates(request.getFrom(), request.getTo());
+                aggregateDao.readAggregates(request.getFrom(), request.getTo(), rollupLevel);
 
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
@@ -83,10 +94,63 @@ class AggregateJsonService {
             }
             jg.writeNumber(durationAverage / 1000000000.0);
             jg.writeNumber(point.getTraceCount());
+            // each point has its own interval since the most recent points may not have been
+            // rolled up yet
+            jg.writeNumber(getRollupIntervalMillis(point.getRollupLevel()) / 1000);
             jg.writeEndArray();
         }
         jg.writeEndArray();
-        jg.writeNumberField("fixedAggregateIntervalSeconds", fixedAggregateIntervalSeconds);
+        jg.writeNumberField("fixedAggregateIntervalSeconds",
+                getRollupIntervalMillis(rollupLevel) / 1000);
+        jg.writeEndObject();
+        jg.close();
+        return sb.toString();
+    }
+
+    // percentiles are merged across the requested intervals at read time, so they are valid for
+    // arbitrary time ranges (unlike averaging per-interval percentiles)
+    @GET("/backend/aggregate/percentiles")
+    String getPercentiles(String content) throws IOException {
+        logger.debug("getPercentiles(): content={}", content);
+        PercentilesRequest request =
+                ObjectMappers.readRequiredValue(mapper, content, PercentilesRequest.class);
+        String grouping = request.getGrouping();
+        int rollupLevel = getRollupLevel(request.getFrom(), request.getTo());
+        List<AggregatePoint> points;
+        if (grouping == null) {
+            points = aggregateDao.readAggregates(request.getFrom(), request.getTo(), rollupLevel);
+        } else {
+            points = aggregateDao.readGroupingAggregates(grouping, request.getFrom(),
+                    request.getTo(), rollupLevel);
+        }
+        Histogram mergedHistogram = new Histogram();
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
+        jg.writeStartObject();
+        jg.writeArrayFieldStart("points");
+        for (AggregatePoint point : points) {
+            Histogram histogram = point.getHistogram();
+            mergedHistogram.merge(histogram);
+            jg.writeStartArray();
+            jg.writeNumber(point.getCaptureTime());
+            for (double percentile : PERCENTILES) {
+                jg.writeNumber(histogram.getDurationAtPercentile(percentile) / 1000000000.0);
+            }
+            jg.writeNumber(histogram.getMaxDuration() / 1000000000.0);
+            jg.writeNumber(getRollupIntervalMillis(point.getRollupLevel()) / 1000);
+            jg.writeEndArray();
+        }
+        jg.writeEndArray();
+        jg.writeObjectFieldStart("merged");
+        jg.writeNumberField("traceCount", mergedHistogram.getTotalCount());
+        for (double percentile : PERCENTILES) {
+            jg.writeNumberField("p" + (int) percentile,
+                    mergedHistogram.getDurationAtPercentile(percentile) / 1000000000.0);
+        }
+        jg.writeNumberField("max", mergedHistogram.getMaxDuration() / 1000000000.0);
+        jg.writeEndObject();
+        jg.writeNumberField("fixedAggregateIntervalSeconds",
+                getRollupIntervalMillis(rollupLevel) / 1000);
         jg.writeEndObject();
         jg.close();
         return sb.toString();
@@ -97,11 +161,53 @@ class AggregateJsonService {
         logger.debug("getGroupings(): content={}", content);
         GroupingsRequest request =
                 ObjectMappers.readRequiredValue(mapper, content, GroupingsRequest.class);
+        int rollupLevel = getRollupLevel(request.getFrom(), request.getTo());
         List<GroupingAggregate> groupings = aggregateDao.readGroupingAggregates(request.getFrom(),
-                request.getTo(), request.getLimit());
+                request.getTo(), request.getLimit(), rollupLevel);
         return mapper.writeValueAsString(groupings);
     }
 
+    // grouping profiles are only stored at rollup level 0, and are merged across the requested
+    // intervals at read time
+    @GET("/backend/aggregate/profile")
+    String getProfile(String content) throws IOException {
+        logger.debug("getProfile(): content={}", content);
+        ProfileRequest request =
+                ObjectMappers.readRequiredValue(mapper, content, ProfileRequest.class);
+        int rollupLevel = getRollupLevel(request.getFrom(), request.getTo());
+        String profile = aggregateDao.readGroupingProfile(request.getGrouping(),
+                request.getFrom(), request.getTo(), rollupLevel);
+        if (profile == null) {
+            return "{}";
+        }
+        return profile;
+    }
+
+    // picks the coarsest rollup level that still provides the resolution needed to display the
+    // requested time range, or a coarser level if the finer level has already expired
+    private int getRollupLevel(long from, long to) {
+        long resolutionMillis = (to - from) / MAX_POINT_COUNT;
+        int rollupLevel = 0;
+        for (int i = 1; i < aggregateDao.getRollupLevelCount(); i++) {
+            if (getRollupIntervalMillis(i) <= resolutionMillis) {
+                rollupLevel = i;
+            }
+        }
+        long currentTime = clock.currentTimeMillis();
+        while (rollupLevel < aggregateDao.getRollupLevelCount() - 1
+                && from < currentTime - aggregateDao.getRollupExpirationMillis(rollupLevel)) {
+            rollupLevel++;
+        }
+        return rollupLevel;
+    }
+
+    private long getRollupIntervalMillis(int rollupLevel) {
+        if (rollupLevel == 0) {
+            return fixedAggregateIntervalSeconds * 1000;
+        }
+        return aggregateDao.getRollupIntervalMillis(rollupLevel);
+    }
+
     private static class PointsRequest {
 
         private final long from;
@@ -125,6 +231,71 @@ class AggregateJsonService {
         }
     }
 
+    private static class PercentilesRequest {
+
+        private final long from;
+        private final long to;
+        @Nullable
+        private final String grouping;
+
+        @JsonCreator
+        PercentilesRequest(@JsonProperty("from") @Nullable Long from,
+                @JsonProperty("to") @Nullable Long to,
+                @JsonProperty("grouping") @Nullable String grouping)
+                throws JsonMappingException {
+            checkRequiredProperty(from, "from");
+            checkRequiredProperty(to, "to");
+            this.from = from;
+            this.to = to;
+            this.grouping = grouping;
+        }
+
+        private long getFrom() {
+            return from;
+        }
+
+        private long getTo() {
+            return to;
+        }
+
+        @Nullable
+        private String getGrouping() {
+            return grouping;
+        }
+    }
+
+    private static class ProfileRequest {
+
+        private final long from;
+        private final long to;
+        private final String grouping;
+
+        @JsonCreator
+        ProfileRequest(@JsonProperty("from") @Nullable Long from,
+                @JsonProperty("to") @Nullable Long to,
+                @JsonProperty("grouping") @Nullable String grouping)
+                throws JsonMappingException {
+            checkRequiredProperty(from, "from");
+            checkRequiredProperty(to, "to");
+            checkRequiredProperty(grouping, "grouping");
+            this.from = from;
+            this.to = to;
+            this.grouping = grouping;
+        }
+
+        private long getFrom() {
+            return from;
+        }
+
+        private long getTo() {
+            return to;
+        }
+
+        private String getGrouping() {
+            return grouping;
+        }
+    }
+
     private static class GroupingsRequest {
 
         private final long from;
@@ -17,15 +17,14 @@ package org.glowroot.local.ui;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PushbackReader;
-import java.io.Reader;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import checkers.nullness.quals.Nullable;
-import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.stream.ChunkedInput;
@@ -39,13 +38,13 @@ import org.glowroot.markers.Static;
 @Static
 class ChunkedInputs {
 
-    static ChunkedInput fromReader(Reader reader) {
-        return new ReaderChunkedInput(reader);
+    static ChunkedInput fromInputStream(InputStream in) {
+        return new InputStreamChunkedInput(in);
     }
 
-    static ChunkedInput fromReaderToZipFileDownload(Reader reader, String filename)
+    static ChunkedInput fromInputStreamToZipFileDownload(InputStream in, String filename)
             throws IOException {
-        return new ZipFileChunkedInput(reader, filename);
+        return new ZipFileChunkedInput(in, filename);
     }
 
     private ChunkedInputs() {}
@@ -82,58 +81,48 @@ class ChunkedInputs {
 
         protected abstract Object readNextChunk() throws IOException;
 
-        private static boolean hasMoreBytes(PushbackReader reader) throws IOException {
-            int b = reader.read();
+        private static boolean hasMoreBytes(PushbackInputStream in) throws IOException {
+            int b = in.read();
             if (b == -1) {
                 return false;
             } else {
-                reader.unread(b);
+                in.unread(b);
                 return true;
             }
         }
-
-        private static int readFully(Reader reader, char[] buffer) throws IOException {
-            int total = 0;
-            while (true) {
-                int n = reader.read(buffer, total, buffer.length - total);
-                if (n == -1) {
-                    break;
-                }
-                total += n;
-                if (total == buffer.length) {
-                    break;
-                }
-            }
-            return total;
-        }
     }
 
-    private static class ReaderChunkedInput extends BaseChunkedInput {
+    // the bytes are read directly into the chunk's buffer, so (other than the buffer itself) no
+    // intermediate byte or char arrays are created per chunk
+    private static class InputStreamChunkedInput extends BaseChunkedInput {
 
         private static final int CHUNK_SIZE = 8192;
 
-        private final PushbackReader reader;
-        private final char[] buffer = new char[CHUNK_SIZE];
+        private final PushbackInputStream in;
 
-        private ReaderChunkedInput(Reader reader) {
-            this.reader = new PushbackReader(reader);
+        private InputStreamChunkedInput(InputStream in) {
+            this.in = new PushbackInputStream(in);
         }
 
         @Override
         public void close() throws IOException {
-            reader.close();
+            in.close();
         }
 
         @Override
         protected boolean hasMoreBytes() throws IOException {
-            return BaseChunkedInput.hasMoreBytes(reader);
+            return BaseChunkedInput.hasMoreBytes(in);
         }
 
         @Override
         protected Object readNextChunk() throws IOException {
-            int len = BaseChunkedInput.readFully(reader, buffer);
-            return new DefaultHttpChunk(ChannelBuffers.copiedBuffer(buffer, 0, len,
-                    Charsets.UTF_8));
+            ChannelBuffer buffer = ChannelBuffers.buffer(CHUNK_SIZE);
+            while (buffer.writable()) {
+                if (buffer.writeBytes(in, buffer.writableBytes()) == -1) {
+                    break;
+                }
+            }
+            return new DefaultHttpChunk(buffer);
         }
     }
 
@@ -141,43 +130,42 @@ class ChunkedInputs {
 
         private static final int CHUNK_SIZE = 8192;
 
-        private final PushbackReader reader;
+        private final PushbackInputStream in;
         private final ByteArrayOutputStream baos;
-        private final Writer zipWriter;
-        // need lots more chars to end up with compressed chunk of given size
-        private final char[] buffer = new char[8 * CHUNK_SIZE];
+        private final ZipOutputStream zipOut;
+        // need lots more bytes to end up with compressed chunk of given size
+        private final byte[] buffer = new byte[8 * CHUNK_SIZE];
 
-        private ZipFileChunkedInput(Reader reader, String filename) throws IOException {
-            this.reader = new PushbackReader(reader);
+        private ZipFileChunkedInput(InputStream in, String filename) throws IOException {
+            this.in = new PushbackInputStream(in);
             // write to baos until size >= CHUNK_SIZE, so give it a little extra room
             baos = new ByteArrayOutputStream(2 * CHUNK_SIZE);
-            ZipOutputStream zipOut = new ZipOutputStream(baos);
+            zipOut = new ZipOutputStream(baos);
             zipOut.putNextEntry(new ZipEntry(filename + ".html"));
-            zipWriter = new OutputStreamWriter(zipOut, Charsets.UTF_8);
         }
 
         @Override
         public void close() throws IOException {
-            reader.close();
+            in.close();
         }
 
         @Override
         protected boolean hasMoreBytes() throws IOException {
-            return BaseChunkedInput.hasMoreBytes(reader);
+            return BaseChunkedInput.hasMoreBytes(in);
         }
 
         @Override
         protected Object readNextChunk() throws IOException {
-            int len = BaseChunkedInput.readFully(reader, buffer);
+            int len = ByteStreams.read(in, buffer, 0, buffer.length);
             // no need to flush, there's no buffering except in ZipOutputStream, and that buffering
             // is for compression and doesn't respond to flush() anyways
-            zipWriter.write(buffer, 0, len);
+            zipOut.write(buffer, 0, len);
             if (baos.size() < CHUNK_SIZE && hasMoreBytes()) {
                 return readNextChunk();
             }
             if (!hasMoreBytes()) {
                 // write remaining compressed data
-                zipWriter.close();
+                zipOut.close();
             }
             // toByteArray returns a copy so it's ok to reset the ByteArrayOutputStream afterwards
             byte[] bytes = baos.toByteArray();
@@ -96,7 +96,7 @@ public class LocalUiModule {
         IndexHtmlService indexHtmlService =
                 new IndexHtmlService(baseHref, httpSessionManager, layoutJsonService);
         AggregateJsonService aggregateJsonService =
-                new AggregateJsonService(storageModule.getAggregateDao(),
+                new AggregateJsonService(storageModule.getAggregateDao(), clock,
                         collectorModule.getFixedAggregateIntervalSeconds());
         TraceCommonService traceCommonService =
                 new TraceCommonService(snapshotDao, traceRegistry, traceCollector, clock, ticker);
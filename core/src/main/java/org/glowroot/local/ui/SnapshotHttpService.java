@@ -19,7 +19,7 @@ import java.io.IOException;
 
 import checkers.nullness.quals.Nullable;
 import com.google.common.base.Charsets;
-import com.google.common.io.CharSource;
+import com.google.common.io.ByteSource;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
@@ -69,11 +69,11 @@ class SnapshotHttpService implements HttpService {
             response.headers().set(Names.CONTENT_LENGTH, content.length());
             return response;
         }
-        CharSource charSource = SnapshotWriter.toCharSource(snapshot, false);
+        ByteSource byteSource = SnapshotWriter.toByteSource(snapshot, false);
         HttpServices.preventCaching(response);
         response.setChunked(true);
         channel.write(response);
-        channel.write(ChunkedInputs.fromReader(charSource.openStream()));
+        channel.write(ChunkedInputs.fromInputStream(byteSource.openStream()));
         // return null to indicate streaming
         return null;
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2013 the original author or authors.
+ * Copyright 2012-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -29,6 +29,7 @@ import org.glowroot.local.store.SnapshotDao;
 import org.glowroot.markers.Singleton;
 import org.glowroot.trace.TraceRegistry;
 import org.glowroot.trace.model.Trace;
+import org.glowroot.trace.model.TraceUniqueId;
 
 /**
  * @author Trask Stalnaker
@@ -52,24 +53,27 @@ class TraceCommonService {
         this.ticker = ticker;
     }
 
+    // the id is in hex form since it comes from the http request, see TraceUniqueId
     @ReadOnly
     @Nullable
-    Snapshot getSnapshot(String id, boolean summary) throws IOException {
+    Snapshot getSnapshot(String hexId, boolean summary) throws IOException {
+        Long id = TraceUniqueId.parseHex(hexId);
+        if (id == null) {
+            return null;
+        }
         // check active traces first to make sure that the trace is not missed if it should complete
         // after checking stored traces but before checking active traces
-        for (Trace active : traceRegistry.getTraces()) {
-            if (active.getId().equals(id)) {
-                return SnapshotCreator.createActiveSnapshot(active,
-                        clock.currentTimeMillis(), ticker.read(), summary);
-            }
+        Trace active = traceRegistry.getTrace(id);
+        if (active != null && active.markExposed()) {
+            return SnapshotCreator.createActiveSnapshot(active, clock.currentTimeMillis(),
+                    ticker.read(), summary);
         }
         // then check pending traces to make sure the trace is not missed if it is in between active
         // and stored
-        for (Trace pending : traceCollectorImpl.getPendingCompleteTraces()) {
-            if (pending.getId().equals(id)) {
-                return SnapshotCreator.createPendingSnapshot(pending,
-                        clock.currentTimeMillis(), ticker.read(), summary);
-            }
+        Trace pending = traceCollectorImpl.getPendingCompleteTrace(id);
+        if (pending != null) {
+            return SnapshotCreator.createPendingSnapshot(pending, clock.currentTimeMillis(),
+                    ticker.read(), summary);
         }
         if (summary) {
             return snapshotDao.readSnapshotWithoutDetail(id);
@@ -27,7 +27,7 @@ import checkers.nullness.quals.Nullable;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
-import com.google.common.io.CharSource;
+import com.google.common.io.ByteSource;
 import com.google.common.io.Resources;
 import com.google.common.net.MediaType;
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -94,9 +94,9 @@ public class TraceExportHttpService implements HttpService {
     }
 
     private ChunkedInput getExportChunkedInput(Snapshot snapshot) throws IOException {
-        CharSource traceCharSource = SnapshotWriter.toCharSource(snapshot, false);
-        CharSource charSource = render(traceCharSource);
-        return ChunkedInputs.fromReaderToZipFileDownload(charSource.openStream(),
+        ByteSource traceByteSource = SnapshotWriter.toByteSource(snapshot, false);
+        ByteSource byteSource = render(traceByteSource);
+        return ChunkedInputs.fromInputStreamToZipFileDownload(byteSource.openStream(),
                 getFilename(snapshot));
     }
 
@@ -127,51 +127,55 @@ public class TraceExportHttpService implements HttpService {
         return "trace-" + timestamp;
     }
 
-    private static CharSource render(CharSource traceCharSource) throws IOException {
+    // the export resources and the trace json are all UTF-8, so they are concatenated as bytes
+    private static ByteSource render(ByteSource traceByteSource) throws IOException {
         final String exportCss =
                 "<link rel=\"stylesheet\" type=\"text/css\" href=\"styles/export.css\">";
         final String exportComponentsJs = "<script src=\"scripts/export.components.js\"></script>";
         final String exportJs = "<script src=\"scripts/export.js\"></script>";
         final String detailTrace = "<script type=\"text/json\" id=\"detailTraceJson\"></script>";
 
-        String templateContent = asCharSource("export.html").read();
+        String templateContent =
+                asByteSource("export.html").asCharSource(Charsets.UTF_8).read();
         Pattern pattern = Pattern.compile("(" + exportCss + "|" + exportComponentsJs + "|"
                 + exportJs + "|" + detailTrace + ")");
         Matcher matcher = pattern.matcher(templateContent);
         int curr = 0;
-        List<CharSource> charSources = Lists.newArrayList();
+        List<ByteSource> byteSources = Lists.newArrayList();
         while (matcher.find()) {
-            charSources.add(CharSource.wrap(
-                    templateContent.substring(curr, matcher.start())));
+            byteSources.add(utf8(templateContent.substring(curr, matcher.start())));
             curr = matcher.end();
             String match = matcher.group();
             if (match.equals(exportCss)) {
-                charSources.add(CharSource.wrap("<style>"));
-                charSources.add(asCharSource("styles/export.css"));
-                charSources.add(CharSource.wrap("</style>"));
+                byteSources.add(utf8("<style>"));
+                byteSources.add(asByteSource("styles/export.css"));
+                byteSources.add(utf8("</style>"));
             } else if (match.equals(exportComponentsJs)) {
-                charSources.add(CharSource.wrap("<script>"));
-                charSources.add(asCharSource("scripts/export.components.js"));
-                charSources.add(CharSource.wrap("</script>"));
+                byteSources.add(utf8("<script>"));
+                byteSources.add(asByteSource("scripts/export.components.js"));
+                byteSources.add(utf8("</script>"));
             } else if (match.equals(exportJs)) {
-                charSources.add(CharSource.wrap("<script>"));
-                charSources.add(asCharSource("scripts/export.js"));
-                charSources.add(CharSource.wrap("</script>"));
+                byteSources.add(utf8("<script>"));
+                byteSources.add(asByteSource("scripts/export.js"));
+                byteSources.add(utf8("</script>"));
             } else if (match.equals(detailTrace)) {
-                charSources.add(CharSource.wrap(
-                        "<script type=\"text/json\" id=\"detailTraceJson\">"));
-                charSources.add(traceCharSource);
-                charSources.add(CharSource.wrap("</script>"));
+                byteSources.add(utf8("<script type=\"text/json\" id=\"detailTraceJson\">"));
+                byteSources.add(traceByteSource);
+                byteSources.add(utf8("</script>"));
             } else {
                 logger.error("unexpected match: {}", match);
             }
         }
-        charSources.add(CharSource.wrap(templateContent.substring(curr)));
-        return CharSource.concat(charSources);
+        byteSources.add(utf8(templateContent.substring(curr)));
+        return ByteSource.concat(byteSources);
     }
 
-    private static CharSource asCharSource(String exportResourceName) {
+    private static ByteSource asByteSource(String exportResourceName) {
         URL url = Resources.getResource("org/glowroot/local/ui/export-dist/" + exportResourceName);
-        return Resources.asCharSource(url, Charsets.UTF_8);
+        return Resources.asByteSource(url);
+    }
+
+    private static ByteSource utf8(String content) {
+        return ByteSource.wrap(content.getBytes(Charsets.UTF_8));
     }
 }
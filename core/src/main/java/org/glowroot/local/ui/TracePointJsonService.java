@@ -45,6 +45,7 @@ import org.glowroot.local.store.TracePointQuery.StringComparator;
 import org.glowroot.markers.Singleton;
 import org.glowroot.trace.TraceRegistry;
 import org.glowroot.trace.model.Trace;
+import org.glowroot.trace.model.TraceUniqueId;
 
 import static org.glowroot.common.Nullness.castNonNull;
 
@@ -303,7 +304,7 @@ class TracePointJsonService {
             // check if duplicate and capture insertion index at the same time
             for (int i = 0; i < orderedPoints.size(); i++) {
                 TracePoint point = orderedPoints.get(i);
-                if (pendingPoint.getId().equals(point.getId())) {
+                if (pendingPoint.getId() == point.getId()) {
                     duplicateIndex = i;
                     break;
                 }
@@ -333,7 +334,7 @@ class TracePointJsonService {
                 Trace activeTrace = i.next();
                 for (Iterator<TracePoint> j = points.iterator(); j.hasNext();) {
                     TracePoint point = j.next();
-                    if (activeTrace.getId().equals(point.getId())) {
+                    if (activeTrace.getId() == point.getId()) {
                         if (activeTrace.getDuration() > point.getDuration()) {
                             // prefer the active trace, it must be a stuck trace that hasn't
                             // completed yet
@@ -361,7 +362,7 @@ class TracePointJsonService {
                     jg.writeStartArray();
                     jg.writeNumber(point.getCaptureTime());
                     jg.writeNumber(point.getDuration() / 1000000000.0);
-                    jg.writeString(point.getId());
+                    jg.writeString(TraceUniqueId.toHex(point.getId()));
                     jg.writeEndArray();
                 }
             }
@@ -372,7 +373,7 @@ class TracePointJsonService {
                     jg.writeStartArray();
                     jg.writeNumber(point.getCaptureTime());
                     jg.writeNumber(point.getDuration() / 1000000000.0);
-                    jg.writeString(point.getId());
+                    jg.writeString(TraceUniqueId.toHex(point.getId()));
                     jg.writeEndArray();
                 }
             }
@@ -382,7 +383,7 @@ class TracePointJsonService {
                 jg.writeStartArray();
                 jg.writeNumber(captureTime);
                 jg.writeNumber((captureTick - activeTrace.getStartTick()) / 1000000000.0);
-                jg.writeString(activeTrace.getId());
+                jg.writeString(TraceUniqueId.toHex(activeTrace.getId()));
                 jg.writeEndArray();
             }
             jg.writeEndArray();
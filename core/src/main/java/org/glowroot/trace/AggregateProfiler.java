@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.common.ScheduledRunnable;
+import org.glowroot.config.ConfigService;
+import org.glowroot.markers.Singleton;
+import org.glowroot.trace.model.Trace;
+
+/**
+ * Continuously samples the stack traces of all active traces at a low rate, and passes them to the
+ * {@link TraceCollector} to be merged into the aggregate of each trace's grouping.
+ *
+ * Unlike coarse and fine profiling, this does not depend on any individual trace being slow or
+ * being stored, so it gives a profile of each grouping over time. All active traces are captured
+ * in a single {@link ThreadMXBean#getThreadInfo(long[], int)} call.
+ *
+ * Sampling can be turned off at runtime via {@link
+ * org.glowroot.config.AdvancedConfig#isAggregateProfilingDisabled()}.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@Singleton
+class AggregateProfiler extends ScheduledRunnable {
+
+    private final TraceRegistry traceRegistry;
+    private final TraceCollector traceCollector;
+    private final ConfigService configService;
+
+    AggregateProfiler(TraceRegistry traceRegistry, TraceCollector traceCollector,
+            ConfigService configService) {
+        this.traceRegistry = traceRegistry;
+        this.traceCollector = traceCollector;
+        this.configService = configService;
+    }
+
+    @Override
+    protected void runInternal() {
+        if (configService.getAdvancedConfig().isAggregateProfilingDisabled()) {
+            return;
+        }
+        List<Trace> traces = Lists.newArrayList();
+        for (Trace trace : traceRegistry.getTraces()) {
+            if (!trace.isCompleted()) {
+                traces.add(trace);
+            }
+        }
+        if (traces.isEmpty()) {
+            return;
+        }
+        long[] threadIds = new long[traces.size()];
+        for (int i = 0; i < threadIds.length; i++) {
+            threadIds[i] = traces.get(i).getThreadId();
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        ThreadInfo[] threadInfos = threadBean.getThreadInfo(threadIds, Integer.MAX_VALUE);
+        for (int i = 0; i < threadInfos.length; i++) {
+            Trace trace = traces.get(i);
+            ThreadInfo threadInfo = threadInfos[i];
+            // check completion again since the thread may have moved on to another trace while
+            // the stack traces were being captured
+            if (threadInfo != null && !trace.isCompleted()) {
+                traceCollector.onStackTraceSample(trace, threadInfo);
+            }
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2013 the original author or authors.
+ * Copyright 2011-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,8 +15,6 @@
  */
 package org.glowroot.trace;
 
-import java.util.concurrent.ScheduledExecutorService;
-
 import com.google.common.base.Ticker;
 
 import org.glowroot.common.ScheduledRunnable;
@@ -34,11 +32,10 @@ import static java.util.concurrent.TimeUnit.SECONDS;
  * 
  * The main repeating Runnable (this) only runs every CHECK_INTERVAL_MILLIS at which time it checks
  * to see if there are any traces that may need stack traces scheduled before the main repeating
- * Runnable runs again (in another CHECK_INTERVAL_MILLIS). the main repeating Runnable schedules a
- * repeating CollectStackCommand for any trace that may need a stack trace in the next
+ * Runnable runs again (in another CHECK_INTERVAL_MILLIS). the main repeating Runnable registers
+ * with the {@link StackTraceCollector} any trace that may need a stack trace in the next
  * CHECK_INTERVAL_MILLIS. since the majority of traces never end up needing stack traces this is
- * much more efficient than scheduling a repeating CollectStackCommand for every trace (this was
- * learned the hard way).
+ * much more efficient than registering every trace (this was learned the hard way).
  * 
  * @author Trask Stalnaker
  * @since 0.5
@@ -48,15 +45,15 @@ class CoarseProfilerWatcher extends ScheduledRunnable {
 
     static final int PERIOD_MILLIS = 50;
 
-    private final ScheduledExecutorService scheduledExecutor;
     private final TraceRegistry traceRegistry;
+    private final StackTraceCollector stackTraceCollector;
     private final ConfigService configService;
     private final Ticker ticker;
 
-    CoarseProfilerWatcher(ScheduledExecutorService scheduledExecutor,
-            TraceRegistry traceRegistry, ConfigService configService, Ticker ticker) {
-        this.scheduledExecutor = scheduledExecutor;
+    CoarseProfilerWatcher(TraceRegistry traceRegistry, StackTraceCollector stackTraceCollector,
+            ConfigService configService, Ticker ticker) {
         this.traceRegistry = traceRegistry;
+        this.stackTraceCollector = stackTraceCollector;
         this.configService = configService;
         this.ticker = ticker;
     }
@@ -85,22 +82,20 @@ class CoarseProfilerWatcher extends ScheduledRunnable {
                 // worst lead to a trace having its profiling start a smidge later than desired)
                 break;
             }
-            if (trace.getCoarseProfilerScheduledRunnable() == null) {
-                scheduleProfiling(trace, currentTick, config);
+            if (!trace.isCoarseProfilingRegistered()) {
+                registerProfiling(trace, currentTick, config);
             }
         }
     }
 
-    // schedule stack traces to be taken every X seconds
-    private void scheduleProfiling(Trace trace, long currentTick, CoarseProfilingConfig config) {
+    // register stack traces to be taken every X seconds
+    private void registerProfiling(Trace trace, long currentTick, CoarseProfilingConfig config) {
         long endTick = getEndTickForCommand(trace.getStartTick(), config);
-        ScheduledRunnable profilerScheduledRunnable =
-                new ProfilerScheduledRunnable(trace, endTick, false, ticker);
         long initialDelayRemainingMillis = getInitialDelayForCommand(trace.getStartTick(),
                 currentTick, config);
-        profilerScheduledRunnable.scheduleAtFixedRate(scheduledExecutor,
-                initialDelayRemainingMillis, config.getIntervalMillis(), MILLISECONDS);
-        trace.setCoarseProfilerScheduledRunnable(profilerScheduledRunnable);
+        stackTraceCollector.register(trace, initialDelayRemainingMillis,
+                config.getIntervalMillis(), endTick, false);
+        trace.setCoarseProfilingRegistered();
     }
 
     private static long getEndTickForCommand(long startTick, CoarseProfilingConfig config) {
@@ -16,11 +16,9 @@
 package org.glowroot.trace;
 
 import java.util.Random;
-import java.util.concurrent.ScheduledExecutorService;
 
 import com.google.common.base.Ticker;
 
-import org.glowroot.common.ScheduledRunnable;
 import org.glowroot.config.ConfigService;
 import org.glowroot.config.FineProfilingConfig;
 import org.glowroot.config.UserOverridesConfig;
@@ -40,14 +38,14 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 @Singleton
 class FineProfileScheduler {
 
-    private final ScheduledExecutorService scheduledExecutor;
+    private final StackTraceCollector stackTraceCollector;
     private final ConfigService configService;
     private final Ticker ticker;
     private final Random random;
 
-    FineProfileScheduler(ScheduledExecutorService scheduledExecutor, ConfigService configService,
+    FineProfileScheduler(StackTraceCollector stackTraceCollector, ConfigService configService,
             Ticker ticker, Random random) {
-        this.scheduledExecutor = scheduledExecutor;
+        this.stackTraceCollector = stackTraceCollector;
         this.configService = configService;
         this.ticker = ticker;
         this.random = random;
@@ -57,7 +55,7 @@ class FineProfileScheduler {
         UserOverridesConfig userOverridesConfig = configService.getUserOverridesConfig();
         String overrideUser = userOverridesConfig.getUser();
         if (user.equals(overrideUser) && userOverridesConfig.isFineProfiling()) {
-            scheduleProfiling(trace);
+            registerProfiling(trace);
         }
     }
 
@@ -66,24 +64,22 @@ class FineProfileScheduler {
         double tracePercentage = fineProfilingConfig.getTracePercentage();
         // just optimization to check tracePercentage != 0
         if (tracePercentage != 0 && random.nextDouble() * 100 < tracePercentage) {
-            scheduleProfiling(trace);
+            registerProfiling(trace);
         }
     }
 
-    // schedules the first stack collection for configured interval after trace start (or
+    // registers the first stack collection for configured interval after trace start (or
     // immediately, if trace duration already exceeds configured collection interval)
-    private void scheduleProfiling(Trace trace) {
+    private void registerProfiling(Trace trace) {
         FineProfilingConfig config = configService.getFineProfilingConfig();
         // extra half interval at the end to make sure the final stack trace is grabbed if it aligns
         // on total (e.g. 100ms interval, 1 second total should result in exactly 10 stack traces)
         long endTick = trace.getStartTick() + SECONDS.toNanos(config.getTotalSeconds())
                 + MILLISECONDS.toNanos(config.getIntervalMillis()) / 2;
-        ScheduledRunnable profilerScheduledRunnable =
-                new ProfilerScheduledRunnable(trace, endTick, true, ticker);
         long initialDelay = Math.max(0,
                 config.getIntervalMillis() - NANOSECONDS.toMillis(trace.getDuration()));
-        profilerScheduledRunnable.scheduleAtFixedRate(scheduledExecutor, initialDelay,
-                config.getIntervalMillis(), MILLISECONDS);
-        trace.setFineProfilerScheduledRunnable(profilerScheduledRunnable);
+        stackTraceCollector.register(trace, initialDelay, config.getIntervalMillis(), endTick,
+                true);
+        trace.setFineProfilingRegistered();
     }
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace;
+
+import org.glowroot.common.ScheduledRunnable;
+import org.glowroot.markers.Singleton;
+import org.glowroot.trace.model.GarbageCollectorSnapshot;
+
+/**
+ * Periodically captures a {@link GarbageCollectorSnapshot} which is shared by all traces that
+ * start before the next capture, so that starting a trace does not need to iterate over the
+ * garbage collector MXBeans.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@Singleton
+class GarbageCollectorWatcher extends ScheduledRunnable {
+
+    static final int PERIOD_MILLIS = 100;
+
+    private volatile GarbageCollectorSnapshot latestSnapshot = GarbageCollectorSnapshot.capture();
+
+    GarbageCollectorSnapshot getLatestSnapshot() {
+        return latestSnapshot;
+    }
+
+    @Override
+    protected void runInternal() {
+        latestSnapshot = GarbageCollectorSnapshot.capture();
+    }
+}
@@ -68,9 +68,11 @@ class PluginServicesImpl extends PluginServices implements ConfigListener {
     private final MetricNameCache metricNameCache;
     @Nullable
     private final ThreadAllocatedBytes threadAllocatedBytes;
+    private final GarbageCollectorWatcher garbageCollectorWatcher;
     private final FineProfileScheduler fineProfileScheduler;
     private final Clock clock;
     private final Ticker ticker;
+    private final boolean recycleMetrics;
 
     // pluginId is either the id of a registered plugin or it is null
     // (see validation in constructor)
@@ -86,11 +88,14 @@ class PluginServicesImpl extends PluginServices implements ConfigListener {
     static PluginServicesImpl create(TraceRegistry traceRegistry, TraceCollector traceCollector,
             ConfigService configService, MetricNameCache metricNameCache,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            GarbageCollectorWatcher garbageCollectorWatcher,
             FineProfileScheduler fineProfileScheduler, Ticker ticker, Clock clock,
-            PluginDescriptorCache pluginDescriptorCache, @Nullable String pluginId) {
+            PluginDescriptorCache pluginDescriptorCache, boolean recycleMetrics,
+            @Nullable String pluginId) {
         PluginServicesImpl pluginServices = new PluginServicesImpl(traceRegistry, traceCollector,
-                configService, metricNameCache, threadAllocatedBytes, fineProfileScheduler, ticker,
-                clock, pluginDescriptorCache, pluginId);
+                configService, metricNameCache, threadAllocatedBytes, garbageCollectorWatcher,
+                fineProfileScheduler, ticker, clock, pluginDescriptorCache, recycleMetrics,
+                pluginId);
         // add config listeners first before caching configuration property values to avoid a
         // (remotely) possible race condition
         configService.addConfigListener(pluginServices);
@@ -105,16 +110,20 @@ class PluginServicesImpl extends PluginServices implements ConfigListener {
     PluginServicesImpl(TraceRegistry traceRegistry, TraceCollector traceCollector,
             ConfigService configService, MetricNameCache metricNameCache,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            GarbageCollectorWatcher garbageCollectorWatcher,
             FineProfileScheduler fineProfileScheduler, Ticker ticker, Clock clock,
-            PluginDescriptorCache pluginDescriptorCache, @Nullable String pluginId) {
+            PluginDescriptorCache pluginDescriptorCache, boolean recycleMetrics,
+            @Nullable String pluginId) {
         this.traceRegistry = traceRegistry;
         this.traceCollector = traceCollector;
         this.configService = configService;
         this.metricNameCache = metricNameCache;
         this.threadAllocatedBytes = threadAllocatedBytes;
+        this.garbageCollectorWatcher = garbageCollectorWatcher;
         this.fineProfileScheduler = fineProfileScheduler;
         this.clock = clock;
         this.ticker = ticker;
+        this.recycleMetrics = recycleMetrics;
         if (pluginId == null) {
             this.pluginId = null;
         } else {
@@ -222,7 +231,8 @@ class PluginServicesImpl extends PluginServices implements ConfigListener {
         Trace trace = traceRegistry.getCurrentTrace();
         if (trace == null) {
             trace = new Trace(clock.currentTimeMillis(), background, grouping, messageSupplier,
-                    (MetricNameImpl) metricName, threadAllocatedBytes, ticker);
+                    (MetricNameImpl) metricName, threadAllocatedBytes,
+                    garbageCollectorWatcher.getLatestSnapshot(), ticker);
             traceRegistry.addTrace(trace);
             fineProfileScheduler.maybeScheduleFineProfilingUsingPercentage(trace);
             return new SpanImpl(trace.getRootSpan(), trace);
@@ -322,7 +332,7 @@ class PluginServicesImpl extends PluginServices implements ConfigListener {
         Trace trace = traceRegistry.getCurrentTrace();
         if (trace != null) {
             trace.setUser(user);
-            if (user != null && trace.getFineProfilerScheduledRunnable() == null) {
+            if (user != null && !trace.isFineProfilingRegistered()) {
                 fineProfileScheduler.maybeScheduleFineProfilingUsingUser(trace, user);
             }
         }
@@ -440,15 +450,13 @@ class PluginServicesImpl extends PluginServices implements ConfigListener {
             trace.popSpan(span, endTick, errorMessage);
             if (trace.isCompleted()) {
                 // the root span has been popped off
-                safeCancel(trace.getCoarseProfilerScheduledRunnable());
                 safeCancel(trace.getStuckScheduledRunnable());
-                safeCancel(trace.getFineProfilerScheduledRunnable());
                 // send to trace collector before removing from trace registry so that trace
                 // collector can cover the gap (via TraceCollectorImpl.getPendingCompleteTraces())
                 // between removing the trace from the registry and storing it
-                traceCollector.onCompletedTrace(trace);
+                boolean stored = traceCollector.onCompletedTrace(trace);
                 traceRegistry.removeTrace(trace);
-                trace.clearThreadLocalMetrics();
+                trace.clearThreadLocalMetrics(recycleMetrics && !stored);
             }
             return new CompletedSpanImpl(span);
         }
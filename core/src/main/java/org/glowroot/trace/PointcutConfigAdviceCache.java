@@ -16,13 +16,20 @@
 package org.glowroot.trace;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
+import checkers.igj.quals.Immutable;
 import checkers.igj.quals.ReadOnly;
+import checkers.nullness.quals.Nullable;
+import com.google.common.base.Objects;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import dataflow.quals.Pure;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,8 +41,16 @@ import org.glowroot.markers.OnlyUsedByTests;
 import org.glowroot.markers.ThreadSafe;
 import org.glowroot.weaving.Advice;
 import org.glowroot.weaving.Advice.AdviceConstructionException;
+import org.glowroot.weaving.AdviceIndex;
 
 /**
+ * The advisors are held in an {@link AdviceIndex}, which is rebuilt whenever the pointcut configs
+ * are updated, so that the cost of weaving each class being loaded does not grow with the number
+ * of pointcut configs.
+ *
+ * The advice for a given pointcut config version is only generated once, and is reused across
+ * updates, so that classes which are not affected by an update do not need to be reweaved.
+ *
  * @author Trask Stalnaker
  * @since 0.5
  */
@@ -45,26 +60,46 @@ public class PointcutConfigAdviceCache {
     @ReadOnly
     private static final Logger logger = LoggerFactory.getLogger(PointcutConfigAdviceCache.class);
 
-    private volatile ImmutableList<Advice> advisors;
-    private volatile ImmutableSet<String> pointcutConfigVersions;
+    private volatile AdviceIndex adviceIndex;
+    // keyed by pointcut config version, the ordering matches the ordering of the pointcut configs
+    // (only updated while holding the lock on this, but read without it)
+    private volatile ImmutableMap<String, Advice> advisors;
 
     PointcutConfigAdviceCache(@ReadOnly List<PointcutConfig> pointcutConfigs) {
-        advisors = getAdvisors(pointcutConfigs);
-        pointcutConfigVersions = getPointcutConfigVersions(pointcutConfigs);
+        advisors = getAdvisors(pointcutConfigs, ImmutableMap.<String, Advice>of());
+        adviceIndex = AdviceIndex.of(advisors.values().asList());
     }
 
-    Supplier<ImmutableList<Advice>> getAdvisorsSupplier() {
-        return new Supplier<ImmutableList<Advice>>() {
+    Supplier<AdviceIndex> getAdviceIndexSupplier() {
+        return new Supplier<AdviceIndex>() {
             @Override
-            public ImmutableList<Advice> get() {
-                return advisors;
+            public AdviceIndex get() {
+                return adviceIndex;
             }
         };
     }
 
-    public void updateAdvisors(@ReadOnly List<PointcutConfig> pointcutConfigs) {
-        advisors = getAdvisors(pointcutConfigs);
-        pointcutConfigVersions = getPointcutConfigVersions(pointcutConfigs);
+    // returns the advisors that were added and removed by this update, which determine the classes
+    // that need to be reweaved
+    public synchronized AdvisorChanges updateAdvisors(
+            @ReadOnly List<PointcutConfig> pointcutConfigs) {
+        ImmutableMap<String, Advice> priorAdvisors = advisors;
+        advisors = getAdvisors(pointcutConfigs, priorAdvisors);
+        adviceIndex = AdviceIndex.of(advisors.values().asList());
+        ImmutableList.Builder<Advice> addedAdvisors = ImmutableList.builder();
+        for (Entry<String, Advice> entry : advisors.entrySet()) {
+            if (!priorAdvisors.containsKey(entry.getKey())) {
+                addedAdvisors.add(entry.getValue());
+            }
+        }
+        ImmutableList.Builder<Advice> removedAdvisors = ImmutableList.builder();
+        for (Entry<String, Advice> entry : priorAdvisors.entrySet()) {
+            if (!advisors.containsKey(entry.getKey())) {
+                removedAdvisors.add(entry.getValue());
+            }
+        }
+        return new AdvisorChanges(AdviceIndex.of(addedAdvisors.build()),
+                AdviceIndex.of(removedAdvisors.build()));
     }
 
     public boolean isPointcutConfigsOutOfSync(@ReadOnly List<PointcutConfig> pointcutConfigs) {
@@ -72,43 +107,77 @@ public class PointcutConfigAdviceCache {
         for (PointcutConfig pointcutConfig : pointcutConfigs) {
             versions.add(pointcutConfig.getVersion());
         }
-        return !versions.equals(this.pointcutConfigVersions);
+        return !versions.equals(advisors.keySet());
     }
 
-    private static ImmutableList<Advice> getAdvisors(
-            @ReadOnly List<PointcutConfig> pointcutConfigs) {
-        ImmutableList.Builder<Advice> advisors = ImmutableList.builder();
+    private static ImmutableMap<String, Advice> getAdvisors(
+            @ReadOnly List<PointcutConfig> pointcutConfigs,
+            ImmutableMap<String, Advice> priorAdvisors) {
+        // not using ImmutableMap.Builder since it does not allow duplicate keys
+        Map<String, Advice> advisors = Maps.newLinkedHashMap();
         for (PointcutConfig pointcutConfig : pointcutConfigs) {
-            try {
-                Class<?> dynamicAdviceClass = new DynamicAdviceGenerator(pointcutConfig).generate();
-                Pointcut pointcut = dynamicAdviceClass.getAnnotation(Pointcut.class);
-                if (pointcut == null) {
-                    logger.error("class was generated without @Pointcut annotation");
-                    continue;
-                }
-                Advice advice = Advice.from(pointcut, dynamicAdviceClass, true);
-                advisors.add(advice);
-            } catch (ReflectiveException e) {
-                logger.error("error creating advice for pointcut config: {}", pointcutConfig, e);
-            } catch (AdviceConstructionException e) {
-                logger.error("error creating advice for pointcut config: {}", pointcutConfig, e);
+            String version = pointcutConfig.getVersion();
+            Advice advice = priorAdvisors.get(version);
+            if (advice == null) {
+                advice = createAdvice(pointcutConfig);
+            }
+            if (advice != null) {
+                advisors.put(version, advice);
             }
         }
-        return advisors.build();
+        return ImmutableMap.copyOf(advisors);
     }
 
-    private static ImmutableSet<String> getPointcutConfigVersions(
-            List<PointcutConfig> pointcutConfigs) {
-        ImmutableSet.Builder<String> pointcutConfigVersions = ImmutableSet.builder();
-        for (PointcutConfig pointcutConfig : pointcutConfigs) {
-            pointcutConfigVersions.add(pointcutConfig.getVersion());
+    @Nullable
+    private static Advice createAdvice(PointcutConfig pointcutConfig) {
+        try {
+            Class<?> dynamicAdviceClass = new DynamicAdviceGenerator(pointcutConfig).generate();
+            Pointcut pointcut = dynamicAdviceClass.getAnnotation(Pointcut.class);
+            if (pointcut == null) {
+                logger.error("class was generated without @Pointcut annotation");
+                return null;
+            }
+            return Advice.from(pointcut, dynamicAdviceClass, true);
+        } catch (ReflectiveException e) {
+            logger.error("error creating advice for pointcut config: {}", pointcutConfig, e);
+        } catch (AdviceConstructionException e) {
+            logger.error("error creating advice for pointcut config: {}", pointcutConfig, e);
         }
-        return pointcutConfigVersions.build();
+        return null;
     }
 
     // this method exists because tests cannot use (sometimes) shaded guava Supplier
     @OnlyUsedByTests
     public List<Advice> getAdvisors() {
-        return getAdvisorsSupplier().get();
+        return adviceIndex.getAdvisors();
+    }
+
+    @Immutable
+    public static class AdvisorChanges {
+
+        private final AdviceIndex addedAdvisors;
+        private final AdviceIndex removedAdvisors;
+
+        private AdvisorChanges(AdviceIndex addedAdvisors, AdviceIndex removedAdvisors) {
+            this.addedAdvisors = addedAdvisors;
+            this.removedAdvisors = removedAdvisors;
+        }
+
+        public AdviceIndex getAddedAdvisors() {
+            return addedAdvisors;
+        }
+
+        public AdviceIndex getRemovedAdvisors() {
+            return removedAdvisors;
+        }
+
+        @Override
+        @Pure
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("addedAdvisors", addedAdvisors)
+                    .add("removedAdvisors", removedAdvisors)
+                    .toString();
+        }
     }
 }
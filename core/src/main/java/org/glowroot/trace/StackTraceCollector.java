@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import dataflow.quals.Pure;
+
+import org.glowroot.common.ScheduledRunnable;
+import org.glowroot.markers.Singleton;
+import org.glowroot.trace.model.MergedStackTree;
+import org.glowroot.trace.model.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Captures stack traces for all traces that are being profiled (coarse and fine), and stores
+ * them in each {@link Trace}'s {@link MergedStackTree}.
+ *
+ * All of the threads that are due for a stack trace are captured in a single
+ * {@link ThreadMXBean#getThreadInfo(long[], int)} call, so there is a single safepoint per
+ * execution no matter how many traces are being profiled. This is also much more efficient than
+ * scheduling a separate repeating Runnable for every profiled trace.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@Singleton
+class StackTraceCollector extends ScheduledRunnable {
+
+    // this is the granularity of stack trace capture, fine profiling intervals are typically 50
+    // milliseconds
+    static final int PERIOD_MILLIS = 10;
+
+    private final Ticker ticker;
+
+    private final Queue<ProfilingEntry> entries = Queues.newConcurrentLinkedQueue();
+
+    StackTraceCollector(Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    // registers the trace to have its stack trace captured every intervalMillis (starting after
+    // initialDelayMillis) until endTick
+    void register(Trace trace, long initialDelayMillis, long intervalMillis, long endTick,
+            boolean fine) {
+        long nextTick = ticker.read() + MILLISECONDS.toNanos(initialDelayMillis);
+        entries.add(new ProfilingEntry(trace, nextTick, MILLISECONDS.toNanos(intervalMillis),
+                endTick, fine));
+    }
+
+    @Override
+    protected void runInternal() {
+        long currentTick = ticker.read();
+        List<ProfilingEntry> dueEntries = Lists.newArrayList();
+        Iterator<ProfilingEntry> i = entries.iterator();
+        while (i.hasNext()) {
+            ProfilingEntry entry = i.next();
+            if (entry.trace.isCompleted() || currentTick - entry.endTick >= 0) {
+                i.remove();
+            } else if (currentTick - entry.nextTick >= 0) {
+                dueEntries.add(entry);
+            }
+        }
+        if (dueEntries.isEmpty()) {
+            return;
+        }
+        long[] threadIds = new long[dueEntries.size()];
+        for (int j = 0; j < threadIds.length; j++) {
+            threadIds[j] = dueEntries.get(j).trace.getThreadId();
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        ThreadInfo[] threadInfos = threadBean.getThreadInfo(threadIds, Integer.MAX_VALUE);
+        for (int j = 0; j < threadInfos.length; j++) {
+            ProfilingEntry entry = dueEntries.get(j);
+            ThreadInfo threadInfo = threadInfos[j];
+            if (threadInfo == null) {
+                // thread is no longer alive
+                entries.remove(entry);
+                continue;
+            }
+            entry.trace.captureStackTrace(threadInfo, entry.fine);
+            entry.nextTick += entry.intervalNanos;
+            if (currentTick - entry.nextTick >= 0) {
+                // fell behind (e.g. due to a long gc pause), don't capture a burst of stack traces
+                // to catch up
+                entry.nextTick = currentTick + entry.intervalNanos;
+            }
+        }
+    }
+
+    @Override
+    @Pure
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("entries", entries)
+                .toString();
+    }
+
+    // nextTick is only accessed by the thread executing runInternal()
+    private static class ProfilingEntry {
+
+        private final Trace trace;
+        private long nextTick;
+        private final long intervalNanos;
+        private final long endTick;
+        private final boolean fine;
+
+        private ProfilingEntry(Trace trace, long nextTick, long intervalNanos, long endTick,
+                boolean fine) {
+            this.trace = trace;
+            this.nextTick = nextTick;
+            this.intervalNanos = intervalNanos;
+            this.endTick = endTick;
+            this.fine = fine;
+        }
+
+        @Override
+        @Pure
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("trace", trace)
+                    .add("nextTick", nextTick)
+                    .add("intervalNanos", intervalNanos)
+                    .add("endTick", endTick)
+                    .add("fine", fine)
+                    .toString();
+        }
+    }
+}
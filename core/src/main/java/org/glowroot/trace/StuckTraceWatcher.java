@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2013 the original author or authors.
+ * Copyright 2011-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -75,6 +75,10 @@ class StuckTraceWatcher extends ScheduledRunnable {
                 // then schedule it
                 if (Nanoseconds.lessThan(trace.getStartTick(), stuckThresholdTick)
                         && trace.getStuckScheduledRunnable() == null) {
+                    if (!trace.markExposed()) {
+                        // trace has already completed
+                        continue;
+                    }
                     // schedule stuck thread
                     long initialDelayMillis = Math.max(0,
                             SECONDS.toMillis(config.getStuckThresholdSeconds()
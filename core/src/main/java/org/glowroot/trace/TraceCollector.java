@@ -1,5 +1,5 @@
 /*
- * Copyright 2013 the original author or authors.
+ * Copyright 2013-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,8 @@
  */
 package org.glowroot.trace;
 
+import java.lang.management.ThreadInfo;
+
 import org.glowroot.trace.model.Trace;
 
 /**
@@ -23,7 +25,17 @@ import org.glowroot.trace.model.Trace;
  */
 public interface TraceCollector {
 
-    void onCompletedTrace(Trace trace);
+    // returns true if the trace was handed off to be stored, in which case the trace may still be
+    // read by other threads
+    boolean onCompletedTrace(Trace trace);
 
     void onStuckTrace(Trace trace);
+
+    // returns false if stack trace samples passed to onStackTraceSample() would be discarded (e.g.
+    // aggregates are disabled), in which case there is no point in capturing them
+    boolean isAggregateProfilingEnabled();
+
+    // called with periodic low-rate stack trace samples of active traces, so that they can be
+    // merged into the trace's grouping aggregate
+    void onStackTraceSample(Trace trace, ThreadInfo threadInfo);
 }
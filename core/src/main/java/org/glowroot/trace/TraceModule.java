@@ -15,11 +15,15 @@
  */
 package org.glowroot.trace;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ScheduledExecutorService;
 
+import checkers.igj.quals.ReadOnly;
 import checkers.nullness.quals.Nullable;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
@@ -27,17 +31,22 @@ import com.google.common.base.Ticker;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.api.PluginServices;
+import org.glowroot.api.PluginServices.ConfigListener;
 import org.glowroot.common.Clock;
 import org.glowroot.config.ConfigModule;
 import org.glowroot.config.ConfigService;
 import org.glowroot.jvm.ThreadAllocatedBytes;
 import org.glowroot.markers.OnlyUsedByTests;
 import org.glowroot.markers.ThreadSafe;
+import org.glowroot.weaving.AdviceSwitch;
 import org.glowroot.weaving.MetricTimerService;
 import org.glowroot.weaving.ParsedTypeCache;
 import org.glowroot.weaving.WeavingClassFileTransformer;
+import org.glowroot.weaving.WovenClassCache;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
@@ -48,6 +57,23 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 @ThreadSafe
 public class TraceModule {
 
+    private static final Logger logger = LoggerFactory.getLogger(TraceModule.class);
+
+    // reuses metric instances across traces on the same thread when the completed trace is not
+    // stored, this is experimental because a plugin that holds on to a MetricTimer past the end of
+    // its trace could then update the metric of a subsequent trace
+    private static final boolean recycleMetrics =
+            Boolean.getBoolean("glowroot.experimental.recycleMetrics");
+
+    // interval of the always-on low-rate sampling of active traces which feeds the grouping
+    // aggregates (only when aggregates are enabled), 0 disables it
+    private static final long aggregateProfilingIntervalMillis =
+            Long.getLong("glowroot.experimental.aggregateProfilingIntervalMillis", 1000);
+
+    // number of threads used to prefetch the super types of classes being woven, 0 disables it
+    private static final int typePrefetchThreadCount =
+            Integer.getInteger("glowroot.experimental.typePrefetchThreads", 0);
+
     private final Ticker ticker;
     private final Clock clock;
 
@@ -61,9 +87,15 @@ public class TraceModule {
     @Nullable
     private final ThreadAllocatedBytes threadAllocatedBytes;
 
+    private final GarbageCollectorWatcher garbageCollectorWatcher;
     private final StuckTraceWatcher stuckTraceWatcher;
     private final CoarseProfilerWatcher coarseProfilerWatcher;
+    private final StackTraceCollector stackTraceCollector;
     private final FineProfileScheduler fineProfileScheduler;
+    @Nullable
+    private final AggregateProfiler aggregateProfiler;
+    @Nullable
+    private final WovenClassCache wovenClassCache;
 
     private final boolean weavingDisabled;
     private final boolean metricWrapperMethodsDisabled;
@@ -87,29 +119,54 @@ public class TraceModule {
 
     public TraceModule(Ticker ticker, Clock clock, ConfigModule configModule,
             TraceCollector traceCollector, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
-            @Nullable Instrumentation instrumentation, ScheduledExecutorService scheduledExecutor) {
+            @Nullable Instrumentation instrumentation, ScheduledExecutorService scheduledExecutor,
+            File dataDir, @ReadOnly Map<String, String> properties, String version) {
         this.ticker = ticker;
         this.clock = clock;
         this.configModule = configModule;
         this.traceCollector = traceCollector;
         this.threadAllocatedBytes = threadAllocatedBytes;
-        ConfigService configService = configModule.getConfigService();
-        parsedTypeCache = new ParsedTypeCache();
+        final ConfigService configService = configModule.getConfigService();
+        // woven advice is disarmed while glowroot is disabled, see AdviceSwitch
+        AdviceSwitch.setArmed(configService.getGeneralConfig().isEnabled());
+        configService.addConfigListener(new ConfigListener() {
+            @Override
+            public void onChange() {
+                AdviceSwitch.setArmed(configService.getGeneralConfig().isEnabled());
+            }
+        });
+        parsedTypeCache = new ParsedTypeCache(typePrefetchThreadCount);
         traceRegistry = new TraceRegistry();
         metricNameCache = new MetricNameCache(ticker);
         pointcutConfigAdviceCache =
                 new PointcutConfigAdviceCache(configService.getPointcutConfigs());
         metricTimerService = new MetricTimerServiceImpl(metricNameCache, traceRegistry);
+        stackTraceCollector = new StackTraceCollector(ticker);
         fineProfileScheduler =
-                new FineProfileScheduler(scheduledExecutor, configService, ticker, new Random());
+                new FineProfileScheduler(stackTraceCollector, configService, ticker, new Random());
+        garbageCollectorWatcher = new GarbageCollectorWatcher();
         stuckTraceWatcher = new StuckTraceWatcher(scheduledExecutor, traceRegistry,
                 traceCollector, configService, ticker);
-        coarseProfilerWatcher =
-                new CoarseProfilerWatcher(scheduledExecutor, traceRegistry, configService, ticker);
+        coarseProfilerWatcher = new CoarseProfilerWatcher(traceRegistry, stackTraceCollector,
+                configService, ticker);
+        garbageCollectorWatcher.scheduleAtFixedRate(scheduledExecutor,
+                GarbageCollectorWatcher.PERIOD_MILLIS, GarbageCollectorWatcher.PERIOD_MILLIS,
+                MILLISECONDS);
         stuckTraceWatcher.scheduleAtFixedRate(scheduledExecutor, 0,
                 StuckTraceWatcher.PERIOD_MILLIS, MILLISECONDS);
         coarseProfilerWatcher.scheduleAtFixedRate(scheduledExecutor, 0,
                 CoarseProfilerWatcher.PERIOD_MILLIS, MILLISECONDS);
+        stackTraceCollector.scheduleAtFixedRate(scheduledExecutor, 0,
+                StackTraceCollector.PERIOD_MILLIS, MILLISECONDS);
+        if (aggregateProfilingIntervalMillis > 0 && traceCollector.isAggregateProfilingEnabled()) {
+            aggregateProfiler = new AggregateProfiler(traceRegistry, traceCollector,
+                    configService);
+            aggregateProfiler.scheduleAtFixedRate(scheduledExecutor,
+                    aggregateProfilingIntervalMillis, aggregateProfilingIntervalMillis,
+                    MILLISECONDS);
+        } else {
+            aggregateProfiler = null;
+        }
 
         weavingDisabled = configModule.getConfigService().getAdvancedConfig().isWeavingDisabled();
         metricWrapperMethodsDisabled = configModule.getConfigService().getAdvancedConfig()
@@ -117,11 +174,12 @@ public class TraceModule {
         // instrumentation is null when debugging with IsolatedWeavingClassLoader
         // instead of javaagent
         if (instrumentation != null && !weavingDisabled) {
+            wovenClassCache = createWovenClassCache(dataDir, properties, version);
             ClassFileTransformer transformer = new WeavingClassFileTransformer(
                     configModule.getPluginDescriptorCache().getMixinTypes(),
                     configModule.getPluginDescriptorCache().getAdvisors(),
-                    pointcutConfigAdviceCache.getAdvisorsSupplier(), parsedTypeCache,
-                    metricTimerService, metricWrapperMethodsDisabled);
+                    pointcutConfigAdviceCache.getAdviceIndexSupplier(), parsedTypeCache,
+                    metricTimerService, metricWrapperMethodsDisabled, wovenClassCache);
             if (instrumentation.isRetransformClassesSupported()) {
                 instrumentation.addTransformer(transformer, true);
                 jvmRetransformClassesSupported = true;
@@ -130,6 +188,7 @@ public class TraceModule {
                 jvmRetransformClassesSupported = false;
             }
         } else {
+            wovenClassCache = null;
             jvmRetransformClassesSupported = false;
         }
     }
@@ -169,16 +228,51 @@ public class TraceModule {
         return jvmRetransformClassesSupported;
     }
 
+    @Nullable
+    private static WovenClassCache createWovenClassCache(File dataDir,
+            @ReadOnly Map<String, String> properties, String version) {
+        if (Boolean.parseBoolean(properties.get("weaving.cache.disabled"))) {
+            return null;
+        }
+        if (version.equals("unknown")) {
+            // version is unknown when running from inside IDE, in which case the weaving code may
+            // be changing between runs and the cached woven bytes cannot be trusted
+            return null;
+        }
+        try {
+            return WovenClassCache.create(new File(dataDir, "glowroot.woven.db"), version);
+        } catch (IOException e) {
+            // continue without the cache, it's only a startup optimization
+            logger.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
     private PluginServices create(@Nullable String pluginId) {
         return PluginServicesImpl.create(traceRegistry, traceCollector,
                 configModule.getConfigService(), metricNameCache, threadAllocatedBytes,
-                fineProfileScheduler, ticker, clock, configModule.getPluginDescriptorCache(),
-                pluginId);
+                garbageCollectorWatcher, fineProfileScheduler, ticker, clock,
+                configModule.getPluginDescriptorCache(), recycleMetrics, pluginId);
     }
 
     @OnlyUsedByTests
     public void close() {
+        garbageCollectorWatcher.cancel();
         stuckTraceWatcher.cancel();
         coarseProfilerWatcher.cancel();
+        stackTraceCollector.cancel();
+        if (aggregateProfiler != null) {
+            aggregateProfiler.cancel();
+        }
+        parsedTypeCache.close();
+        if (wovenClassCache != null) {
+            // releases the file lock so that the next container in this jvm can use the cache
+            try {
+                wovenClassCache.close();
+            } catch (IOException e) {
+                // warning only since it occurs during shutdown anyways
+                logger.warn(e.getMessage(), e);
+            }
+        }
     }
 }
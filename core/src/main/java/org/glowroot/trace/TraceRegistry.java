@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2013 the original author or authors.
+ * Copyright 2011-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,10 +15,10 @@
  */
 package org.glowroot.trace;
 
-import java.util.Queue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import checkers.nullness.quals.Nullable;
-import com.google.common.collect.Queues;
 
 import org.glowroot.markers.Singleton;
 import org.glowroot.trace.model.Trace;
@@ -32,10 +32,14 @@ import org.glowroot.trace.model.Trace;
 @Singleton
 public class TraceRegistry {
 
-    // collection of active running traces, "nearly" ordered by start time
-    // ordering is not completely guaranteed since there is no synchronization block around
-    // trace instantiation and placement into the registry
-    private final Queue<Trace> traces = Queues.newConcurrentLinkedQueue();
+    // active running traces keyed by trace id, so that a trace can be looked up and removed by id
+    // without scanning all of the active running traces
+    //
+    // since the trace id is packed with the trace start time in its upper bits (see
+    // TraceUniqueId), ordering by trace id also "nearly" orders the traces by start time
+    // (ordering is not completely guaranteed since the lower bits are a counter that can wrap)
+    private final ConcurrentNavigableMap<Long, Trace> traces =
+            new ConcurrentSkipListMap<Long, Trace>();
 
     // active running trace being executed by the current thread
     private final ThreadLocal</*@Nullable*/Trace> currentTraceHolder =
@@ -48,18 +52,21 @@ public class TraceRegistry {
 
     void addTrace(Trace trace) {
         currentTraceHolder.set(trace);
-        traces.add(trace);
+        traces.put(trace.getId(), trace);
     }
 
     void removeTrace(Trace trace) {
         currentTraceHolder.remove();
-        traces.remove(trace);
+        traces.remove(trace.getId());
     }
 
     // collection of active running traces, "nearly" ordered by start time
-    // ordering is not completely guaranteed since there is no synchronization block around
-    // trace instantiation and placement into the registry
     public Iterable<Trace> getTraces() {
-        return traces;
+        return traces.values();
+    }
+
+    @Nullable
+    public Trace getTrace(long id) {
+        return traces.get(id);
     }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace.model;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import checkers.igj.quals.Immutable;
+import checkers.nullness.quals.Nullable;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import org.glowroot.markers.ThreadSafe;
+
+import static org.glowroot.common.Nullness.castNonNull;
+
+/**
+ * Interns the stack trace elements captured by profiling into a single {@link Frame} instance per
+ * distinct stack trace element, so that merged stack tree nodes can be matched by frame identity
+ * instead of by {@link StackTraceElement#equals(Object)}, and so that the synthetic $metric$
+ * method check (a regex) only runs once per distinct frame.
+ *
+ * There is a single dictionary shared by all merged stack trees (see {@link MergedStackTree}), so
+ * the frames are shared across traces and grouping profiles. Frames are only weakly held by the
+ * dictionary, so they are released once no merged stack tree references them anymore (e.g. after
+ * an application redeploy).
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@ThreadSafe
+class FrameDictionary {
+
+    private static final Pattern metricMarkerMethodPattern = Pattern
+            .compile("^.*\\$glowroot\\$metric\\$(.*)\\$[0-9]+$");
+
+    private final LoadingCache<StackTraceElement, Frame> frames = CacheBuilder.newBuilder()
+            .weakValues()
+            .build(new CacheLoader<StackTraceElement, Frame>() {
+                @Override
+                public Frame load(StackTraceElement stackTraceElement) {
+                    return new Frame(stackTraceElement, parseMetricName(stackTraceElement));
+                }
+            });
+
+    Frame getFrame(StackTraceElement stackTraceElement) {
+        return frames.getUnchecked(stackTraceElement);
+    }
+
+    @Nullable
+    static String parseMetricName(StackTraceElement stackTraceElement) {
+        String methodName = stackTraceElement.getMethodName();
+        if (!methodName.contains("$glowroot$metric$")) {
+            // fast path for the vast majority of frames
+            return null;
+        }
+        Matcher matcher = metricMarkerMethodPattern.matcher(methodName);
+        if (matcher.matches()) {
+            String group = matcher.group(1);
+            castNonNull(group);
+            return group.replace("$", " ");
+        } else {
+            return null;
+        }
+    }
+
+    // frames do not override equals() and hashCode() since they are interned
+    @Immutable
+    static class Frame {
+
+        private final StackTraceElement stackTraceElement;
+        @Nullable
+        private final String metricName;
+
+        private Frame(StackTraceElement stackTraceElement, @Nullable String metricName) {
+            this.stackTraceElement = stackTraceElement;
+            this.metricName = metricName;
+        }
+
+        StackTraceElement getStackTraceElement() {
+            return stackTraceElement;
+        }
+
+        // returns null if the frame is not a synthetic $metric$ method
+        @Nullable
+        String getMetricName() {
+            return metricName;
+        }
+    }
+}
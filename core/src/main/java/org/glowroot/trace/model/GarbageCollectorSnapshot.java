@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace.model;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import checkers.igj.quals.Immutable;
+import checkers.nullness.quals.Nullable;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import dataflow.quals.Pure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collection counts and times of all garbage collectors at a point in time.
+ *
+ * Snapshots are captured periodically by a single background thread and shared across all traces
+ * that start in the following period, so that trace start does not need to iterate over the
+ * {@link GarbageCollectorMXBean}s. The trade-off is that garbage collections that occur between
+ * the shared snapshot and the start of a trace can be attributed to that trace.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@Immutable
+public class GarbageCollectorSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(GarbageCollectorSnapshot.class);
+
+    private final ImmutableMap<String, CollectorInfo> collectorInfos;
+
+    @VisibleForTesting
+    GarbageCollectorSnapshot(ImmutableMap<String, CollectorInfo> collectorInfos) {
+        this.collectorInfos = collectorInfos;
+    }
+
+    public static GarbageCollectorSnapshot capture() {
+        ImmutableMap.Builder<String, CollectorInfo> collectorInfos = ImmutableMap.builder();
+        for (GarbageCollectorMXBean garbageCollectorBean : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            collectorInfos.put(garbageCollectorBean.getName(),
+                    new CollectorInfo(garbageCollectorBean.getCollectionCount(),
+                            garbageCollectorBean.getCollectionTime()));
+        }
+        return new GarbageCollectorSnapshot(collectorInfos.build());
+    }
+
+    ImmutableMap<String, CollectorInfo> getCollectorInfos() {
+        return collectorInfos;
+    }
+
+    @Nullable
+    CollectorInfo getCollectorInfo(String name) {
+        return collectorInfos.get(name);
+    }
+
+    // writes a json array with the collection count and time of each garbage collector that has
+    // collected since the start snapshot, attributed by garbage collector name
+    void writeCollectionsSince(GarbageCollectorSnapshot start, JsonGenerator jg)
+            throws IOException {
+        Set<String> unmatchedNames = Sets.newHashSet(start.collectorInfos.keySet());
+        jg.writeStartArray();
+        for (Entry<String, CollectorInfo> entry : collectorInfos.entrySet()) {
+            String name = entry.getKey();
+            CollectorInfo collectorInfoEnd = entry.getValue();
+            CollectorInfo collectorInfoStart = start.getCollectorInfo(name);
+            if (collectorInfoStart == null) {
+                logger.warn("garbage collector bean {} did not exist at start of trace", name);
+                continue;
+            }
+            unmatchedNames.remove(name);
+            if (collectorInfoEnd.getCollectionCount() == collectorInfoStart.getCollectionCount()) {
+                // no new collections, so don't write it out
+                continue;
+            }
+            jg.writeStartObject();
+            jg.writeStringField("name", name);
+            jg.writeNumberField("collectionCount", collectorInfoEnd.getCollectionCount()
+                    - collectorInfoStart.getCollectionCount());
+            jg.writeNumberField("collectionTime", collectorInfoEnd.getCollectionTime()
+                    - collectorInfoStart.getCollectionTime());
+            jg.writeEndObject();
+        }
+        for (String unmatchedName : unmatchedNames) {
+            logger.warn("garbage collector bean {} did not exist at end of trace", unmatchedName);
+        }
+        jg.writeEndArray();
+    }
+
+    @Override
+    @Pure
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("collectorInfos", collectorInfos)
+                .toString();
+    }
+
+    @Immutable
+    static class CollectorInfo {
+
+        private final long collectionCount;
+        private final long collectionTime;
+
+        @VisibleForTesting
+        CollectorInfo(long collectionCount, long collectionTime) {
+            this.collectionCount = collectionCount;
+            this.collectionTime = collectionTime;
+        }
+
+        long getCollectionCount() {
+            return collectionCount;
+        }
+
+        long getCollectionTime() {
+            return collectionTime;
+        }
+
+        @Override
+        @Pure
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("collectionCount", collectionCount)
+                    .add("collectionTime", collectionTime)
+                    .toString();
+        }
+    }
+}
@@ -16,12 +16,9 @@
 package org.glowroot.trace.model;
 
 import java.io.IOException;
-import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
-import java.util.List;
-import java.util.Set;
 
 import checkers.igj.quals.ReadOnly;
 import checkers.lock.quals.GuardedBy;
@@ -29,8 +26,6 @@ import checkers.nullness.quals.Nullable;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.base.Objects;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Sets;
 import com.google.common.io.CharStreams;
 import dataflow.quals.Pure;
 import org.slf4j.Logger;
@@ -62,7 +57,7 @@ class JvmInfo {
     private final long threadWaitedTimeStart;
     private final long threadAllocatedBytesStart;
 
-    private final ImmutableMap<String, GarbageCollectorInfo> garbageCollectorInfos;
+    private final GarbageCollectorSnapshot garbageCollectorSnapshotStart;
 
     @Nullable
     private final ThreadAllocatedBytes threadAllocatedBytes;
@@ -73,17 +68,23 @@ class JvmInfo {
 
     private final Object lock = new Object();
 
-    JvmInfo(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+    // this is called on every trace start (not just the ones that end up being stored), so it only
+    // captures raw counters, and only calls ThreadMXBean.getThreadInfo() when thread contention
+    // monitoring is actually enabled (it is disabled by default), the garbage collector counts at
+    // trace start come from the shared periodically captured snapshot
+    JvmInfo(@Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            GarbageCollectorSnapshot garbageCollectorSnapshotStart) {
         threadId = Thread.currentThread().getId();
-        ThreadInfo threadInfo = ManagementFactory.getThreadMXBean().getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        castNonNull(threadInfo);
         if (isThreadCpuTimeSupported) {
             threadCpuTimeStart = threadMXBean.getCurrentThreadCpuTime();
         } else {
             threadCpuTimeStart = -1;
         }
-        if (isThreadContentionMonitoringSupported) {
+        if (isThreadContentionMonitoringSupported
+                && threadMXBean.isThreadContentionMonitoringEnabled()) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            // thread info for current thread cannot be null
+            castNonNull(threadInfo);
             threadBlockedTimeStart = threadInfo.getBlockedTime();
             threadWaitedTimeStart = threadInfo.getWaitedTime();
         } else {
@@ -96,14 +97,7 @@ class JvmInfo {
         } else {
             threadAllocatedBytesStart = -1;
         }
-        List<GarbageCollectorMXBean> garbageCollectorBeans =
-                ManagementFactory.getGarbageCollectorMXBeans();
-        ImmutableMap.Builder<String, GarbageCollectorInfo> infos = ImmutableMap.builder();
-        for (GarbageCollectorMXBean garbageCollectorBean : garbageCollectorBeans) {
-            infos.put(garbageCollectorBean.getName(),
-                    new GarbageCollectorInfo(garbageCollectorBean));
-        }
-        this.garbageCollectorInfos = infos.build();
+        this.garbageCollectorSnapshotStart = garbageCollectorSnapshotStart;
         this.threadAllocatedBytes = threadAllocatedBytes;
     }
 
@@ -138,76 +132,42 @@ class JvmInfo {
     }
 
     private void writeValue(JsonGenerator jg) throws IOException {
-        ThreadInfo threadInfo = ManagementFactory.getThreadMXBean().getThreadInfo(threadId, 0);
-        if (threadInfo == null) {
-            // thread must have just recently terminated
-            jg.writeStartObject();
-            jg.writeFieldName("garbageCollectorInfos");
-            jg.writeStartArray();
-            jg.writeEndArray();
-            jg.writeEndObject();
-            return;
-        }
         jg.writeStartObject();
-        if (isThreadCpuTimeSupported) {
+        if (isThreadCpuTimeSupported && threadCpuTimeStart != -1) {
             // getThreadCpuTime() returns -1 if CPU time measurement is disabled (which is different
-            // than whether or not it is supported)
+            // than whether or not it is supported), and also if the thread has terminated
             long threadCpuTime = threadMXBean.getThreadCpuTime(threadId);
-            if (threadCpuTimeStart != -1 && threadCpuTime != -1) {
+            if (threadCpuTime != -1) {
                 jg.writeNumberField("threadCpuTime", threadCpuTime - threadCpuTimeStart);
             }
         }
-        if (isThreadContentionMonitoringSupported) {
-            // getBlockedTime() and getWaitedTime() return -1 if thread contention monitoring is
-            // disabled (which is different than whether or not it is supported)
-            long threadBlockedTime = threadInfo.getBlockedTime();
-            long threadWaitedTime = threadInfo.getWaitedTime();
-            if (threadBlockedTimeStart != -1 && threadBlockedTime != -1) {
-                jg.writeNumberField("threadBlockedTime",
-                        threadBlockedTime - threadBlockedTimeStart);
-            }
-            if (threadWaitedTimeStart != -1 && threadWaitedTime != -1) {
-                jg.writeNumberField("threadWaitedTime", threadWaitedTime - threadWaitedTimeStart);
+        if (threadBlockedTimeStart != -1 || threadWaitedTimeStart != -1) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            // thread info is null if the thread has just recently terminated
+            if (threadInfo != null) {
+                // getBlockedTime() and getWaitedTime() return -1 if thread contention monitoring
+                // is disabled (which is different than whether or not it is supported)
+                long threadBlockedTime = threadInfo.getBlockedTime();
+                long threadWaitedTime = threadInfo.getWaitedTime();
+                if (threadBlockedTimeStart != -1 && threadBlockedTime != -1) {
+                    jg.writeNumberField("threadBlockedTime",
+                            threadBlockedTime - threadBlockedTimeStart);
+                }
+                if (threadWaitedTimeStart != -1 && threadWaitedTime != -1) {
+                    jg.writeNumberField("threadWaitedTime",
+                            threadWaitedTime - threadWaitedTimeStart);
+                }
             }
         }
-        if (threadAllocatedBytes != null) {
+        if (threadAllocatedBytes != null && threadAllocatedBytesStart != -1) {
             long allocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
-            if (threadAllocatedBytesStart != -1 && allocatedBytes != -1) {
+            if (allocatedBytes != -1) {
                 jg.writeNumberField("threadAllocatedBytes",
                         allocatedBytes - threadAllocatedBytesStart);
             }
         }
-        List<GarbageCollectorMXBean> garbageCollectorBeans =
-                ManagementFactory.getGarbageCollectorMXBeans();
-        Set<String> unmatchedNames = Sets.newHashSet(garbageCollectorInfos.keySet());
         jg.writeFieldName("garbageCollectorInfos");
-        jg.writeStartArray();
-        for (GarbageCollectorMXBean garbageCollectorBean : garbageCollectorBeans) {
-            String name = garbageCollectorBean.getName();
-            GarbageCollectorInfo garbageCollectorInfo = garbageCollectorInfos.get(name);
-            if (garbageCollectorInfo == null) {
-                logger.warn("garbage collector bean {} did not exist at start of trace", name);
-                continue;
-            }
-            unmatchedNames.remove(name);
-            long collectionCountEnd = garbageCollectorBean.getCollectionCount();
-            long collectionTimeEnd = garbageCollectorBean.getCollectionTime();
-            if (collectionCountEnd == garbageCollectorInfo.getCollectionCountStart()) {
-                // no new collections, so don't write it out
-                continue;
-            }
-            jg.writeStartObject();
-            jg.writeStringField("name", name);
-            jg.writeNumberField("collectionCount",
-                    collectionCountEnd - garbageCollectorInfo.getCollectionCountStart());
-            jg.writeNumberField("collectionTime",
-                    collectionTimeEnd - garbageCollectorInfo.getCollectionTimeStart());
-            jg.writeEndObject();
-        }
-        for (String unmatchedName : unmatchedNames) {
-            logger.warn("garbage collector bean {} did not exist at end of trace", unmatchedName);
-        }
-        jg.writeEndArray();
+        GarbageCollectorSnapshot.capture().writeCollectionsSince(garbageCollectorSnapshotStart, jg);
         jg.writeEndObject();
     }
 
@@ -219,35 +179,8 @@ class JvmInfo {
                 .add("threadCpuTimeStart", threadCpuTimeStart)
                 .add("threadBlockedTimeStart", threadBlockedTimeStart)
                 .add("threadWaitedTimeStart", threadWaitedTimeStart)
-                .add("garbageCollectorInfos", garbageCollectorInfos)
+                .add("threadAllocatedBytesStart", threadAllocatedBytesStart)
+                .add("garbageCollectorSnapshotStart", garbageCollectorSnapshotStart)
                 .toString();
     }
-
-    private static class GarbageCollectorInfo {
-
-        private final long collectionCountStart;
-        private final long collectionTimeStart;
-
-        private GarbageCollectorInfo(GarbageCollectorMXBean garbageCollectorBean) {
-            collectionCountStart = garbageCollectorBean.getCollectionCount();
-            collectionTimeStart = garbageCollectorBean.getCollectionTime();
-        }
-
-        private long getCollectionCountStart() {
-            return collectionCountStart;
-        }
-
-        private long getCollectionTimeStart() {
-            return collectionTimeStart;
-        }
-
-        @Override
-        @Pure
-        public String toString() {
-            return Objects.toStringHelper(this)
-                    .add("collectionCountStart", collectionCountStart)
-                    .add("collectionTimeStart", collectionTimeStart)
-                    .toString();
-        }
-    }
 }
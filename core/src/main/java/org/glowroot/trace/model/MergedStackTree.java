@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2013 the original author or authors.
+ * Copyright 2011-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,11 +17,8 @@ package org.glowroot.trace.model;
 
 import java.lang.Thread.State;
 import java.lang.management.ThreadInfo;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import checkers.igj.quals.ReadOnly;
 import checkers.lock.quals.GuardedBy;
@@ -34,30 +31,28 @@ import dataflow.quals.Pure;
 
 import org.glowroot.markers.NotThreadSafe;
 import org.glowroot.markers.ThreadSafe;
-
-import static org.glowroot.common.Nullness.castNonNull;
+import org.glowroot.trace.model.FrameDictionary.Frame;
 
 /**
  * Merged stack tree built from sampled stack traces captured by periodic calls to
  * {@link Thread#getStackTrace()}.
  * 
+ * Stack trace elements are interned in the global {@link FrameDictionary} and the tree nodes hold
+ * the interned frames, so that nodes are matched by frame identity, and so that the frames are
+ * shared across trees.
+ * 
  * @author Trask Stalnaker
  * @since 0.5
  */
 @ThreadSafe
 public class MergedStackTree {
 
-    private static final Pattern metricMarkerMethodPattern = Pattern
-            .compile("^.*\\$glowroot\\$metric\\$(.*)\\$[0-9]+$");
+    private static final FrameDictionary frameDictionary = new FrameDictionary();
 
     private final Object lock = new Object();
-    // optimized for trace captures which are never read
-    @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
+    // the child nodes of this holder are the root nodes
     @GuardedBy("lock")
-    private final List<State> unmergedStackTraceThreadStates = Lists.newArrayList();
-    @GuardedBy("lock")
-    private final List<MergedStackTreeNode> rootNodes = Lists.newArrayList();
+    private final MergedStackTreeNode rootNodeHolder = MergedStackTreeNode.createRootNodeHolder();
 
     public Object getLock() {
         return lock;
@@ -68,86 +63,107 @@ public class MergedStackTree {
     @Holding("lock")
     @Nullable
     public MergedStackTreeNode getRootNode() {
-        mergeTheUnmergedStackTraces();
-        return MergedStackTreeNode.createSyntheticRoot(rootNodes);
+        return MergedStackTreeNode.createSyntheticRoot(rootNodeHolder.getChildNodes());
     }
 
-    void addStackTrace(ThreadInfo threadInfo) {
-        synchronized (lock) {
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            unmergedStackTraces.add(stackTrace);
-            unmergedStackTraceThreadStates.add(threadInfo.getThreadState());
-            if (unmergedStackTraces.size() >= 10) {
-                // merged stack tree takes up less memory, so merge from time to time
-                mergeTheUnmergedStackTraces();
+    public void addStackTrace(ThreadInfo threadInfo) {
+        StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+        // interning and stripping the synthetic $metric$ methods is done outside of the lock
+        Frame[] frames = new Frame[stackTrace.length];
+        // lazy created since most stack traces do not have any synthetic $metric$ methods
+        List</*@Nullable*/List<String>> metricNamesList = null;
+        int length = 0;
+        for (int i = 0; i < stackTrace.length; i++) {
+            StackTraceElement element = stackTrace[i];
+            Frame frame = frameDictionary.getFrame(element);
+            String metricName = frame.getMetricName();
+            if (metricName == null) {
+                frames[length++] = frame;
+                continue;
+            }
+            String originalMethodName = element.getMethodName();
+            List<String> metricNames = Lists.newArrayList();
+            metricNames.add(metricName);
+            // skip over successive $metric$ methods up to and including the "original" method
+            while (++i < stackTrace.length) {
+                StackTraceElement skipElement = stackTrace[i];
+                metricName = frameDictionary.getFrame(skipElement).getMetricName();
+                if (metricName == null) {
+                    originalMethodName = skipElement.getMethodName();
+                    break;
+                }
+                metricNames.add(metricName);
+            }
+            StackTraceElement originalElement = new StackTraceElement(element.getClassName(),
+                    originalMethodName, element.getFileName(), element.getLineNumber());
+            if (metricNamesList == null) {
+                metricNamesList = Lists.newArrayList();
             }
+            while (metricNamesList.size() < length) {
+                metricNamesList.add(null);
+            }
+            metricNamesList.add(metricNames);
+            frames[length++] = frameDictionary.getFrame(originalElement);
+        }
+        synchronized (lock) {
+            addToStackTree(frames, length, metricNamesList, threadInfo.getThreadState());
         }
     }
 
-    @Holding("lock")
-    private void mergeTheUnmergedStackTraces() {
-        for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
-            State threadState = unmergedStackTraceThreadStates.get(i);
-            addToStackTree(stripSyntheticMetricMethods(stackTrace), threadState);
+    @VisibleForTesting
+    public void addToStackTree(@ReadOnly List<StackTraceElementPlus> stackTrace,
+            State threadState) {
+        Frame[] frames = new Frame[stackTrace.size()];
+        List</*@Nullable*/List<String>> metricNamesList = Lists.newArrayList();
+        for (int i = 0; i < frames.length; i++) {
+            StackTraceElementPlus element = stackTrace.get(i);
+            frames[i] = frameDictionary.getFrame(element.getStackTraceElement());
+            metricNamesList.add(element.getMetricNames());
+        }
+        synchronized (lock) {
+            addToStackTree(frames, frames.length, metricNamesList, threadState);
         }
-        unmergedStackTraces.clear();
-        unmergedStackTraceThreadStates.clear();
     }
 
+    // metricNamesList may be shorter than length, in which case the remaining elements have no
+    // metric names
     @Holding("lock")
-    @VisibleForTesting
-    public void addToStackTree(@ReadOnly List<StackTraceElementPlus> stackTrace,
+    private void addToStackTree(Frame[] frames, int length,
+            @ReadOnly @Nullable List</*@Nullable*/List<String>> metricNamesList,
             State threadState) {
-        MergedStackTreeNode lastMatchedNode = null;
-        List<MergedStackTreeNode> nextChildNodes = rootNodes;
+        MergedStackTreeNode lastMatchedNode = rootNodeHolder;
         int nextIndex;
         // navigate the stack tree nodes
         // matching the new stack trace as far as possible
-        for (nextIndex = stackTrace.size() - 1; nextIndex >= 0; nextIndex--) {
-            StackTraceElementPlus element = stackTrace.get(nextIndex);
-            // check all child nodes
-            boolean matchFound = false;
-            for (MergedStackTreeNode childNode : nextChildNodes) {
-                if (matches(element.getStackTraceElement(), childNode, nextIndex == 0,
-                        threadState)) {
-                    // match found, update lastMatchedNode and break out of the inner loop
-                    childNode.incrementSampleCount();
-                    // the metric names for a given stack element should always match, unless
-                    // the line numbers aren't available and overloaded methods are matched up, or
-                    // the stack trace was captured while one of the synthetic $metric$ methods was
-                    // executing in which case one of the metric names may be a subset of the other,
-                    // in which case, the superset wins:
-                    List<String> metricNames = element.getMetricNames();
-                    if (metricNames != null
-                            && metricNames.size() > childNode.getMetricNames().size()) {
-                        childNode.setMetricNames(metricNames);
-                    }
-                    lastMatchedNode = childNode;
-                    nextChildNodes = lastMatchedNode.getChildNodes();
-                    matchFound = true;
-                    break;
-                }
-            }
-            if (!matchFound) {
+        for (nextIndex = length - 1; nextIndex >= 0; nextIndex--) {
+            // only consider thread state when matching the leaf node
+            State leafThreadState = nextIndex == 0 ? threadState : null;
+            MergedStackTreeNode childNode =
+                    lastMatchedNode.getChildNode(frames[nextIndex], leafThreadState);
+            if (childNode == null) {
                 break;
             }
+            childNode.incrementSampleCount();
+            // the metric names for a given stack element should always match, unless
+            // the line numbers aren't available and overloaded methods are matched up, or
+            // the stack trace was captured while one of the synthetic $metric$ methods was
+            // executing in which case one of the metric names may be a subset of the other,
+            // in which case, the superset wins:
+            List<String> metricNames = getMetricNames(metricNamesList, nextIndex);
+            if (metricNames != null && metricNames.size() > childNode.getMetricNames().size()) {
+                childNode.setMetricNames(metricNames);
+            }
+            lastMatchedNode = childNode;
         }
         // add remaining stack trace elements
         for (int i = nextIndex; i >= 0; i--) {
-            StackTraceElementPlus element = stackTrace.get(i);
-            MergedStackTreeNode nextNode = MergedStackTreeNode.create(
-                    element.getStackTraceElement(), element.getMetricNames());
+            MergedStackTreeNode nextNode = MergedStackTreeNode.create(frames[i],
+                    getMetricNames(metricNamesList, i));
             if (i == 0) {
                 // leaf node
                 nextNode.setLeafThreadState(threadState);
             }
-            if (lastMatchedNode == null) {
-                // new root node
-                rootNodes.add(nextNode);
-            } else {
-                lastMatchedNode.addChildNode(nextNode);
-            }
+            lastMatchedNode.addChildNode(nextNode);
             lastMatchedNode = nextNode;
         }
     }
@@ -155,9 +171,11 @@ public class MergedStackTree {
     @Override
     @Pure
     public String toString() {
-        return Objects.toStringHelper(this)
-                .add("rootNodes", rootNodes)
-                .toString();
+        synchronized (lock) {
+            return Objects.toStringHelper(this)
+                    .add("rootNodes", rootNodeHolder.getChildNodes())
+                    .toString();
+        }
     }
 
     // recreate the stack trace as it would have been without the synthetic $metric$ methods
@@ -168,7 +186,7 @@ public class MergedStackTree {
                 stackTrace.size());
         for (Iterator<StackTraceElement> i = stackTrace.iterator(); i.hasNext();) {
             StackTraceElement element = i.next();
-            String metricName = getMetricName(element);
+            String metricName = FrameDictionary.parseMetricName(element);
             if (metricName != null) {
                 String originalMethodName = element.getMethodName();
                 List<String> metricNames = Lists.newArrayList();
@@ -176,7 +194,7 @@ public class MergedStackTree {
                 // skip over successive $metric$ methods up to and including the "original" method
                 while (i.hasNext()) {
                     StackTraceElement skipElement = i.next();
-                    metricName = getMetricName(skipElement);
+                    metricName = FrameDictionary.parseMetricName(skipElement);
                     if (metricName == null) {
                         // loop should always terminate here since synthetic $metric$ methods should
                         // never be the last element (the last element is the first element in the
@@ -199,29 +217,12 @@ public class MergedStackTree {
     }
 
     @Nullable
-    private static String getMetricName(StackTraceElement stackTraceElement) {
-        Matcher matcher = metricMarkerMethodPattern.matcher(stackTraceElement.getMethodName());
-        if (matcher.matches()) {
-            String group = matcher.group(1);
-            castNonNull(group);
-            return group.replace("$", " ");
-        } else {
+    private static List<String> getMetricNames(
+            @ReadOnly @Nullable List</*@Nullable*/List<String>> metricNamesList, int index) {
+        if (metricNamesList == null || index >= metricNamesList.size()) {
             return null;
         }
-    }
-
-    private static boolean matches(StackTraceElement stackTraceElement,
-            MergedStackTreeNode childNode, boolean leaf, State threadState) {
-
-        State leafThreadState = childNode.getLeafThreadState();
-        if (leafThreadState != null && leaf) {
-            // only consider thread state when matching the leaf node
-            return stackTraceElement.equals(childNode.getStackTraceElement())
-                    && leafThreadState.equals(threadState);
-        } else {
-            return leafThreadState == null && !leaf
-                    && stackTraceElement.equals(childNode.getStackTraceElement());
-        }
+        return metricNamesList.get(index);
     }
 
     @NotThreadSafe
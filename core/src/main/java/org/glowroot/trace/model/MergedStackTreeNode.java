@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2013 the original author or authors.
+ * Copyright 2011-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,14 +17,21 @@ package org.glowroot.trace.model;
 
 import java.lang.Thread.State;
 import java.util.List;
+import java.util.Map;
 
+import checkers.igj.quals.Immutable;
 import checkers.igj.quals.ReadOnly;
 import checkers.nullness.quals.Nullable;
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import dataflow.quals.Pure;
 
 import org.glowroot.markers.ThreadSafe;
+import org.glowroot.trace.model.FrameDictionary.Frame;
+
+import static org.glowroot.common.Nullness.castNonNull;
 
 /**
  * Element of {@link MergedStackTree}.
@@ -35,10 +42,17 @@ import org.glowroot.markers.ThreadSafe;
 @ThreadSafe
 public class MergedStackTreeNode {
 
+    // child nodes are indexed by hash once there are this many of them
+    private static final int CHILD_NODE_INDEX_THRESHOLD = 8;
+
+    // interned frame from the global FrameDictionary, only null for synthetic root
     @Nullable
-    private final StackTraceElement stackTraceElement;
+    private final Frame frame;
     // nodes mostly have a single child node, and rarely have more than two child nodes
     private final List<MergedStackTreeNode> childNodes = Lists.newArrayListWithCapacity(2);
+    // lazy created for the rare nodes that have many child nodes (e.g. a dispatch method)
+    @Nullable
+    private Map<ChildNodeKey, MergedStackTreeNode> childNodeIndex;
     // using List over Set in order to preserve ordering
     @ReadOnly
     private List<String> metricNames;
@@ -59,8 +73,8 @@ public class MergedStackTreeNode {
             for (MergedStackTreeNode rootNode : rootNodes) {
                 totalSampleCount += rootNode.getSampleCount();
             }
-            MergedStackTreeNode syntheticRootNode = new MergedStackTreeNode(null, null,
-                    totalSampleCount);
+            MergedStackTreeNode syntheticRootNode =
+                    new MergedStackTreeNode(null, null, totalSampleCount);
             for (MergedStackTreeNode rootNode : rootNodes) {
                 syntheticRootNode.addChildNode(rootNode);
             }
@@ -68,25 +82,54 @@ public class MergedStackTreeNode {
         }
     }
 
-    static MergedStackTreeNode create(StackTraceElement stackTraceElement,
-            @ReadOnly @Nullable List<String> metricNames) {
-        return new MergedStackTreeNode(stackTraceElement, metricNames, 1);
+    // this is for creating the holder of the root nodes in MergedStackTree
+    static MergedStackTreeNode createRootNodeHolder() {
+        return new MergedStackTreeNode(null, null, 0);
     }
 
-    private MergedStackTreeNode(@Nullable StackTraceElement stackTraceElement,
-            @ReadOnly @Nullable List<String> metricNames, int sampleCount) {
+    static MergedStackTreeNode create(Frame frame, @ReadOnly @Nullable List<String> metricNames) {
+        return new MergedStackTreeNode(frame, metricNames, 1);
+    }
 
-        this.stackTraceElement = stackTraceElement;
+    private MergedStackTreeNode(@Nullable Frame frame, @ReadOnly @Nullable List<String> metricNames,
+            int sampleCount) {
+        this.frame = frame;
         if (metricNames == null) {
-            this.metricNames = Lists.newArrayList();
+            this.metricNames = ImmutableList.of();
         } else {
-            this.metricNames = Lists.newArrayList(metricNames);
+            // metric names lists are never modified after being passed in
+            this.metricNames = metricNames;
         }
         this.sampleCount = sampleCount;
     }
 
-    void addChildNode(MergedStackTreeNode methodTreeElement) {
-        childNodes.add(methodTreeElement);
+    void addChildNode(MergedStackTreeNode childNode) {
+        childNodes.add(childNode);
+        if (childNodeIndex != null) {
+            childNodeIndex.put(childNode.getKey(), childNode);
+        } else if (childNodes.size() == CHILD_NODE_INDEX_THRESHOLD) {
+            childNodeIndex = Maps.newHashMap();
+            for (MergedStackTreeNode node : childNodes) {
+                childNodeIndex.put(node.getKey(), node);
+            }
+        }
+    }
+
+    // leafThreadState is null when matching non-leaf nodes, since thread state is only considered
+    // when matching leaf nodes
+    @Nullable
+    MergedStackTreeNode getChildNode(Frame childFrame, @Nullable State childLeafThreadState) {
+        if (childNodeIndex != null) {
+            return childNodeIndex.get(new ChildNodeKey(childFrame, childLeafThreadState));
+        }
+        for (MergedStackTreeNode childNode : childNodes) {
+            // frames are interned, so identity comparison is sufficient
+            if (childNode.frame == childFrame
+                    && childNode.leafThreadState == childLeafThreadState) {
+                return childNode;
+            }
+        }
+        return null;
     }
 
     // may introduce contain duplicates
@@ -94,6 +137,8 @@ public class MergedStackTreeNode {
         this.metricNames = metricNames;
     }
 
+    // must be called before the node is added to its parent since leafThreadState is part of the
+    // child node index key
     void setLeafThreadState(State leafThreadState) {
         this.leafThreadState = leafThreadState;
     }
@@ -117,7 +162,10 @@ public class MergedStackTreeNode {
     // only returns null for synthetic root
     @Nullable
     public StackTraceElement getStackTraceElement() {
-        return stackTraceElement;
+        if (frame == null) {
+            return null;
+        }
+        return frame.getStackTraceElement();
     }
 
     public int getSampleCount() {
@@ -129,15 +177,55 @@ public class MergedStackTreeNode {
         return leafThreadState;
     }
 
+    // only called on child nodes, which are never the synthetic root
+    private ChildNodeKey getKey() {
+        castNonNull(frame);
+        return new ChildNodeKey(frame, leafThreadState);
+    }
+
     @Override
     @Pure
     public String toString() {
         return Objects.toStringHelper(this)
-                .add("stackTraceElement", stackTraceElement)
+                .add("stackTraceElement", getStackTraceElement())
                 .add("childNodes", childNodes)
                 .add("metricNames", metricNames)
                 .add("sampleCount", sampleCount)
                 .add("leafThreadState", leafThreadState)
                 .toString();
     }
+
+    // frames are interned, so the key uses frame identity
+    @Immutable
+    private static class ChildNodeKey {
+
+        private final Frame frame;
+        @Nullable
+        private final State leafThreadState;
+
+        private ChildNodeKey(Frame frame, @Nullable State leafThreadState) {
+            this.frame = frame;
+            this.leafThreadState = leafThreadState;
+        }
+
+        @Override
+        @Pure
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof ChildNodeKey)) {
+                return false;
+            }
+            ChildNodeKey that = (ChildNodeKey) obj;
+            return frame == that.frame && leafThreadState == that.leafThreadState;
+        }
+
+        @Override
+        @Pure
+        public int hashCode() {
+            int hash = System.identityHashCode(frame);
+            if (leafThreadState != null) {
+                hash = 31 * hash + leafThreadState.ordinal() + 1;
+            }
+            return hash;
+        }
+    }
 }
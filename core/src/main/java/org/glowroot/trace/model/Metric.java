@@ -146,6 +146,17 @@ public class Metric implements MetricTimer {
         selfNestingLevel--;
     }
 
+    // called by the trace thread when the metric is being recycled for a new trace, see
+    // MetricNameImpl.clear()
+    void reset() {
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+        count = 0;
+        startTick = 0;
+        selfNestingLevel = 0;
+    }
+
     private void recordData(long time) {
         if (time > max) {
             max = time;
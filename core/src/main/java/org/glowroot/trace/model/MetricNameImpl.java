@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2013 the original author or authors.
+ * Copyright 2012-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,6 +19,7 @@ import checkers.nullness.quals.Nullable;
 import com.google.common.base.Ticker;
 
 import org.glowroot.api.MetricName;
+import org.glowroot.markers.NotThreadSafe;
 
 /**
  * @author Trask Stalnaker
@@ -29,8 +30,8 @@ public class MetricNameImpl implements MetricName {
     private final String name;
     private final Ticker ticker;
 
-    private final ThreadLocal</*@Nullable*/Metric> metricHolder =
-            new ThreadLocal</*@Nullable*/Metric>();
+    private final ThreadLocal</*@Nullable*/MetricHolder> metricHolder =
+            new ThreadLocal</*@Nullable*/MetricHolder>();
 
     public MetricNameImpl(String name, Ticker ticker) {
         this.name = name;
@@ -39,16 +40,53 @@ public class MetricNameImpl implements MetricName {
 
     @Nullable
     public Metric get() {
-        return metricHolder.get();
+        MetricHolder holder = metricHolder.get();
+        if (holder == null) {
+            return null;
+        }
+        return holder.metric;
     }
 
     Metric create() {
-        Metric metric = new Metric(name, ticker);
-        metricHolder.set(metric);
+        MetricHolder holder = metricHolder.get();
+        if (holder == null) {
+            holder = new MetricHolder();
+            metricHolder.set(holder);
+        }
+        Metric metric = holder.spare;
+        if (metric == null) {
+            metric = new Metric(name, ticker);
+        } else {
+            holder.spare = null;
+            metric.reset();
+        }
+        holder.metric = metric;
         return metric;
     }
 
-    void clear() {
-        metricHolder.remove();
+    // the holder (and so the thread local entry) is kept for the next trace on this thread either
+    // way, so that a trace only allocates the metric itself
+    //
+    // if recycle is true, the metric is also kept and reset for the next trace on this thread, so
+    // the caller must guarantee that nothing else still references the metric, see
+    // Trace.clearThreadLocalMetrics()
+    void clear(boolean recycle) {
+        MetricHolder holder = metricHolder.get();
+        if (holder == null) {
+            return;
+        }
+        if (recycle) {
+            holder.spare = holder.metric;
+        }
+        holder.metric = null;
+    }
+
+    // only accessed by the owning thread
+    @NotThreadSafe
+    private static class MetricHolder {
+        @Nullable
+        private Metric metric;
+        @Nullable
+        private Metric spare;
     }
 }
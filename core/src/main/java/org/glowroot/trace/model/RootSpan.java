@@ -16,13 +16,11 @@
 package org.glowroot.trace.model;
 
 import java.util.List;
-import java.util.Queue;
 
 import checkers.nullness.quals.Nullable;
 import com.google.common.base.Objects;
 import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Queues;
 import dataflow.quals.Pure;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,9 +50,7 @@ class RootSpan {
     private volatile long endTick;
 
     private final Span rootSpan;
-    private final Queue<Span> spans = Queues.newConcurrentLinkedQueue();
-    // tracking size of spans queue since ConcurrentLinkedQueue.size() is slow
-    private volatile int size;
+    private final SpanList spans = new SpanList();
 
     // this doesn't need to be thread safe since it is only accessed by the trace thread
     private boolean spanLimitExceeded;
@@ -67,7 +63,6 @@ class RootSpan {
         rootSpan = new Span(messageSupplier, startTick, startTick, 0, metric);
         spanStack.add(rootSpan);
         spans.add(rootSpan);
-        size = 1;
     }
 
     Span getRootSpan() {
@@ -79,7 +74,7 @@ class RootSpan {
     }
 
     int getSize() {
-        return size;
+        return spans.size();
     }
 
     long getStartTick() {
@@ -103,8 +98,6 @@ class RootSpan {
         Span span = createSpan(startTick, messageSupplier, null, metric, false);
         spanStack.add(span);
         spans.add(span);
-        // increment doesn't need to be atomic since size is only modified by the trace thread
-        size++;
         return span;
     }
 
@@ -124,8 +117,6 @@ class RootSpan {
             @Nullable ErrorMessage errorMessage, boolean limitBypassed) {
         Span span = createSpan(startTick, messageSupplier, errorMessage, null, limitBypassed);
         spans.add(span);
-        // increment doesn't need to be atomic since size is only modified by the trace thread
-        size++;
         span.setEndTick(endTick);
         return span;
     }
@@ -136,8 +127,6 @@ class RootSpan {
         }
         spanLimitExceeded = true;
         spans.add(Span.getLimitExceededMarker());
-        // increment doesn't need to be atomic since size is only modified by the trace thread
-        size++;
     }
 
     private Span createSpan(long startTick, @Nullable MessageSupplier messageSupplier,
@@ -149,8 +138,6 @@ class RootSpan {
             // also a different marker ("limit extended") is placed in the spans so that the ui can
             // display this scenario sensibly
             spans.add(Span.getLimitExtendedMarker());
-            // increment doesn't need to be atomic since size is only modified by the trace thread
-            size++;
         }
         Span currentSpan = spanStack.get(spanStack.size() - 1);
         // limit bypassed spans have no proper nesting, so put them directly under the root
@@ -187,7 +174,6 @@ class RootSpan {
                 .add("endTick", endTick)
                 .add("rootSpan", rootSpan)
                 .add("spans", spans)
-                .add("size", size)
                 .toString();
     }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace.model;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.UnmodifiableIterator;
+import dataflow.quals.Pure;
+
+import org.glowroot.markers.PartiallyThreadSafe;
+
+/**
+ * Append-only list of spans that supports adding by a single thread and iterating by multiple
+ * threads.
+ *
+ * Spans are stored in fixed size segments, so adding a span only allocates once per
+ * {@link #SEGMENT_SIZE} spans (as opposed to a node per span for a ConcurrentLinkedQueue), and
+ * existing segments are never copied. Spans are published to other threads by the volatile write
+ * to {@link #size}, so iterators only see spans that were added prior to their creation.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@PartiallyThreadSafe("add() can only be called from a single thread")
+class SpanList implements Iterable<Span> {
+
+    private static final int SEGMENT_SHIFT = 7;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    // the array of segments is replaced (with a larger copy) when it fills up, but the segments
+    // themselves are shared between the old and new arrays
+    // segments is volatile so that a reader that sees a replacement array also sees its contents
+    private volatile Span[][] segments = new Span[4][];
+    private volatile int size;
+
+    void add(Span span) {
+        // size and segments are only modified by the adding thread
+        int index = size;
+        int segmentIndex = index >>> SEGMENT_SHIFT;
+        Span[][] currSegments = segments;
+        if (segmentIndex == currSegments.length) {
+            currSegments = Arrays.copyOf(currSegments, currSegments.length * 2);
+            segments = currSegments;
+        }
+        Span[] segment = currSegments[segmentIndex];
+        if (segment == null) {
+            segment = new Span[SEGMENT_SIZE];
+            currSegments[segmentIndex] = segment;
+        }
+        segment[index & SEGMENT_MASK] = span;
+        // volatile write publishes the span (and any new segment) to other threads
+        size = index + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<Span> iterator() {
+        // size must be read before segments
+        int currSize = size;
+        return new SpanIterator(segments, currSize);
+    }
+
+    @Override
+    @Pure
+    public String toString() {
+        return Iterables.toString(this);
+    }
+
+    private static class SpanIterator extends UnmodifiableIterator<Span> {
+
+        private final Span[][] segments;
+        private final int size;
+        private int index;
+
+        private SpanIterator(Span[][] segments, int size) {
+            this.segments = segments;
+            this.size = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < size;
+        }
+
+        @Override
+        public Span next() {
+            if (index >= size) {
+                throw new NoSuchElementException();
+            }
+            Span span = segments[index >>> SEGMENT_SHIFT][index & SEGMENT_MASK];
+            index++;
+            return span;
+        }
+    }
+}
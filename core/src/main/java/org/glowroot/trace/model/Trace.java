@@ -15,12 +15,11 @@
  */
 package org.glowroot.trace.model;
 
-import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
-import java.lang.management.ThreadMXBean;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import checkers.igj.quals.Immutable;
 import checkers.igj.quals.ReadOnly;
@@ -62,8 +61,12 @@ public class Trace {
     private static final int ATTRIBUTES_LIST_INITIAL_CAPACITY = 16;
     private static final int METRICS_LIST_INITIAL_CAPACITY = 32;
 
-    // a unique identifier
-    private final TraceUniqueId id;
+    private static final int NOT_EXPOSED = 0;
+    private static final int EXPOSED = 1;
+    private static final int RECYCLED = 2;
+
+    // a unique identifier, see TraceUniqueId
+    private final long id;
 
     // timing data is tracked in nano seconds which cannot be converted into dates
     // (see javadoc for System.nanoTime()), so the start time is also tracked here
@@ -71,6 +74,10 @@ public class Trace {
 
     private final AtomicBoolean stuck = new AtomicBoolean();
 
+    // tracks whether any thread other than the trace thread may be holding on to this trace's
+    // metrics, in which case they cannot be recycled at the end of the trace
+    private final AtomicInteger exposure = new AtomicInteger(NOT_EXPOSED);
+
     private final boolean background;
 
     private volatile String grouping;
@@ -112,22 +119,24 @@ public class Trace {
 
     private final long threadId;
 
-    // these are stored in the trace so they are only scheduled a single time, and also so they can
-    // be canceled at trace completion
-    @Nullable
-    private volatile ScheduledRunnable coarseProfilerScheduledRunnable;
-    @Nullable
-    private volatile ScheduledRunnable fineProfilerScheduledRunnable;
+    // these are stored in the trace so profiling is only registered a single time (stack traces are
+    // captured by the central StackTraceCollector, which drops the trace once it completes)
+    private volatile boolean coarseProfilingRegistered;
+    private volatile boolean fineProfilingRegistered;
+
+    // this is stored in the trace so it is only scheduled a single time, and also so it can be
+    // canceled at trace completion
     @Nullable
     private volatile ScheduledRunnable stuckScheduledRunnable;
 
     public Trace(long startTime, boolean background, String grouping,
             MessageSupplier messageSupplier, MetricNameImpl metricName,
-            @Nullable ThreadAllocatedBytes threadAllocatedBytes, Ticker ticker) {
+            @Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            GarbageCollectorSnapshot garbageCollectorSnapshot, Ticker ticker) {
         this.startTime = startTime;
         this.background = background;
         this.grouping = grouping;
-        id = new TraceUniqueId(startTime);
+        id = TraceUniqueId.next(startTime);
         long startTick = ticker.read();
         Metric metric = metricName.create();
         metric.start(startTick);
@@ -138,15 +147,15 @@ public class Trace {
         this.metrics = theMetrics;
         metricNames.add(metricName);
         threadId = Thread.currentThread().getId();
-        jvmInfo = new JvmInfo(threadAllocatedBytes);
+        jvmInfo = new JvmInfo(threadAllocatedBytes, garbageCollectorSnapshot);
     }
 
     public long getStartTime() {
         return startTime;
     }
 
-    public String getId() {
-        return id.get();
+    public long getId() {
+        return id;
     }
 
     // a couple of properties make sense to expose as part of trace
@@ -264,14 +273,16 @@ public class Trace {
         return fineMergedStackTree;
     }
 
-    @Nullable
-    public ScheduledRunnable getCoarseProfilerScheduledRunnable() {
-        return coarseProfilerScheduledRunnable;
+    public long getThreadId() {
+        return threadId;
     }
 
-    @Nullable
-    public ScheduledRunnable getFineProfilerScheduledRunnable() {
-        return fineProfilerScheduledRunnable;
+    public boolean isCoarseProfilingRegistered() {
+        return coarseProfilingRegistered;
+    }
+
+    public boolean isFineProfilingRegistered() {
+        return fineProfilingRegistered;
     }
 
     @Nullable
@@ -311,20 +322,12 @@ public class Trace {
         }
     }
 
-    public void setCoarseProfilerScheduledRunnable(ScheduledRunnable scheduledRunnable) {
-        if (coarseProfilerScheduledRunnable != null) {
-            logger.warn("setCoarseProfilerScheduledRunnable(): overwriting non-null"
-                    + " coarseProfilingScheduledRunnable");
-        }
-        this.coarseProfilerScheduledRunnable = scheduledRunnable;
+    public void setCoarseProfilingRegistered() {
+        coarseProfilingRegistered = true;
     }
 
-    public void setFineProfilerScheduledRunnable(ScheduledRunnable scheduledRunnable) {
-        if (fineProfilerScheduledRunnable != null) {
-            logger.warn("setFineProfilerScheduledRunnable(): overwriting non-null"
-                    + " fineProfilingScheduledRunnable");
-        }
-        this.fineProfilerScheduledRunnable = scheduledRunnable;
+    public void setFineProfilingRegistered() {
+        fineProfilingRegistered = true;
     }
 
     public void setStuckScheduledRunnable(ScheduledRunnable scheduledRunnable) {
@@ -373,22 +376,34 @@ public class Trace {
         return metric;
     }
 
-    public void clearThreadLocalMetrics() {
+    // must be called by any thread other than the trace thread before it reads the trace's metrics
+    // (or hands the trace off to another thread that will read them)
+    //
+    // returns false if the trace has already completed and its metrics have been recycled, in
+    // which case the caller should treat the trace as no longer active
+    public boolean markExposed() {
+        if (exposure.compareAndSet(NOT_EXPOSED, EXPOSED)) {
+            return true;
+        }
+        return exposure.get() == EXPOSED;
+    }
+
+    // called by the trace thread at the end of the trace
+    //
+    // if recycle is true and the trace was never exposed to another thread, the metric instances
+    // are kept in the metric thread locals and reused by the next trace on this thread
+    public void clearThreadLocalMetrics(boolean recycle) {
+        boolean recycleMetrics = recycle && exposure.compareAndSet(NOT_EXPOSED, RECYCLED);
         // reset metric thread locals to clear their state for next time
         for (MetricNameImpl metricName : metricNames) {
-            metricName.clear();
+            metricName.clear(recycleMetrics);
         }
     }
 
-    public void captureStackTrace(boolean fine) {
-        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
-        ThreadInfo threadInfo = threadBean.getThreadInfo(threadId, Integer.MAX_VALUE);
-        if (threadInfo == null) {
-            // thread is no longer alive
-            return;
-        }
-        // check if trace is completed to avoid small window between trace completion and
-        // canceling the scheduled command that invokes this method
+    // called by the StackTraceCollector with the stack trace of the trace thread
+    public void captureStackTrace(ThreadInfo threadInfo, boolean fine) {
+        // check if trace is completed to avoid small window between trace completion and the
+        // StackTraceCollector dropping this trace
         if (rootSpan.isCompleted()) {
             return;
         }
@@ -430,8 +445,8 @@ public class Trace {
                 .add("rootSpan", rootSpan)
                 .add("coarseMergedStackTree", coarseMergedStackTree)
                 .add("fineMergedStackTree", fineMergedStackTree)
-                .add("coarseProfilingScheduledRunnable", coarseProfilerScheduledRunnable)
-                .add("fineProfilingScheduledRunnable", fineProfilerScheduledRunnable)
+                .add("coarseProfilingRegistered", coarseProfilingRegistered)
+                .add("fineProfilingRegistered", fineProfilingRegistered)
                 .add("stuckScheduledRunnable", stuckScheduledRunnable)
                 .toString();
     }
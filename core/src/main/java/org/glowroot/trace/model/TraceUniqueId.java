@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2013 the original author or authors.
+ * Copyright 2011-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,60 +15,86 @@
  */
 package org.glowroot.trace.model;
 
-import java.math.BigInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-import checkers.igj.quals.Immutable;
 import checkers.igj.quals.Mutable;
-import com.google.common.base.Strings;
-import dataflow.quals.Pure;
+import checkers.nullness.quals.Nullable;
+
+import org.glowroot.markers.Static;
 
 /**
- * The unique identifier for a trace. The string representation of the unique identifier is lazily
- * constructed since it is only needed for traces which are stored and/or viewed in-flight.
- * 
+ * The unique identifier for a trace is packed into a long, with the trace start time in the upper
+ * bits and a counter in the lower bits, so that it can be created, compared and stored (as the
+ * primary key) without creating any strings. The hex form is only used at the http boundary.
+ *
  * @author Trask Stalnaker
  * @since 0.5
  */
-@Immutable
-class TraceUniqueId {
+@Static
+public class TraceUniqueId {
+
+    // 42 bits of start time is enough for dates until 2109, and leaves the sign bit unset
+    private static final int COUNTER_BITS = 21;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+    // 16 hex digits so that the hex form sorts the same as the long form
+    private static final int HEX_LENGTH = 16;
+
+    // string ids from before ids were packed into longs were the trace start time as 12 hex
+    // digits followed by a hex counter
+    private static final int STRING_ID_START_TIME_LENGTH = 12;
 
-    // used to populate id (below)
     @Mutable
     private static final AtomicLong idCounter = new AtomicLong();
 
-    private static final long MAX_ID = (long) Math.pow(16, 6); // at most 6 bytes in hex form
+    private TraceUniqueId() {}
 
-    private final long traceStartTime;
-    private final long id;
+    public static long next(long traceStartTime) {
+        return from(traceStartTime, idCounter.getAndIncrement());
+    }
 
-    public TraceUniqueId(long traceStartTime) {
-        this.traceStartTime = traceStartTime;
-        id = idCounter.getAndIncrement();
+    public static long from(long traceStartTime, long counter) {
+        return (traceStartTime << COUNTER_BITS) | (counter & COUNTER_MASK);
     }
 
-    public String get() {
-        return twelveDigitHex(traceStartTime) + BigInteger.valueOf(id % MAX_ID).toString(16);
+    // converts a string id from before ids were packed into longs, falling back to a zero counter
+    // if the string id is not in the expected format
+    public static long fromStringId(long traceStartTime, String stringId) {
+        long counter = 0;
+        if (stringId.length() > STRING_ID_START_TIME_LENGTH) {
+            try {
+                counter = Long.parseLong(stringId.substring(STRING_ID_START_TIME_LENGTH), 16);
+            } catch (NumberFormatException e) {
+                // fall back to zero counter
+            }
+        }
+        return from(traceStartTime, counter);
+    }
+
+    public static long getStartTime(long id) {
+        return id >>> COUNTER_BITS;
     }
 
-    private static String twelveDigitHex(long x) {
-        String s = BigInteger.valueOf(x).toString(16);
-        if (s.length() > 12) {
-            return s.substring(s.length() - 12);
-        } else if (s.length() == 12) {
-            return s;
-        } else if (s.length() == 11) {
-            // this is the case for dates between Nov 3, 2004 and Jun 23, 2527 so it seems worth
-            // optimizing
-            return '0' + s;
-        } else {
-            return Strings.padStart(s, 12, '0');
+    public static String toHex(long id) {
+        char[] chars = new char[HEX_LENGTH];
+        long remaining = id;
+        for (int i = HEX_LENGTH - 1; i >= 0; i--) {
+            chars[i] = Character.forDigit((int) (remaining & 0xf), 16);
+            remaining >>>= 4;
         }
+        return new String(chars);
     }
 
-    @Override
-    @Pure
-    public String toString() {
-        return get();
+    // returns null if the hex form is not valid (e.g. an id from before ids were packed into longs)
+    @Nullable
+    public static Long parseHex(String hex) {
+        if (hex.isEmpty() || hex.length() > HEX_LENGTH) {
+            return null;
+        }
+        try {
+            return Long.parseLong(hex, 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013 the original author or authors.
+ * Copyright 2013-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -33,6 +33,7 @@ import static org.objectweb.asm.Opcodes.ACC_FINAL;
 import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
 import static org.objectweb.asm.Opcodes.ACC_STATIC;
 import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACC_VOLATILE;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 import static org.objectweb.asm.Opcodes.PUTSTATIC;
 import static org.objectweb.asm.Opcodes.RETURN;
@@ -58,10 +59,13 @@ class AdviceFlowGenerator {
         ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS + ClassWriter.COMPUTE_FRAMES);
         cw.visit(V1_5, ACC_PUBLIC + ACC_SUPER, generatedTypeName, null, "java/lang/Object", null);
         writeThreadLocalFields(cw);
+        writeArmedField(cw);
         writeThreadLocalInitialization(cw, generatedTypeName);
         try {
-            return ClassLoaders.defineClass(TypeNames.fromInternal(generatedTypeName),
-                    cw.toByteArray());
+            Class<?> generatedClass = ClassLoaders.defineClass(
+                    TypeNames.fromInternal(generatedTypeName), cw.toByteArray());
+            AdviceSwitch.register(generatedClass);
+            return generatedClass;
         } catch (ReflectiveException e) {
             logger.error(e.getMessage(), e);
             throw new AdviceConstructionException(e);
@@ -73,6 +77,12 @@ class AdviceFlowGenerator {
                 adviceFlowOuterHolderType.getDescriptor(), null, null);
     }
 
+    // the armed field is set by AdviceSwitch (see AdviceSwitch.register())
+    private static void writeArmedField(ClassVisitor cv) {
+        cv.visitField(ACC_PUBLIC + ACC_STATIC + ACC_VOLATILE, AdviceSwitch.ARMED_FIELD_NAME, "Z",
+                null, null);
+    }
+
     private static void writeThreadLocalInitialization(ClassVisitor cv, String adviceFlowTypeName) {
         MethodVisitor mv = cv.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
         castNonNull(mv);
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.weaving;
+
+import java.util.BitSet;
+import java.util.List;
+
+import checkers.igj.quals.Immutable;
+import checkers.igj.quals.ReadOnly;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import dataflow.quals.Pure;
+
+/**
+ * Indexes advisors by their pointcut type name so that finding the advisors that can match a
+ * class being loaded only costs a map lookup per type in the class's hierarchy, instead of a type
+ * match of every advisor against every type in the class's hierarchy.
+ *
+ * Advisors with a pointcut type name pattern cannot be indexed, and are always candidates.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@Immutable
+public class AdviceIndex {
+
+    private static final AdviceIndex EMPTY = new AdviceIndex(ImmutableList.<Advice>of());
+
+    private final ImmutableList<Advice> advisors;
+    // values are positions in the advisors list
+    private final ImmutableListMultimap<String, Integer> typeNameIndex;
+    private final ImmutableList<Integer> patternIndex;
+
+    public static AdviceIndex of() {
+        return EMPTY;
+    }
+
+    public static AdviceIndex of(@ReadOnly List<Advice> advisors) {
+        return new AdviceIndex(ImmutableList.copyOf(advisors));
+    }
+
+    private AdviceIndex(ImmutableList<Advice> advisors) {
+        this.advisors = advisors;
+        ImmutableListMultimap.Builder<String, Integer> typeNameIndex =
+                ImmutableListMultimap.builder();
+        ImmutableList.Builder<Integer> patternIndex = ImmutableList.builder();
+        for (int i = 0; i < advisors.size(); i++) {
+            Advice advice = advisors.get(i);
+            if (advice.getPointcutTypePattern() == null) {
+                typeNameIndex.put(advice.getPointcut().typeName(), i);
+            } else {
+                patternIndex.add(i);
+            }
+        }
+        this.typeNameIndex = typeNameIndex.build();
+        this.patternIndex = patternIndex.build();
+    }
+
+    public ImmutableList<Advice> getAdvisors() {
+        return advisors;
+    }
+
+    // returns the advisors whose pointcut type may match the type or one of its super types, in
+    // the same order as the full list of advisors (which determines the nesting order of advice)
+    List<Advice> getCandidates(String typeName, @ReadOnly Iterable<ParsedType> superTypes) {
+        if (advisors.isEmpty()) {
+            return ImmutableList.of();
+        }
+        BitSet candidates = new BitSet(advisors.size());
+        for (Integer i : typeNameIndex.get(typeName)) {
+            candidates.set(i);
+        }
+        for (ParsedType superType : superTypes) {
+            for (Integer i : typeNameIndex.get(superType.getName())) {
+                candidates.set(i);
+            }
+        }
+        for (Integer i : patternIndex) {
+            candidates.set(i);
+        }
+        if (candidates.isEmpty()) {
+            return ImmutableList.of();
+        }
+        ImmutableList.Builder<Advice> builder = ImmutableList.builder();
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            builder.add(advisors.get(i));
+        }
+        return builder.build();
+    }
+
+    @Override
+    @Pure
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("advisors", advisors)
+                .toString();
+    }
+}
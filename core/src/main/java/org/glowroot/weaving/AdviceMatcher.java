@@ -45,7 +45,25 @@ class AdviceMatcher {
     private final boolean targetTypeMatch;
     private final ImmutableList<ParsedType> preMatchedSuperTypes;
 
-    AdviceMatcher(Advice advice, Type targetType, Iterable<ParsedType> superTypes) {
+    // only the candidate advisors from each advice index are type matched against the target type
+    // and its super types
+    static ImmutableList<AdviceMatcher> getAdviceMatchers(Type targetType,
+            @ReadOnly Iterable<ParsedType> superTypes, @ReadOnly List<AdviceIndex> adviceIndexes) {
+        ImmutableList.Builder<AdviceMatcher> adviceMatchers = ImmutableList.builder();
+        String targetTypeName = targetType.getClassName();
+        for (AdviceIndex adviceIndex : adviceIndexes) {
+            for (Advice advice : adviceIndex.getCandidates(targetTypeName, superTypes)) {
+                AdviceMatcher adviceMatcher = new AdviceMatcher(advice, targetType, superTypes);
+                if (adviceMatcher.isClassLevelMatch()) {
+                    adviceMatchers.add(adviceMatcher);
+                }
+            }
+        }
+        return adviceMatchers.build();
+    }
+
+    private AdviceMatcher(Advice advice, Type targetType,
+            @ReadOnly Iterable<ParsedType> superTypes) {
         this.advice = advice;
         targetTypeMatch = isTypeMatch(targetType.getClassName(), advice);
         ImmutableList.Builder<ParsedType> builder = ImmutableList.builder();
@@ -63,7 +81,7 @@ class AdviceMatcher {
 
     boolean isMethodLevelMatch(int access, ParsedMethod parsedMethod) {
         if (!isMethodNameMatch(parsedMethod.getName())
-                || !isMethodArgTypesMatch(parsedMethod.getArgTypeNames())) {
+                || !isMethodArgTypesMatch(parsedMethod)) {
             return false;
         }
         if (targetTypeMatch && isMethodReturnMatch(parsedMethod.getReturnTypeName())
@@ -114,7 +132,7 @@ class AdviceMatcher {
         }
     }
 
-    private boolean isMethodArgTypesMatch(@ReadOnly List<String> argTypeNames) {
+    private boolean isMethodArgTypesMatch(ParsedMethod parsedMethod) {
         String[] pointcutMethodArgs = advice.getPointcut().methodArgs();
         for (int i = 0; i < pointcutMethodArgs.length; i++) {
             if (pointcutMethodArgs[i].equals("..")) {
@@ -126,18 +144,18 @@ class AdviceMatcher {
                     return true;
                 }
             }
-            if (argTypeNames.size() == i) {
+            if (parsedMethod.getArgCount() == i) {
                 // have run out of argument types to match
                 return false;
             }
             // only supporting * at this point
             if (!pointcutMethodArgs[i].equals("*")
-                    && !pointcutMethodArgs[i].equals(argTypeNames.get(i))) {
+                    && !pointcutMethodArgs[i].equals(parsedMethod.getArgTypeName(i))) {
                 return false;
             }
         }
         // need this final test since argumentTypes may still have unmatched elements
-        return argTypeNames.size() == pointcutMethodArgs.length;
+        return parsedMethod.getArgCount() == pointcutMethodArgs.length;
     }
 
     private boolean isMethodReturnMatch(String returnTypeName) {
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.weaving;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+import checkers.lock.quals.GuardedBy;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.Reflections.ReflectiveException;
+import org.glowroot.markers.Static;
+
+/**
+ * Global switch that arms and disarms all woven advice.
+ *
+ * Each advice has its own static volatile "armed" field (in its generated advice flow class), and
+ * this is the first thing checked by the woven bytecode on method entry. While disarmed, woven
+ * methods skip the advice's @IsEnabled method, the advice flow thread local and all of the other
+ * advice methods, so they cost little more than a single volatile read per advice.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@Static
+public class AdviceSwitch {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdviceSwitch.class);
+
+    static final String ARMED_FIELD_NAME = "armed";
+
+    private static final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private static boolean armed = true;
+    // generated advice flow classes are never unloaded, so there is no need for weak references
+    @GuardedBy("lock")
+    private static final List<Field> armedFields = Lists.newArrayList();
+
+    private AdviceSwitch() {}
+
+    public static void setArmed(boolean armed) {
+        synchronized (lock) {
+            if (armed == AdviceSwitch.armed) {
+                return;
+            }
+            AdviceSwitch.armed = armed;
+            for (Field armedField : armedFields) {
+                try {
+                    armedField.setBoolean(null, armed);
+                } catch (IllegalAccessException e) {
+                    // the generated field is public, so this shouldn't really happen
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    public static boolean isArmed() {
+        synchronized (lock) {
+            return armed;
+        }
+    }
+
+    // the generated advice flow class is registered before it is returned from Advice.from() so
+    // that it is already in the current armed state before any woven code can reference it
+    static void register(Class<?> generatedAdviceFlowClass) throws ReflectiveException {
+        try {
+            Field armedField = generatedAdviceFlowClass.getField(ARMED_FIELD_NAME);
+            synchronized (lock) {
+                armedField.setBoolean(null, armed);
+                armedFields.add(armedField);
+            }
+        } catch (NoSuchFieldException e) {
+            throw new ReflectiveException(e);
+        } catch (IllegalAccessException e) {
+            throw new ReflectiveException(e);
+        }
+    }
+}
@@ -54,13 +54,12 @@ public class IsolatedWeavingClassLoader extends ClassLoader {
 
     private static final Logger logger = LoggerFactory.getLogger(IsolatedWeavingClassLoader.class);
 
-    private static final Supplier<ImmutableList<Advice>> SUPPLIER_OF_NONE =
-            new Supplier<ImmutableList<Advice>>() {
-                @Override
-                public ImmutableList<Advice> get() {
-                    return ImmutableList.of();
-                }
-            };
+    private static final Supplier<AdviceIndex> SUPPLIER_OF_NONE = new Supplier<AdviceIndex>() {
+        @Override
+        public AdviceIndex get() {
+            return AdviceIndex.of();
+        }
+    };
 
     // bridge classes can be either interfaces or base classes
     private final ImmutableList<Class<?>> bridgeClasses;
@@ -92,8 +91,9 @@ public class IsolatedWeavingClassLoader extends ClassLoader {
         if (weavingDisabled) {
             weaver = null;
         } else {
-            Weaver weaver = new Weaver(mixinTypes, advisors, SUPPLIER_OF_NONE,
-                    new ParsedTypeCache(), metricTimerService, metricWrapperMethodsDisabled);
+            Weaver weaver = new Weaver(mixinTypes, AdviceIndex.of(advisors), SUPPLIER_OF_NONE,
+                    new ParsedTypeCache(), metricTimerService, metricWrapperMethodsDisabled,
+                    null);
             this.weaver = weaver;
         }
     }
@@ -15,7 +15,10 @@
  */
 package org.glowroot.weaving;
 
+import java.util.List;
+
 import checkers.igj.quals.ReadOnly;
+import com.google.common.collect.ImmutableList;
 import org.objectweb.asm.Type;
 
 import org.glowroot.markers.Static;
@@ -29,7 +32,18 @@ class MixinMatcher {
 
     private MixinMatcher() {}
 
-    static boolean isMatch(MixinType mixinType, Type targetType,
+    static ImmutableList<MixinType> getMatchedMixinTypes(@ReadOnly List<MixinType> mixinTypes,
+            Type targetType, @ReadOnly Iterable<ParsedType> superTypes) {
+        ImmutableList.Builder<MixinType> matchedMixinTypes = ImmutableList.builder();
+        for (MixinType mixinType : mixinTypes) {
+            if (isMatch(mixinType, targetType, superTypes)) {
+                matchedMixinTypes.add(mixinType);
+            }
+        }
+        return matchedMixinTypes.build();
+    }
+
+    private static boolean isMatch(MixinType mixinType, Type targetType,
             @ReadOnly Iterable<ParsedType> superTypes) {
         boolean targetTypeClassMatch = isTypeMatch(mixinType, targetType.getClassName());
         boolean superClassMatch = false;
@@ -16,6 +16,7 @@
 package org.glowroot.weaving;
 
 import java.lang.reflect.Modifier;
+import java.util.Arrays;
 
 import checkers.igj.quals.Immutable;
 import checkers.nullness.quals.Nullable;
@@ -28,16 +29,23 @@ import static org.objectweb.asm.Opcodes.ACC_FINAL;
 import static org.objectweb.asm.Opcodes.ACC_SYNCHRONIZED;
 
 /**
+ * The names that make up a parsed method are held as ids in the shared {@link StringTable} since
+ * a parsed method is retained for every method of every type seen in every class loader. The
+ * descriptor and signature are not put in the string table, see {@link StringTable}.
+ *
  * @author Trask Stalnaker
  * @since 0.5
  */
-// TODO intern all Strings in this class to minimize long term memory usage
 @Immutable
 public class ParsedMethod {
 
-    private final String name;
-    private final ImmutableList<String> argTypeNames;
-    private final String returnTypeName;
+    private static final int[] NO_IDS = new int[0];
+
+    private static final StringTable stringTable = StringTable.instance();
+
+    private final int nameId;
+    private final int[] argTypeNameIds;
+    private final int returnTypeNameId;
     private final int modifiers;
 
     // fields below are needed for public methods in case they end up fulfilling an interface in a
@@ -46,52 +54,62 @@ public class ParsedMethod {
     private final String desc;
     @Nullable
     private final String signature;
-    private final ImmutableList<String> exceptions;
+    private final int[] exceptionIds;
 
     static ParsedMethod from(String name, ImmutableList<Type> argTypes, Type returnType,
             int modifiers, String desc, @Nullable String signature,
             ImmutableList<String> exceptions) {
-        ImmutableList.Builder<String> argTypeNames = ImmutableList.builder();
-        for (Type argType : argTypes) {
-            argTypeNames.add(argType.getClassName());
+        int[] argTypeNameIds = argTypes.isEmpty() ? NO_IDS : new int[argTypes.size()];
+        for (int i = 0; i < argTypeNameIds.length; i++) {
+            argTypeNameIds[i] = stringTable.getId(argTypes.get(i).getClassName());
         }
-        String returnTypeName = returnType.getClassName();
-        return new ParsedMethod(name, argTypeNames.build(), returnTypeName, modifiers, desc,
-                signature, exceptions);
+        int[] exceptionIds = exceptions.isEmpty() ? NO_IDS : stringTable.getIds(exceptions);
+        return new ParsedMethod(stringTable.getId(name), argTypeNameIds,
+                stringTable.getId(returnType.getClassName()), modifiers, desc, signature,
+                exceptionIds);
     }
 
-    private ParsedMethod(String name, ImmutableList<String> argTypeNames, String returnTypeName,
-            int modifiers, String desc, @Nullable String signature,
-            ImmutableList<String> exceptions) {
-        this.name = name;
-        this.argTypeNames = argTypeNames;
-        this.returnTypeName = returnTypeName;
+    private ParsedMethod(int nameId, int[] argTypeNameIds, int returnTypeNameId, int modifiers,
+            String desc, @Nullable String signature, int[] exceptionIds) {
+        this.nameId = nameId;
+        this.argTypeNameIds = argTypeNameIds;
+        this.returnTypeNameId = returnTypeNameId;
         // remove final and synchronized modifiers from the parsed method model
         this.modifiers = modifiers & ~ACC_FINAL & ~ACC_SYNCHRONIZED;
         // but still need to keep track of whether method is final
         isFinal = Modifier.isFinal(modifiers);
         this.desc = desc;
         this.signature = signature;
-        this.exceptions = exceptions;
+        this.exceptionIds = exceptionIds;
     }
 
     public String getName() {
-        return name;
+        return stringTable.get(nameId);
     }
 
     // these are class names, e.g.
     public ImmutableList<String> getArgTypeNames() {
-        return argTypeNames;
+        return getStrings(argTypeNameIds);
     }
 
     public String getReturnTypeName() {
-        return returnTypeName;
+        return stringTable.get(returnTypeNameId);
     }
 
     public int getModifiers() {
         return modifiers;
     }
 
+    // getArgCount() and getArgTypeName() avoid building the list of arg type names when matching
+    // advice against every method of every type that is woven
+    int getArgCount() {
+        return argTypeNameIds.length;
+    }
+
+    String getArgTypeName(int index) {
+        return stringTable.get(argTypeNameIds[index]);
+    }
+
     boolean isFinal() {
         return isFinal;
     }
@@ -106,11 +124,13 @@ public class ParsedMethod {
     }
 
     ImmutableList<String> getExceptions() {
-        return exceptions;
+        return getStrings(exceptionIds);
     }
 
     // equals and hashCode are only defined in terms of name and argTypeNames since those uniquely
     // identify a method within a given class
+    //
+    // since the string table is shared, equal strings always have equal ids
     @Override
     @Pure
     public boolean equals(@Nullable Object obj) {
@@ -119,7 +139,7 @@ public class ParsedMethod {
         }
         if (obj instanceof ParsedMethod) {
             ParsedMethod that = (ParsedMethod) obj;
-            return Objects.equal(name, that.name) && Objects.equal(argTypeNames, that.argTypeNames);
+            return nameId == that.nameId && Arrays.equals(argTypeNameIds, that.argTypeNameIds);
         }
         return false;
     }
@@ -129,17 +149,28 @@ public class ParsedMethod {
     @Override
     @Pure
     public int hashCode() {
-        return Objects.hashCode(name, argTypeNames);
+        return 31 * nameId + Arrays.hashCode(argTypeNameIds);
     }
 
     @Override
     @Pure
     public String toString() {
         return Objects.toStringHelper(this)
-                .add("name", name)
-                .add("argTypeNames", argTypeNames)
-                .add("returnTypeName", returnTypeName)
+                .add("name", getName())
+                .add("argTypeNames", getArgTypeNames())
+                .add("returnTypeName", getReturnTypeName())
                 .add("modifiers", modifiers)
                 .toString();
     }
+
+    private static ImmutableList<String> getStrings(int[] ids) {
+        if (ids.length == 0) {
+            return ImmutableList.of();
+        }
+        ImmutableList.Builder<String> strings = ImmutableList.builder();
+        for (int id : ids) {
+            strings.add(stringTable.get(id));
+        }
+        return strings.build();
+    }
 }
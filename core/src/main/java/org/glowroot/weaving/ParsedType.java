@@ -29,10 +29,11 @@ import org.glowroot.markers.NotThreadSafe;
  * @since 0.5
  */
 // a ParsedType is never created for Object.class
-// TODO intern all Strings in this class to minimize long term memory usage
 @Immutable
 public class ParsedType {
 
+    private static final StringTable stringTable = StringTable.instance();
+
     private final boolean iface;
     private final String name;
     // null superName means the super type is Object.class
@@ -53,9 +54,11 @@ public class ParsedType {
             ImmutableList<String> interfaceNames, ImmutableList<ParsedMethod> methods,
             boolean hasReweavableAdvice) {
         this.iface = iface;
-        this.name = name;
-        this.superName = superName;
-        this.interfaceNames = interfaceNames;
+        // names are interned so that each type name is only held once no matter how many class
+        // loaders have parsed types with that name or reference it as a super type
+        this.name = stringTable.intern(name);
+        this.superName = stringTable.internNullable(superName);
+        this.interfaceNames = intern(interfaceNames);
         this.methods = methods;
         this.hasReweavableAdvice = hasReweavableAdvice;
     }
@@ -110,6 +113,17 @@ public class ParsedType {
                 .toString();
     }
 
+    private static ImmutableList<String> intern(ImmutableList<String> strings) {
+        if (strings.isEmpty()) {
+            return strings;
+        }
+        ImmutableList.Builder<String> interned = ImmutableList.builder();
+        for (String string : strings) {
+            interned.add(stringTable.intern(string));
+        }
+        return interned.build();
+    }
+
     static Builder builder(boolean iface, String name, @Nullable String superName,
             ImmutableList<String> interfaceNames) {
         return new Builder(iface, name, superName, interfaceNames);
@@ -27,10 +27,15 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor.DiscardPolicy;
+import java.util.concurrent.atomic.AtomicLong;
 
 import checkers.igj.quals.Immutable;
+import checkers.igj.quals.ReadOnly;
 import checkers.lock.quals.GuardedBy;
 import checkers.nullness.quals.Nullable;
 import com.google.common.base.Objects;
@@ -39,11 +44,13 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import dataflow.quals.Pure;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -54,14 +61,28 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.Reflections;
 import org.glowroot.common.Reflections.ReflectiveException;
+import org.glowroot.markers.NotThreadSafe;
+import org.glowroot.markers.OnlyUsedByTests;
 import org.glowroot.markers.Singleton;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.objectweb.asm.Opcodes.ACC_NATIVE;
 import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
 import static org.objectweb.asm.Opcodes.ASM4;
 
 /**
+ * Types that cannot be found are cached (per class loader) so that they are not looked up again
+ * for every class that references them. The negative cache entry is removed if the type is later
+ * added (e.g. a class that is generated at runtime). Since the negative cache entry is stored under
+ * the requesting class loader, which may be a child of the class loader that later defines the
+ * type, the entry is removed from every class loader's negative cache.
+ *
+ * Optionally, the super types of a type are prefetched (read and parsed) on a small pool of
+ * threads, so that independent branches of a deep type hierarchy are resolved concurrently. The
+ * prefetch is only a best effort to warm the cache, the weaving thread never waits on it, and so
+ * the weaving thread still resolves any type that is not yet in the cache itself.
+ *
  * @author Trask Stalnaker
  * @since 0.5
  */
@@ -89,16 +110,12 @@ public class ParsedTypeCache {
     //
     // note, not using nested loading cache since the nested loading cache maintains a strong
     // reference to the class loader
-    private final LoadingCache<ClassLoader, ConcurrentMap<String, ParsedType>> parsedTypeCache =
+    private final LoadingCache<ClassLoader, LoaderParsedTypes> parsedTypeCache =
             CacheBuilder.newBuilder().weakKeys()
-                    .build(new CacheLoader<ClassLoader, ConcurrentMap<String, ParsedType>>() {
+                    .build(new CacheLoader<ClassLoader, LoaderParsedTypes>() {
                         @Override
-                        public ConcurrentMap<String, ParsedType> load(ClassLoader loader) {
-                            // intentionally avoiding Maps.newConcurrentMap() since it uses many
-                            // additional classes that must then be pre-initialized since this
-                            // is called from inside ClassFileTransformer.transform()
-                            // (see PreInitializeClasses)
-                            return new ConcurrentHashMap<String, ParsedType>();
+                        public LoaderParsedTypes load(ClassLoader loader) {
+                            return new LoaderParsedTypes();
                         }
                     });
 
@@ -106,18 +123,53 @@ public class ParsedTypeCache {
     // LoadingCache doesn't accept null keys, and using an Optional<ClassLoader> for the key makes
     // the weakness on the Optional instance which is not strongly referenced from anywhere and
     // therefore the keys will most likely be cleared while their class loaders are still being used
-    //
-    // intentionally avoiding Maps.newConcurrentMap() for the same reason as above
-    private final ConcurrentMap<String, ParsedType> bootLoaderParsedTypeCache =
-            new ConcurrentHashMap<String, ParsedType>();
+    private final LoaderParsedTypes bootLoaderParsedTypeCache = new LoaderParsedTypes();
 
+    // null if prefetching is disabled
+    @Nullable
+    private final ThreadPoolExecutor prefetchExecutor;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong negativeHitCount = new AtomicLong();
+    private final AtomicLong prefetchCount = new AtomicLong();
+    // total time spent by weaving threads reading and parsing types that were not in the cache
+    private final AtomicLong resolveNanos = new AtomicLong();
+
+    // the upper case type names are only needed for auto complete in the pointcut config ui, so
+    // this index is not built until the first time it is used, after which it is maintained as
+    // types are added
     @GuardedBy("typeNameUppers")
     private final SortedMap<String, SortedSet<String>> typeNameUppers = Maps.newTreeMap();
+    private volatile boolean typeNameUppersBuilt;
+
+    public ParsedTypeCache() {
+        this(0);
+    }
+
+    // prefetchThreadCount 0 disables prefetching
+    public ParsedTypeCache(int prefetchThreadCount) {
+        if (prefetchThreadCount > 0) {
+            // prefetch tasks are discarded when the queue is full since they are only a best
+            // effort
+            prefetchExecutor = new ThreadPoolExecutor(prefetchThreadCount, prefetchThreadCount,
+                    60, SECONDS, new ArrayBlockingQueue<Runnable>(1000),
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("Glowroot-Type-Prefetch-%d").build(),
+                    new DiscardPolicy());
+            prefetchExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            prefetchExecutor = null;
+        }
+    }
 
     public List<String> getMatchingTypeNames(String partialTypeName, int limit) {
         String partialTypeNameUpper = partialTypeName.toUpperCase(Locale.ENGLISH);
         Set<String> typeNames = Sets.newTreeSet();
         synchronized (typeNameUppers) {
+            if (!typeNameUppersBuilt) {
+                buildTypeNameUppers();
+            }
             for (Entry<String, SortedSet<String>> entry : typeNameUppers.entrySet()) {
                 String typeNameUpper = entry.getKey();
                 if (typeNameUpper.contains(partialTypeNameUpper)) {
@@ -131,40 +183,41 @@ public class ParsedTypeCache {
         return Lists.newArrayList(typeNames);
     }
 
-    public List<Class<?>> getClassesWithReweavableAdvice() {
-        List<Class<?>> classes = Lists.newArrayList();
-        for (Entry<ClassLoader, ConcurrentMap<String, ParsedType>> outerEntry : parsedTypeCache
-                .asMap().entrySet()) {
-            for (Entry<String, ParsedType> innerEntry : outerEntry.getValue().entrySet()) {
-                if (innerEntry.getValue().hasReweavableAdvice()) {
-                    try {
-                        classes.add(outerEntry.getKey().loadClass(innerEntry.getKey()));
-                    } catch (ClassNotFoundException e) {
-                        logger.warn(e.getMessage(), e);
-                    }
-                }
+    // returns the names of the types that have already been parsed whose weaving is affected by
+    // the added and removed advisors, using the same class level matching as when weaving
+    //
+    // the type names are returned per class loader since a type with the same name in a different
+    // class loader can have a different type hierarchy and so may not be affected
+    //
+    // only types that were woven with reweavable advice can be affected by the removed advisors,
+    // which avoids walking the type hierarchy of most types for the removed advisors
+    public LoaderTypeNames getExistingTypeNamesToReweave(AdviceIndex addedAdvisors,
+            AdviceIndex removedAdvisors) {
+        LoaderTypeNames loaderTypeNames = new LoaderTypeNames();
+        if (addedAdvisors.getAdvisors().isEmpty() && removedAdvisors.getAdvisors().isEmpty()) {
+            return loaderTypeNames;
+        }
+        addExistingTypeNamesToReweave(bootLoaderParsedTypeCache, null, addedAdvisors,
+                removedAdvisors, loaderTypeNames.bootLoaderTypeNames);
+        for (Entry<ClassLoader, LoaderParsedTypes> entry : parsedTypeCache.asMap().entrySet()) {
+            Set<String> typeNames = Sets.newHashSet();
+            addExistingTypeNamesToReweave(entry.getValue(), entry.getKey(), addedAdvisors,
+                    removedAdvisors, typeNames);
+            if (!typeNames.isEmpty()) {
+                loaderTypeNames.typeNames.put(entry.getKey(), typeNames);
             }
         }
-        return classes;
-    }
-
-    public List<Class<?>> getExistingSubClasses(Set<String> rootTypeNames) {
-        List<Class<?>> classes = Lists.newArrayList();
-        for (ClassLoader loader : parsedTypeCache.asMap().keySet()) {
-            classes.addAll(getExistingSubClasses(rootTypeNames, loader));
-        }
-        classes.addAll(getExistingSubClasses(rootTypeNames, null));
-        return classes;
+        return loaderTypeNames;
     }
 
     public List<ParsedType> getParsedTypes(String typeName) {
         List<ParsedType> parsedTypes = Lists.newArrayList();
-        ParsedType parsedType = bootLoaderParsedTypeCache.get(typeName);
+        ParsedType parsedType = bootLoaderParsedTypeCache.parsedTypes.get(typeName);
         if (parsedType != null) {
             parsedTypes.add(parsedType);
         }
-        for (Map<String, ParsedType> loaderParsedTypes : this.parsedTypeCache.asMap().values()) {
-            parsedType = loaderParsedTypes.get(typeName);
+        for (LoaderParsedTypes loaderParsedTypes : this.parsedTypeCache.asMap().values()) {
+            parsedType = loaderParsedTypes.parsedTypes.get(typeName);
             if (parsedType != null) {
                 parsedTypes.add(parsedType);
             }
@@ -176,10 +229,45 @@ public class ParsedTypeCache {
         return ImmutableList.copyOf(parsedTypeCache.asMap().keySet());
     }
 
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getNegativeHitCount() {
+        return negativeHitCount.get();
+    }
+
+    public long getPrefetchCount() {
+        return prefetchCount.get();
+    }
+
+    public long getResolveNanos() {
+        return resolveNanos.get();
+    }
+
+    @OnlyUsedByTests
+    public void close() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
+    }
+
     void add(ParsedType parsedType, @Nullable ClassLoader loader) {
-        ConcurrentMap<String, ParsedType> parsedTypes = getParsedTypes(loader);
+        LoaderParsedTypes loaderParsedTypes = getLoaderParsedTypes(loader);
         String typeName = parsedType.getName();
-        parsedTypes.put(typeName, parsedType);
+        loaderParsedTypes.parsedTypes.put(typeName, parsedType);
+        // the type may have been looked up (unsuccessfully) before it was defined, and that lookup
+        // may have been from any class loader that delegates to this class loader (not only this
+        // class loader itself), and there is no way to enumerate the child class loaders, so the
+        // type name is removed from all of the negative caches
+        bootLoaderParsedTypeCache.unresolvableTypeNames.remove(typeName);
+        for (LoaderParsedTypes otherLoaderParsedTypes : parsedTypeCache.asMap().values()) {
+            otherLoaderParsedTypes.unresolvableTypeNames.remove(typeName);
+        }
         addTypeNameUpper(typeName);
     }
 
@@ -196,7 +284,11 @@ public class ParsedTypeCache {
 
     ParsedType getParsedType(String typeName, @Nullable ClassLoader loader)
             throws ClassNotFoundException, IOException {
-        return getOrCreateParsedType(typeName, loader);
+        ParsedType parsedType = getOrCreateParsedType(typeName, loader);
+        if (parsedType == null) {
+            throw new ClassNotFoundException(typeName);
+        }
+        return parsedType;
     }
 
     // it's ok if there are duplicates in the returned list (e.g. an interface that appears twice
@@ -210,12 +302,20 @@ public class ParsedTypeCache {
         } catch (IOException e) {
             logger.error(e.getMessage(), e);
             return ImmutableList.of();
-        } catch (ClassNotFoundException e) {
+        }
+        if (parsedType == null) {
             // log at debug level only since the code referencing the class must not be getting used
             // anyways, as it would fail on execution since the type doesn't exist
             logger.debug("type {} not found while parsing type {}", typeName, parseContext);
             return ImmutableList.of();
         }
+        if (prefetchExecutor != null) {
+            // the first branch (the super class) is resolved right away below by this thread, so
+            // only the other branches (the interfaces) are prefetched
+            for (String interfaceName : parsedType.getInterfaceNames()) {
+                prefetch(interfaceName, loader);
+            }
+        }
         ImmutableList.Builder<ParsedType> superTypes = ImmutableList.builder();
         superTypes.add(parsedType);
         String superName = parsedType.getSuperName();
@@ -228,63 +328,134 @@ public class ParsedTypeCache {
         return superTypes.build();
     }
 
+    // returns null if the type cannot be found
+    @Nullable
     private ParsedType getOrCreateParsedType(String typeName, @Nullable ClassLoader loader)
-            throws ClassNotFoundException, IOException {
+            throws IOException {
         ClassLoader parsedTypeLoader = getParsedTypeLoader(typeName, loader);
-        ConcurrentMap<String, ParsedType> loaderParsedTypes = getParsedTypes(parsedTypeLoader);
-        ParsedType parsedType = loaderParsedTypes.get(typeName);
-        if (parsedType == null) {
-            parsedType = createParsedType(typeName, parsedTypeLoader);
-            ParsedType storedParsedType = loaderParsedTypes.putIfAbsent(typeName, parsedType);
-            if (storedParsedType != null) {
-                // (rare) concurrent ParsedType creation, use the one that made it into the map
-                parsedType = storedParsedType;
-            }
-            addTypeNameUpper(typeName);
+        LoaderParsedTypes loaderParsedTypes = getLoaderParsedTypes(parsedTypeLoader);
+        ParsedType parsedType = loaderParsedTypes.parsedTypes.get(typeName);
+        if (parsedType != null) {
+            hitCount.incrementAndGet();
+            return parsedType;
+        }
+        if (loaderParsedTypes.unresolvableTypeNames.containsKey(typeName)) {
+            negativeHitCount.incrementAndGet();
+            return null;
+        }
+        missCount.incrementAndGet();
+        long startTick = System.nanoTime();
+        try {
+            parsedType = createParsedType(typeName, parsedTypeLoader, true);
+        } catch (ClassNotFoundException e) {
+            loaderParsedTypes.unresolvableTypeNames.put(typeName, Boolean.TRUE);
+            return null;
+        } finally {
+            resolveNanos.addAndGet(System.nanoTime() - startTick);
         }
+        // parsed type is only null when plan B is not allowed
+        checkNotNull(parsedType);
+        return putIfAbsent(loaderParsedTypes, parsedType);
+    }
+
+    private ParsedType putIfAbsent(LoaderParsedTypes loaderParsedTypes, ParsedType parsedType) {
+        String typeName = parsedType.getName();
+        ParsedType storedParsedType = loaderParsedTypes.parsedTypes.putIfAbsent(typeName,
+                parsedType);
+        if (storedParsedType != null) {
+            // concurrent ParsedType creation (e.g. with a prefetch), use the one that made it into
+            // the map
+            return storedParsedType;
+        }
+        addTypeNameUpper(typeName);
         return parsedType;
     }
 
-    private List<Class<?>> getExistingSubClasses(Set<String> rootTypeNames,
-            @Nullable ClassLoader loader) {
-        List<Class<?>> classes = Lists.newArrayList();
-        for (ParsedType parsedType : getParsedTypes(loader).values()) {
-            if (isSubClass(parsedType, rootTypeNames, loader)) {
+    private void prefetch(final String typeName, @Nullable final ClassLoader loader) {
+        if (prefetchExecutor == null) {
+            return;
+        }
+        prefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    classes.add(Class.forName(parsedType.getName(), false, loader));
-                } catch (ClassNotFoundException e) {
-                    logger.warn(e.getMessage(), e);
+                    prefetchBranch(typeName, loader);
+                } catch (Throwable t) {
+                    // prefetch is only a best effort, the weaving thread will resolve (and log)
+                    // the same type itself if needed
+                    logger.debug(t.getMessage(), t);
                 }
             }
+        });
+    }
+
+    // this runs on a prefetch thread, so it never loads classes (plan B), since that could
+    // deadlock with the weaving thread which may be holding the class loader's lock, and it never
+    // populates the negative cache, since it doesn't try plan B
+    private void prefetchBranch(String typeName, @Nullable ClassLoader loader)
+            throws IOException, ClassNotFoundException {
+        if (typeName.equals("java.lang.Object")) {
+            return;
+        }
+        ClassLoader parsedTypeLoader = getParsedTypeLoader(typeName, loader);
+        LoaderParsedTypes loaderParsedTypes = getLoaderParsedTypes(parsedTypeLoader);
+        ParsedType parsedType = loaderParsedTypes.parsedTypes.get(typeName);
+        if (parsedType == null) {
+            if (loaderParsedTypes.unresolvableTypeNames.containsKey(typeName)) {
+                return;
+            }
+            parsedType = createParsedType(typeName, parsedTypeLoader, false);
+            if (parsedType == null) {
+                return;
+            }
+            prefetchCount.incrementAndGet();
+            parsedType = putIfAbsent(loaderParsedTypes, parsedType);
+        }
+        String superName = parsedType.getSuperName();
+        if (superName != null) {
+            prefetchBranch(superName, loader);
+        }
+        for (String interfaceName : parsedType.getInterfaceNames()) {
+            prefetchBranch(interfaceName, loader);
         }
-        return classes;
     }
 
-    private boolean isSubClass(ParsedType parsedType, Set<String> rootTypeNames,
-            @Nullable ClassLoader loader) {
-        List<String> superTypeNames = getExistingTypeHierarchy(parsedType, loader);
-        for (String superTypeName : superTypeNames) {
-            if (rootTypeNames.contains(superTypeName)) {
-                return true;
+    private void addExistingTypeNamesToReweave(LoaderParsedTypes loaderParsedTypes,
+            @Nullable ClassLoader loader, AdviceIndex addedAdvisors, AdviceIndex removedAdvisors,
+            Set<String> typeNames) {
+        ImmutableList<AdviceIndex> added = ImmutableList.of(addedAdvisors);
+        ImmutableList<AdviceIndex> removed = ImmutableList.of(removedAdvisors);
+        boolean anyRemoved = !removedAdvisors.getAdvisors().isEmpty();
+        for (ParsedType parsedType : loaderParsedTypes.parsedTypes.values()) {
+            String typeName = parsedType.getName();
+            Type type = Type.getObjectType(TypeNames.toInternal(typeName));
+            List<ParsedType> superTypes = getExistingSuperTypes(parsedType, loader);
+            if (!AdviceMatcher.getAdviceMatchers(type, superTypes, added).isEmpty()
+                    || anyRemoved && parsedType.hasReweavableAdvice()
+                    && !AdviceMatcher.getAdviceMatchers(type, superTypes, removed).isEmpty()) {
+                typeNames.add(typeName);
             }
         }
-        return false;
     }
 
-    private List<String> getExistingTypeHierarchy(ParsedType parsedType,
+    // unlike getTypeHierarchy(), this only returns super types that have already been parsed,
+    // since it is not called in the context of weaving and should not trigger any class loading
+    private List<ParsedType> getExistingSuperTypes(ParsedType parsedType,
             @Nullable ClassLoader loader) {
-        List<String> superTypes = Lists.newArrayList(parsedType.getName());
+        List<ParsedType> superTypes = Lists.newArrayList();
         String superName = parsedType.getSuperName();
         if (superName != null && !superName.equals("java.lang.Object")) {
             ParsedType superParsedType = getExistingParsedType(superName, loader);
             if (superParsedType != null) {
-                superTypes.addAll(getExistingTypeHierarchy(superParsedType, loader));
+                superTypes.add(superParsedType);
+                superTypes.addAll(getExistingSuperTypes(superParsedType, loader));
             }
         }
         for (String interfaceName : parsedType.getInterfaceNames()) {
             ParsedType interfaceParsedType = getExistingParsedType(interfaceName, loader);
             if (interfaceParsedType != null) {
-                superTypes.addAll(getExistingTypeHierarchy(interfaceParsedType, loader));
+                superTypes.add(interfaceParsedType);
+                superTypes.addAll(getExistingSuperTypes(interfaceParsedType, loader));
             }
         }
         return superTypes;
@@ -293,10 +464,7 @@ public class ParsedTypeCache {
     @Nullable
     private ParsedType getExistingParsedType(String typeName, @Nullable ClassLoader loader) {
         ClassLoader parsedTypeLoader = getParsedTypeLoader(typeName, loader);
-        if (parsedTypeLoader == null) {
-            return bootLoaderParsedTypeCache.get(typeName);
-        }
-        return parsedTypeCache.getUnchecked(parsedTypeLoader).get(typeName);
+        return getLoaderParsedTypes(parsedTypeLoader).parsedTypes.get(typeName);
     }
 
     @Nullable
@@ -325,8 +493,10 @@ public class ParsedTypeCache {
         return parsedTypeLoader;
     }
 
-    private ParsedType createParsedType(String typeName, @Nullable ClassLoader loader)
-            throws ClassNotFoundException, IOException {
+    // returns null only if allowPlanB is false and the type is not available via getResource()
+    @Nullable
+    private ParsedType createParsedType(String typeName, @Nullable ClassLoader loader,
+            boolean allowPlanB) throws ClassNotFoundException, IOException {
         ParsedTypeClassVisitor cv = new ParsedTypeClassVisitor();
         String path = TypeNames.toInternal(typeName) + ".class";
         URL url;
@@ -337,6 +507,9 @@ public class ParsedTypeCache {
             url = loader.getResource(path);
         }
         if (url == null) {
+            if (!allowPlanB) {
+                return null;
+            }
             // what follows is just a best attempt in the sort-of-rare case when a custom class
             // loader does not expose .class file contents via getResource(), e.g.
             // org.codehaus.groovy.runtime.callsite.CallSiteClassLoader
@@ -354,7 +527,8 @@ public class ParsedTypeCache {
     private ParsedType createParsedTypePlanB(String typeName, @Nullable ClassLoader loader)
             throws ClassNotFoundException {
         Class<?> type = Class.forName(typeName, false, loader);
-        ParsedType parsedType = getParsedTypes(type.getClassLoader()).get(typeName);
+        ParsedType parsedType =
+                getLoaderParsedTypes(type.getClassLoader()).parsedTypes.get(typeName);
         if (parsedType == null) {
             // a class was loaded by Class.forName() above that was not previously loaded which
             // means weaving was bypassed since ClassFileTransformer.transform() is not re-entrant
@@ -403,7 +577,7 @@ public class ParsedTypeCache {
                 parsedMethods.build());
     }
 
-    private ConcurrentMap<String, ParsedType> getParsedTypes(@Nullable ClassLoader loader) {
+    private LoaderParsedTypes getLoaderParsedTypes(@Nullable ClassLoader loader) {
         if (loader == null) {
             return bootLoaderParsedTypeCache;
         } else {
@@ -411,18 +585,41 @@ public class ParsedTypeCache {
         }
     }
 
+    // must be called while holding the typeNameUppers lock
+    private void buildTypeNameUppers() {
+        // the flag is set before reading the parsed types so that any type added concurrently is
+        // either read here or added by addTypeNameUpper() (or both, which is harmless)
+        typeNameUppersBuilt = true;
+        for (String typeName : bootLoaderParsedTypeCache.parsedTypes.keySet()) {
+            addTypeNameUpperInternal(typeName);
+        }
+        for (LoaderParsedTypes loaderParsedTypes : parsedTypeCache.asMap().values()) {
+            for (String typeName : loaderParsedTypes.parsedTypes.keySet()) {
+                addTypeNameUpperInternal(typeName);
+            }
+        }
+    }
+
     private void addTypeNameUpper(String typeName) {
-        String typeNameUpper = typeName.toUpperCase(Locale.ENGLISH);
+        if (!typeNameUppersBuilt) {
+            return;
+        }
         synchronized (typeNameUppers) {
-            SortedSet<String> typeNames = typeNameUppers.get(typeNameUpper);
-            if (typeNames == null) {
-                typeNames = Sets.newTreeSet();
-                typeNameUppers.put(typeNameUpper, typeNames);
-            }
-            typeNames.add(typeName);
+            addTypeNameUpperInternal(typeName);
         }
     }
 
+    // must be called while holding the typeNameUppers lock
+    private void addTypeNameUpperInternal(String typeName) {
+        String typeNameUpper = typeName.toUpperCase(Locale.ENGLISH);
+        SortedSet<String> typeNames = typeNameUppers.get(typeNameUpper);
+        if (typeNames == null) {
+            typeNames = Sets.newTreeSet();
+            typeNameUppers.put(typeNameUpper, typeNames);
+        }
+        typeNames.add(typeName);
+    }
+
     @Override
     @Pure
     public String toString() {
@@ -432,6 +629,56 @@ public class ParsedTypeCache {
                 .toString();
     }
 
+    // the parsed types and the unresolvable type names for a single class loader are held together
+    // so that there is a single (weak keyed) cache entry per class loader
+    //
+    // intentionally avoiding Maps.newConcurrentMap() since it uses many additional classes that
+    // must then be pre-initialized since this is called from inside
+    // ClassFileTransformer.transform() (see PreInitializeClasses)
+    private static class LoaderParsedTypes {
+        private final ConcurrentMap<String, ParsedType> parsedTypes =
+                new ConcurrentHashMap<String, ParsedType>();
+        // there is no concurrent set without using additional classes (see above)
+        private final ConcurrentMap<String, Boolean> unresolvableTypeNames =
+                new ConcurrentHashMap<String, Boolean>();
+        @Override
+        @Pure
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("parsedTypes", parsedTypes)
+                    .add("unresolvableTypeNames", unresolvableTypeNames.keySet())
+                    .toString();
+        }
+    }
+
+    // the class loaders are only retained for as long as the caller holds on to this
+    @NotThreadSafe
+    public static class LoaderTypeNames {
+
+        private final Set<String> bootLoaderTypeNames = Sets.newHashSet();
+        private final Map<ClassLoader, Set<String>> typeNames = Maps.newHashMap();
+
+        public boolean contains(@Nullable ClassLoader loader, String typeName) {
+            return getTypeNames(loader).contains(typeName);
+        }
+
+        public boolean isEmpty() {
+            return bootLoaderTypeNames.isEmpty() && typeNames.isEmpty();
+        }
+
+        @ReadOnly
+        Set<String> getTypeNames(@Nullable ClassLoader loader) {
+            if (loader == null) {
+                return bootLoaderTypeNames;
+            }
+            Set<String> loaderTypeNames = typeNames.get(loader);
+            if (loaderTypeNames == null) {
+                return ImmutableSet.of();
+            }
+            return loaderTypeNames;
+        }
+    }
+
     static class ParseContext {
         private final String className;
         @Nullable
@@ -462,8 +709,7 @@ public class ParsedTypeCache {
             return ComparisonChain.start()
                     .compare(getAccessibility(left), getAccessibility(right))
                     .compare(left.getName(), right.getName())
-                    .compare(left.getArgTypeNames().size(), right.getArgTypeNames().size())
-                    .compare(left.getArgTypeNames().size(), right.getArgTypeNames().size())
+                    .compare(left.getArgCount(), right.getArgCount())
                     .result();
         }
 
@@ -374,7 +374,8 @@ class PreInitializeClasses {
         types.add("org.glowroot.common.ScheduledRunnable");
         types.add("org.glowroot.common.ScheduledRunnable$TerminateSubsequentExecutionsException");
         types.add("org.glowroot.local.store.DataSource");
-        types.add("org.glowroot.local.store.DataSource$1");
+        types.add("org.glowroot.local.store.DataSource$CachingConnection");
+        types.add("org.glowroot.local.store.DataSource$CachingConnection$1");
         types.add("org.glowroot.local.store.DataSource$ShutdownHookThread");
         types.add("org.glowroot.local.store.RollingFile");
         types.add("org.glowroot.local.store.RollingFile$ShutdownHookThread");
@@ -384,12 +385,17 @@ class PreInitializeClasses {
         types.add("org.glowroot.trace.MetricTimerServiceImpl");
         types.add("org.glowroot.trace.MetricTimerServiceImpl$NopMetricTimer");
         types.add("org.glowroot.trace.TraceRegistry");
+        types.add("org.glowroot.trace.model.GarbageCollectorSnapshot");
+        types.add("org.glowroot.trace.model.GarbageCollectorSnapshot$CollectorInfo");
         types.add("org.glowroot.trace.model.JvmInfo");
+        types.add("org.glowroot.trace.model.FrameDictionary");
         types.add("org.glowroot.trace.model.MergedStackTree");
         types.add("org.glowroot.trace.model.Metric");
         types.add("org.glowroot.trace.model.MetricNameImpl");
+        types.add("org.glowroot.trace.model.MetricNameImpl$MetricHolder");
         types.add("org.glowroot.trace.model.RootSpan");
         types.add("org.glowroot.trace.model.Span");
+        types.add("org.glowroot.trace.model.SpanList");
         types.add("org.glowroot.trace.model.Trace");
         types.add("org.glowroot.trace.model.TraceUniqueId");
         types.add("org.glowroot.weaving.Advice");
@@ -398,6 +404,7 @@ class PreInitializeClasses {
         types.add("org.glowroot.weaving.AdviceFlowOuterHolder");
         types.add("org.glowroot.weaving.AdviceFlowOuterHolder$1");
         types.add("org.glowroot.weaving.AdviceFlowOuterHolder$AdviceFlowHolder");
+        types.add("org.glowroot.weaving.AdviceIndex");
         types.add("org.glowroot.weaving.AdviceMatcher");
         types.add("org.glowroot.weaving.MetricTimerService");
         types.add("org.glowroot.weaving.MixinMatcher");
@@ -407,9 +414,13 @@ class PreInitializeClasses {
         types.add("org.glowroot.weaving.ParsedType$Builder");
         types.add("org.glowroot.weaving.ParsedTypeCache");
         types.add("org.glowroot.weaving.ParsedTypeCache$1");
+        types.add("org.glowroot.weaving.ParsedTypeCache$2");
+        types.add("org.glowroot.weaving.ParsedTypeCache$LoaderParsedTypes");
         types.add("org.glowroot.weaving.ParsedTypeCache$ParseContext");
         types.add("org.glowroot.weaving.ParsedTypeCache$ParsedTypeClassVisitor");
         types.add("org.glowroot.weaving.PreInitializeClasses");
+        types.add("org.glowroot.weaving.PreScanClassVisitor");
+        types.add("org.glowroot.weaving.StringTable");
         types.add("org.glowroot.weaving.TypeNames");
         types.add("org.glowroot.weaving.Weaver");
         types.add("org.glowroot.weaving.Weaver$ComputeFramesClassWriter");
@@ -420,6 +431,10 @@ class PreInitializeClasses {
         types.add("org.glowroot.weaving.WeavingClassVisitor$InitMixins");
         types.add("org.glowroot.weaving.WeavingMethodVisitor");
         types.add("org.glowroot.weaving.WeavingMethodVisitor$MarkerException");
+        types.add("org.glowroot.weaving.WovenClassCache");
+        types.add("org.glowroot.weaving.WovenClassCache$AdviceFingerprint");
+        types.add("org.glowroot.weaving.WovenClassCache$Location");
+        types.add("org.glowroot.weaving.WovenClassCache$WovenClass");
         return types;
     }
 
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.weaving;
+
+import java.lang.reflect.Modifier;
+import java.security.CodeSource;
+import java.util.List;
+
+import checkers.nullness.quals.Nullable;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import dataflow.quals.Pure;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import org.glowroot.weaving.ParsedTypeCache.ParseContext;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.objectweb.asm.Opcodes.ACC_NATIVE;
+import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
+import static org.objectweb.asm.Opcodes.ASM4;
+
+/**
+ * Read-only pass over the class header and method signatures (method bodies are skipped by the
+ * caller) which determines whether there is anything at all to weave, so that the vast majority of
+ * classes which have nothing to weave can be skipped before paying for the full parse and rewrite
+ * (including frame computation) in {@link WeavingClassVisitor}.
+ *
+ * The parsed type model is built as a side effect, since it needs to be added to the
+ * {@link ParsedTypeCache} whether or not the class ends up being woven.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+class PreScanClassVisitor extends ClassVisitor {
+
+    private final ImmutableList<MixinType> mixinTypes;
+    private final ImmutableList<AdviceIndex> adviceIndexes;
+    @Nullable
+    private final ClassLoader loader;
+    private final ParsedTypeCache parsedTypeCache;
+    @Nullable
+    private final CodeSource codeSource;
+
+    private ImmutableList<AdviceMatcher> adviceMatchers = ImmutableList.of();
+    private ImmutableList<ParsedType> superTypes = ImmutableList.of();
+    private boolean somethingToWeave;
+
+    private ParsedType./*@MonotonicNonNull*/Builder parsedTypeBuilder;
+
+    PreScanClassVisitor(ImmutableList<MixinType> mixinTypes,
+            ImmutableList<AdviceIndex> adviceIndexes, @Nullable ClassLoader loader,
+            ParsedTypeCache parsedTypeCache, @Nullable CodeSource codeSource) {
+        super(ASM4);
+        this.mixinTypes = mixinTypes;
+        this.adviceIndexes = adviceIndexes;
+        this.loader = loader;
+        this.parsedTypeCache = parsedTypeCache;
+        this.codeSource = codeSource;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, @Nullable String signature,
+            @Nullable String superName, String/*@Nullable*/[] interfaceNamesNullable) {
+        String[] interfaceNames = interfaceNamesNullable == null ? new String[0]
+                : interfaceNamesNullable;
+        parsedTypeBuilder = ParsedType.builder(Modifier.isInterface(access),
+                TypeNames.fromInternal(name), TypeNames.fromInternal(superName),
+                TypeNames.fromInternal(interfaceNames));
+        if (Modifier.isInterface(access)) {
+            // interfaces never get woven
+            return;
+        }
+        Type type = Type.getObjectType(name);
+        ParseContext parseContext = new ParseContext(type.getClassName(), codeSource);
+        List<ParsedType> superHierarchy = parsedTypeCache.getTypeHierarchy(
+                TypeNames.fromInternal(superName), loader, parseContext);
+        List<ParsedType> interfaceHierarchy = getInterfaceHierarchy(interfaceNames, parseContext);
+        superTypes = ImmutableList.copyOf(Iterables.concat(superHierarchy, interfaceHierarchy));
+        adviceMatchers = AdviceMatcher.getAdviceMatchers(type, superTypes, adviceIndexes);
+        if (!MixinMatcher.getMatchedMixinTypes(mixinTypes, type, superTypes).isEmpty()) {
+            // mixins always require weaving
+            somethingToWeave = true;
+            return;
+        }
+        if (!adviceMatchers.isEmpty()) {
+            for (ParsedType interfaceType : interfaceHierarchy) {
+                if (!superHierarchy.contains(interfaceType)) {
+                    // methods inherited from a super class may need to be overridden and woven in
+                    // order to fulfill this interface (see
+                    // WeavingClassVisitor.handleInheritedMethodsFulfillingAnInterface()), which is
+                    // rare enough that it's not worth checking precisely here, so err on the side
+                    // of running the full weaving pass
+                    somethingToWeave = true;
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    @Nullable
+    public MethodVisitor visitMethod(int access, String name, String desc,
+            @Nullable String signature, String/*@Nullable*/[] exceptions) {
+        // visit() must be called
+        checkNotNull(parsedTypeBuilder, "Call to visit() is required");
+        if ((access & (ACC_NATIVE | ACC_SYNTHETIC)) != 0) {
+            // don't add native or synthetic methods to the parsed type model
+            return null;
+        }
+        ImmutableList<String> exceptionList = exceptions == null
+                ? ImmutableList.<String>of() : ImmutableList.copyOf(exceptions);
+        ParsedMethod parsedMethod = parsedTypeBuilder.addParsedMethod(access, name, desc,
+                signature, exceptionList);
+        if (somethingToWeave || Modifier.isAbstract(access)) {
+            // already know the answer, or abstract method which never gets woven
+            return null;
+        }
+        for (AdviceMatcher adviceMatcher : adviceMatchers) {
+            if (adviceMatcher.isMethodLevelMatch(access, parsedMethod)) {
+                somethingToWeave = true;
+                break;
+            }
+        }
+        // method bodies are not needed
+        return null;
+    }
+
+    boolean isSomethingToWeave() {
+        return somethingToWeave;
+    }
+
+    // it's ok if there are duplicates in the returned list (e.g. an interface that appears twice
+    // in a type hierarchy), see ParsedTypeCache.getTypeHierarchy()
+    ImmutableList<ParsedType> getSuperTypes() {
+        return superTypes;
+    }
+
+    ParsedType buildParsedType(boolean hasReweavableAdvice) {
+        checkNotNull(parsedTypeBuilder, "Call to visit() is required");
+        parsedTypeBuilder.setHasReweavableAdvice(hasReweavableAdvice);
+        return parsedTypeBuilder.build();
+    }
+
+    private List<ParsedType> getInterfaceHierarchy(String[] interfaceNames,
+            ParseContext parseContext) {
+        ImmutableList.Builder<ParsedType> superTypes = ImmutableList.builder();
+        for (String interfaceName : interfaceNames) {
+            superTypes.addAll(parsedTypeCache.getTypeHierarchy(
+                    TypeNames.fromInternal(interfaceName), loader, parseContext));
+        }
+        return superTypes.build();
+    }
+
+    @Override
+    @Pure
+    public String toString() {
+        // not including fields that are just direct copies from Weaver
+        return Objects.toStringHelper(this)
+                .add("codeSource", codeSource)
+                .add("adviceMatchers", adviceMatchers)
+                .add("somethingToWeave", somethingToWeave)
+                .toString();
+    }
+}
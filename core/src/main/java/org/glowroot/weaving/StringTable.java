@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.weaving;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import checkers.igj.quals.ReadOnly;
+import checkers.lock.quals.GuardedBy;
+import checkers.nullness.quals.Nullable;
+import dataflow.quals.Pure;
+
+import org.glowroot.markers.ThreadSafe;
+
+/**
+ * Table of the names (type names and method names) that make up the parsed type model, shared
+ * across all class loaders, so that each distinct name is only held once no matter how many parsed
+ * types and parsed methods reference it, and so that parsed methods can hold ints instead of
+ * references.
+ *
+ * Strings are never removed from the table, since ids cannot be tracked for garbage collection.
+ * Redeploying an application (i.e. creating a new class loader for the same code) does not grow
+ * the table since the names are the same as before, but names that are generated differently each
+ * time (e.g. some dynamic proxy and byte code generation libraries) do accumulate. For this reason
+ * only names are stored in the table, and method descriptors and signatures (which are much longer
+ * and which are rarely shared between methods) are held directly by the parsed methods so that
+ * they are released along with the parsed types of a class loader that is garbage collected.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@ThreadSafe
+class StringTable {
+
+    private static final StringTable INSTANCE = new StringTable();
+
+    // intentionally avoiding Maps.newConcurrentMap() since it uses many additional classes that
+    // must then be pre-initialized since this is called from inside
+    // ClassFileTransformer.transform() (see PreInitializeClasses)
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+    private final Object lock = new Object();
+
+    // the array is only ever replaced (when it grows) under the lock, and an id is only ever
+    // handed out after its string has been written to the array, so readers do not need the lock
+    private volatile String[] strings = new String[4096];
+    @GuardedBy("lock")
+    private int size;
+
+    static StringTable instance() {
+        return INSTANCE;
+    }
+
+    int getId(String string) {
+        Integer id = ids.get(string);
+        if (id != null) {
+            return id;
+        }
+        synchronized (lock) {
+            id = ids.get(string);
+            if (id != null) {
+                return id;
+            }
+            String[] strings = this.strings;
+            if (size == strings.length) {
+                strings = Arrays.copyOf(strings, strings.length * 2);
+            }
+            strings[size] = string;
+            this.strings = strings;
+            id = size++;
+            ids.put(string, id);
+            return id;
+        }
+    }
+
+    int[] getIds(@ReadOnly List<String> strings) {
+        int[] ids = new int[strings.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = getId(strings.get(i));
+        }
+        return ids;
+    }
+
+    @Pure
+    String get(int id) {
+        return strings[id];
+    }
+
+    // returns the table's instance of the string
+    String intern(String string) {
+        return get(getId(string));
+    }
+
+    @Nullable
+    String internNullable(@Nullable String string) {
+        return string == null ? null : intern(string);
+    }
+
+    int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2013 the original author or authors.
+ * Copyright 2012-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -24,7 +24,6 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
 import dataflow.quals.Pure;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -39,6 +38,7 @@ import org.glowroot.api.MetricName;
 import org.glowroot.api.MetricTimer;
 import org.glowroot.markers.ThreadSafe;
 import org.glowroot.weaving.ParsedTypeCache.ParseContext;
+import org.glowroot.weaving.WovenClassCache.WovenClass;
 
 import static org.objectweb.asm.Opcodes.ASM4;
 
@@ -57,25 +57,35 @@ class Weaver {
             Boolean.valueOf(System.getProperty("glowroot.internal.weaving.verify"));
 
     private final ImmutableList<MixinType> mixinTypes;
-    private final ImmutableList<Advice> pluginAdvisors;
-    private final Supplier<ImmutableList<Advice>> pointcutConfigAdvisors;
+    private final AdviceIndex pluginAdviceIndex;
+    private final Supplier<AdviceIndex> pointcutConfigAdviceIndex;
     private final ParsedTypeCache parsedTypeCache;
     private final MetricTimerService metricTimerService;
     private final boolean metricWrapperMethodsDisabled;
+    @Nullable
+    private final WovenClassCache wovenClassCache;
 
     private final MetricName weavingMetricName;
+    // the scan and rewrite metrics are nested inside of the overall weaving metric, and split out
+    // the cost of the cheap pre-scan (which every class pays) from the cost of the full
+    // parse/rewrite (which only classes with something to weave pay)
+    private final MetricName weavingScanMetricName;
+    private final MetricName weavingRewriteMetricName;
 
-    Weaver(ImmutableList<MixinType> mixinTypes, ImmutableList<Advice> pluginAdvisors,
-            Supplier<ImmutableList<Advice>> pointcutConfigAdvisors,
-            ParsedTypeCache parsedTypeCache, MetricTimerService metricTimerService,
-            boolean metricWrapperMethodsDisabled) {
+    Weaver(ImmutableList<MixinType> mixinTypes, AdviceIndex pluginAdviceIndex,
+            Supplier<AdviceIndex> pointcutConfigAdviceIndex, ParsedTypeCache parsedTypeCache,
+            MetricTimerService metricTimerService, boolean metricWrapperMethodsDisabled,
+            @Nullable WovenClassCache wovenClassCache) {
         this.mixinTypes = mixinTypes;
-        this.pluginAdvisors = pluginAdvisors;
-        this.pointcutConfigAdvisors = pointcutConfigAdvisors;
+        this.pluginAdviceIndex = pluginAdviceIndex;
+        this.pointcutConfigAdviceIndex = pointcutConfigAdviceIndex;
         this.parsedTypeCache = parsedTypeCache;
         this.metricTimerService = metricTimerService;
         this.metricWrapperMethodsDisabled = metricWrapperMethodsDisabled;
+        this.wovenClassCache = wovenClassCache;
         weavingMetricName = metricTimerService.getMetricName("glowroot weaving");
+        weavingScanMetricName = metricTimerService.getMetricName("glowroot weaving scan");
+        weavingRewriteMetricName = metricTimerService.getMetricName("glowroot weaving rewrite");
     }
 
     byte/*@Nullable*/[] weave(byte[] classBytes, String className,
@@ -97,6 +107,70 @@ class Weaver {
     private byte/*@Nullable*/[] weaveInternal(byte[] classBytes, String className,
             @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
         MetricTimer metricTimer = metricTimerService.startMetricTimer(weavingMetricName);
+        try {
+            AdviceIndex currPointcutConfigAdviceIndex = pointcutConfigAdviceIndex.get();
+            // plugin advisors are applied before pointcut config advisors
+            ImmutableList<AdviceIndex> adviceIndexes =
+                    ImmutableList.of(pluginAdviceIndex, currPointcutConfigAdviceIndex);
+            ClassReader cr = new ClassReader(classBytes);
+            PreScanClassVisitor preScan = preScan(cr, adviceIndexes, codeSource, loader);
+            if (preScan == null) {
+                return null;
+            }
+            if (wovenClassCache == null) {
+                return rewrite(cr, classBytes, className, adviceIndexes, codeSource, loader, null);
+            }
+            byte[] key = wovenClassCache.getKey(classBytes, className, preScan.getSuperTypes(),
+                    mixinTypes, pluginAdviceIndex.getAdvisors(),
+                    currPointcutConfigAdviceIndex.getAdvisors(),
+                    metricWrapperMethodsDisabled);
+            WovenClass wovenClass = wovenClassCache.get(key);
+            if (wovenClass != null) {
+                // the parsed type still needs to be added to the cache since it is not going to be
+                // added by WeavingClassVisitor
+                parsedTypeCache.add(preScan.buildParsedType(wovenClass.hasReweavableAdvice()),
+                        loader);
+                return wovenClass.getBytes();
+            }
+            return rewrite(cr, classBytes, className, adviceIndexes, codeSource, loader, key);
+        } finally {
+            metricTimer.stop();
+        }
+    }
+
+    // returns null if there is nothing to weave
+    @Nullable
+    private PreScanClassVisitor preScan(ClassReader cr, ImmutableList<AdviceIndex> adviceIndexes,
+            @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
+        MetricTimer metricTimer = metricTimerService.startMetricTimer(weavingScanMetricName);
+        try {
+            PreScanClassVisitor cv = new PreScanClassVisitor(mixinTypes, adviceIndexes, loader,
+                    parsedTypeCache, codeSource);
+            try {
+                // method bodies are not needed for the pre-scan
+                cr.accept(cv, ClassReader.SKIP_CODE + ClassReader.SKIP_DEBUG
+                        + ClassReader.SKIP_FRAMES);
+            } catch (ClassCircularityError e) {
+                logger.error(e.getMessage(), e);
+                return null;
+            }
+            if (!cv.isSomethingToWeave()) {
+                // the parsed type still needs to be added to the cache since it is not going to be
+                // added by WeavingClassVisitor
+                parsedTypeCache.add(cv.buildParsedType(false), loader);
+                return null;
+            }
+            return cv;
+        } finally {
+            metricTimer.stop();
+        }
+    }
+
+    // wovenClassCacheKey is null if the woven class cache is disabled
+    private byte/*@Nullable*/[] rewrite(ClassReader cr, byte[] classBytes, String className,
+            ImmutableList<AdviceIndex> adviceIndexes, @Nullable CodeSource codeSource,
+            @Nullable ClassLoader loader, byte/*@Nullable*/[] wovenClassCacheKey) {
+        MetricTimer metricTimer = metricTimerService.startMetricTimer(weavingRewriteMetricName);
         try {
             // from http://www.oracle.com/technetwork/java/javase/compatibility-417013.html:
             //
@@ -110,14 +184,11 @@ class Weaver {
             // stackmap information to be consistent with the bytecode in order to pass
             // verification."
             //
-            ClassWriter cw = new ComputeFramesClassWriter(
+            ComputeFramesClassWriter cw = new ComputeFramesClassWriter(
                     ClassWriter.COMPUTE_MAXS + ClassWriter.COMPUTE_FRAMES,
                     parsedTypeCache, loader, codeSource, className);
-            Iterable<Advice> advisors = Iterables.concat(pluginAdvisors,
-                    pointcutConfigAdvisors.get());
-            WeavingClassVisitor cv = new WeavingClassVisitor(cw, mixinTypes, advisors, loader,
+            WeavingClassVisitor cv = new WeavingClassVisitor(cw, mixinTypes, adviceIndexes, loader,
                     parsedTypeCache, codeSource, metricWrapperMethodsDisabled);
-            ClassReader cr = new ClassReader(classBytes);
             try {
                 cr.accept(new JSRInlinerClassVisitor(cv), ClassReader.SKIP_FRAMES);
             } catch (ClassCircularityError e) {
@@ -132,6 +203,13 @@ class Weaver {
                     verifyBytecode(classBytes, className, false);
                     verifyBytecode(wovenBytes, className, true);
                 }
+                // the frames of classes that needed type hierarchy lookups depend on types that
+                // are not covered by the woven class cache key, so these are not cached since the
+                // frames could be stale (and fail verification) after those types change
+                if (wovenClassCache != null && wovenClassCacheKey != null
+                        && !cw.isTypeHierarchyUsed()) {
+                    wovenClassCache.put(wovenClassCacheKey, wovenBytes, cv.hasReweavableAdvice());
+                }
                 return wovenBytes;
             }
         } finally {
@@ -144,9 +222,10 @@ class Weaver {
     public String toString() {
         return Objects.toStringHelper(this)
                 .add("mixinTypes", mixinTypes)
-                .add("pluginAdvisors", pluginAdvisors)
-                .add("pointcutConfigAdvisors", pointcutConfigAdvisors)
+                .add("pluginAdviceIndex", pluginAdviceIndex)
+                .add("pointcutConfigAdviceIndex", pointcutConfigAdviceIndex)
                 .add("parsedTypeCache", parsedTypeCache)
+                .add("wovenClassCache", wovenClassCache)
                 .toString();
     }
 
@@ -190,6 +269,7 @@ class Weaver {
         @Nullable
         private final ClassLoader loader;
         private final ParseContext parseContext;
+        private boolean typeHierarchyUsed;
 
         public ComputeFramesClassWriter(int flags, ParsedTypeCache parsedTypeCache,
                 @Nullable ClassLoader loader, @Nullable CodeSource codeSource, String className) {
@@ -199,12 +279,19 @@ class Weaver {
             this.parseContext = new ParseContext(className, codeSource);
         }
 
+        // returns true if the frame computation needed to look up any types (other than the
+        // trivial java/lang/Object case)
+        boolean isTypeHierarchyUsed() {
+            return typeHierarchyUsed;
+        }
+
         // implements logic similar to org.objectweb.asm.ClassWriter.getCommonSuperClass()
         @Override
         protected String getCommonSuperClass(String type1, String type2) {
             if (type1.equals("java/lang/Object") || type2.equals("java/lang/Object")) {
                 return "java/lang/Object";
             }
+            typeHierarchyUsed = true;
             ParsedType parsedType1;
             try {
                 parsedType1 = parsedTypeCache.getParsedType(TypeNames.fromInternal(type1), loader);
@@ -42,12 +42,14 @@ public class WeavingClassFileTransformer implements ClassFileTransformer {
     private static final Logger logger = LoggerFactory.getLogger(WeavingClassFileTransformer.class);
 
     private final ImmutableList<MixinType> mixinTypes;
-    private final ImmutableList<Advice> pluginAdvisors;
-    private final Supplier<ImmutableList<Advice>> pointcutConfigAdvisors;
+    private final AdviceIndex pluginAdviceIndex;
+    private final Supplier<AdviceIndex> pointcutConfigAdviceIndex;
 
     private final ParsedTypeCache parsedTypeCache;
     private final MetricTimerService metricTimerService;
     private final boolean metricWrapperMethodsDisabled;
+    @Nullable
+    private final WovenClassCache wovenClassCache;
 
     // it is important to only have a single weaver per class loader because storing state of each
     // previously parsed class in order to re-construct class hierarchy in case one or more .class
@@ -59,9 +61,10 @@ public class WeavingClassFileTransformer implements ClassFileTransformer {
                     .build(new CacheLoader<ClassLoader, Weaver>() {
                         @Override
                         public Weaver load(ClassLoader loader) {
-                            return new Weaver(mixinTypes, pluginAdvisors, pointcutConfigAdvisors,
-                                    parsedTypeCache, metricTimerService,
-                                    metricWrapperMethodsDisabled);
+                            return new Weaver(mixinTypes, pluginAdviceIndex,
+                                    pointcutConfigAdviceIndex, parsedTypeCache,
+                                    metricTimerService, metricWrapperMethodsDisabled,
+                                    wovenClassCache);
                         }
                     });
     // the weaver for the bootstrap class loader (null) has to be stored separately since
@@ -77,18 +80,19 @@ public class WeavingClassFileTransformer implements ClassFileTransformer {
     // note: an exception is made for WeavingMetric, see PreInitializeClassesTest for explanation
     public WeavingClassFileTransformer(@ReadOnly List<MixinType> mixinTypes,
             @ReadOnly List<Advice> pluginAdvisors,
-            Supplier<ImmutableList<Advice>> pointcutConfigAdvisors,
-            ParsedTypeCache parsedTypeCache, MetricTimerService metricTimerService,
-            boolean metricWrapperMethodsDisabled) {
+            Supplier<AdviceIndex> pointcutConfigAdviceIndex, ParsedTypeCache parsedTypeCache,
+            MetricTimerService metricTimerService, boolean metricWrapperMethodsDisabled,
+            @Nullable WovenClassCache wovenClassCache) {
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
-        this.pluginAdvisors = ImmutableList.copyOf(pluginAdvisors);
-        this.pointcutConfigAdvisors = pointcutConfigAdvisors;
+        pluginAdviceIndex = AdviceIndex.of(pluginAdvisors);
+        this.pointcutConfigAdviceIndex = pointcutConfigAdviceIndex;
         this.parsedTypeCache = parsedTypeCache;
         this.metricTimerService = metricTimerService;
         this.metricWrapperMethodsDisabled = metricWrapperMethodsDisabled;
-        bootLoaderWeaver = new Weaver(this.mixinTypes, this.pluginAdvisors,
-                this.pointcutConfigAdvisors, parsedTypeCache, metricTimerService,
-                metricWrapperMethodsDisabled);
+        this.wovenClassCache = wovenClassCache;
+        bootLoaderWeaver = new Weaver(this.mixinTypes, pluginAdviceIndex,
+                this.pointcutConfigAdviceIndex, parsedTypeCache, metricTimerService,
+                metricWrapperMethodsDisabled, wovenClassCache);
         PreInitializeClasses.preInitializeClasses(WeavingClassFileTransformer.class
                 .getClassLoader());
     }
@@ -73,8 +73,7 @@ class WeavingClassVisitor extends ClassVisitor {
     private final ClassVisitor cv;
 
     private final ImmutableList<MixinType> mixinTypes;
-    @ReadOnly
-    private final Iterable<Advice> advisors;
+    private final ImmutableList<AdviceIndex> adviceIndexes;
     @Nullable
     private final ClassLoader loader;
     private final ParsedTypeCache parsedTypeCache;
@@ -95,15 +94,17 @@ class WeavingClassVisitor extends ClassVisitor {
     private boolean nothingAtAllToWeave;
 
     private ParsedType./*@MonotonicNonNull*/Builder parsedTypeBuilder;
+    @MonotonicNonNull
+    private ParsedType parsedType;
 
     public WeavingClassVisitor(ClassVisitor cv, ImmutableList<MixinType> mixinTypes,
-            @ReadOnly Iterable<Advice> advisors, @Nullable ClassLoader loader,
+            ImmutableList<AdviceIndex> adviceIndexes, @Nullable ClassLoader loader,
             ParsedTypeCache parsedTypeCache, @Nullable CodeSource codeSource,
             boolean metricWrapperMethodsDisabled) {
         super(ASM4, cv);
         this.cv = cv;
         this.mixinTypes = mixinTypes;
-        this.advisors = advisors;
+        this.adviceIndexes = adviceIndexes;
         this.loader = loader;
         this.parsedTypeCache = parsedTypeCache;
         this.codeSource = codeSource;
@@ -133,8 +134,8 @@ class WeavingClassVisitor extends ClassVisitor {
         // twice in a type hierarchy), it's rare, dups don't cause an issue for callers, and so it
         // doesn't seem worth the (minor) performance hit to de-dup every time
         Iterable<ParsedType> superTypes = Iterables.concat(superHierarchy, interfaceHierarchy);
-        adviceMatchers = getAdviceMatchers(type, superTypes);
-        matchedMixinTypes = getMatchedMixinTypes(type, superTypes);
+        adviceMatchers = AdviceMatcher.getAdviceMatchers(type, superTypes, adviceIndexes);
+        matchedMixinTypes = MixinMatcher.getMatchedMixinTypes(mixinTypes, type, superTypes);
         if (adviceMatchers.isEmpty() && matchedMixinTypes.isEmpty()) {
             nothingAtAllToWeave = true;
             return;
@@ -183,6 +184,7 @@ class WeavingClassVisitor extends ClassVisitor {
         checkNotNull(parsedTypeBuilder, "Call to visit() is required");
         ParsedType parsedType = parsedTypeBuilder.build();
         parsedTypeCache.add(parsedType, loader);
+        this.parsedType = parsedType;
         if (nothingAtAllToWeave) {
             return;
         }
@@ -201,6 +203,11 @@ class WeavingClassVisitor extends ClassVisitor {
         return nothingAtAllToWeave;
     }
 
+    boolean hasReweavableAdvice() {
+        checkNotNull(parsedType, "Call to visitEnd() is required");
+        return parsedType.hasReweavableAdvice();
+    }
+
     @RequiresNonNull("type")
     private List<ParsedType> getInterfaceHierarchy(String[] interfaceNames) {
         List<ParsedType> superTypes = Lists.newArrayList();
@@ -212,29 +219,6 @@ class WeavingClassVisitor extends ClassVisitor {
         return superTypes;
     }
 
-    private ImmutableList<AdviceMatcher> getAdviceMatchers(Type type,
-            Iterable<ParsedType> superTypes) {
-        ImmutableList.Builder<AdviceMatcher> adviceMatchersBuilder = ImmutableList.builder();
-        for (Advice advice : advisors) {
-            AdviceMatcher adviceMatcher = new AdviceMatcher(advice, type, superTypes);
-            if (adviceMatcher.isClassLevelMatch()) {
-                adviceMatchersBuilder.add(adviceMatcher);
-            }
-        }
-        return adviceMatchersBuilder.build();
-    }
-
-    private ImmutableList<MixinType> getMatchedMixinTypes(Type type,
-            Iterable<ParsedType> superTypes) {
-        ImmutableList.Builder<MixinType> matchedMixinTypesBuilder = ImmutableList.builder();
-        for (MixinType mixinType : mixinTypes) {
-            if (MixinMatcher.isMatch(mixinType, type, superTypes)) {
-                matchedMixinTypesBuilder.add(mixinType);
-            }
-        }
-        return matchedMixinTypesBuilder.build();
-    }
-
     private static String[] getInterfacesIncludingMixins(String[] interfaceNames,
             ImmutableList<MixinType> matchedMixinTypes) {
         if (matchedMixinTypes.isEmpty()) {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2013 the original author or authors.
+ * Copyright 2012-2014 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -240,40 +240,52 @@ class WeavingMethodVisitor extends AdviceAdapter {
     }
 
     private void defineAndEvaluateEnabledLocalVar(Advice advice) {
-        Integer enabledLocal = null;
-        Method isEnabledAdvice = advice.getIsEnabledAdvice();
-        if (isEnabledAdvice != null) {
-            loadMethodArgs(advice.getIsEnabledParameters(), 0, -1, advice.getAdviceType(),
-                    IsEnabled.class);
-            invokeStatic(advice.getAdviceType(), isEnabledAdvice);
-            enabledLocal = newLocal(Type.BOOLEAN_TYPE);
-            enabledLocals.put(advice, enabledLocal);
-            storeLocal(enabledLocal);
-        }
+        Type generatedAdviceFlowType = Type.getType(advice.getGeneratedAdviceFlowClass());
+        // enabledLocal and the adviceFlow locals must be defined/initialized outside of any code
+        // branches since they are referenced later on (e.g. in resetAdviceFlowIfNecessary())
+        int enabledLocal = newLocal(Type.BOOLEAN_TYPE);
+        enabledLocals.put(advice, enabledLocal);
+        push(false);
+        storeLocal(enabledLocal);
+        Integer adviceFlowHolderLocal = null;
+        Integer adviceFlowLocal = null;
         if (!advice.getPointcut().captureNested()) {
-            // topFlowLocal must be defined/initialized outside of any code branches since it is
-            // referenced later on in resetAdviceFlowIfNecessary()
-            int adviceFlowHolderLocal = newLocal(adviceFlowHolderType);
+            adviceFlowHolderLocal = newLocal(adviceFlowHolderType);
             adviceFlowHolderLocals.put(advice, adviceFlowHolderLocal);
             visitInsn(ACONST_NULL);
             storeLocal(adviceFlowHolderLocal);
 
-            int adviceFlowLocal = newLocal(Type.BOOLEAN_TYPE);
+            adviceFlowLocal = newLocal(Type.BOOLEAN_TYPE);
             adviceFlowLocals.put(advice, adviceFlowLocal);
             push(false);
             storeLocal(adviceFlowLocal);
-
-            Label setAdviceFlowBlockEnd = newLabel();
-            if (enabledLocal != null) {
-                loadLocal(enabledLocal);
-                visitJumpInsn(IFEQ, setAdviceFlowBlockEnd);
+        }
+        Label setEnabledBlockEnd = newLabel();
+        // the armed check comes first so that nothing else is executed while the advice is
+        // disarmed (see AdviceSwitch)
+        //
+        // ifZCmp() is used instead of visitJumpInsn() in this method since this may be called from
+        // inside a constructor, where AdviceAdapter.visitJumpInsn() tracks the stack of the
+        // original constructor code and cannot see values pushed through GeneratorAdapter
+        getStatic(generatedAdviceFlowType, AdviceSwitch.ARMED_FIELD_NAME, Type.BOOLEAN_TYPE);
+        ifZCmp(EQ, setEnabledBlockEnd);
+        Method isEnabledAdvice = advice.getIsEnabledAdvice();
+        if (isEnabledAdvice != null) {
+            loadMethodArgs(advice.getIsEnabledParameters(), 0, -1, advice.getAdviceType(),
+                    IsEnabled.class);
+            invokeStatic(advice.getAdviceType(), isEnabledAdvice);
+            if (adviceFlowHolderLocal == null) {
+                storeLocal(enabledLocal);
             } else {
-                enabledLocal = newLocal(Type.BOOLEAN_TYPE);
-                enabledLocals.put(advice, enabledLocal);
-                // it will be initialized below
+                ifZCmp(EQ, setEnabledBlockEnd);
             }
-            getStatic(Type.getType(advice.getGeneratedAdviceFlowClass()), "adviceFlow",
-                    adviceFlowOuterHolderType);
+        } else if (adviceFlowHolderLocal == null) {
+            push(true);
+            storeLocal(enabledLocal);
+        }
+        if (adviceFlowHolderLocal != null) {
+            checkNotNull(adviceFlowLocal);
+            getStatic(generatedAdviceFlowType, "adviceFlow", adviceFlowOuterHolderType);
             invokeVirtual(adviceFlowOuterHolderType, Method.getMethod(
                     AdviceFlowHolder.class.getName() + " getInnerHolder()"));
             // and dup one more time for the subsequent conditional
@@ -285,11 +297,9 @@ class WeavingMethodVisitor extends AdviceAdapter {
             Label isTopBlockStart = newLabel();
             dup();
             storeLocal(adviceFlowLocal);
-            visitJumpInsn(IFNE, isTopBlockStart);
-            // !isTop()
-            push(false);
-            storeLocal(enabledLocal);
-            goTo(setAdviceFlowBlockEnd);
+            ifZCmp(NE, isTopBlockStart);
+            // !isTop(), enabledLocal is already false
+            goTo(setEnabledBlockEnd);
             // enabled
             visitLabel(isTopBlockStart);
             loadLocal(adviceFlowHolderLocal);
@@ -299,8 +309,8 @@ class WeavingMethodVisitor extends AdviceAdapter {
             invokeVirtual(adviceFlowHolderType, Method.getMethod("void setTop(boolean)"));
             push(true);
             storeLocal(enabledLocal);
-            visitLabel(setAdviceFlowBlockEnd);
         }
+        visitLabel(setEnabledBlockEnd);
     }
 
     private void defineTravelerLocalVar(Advice advice) {
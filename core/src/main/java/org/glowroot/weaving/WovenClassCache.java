@@ -0,0 +1,455 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.weaving;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import checkers.igj.quals.ReadOnly;
+import checkers.lock.quals.GuardedBy;
+import checkers.nullness.quals.Nullable;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import dataflow.quals.Pure;
+import org.objectweb.asm.commons.Method;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.markers.OnlyUsedByTests;
+import org.glowroot.markers.ThreadSafe;
+import org.glowroot.weaving.Advice.AdviceParameter;
+
+/**
+ * Persistent cache of woven class bytes, so that warm restarts can skip the (expensive) rewrite and
+ * frame computation for classes that have not changed.
+ *
+ * Entries are keyed by a SHA-1 hash over the original class bytes, the woven class's super type
+ * hierarchy, and a fingerprint of all advice and mixins. Changing the plugins or pointcut configs
+ * therefore naturally results in cache misses, and stale entries are just never read again. Since
+ * stale entries accumulate, the cache file is started over on startup once it has reached its
+ * maximum size.
+ *
+ * Classes whose frame computation needed to look up other types (see
+ * Weaver.ComputeFramesClassWriter.getCommonSuperClass()) are not cached, since those types are not
+ * covered by the key and stale frames would fail verification.
+ *
+ * The cache file is append-only. On startup the existing contents are indexed and memory-mapped,
+ * entries added after startup are read back with positional reads. The cache file is locked for
+ * the life of the jvm, and the cache is disabled when another jvm already holds the lock.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+@ThreadSafe
+public class WovenClassCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WovenClassCache.class);
+
+    private static final int MAGIC = 0x574f564e;
+    private static final int KEY_LENGTH = 20;
+    // key + flags + length
+    private static final int ENTRY_HEADER_LENGTH = KEY_LENGTH + 1 + 4;
+    private static final byte FLAG_HAS_REWEAVABLE_ADVICE = 1;
+    private static final long MAX_FILE_SIZE_BYTES = 64 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final FileLock fileLock;
+    private final MappedByteBuffer mappedBuffer;
+    private final byte[] versionBytes;
+
+    // keys are wrapped in ByteBuffer for content based equals/hashCode
+    //
+    // intentionally avoiding Maps.newConcurrentMap() since it uses many additional classes that
+    // must then be pre-initialized since this is called from inside
+    // ClassFileTransformer.transform() (see PreInitializeClasses)
+    private final ConcurrentMap<ByteBuffer, Location> locations =
+            new ConcurrentHashMap<ByteBuffer, Location>();
+
+    private final Object writeLock = new Object();
+    @GuardedBy("writeLock")
+    private long fileSize;
+    @GuardedBy("writeLock")
+    private boolean full;
+
+    // the advice fingerprint is cached since the pointcut config advisors rarely change
+    @Nullable
+    private volatile AdviceFingerprint adviceFingerprint;
+
+    // version should change whenever the weaving implementation may have changed
+    //
+    // returns null if the cache file is locked by another jvm (e.g. two jvms sharing the same
+    // glowroot data dir), in which case the cache is disabled for this jvm
+    @Nullable
+    public static WovenClassCache create(File file, String version) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileLock fileLock;
+        try {
+            fileLock = raf.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // locked by another cache instance in this same jvm
+            fileLock = null;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        if (fileLock == null) {
+            logger.warn("woven class cache file is locked by another process, continuing without"
+                    + " the woven class cache: {}", file.getPath());
+            raf.close();
+            return null;
+        }
+        try {
+            return new WovenClassCache(raf, fileLock, version);
+        } catch (IOException e) {
+            // closing the file also releases the lock
+            raf.close();
+            throw e;
+        }
+    }
+
+    private WovenClassCache(RandomAccessFile file, FileLock fileLock, String version)
+            throws IOException {
+        this.file = file;
+        this.fileLock = fileLock;
+        channel = file.getChannel();
+        versionBytes = version.getBytes(Charsets.UTF_8);
+        long size = channel.size();
+        if (size >= MAX_FILE_SIZE_BYTES || !isValidHeader(size)) {
+            logger.debug("starting new woven class cache file");
+            size = writeHeader();
+        }
+        fileSize = indexEntries(size);
+        if (fileSize < size) {
+            // truncate partially written entry, e.g. from jvm crash
+            //
+            // this must be done before mapping the file since truncating a file with an active
+            // mapping fails on windows
+            channel.truncate(fileSize);
+        }
+        mappedBuffer = channel.map(MapMode.READ_ONLY, 0, fileSize);
+        // pre-initialize MessageDigest since first call triggers provider class loading, which is
+        // best avoided inside of ClassFileTransformer.transform()
+        newSha1();
+    }
+
+    @Nullable
+    WovenClass get(byte[] key) {
+        Location location = locations.get(ByteBuffer.wrap(key));
+        if (location == null) {
+            return null;
+        }
+        byte[] bytes = new byte[location.length];
+        try {
+            if (location.offset + location.length <= mappedBuffer.capacity()) {
+                ByteBuffer buffer = mappedBuffer.duplicate();
+                buffer.position((int) location.offset);
+                buffer.get(bytes);
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                long position = location.offset;
+                while (buffer.hasRemaining()) {
+                    int n = channel.read(buffer, position + buffer.position());
+                    if (n == -1) {
+                        logger.warn("unexpected end of woven class cache file");
+                        return null;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        }
+        return new WovenClass(bytes, location.hasReweavableAdvice);
+    }
+
+    void put(byte[] key, byte[] wovenBytes, boolean hasReweavableAdvice) {
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_HEADER_LENGTH + wovenBytes.length);
+        buffer.put(key);
+        buffer.put(hasReweavableAdvice ? FLAG_HAS_REWEAVABLE_ADVICE : 0);
+        buffer.putInt(wovenBytes.length);
+        buffer.put(wovenBytes);
+        buffer.flip();
+        synchronized (writeLock) {
+            if (full || locations.containsKey(ByteBuffer.wrap(key))) {
+                return;
+            }
+            if (fileSize + buffer.remaining() > MAX_FILE_SIZE_BYTES) {
+                logger.debug("woven class cache file is full, it will be started over on next"
+                        + " jvm startup");
+                full = true;
+                return;
+            }
+            long position = fileSize;
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+                // stop writing to the cache file to avoid repeated errors
+                full = true;
+                return;
+            }
+            fileSize = position + buffer.limit();
+            locations.put(ByteBuffer.wrap(key.clone()), new Location(
+                    position + ENTRY_HEADER_LENGTH, wovenBytes.length, hasReweavableAdvice));
+        }
+    }
+
+    byte[] getKey(byte[] classBytes, String className, @ReadOnly Iterable<ParsedType> superTypes,
+            ImmutableList<MixinType> mixinTypes, ImmutableList<Advice> pluginAdvisors,
+            ImmutableList<Advice> pointcutConfigAdvisors, boolean metricWrapperMethodsDisabled) {
+        MessageDigest digest = newSha1();
+        digest.update(getAdviceFingerprint(mixinTypes, pluginAdvisors, pointcutConfigAdvisors));
+        digest.update(metricWrapperMethodsDisabled ? (byte) 1 : (byte) 0);
+        update(digest, className);
+        digest.update(classBytes);
+        // the woven bytes also depend on the super type hierarchy, e.g. advice matching against
+        // super types and inherited methods fulfilling interfaces (the other types that frame
+        // computation may depend on are not covered, see Weaver.rewrite())
+        for (ParsedType superType : superTypes) {
+            update(digest, superType.getName());
+            update(digest, Objects.firstNonNull(superType.getSuperName(), ""));
+            for (String interfaceName : superType.getInterfaceNames()) {
+                update(digest, interfaceName);
+            }
+            for (ParsedMethod method : superType.getMethods()) {
+                update(digest, method.getName());
+                update(digest, method.getDesc());
+                digest.update((byte) method.getModifiers());
+                digest.update((byte) (method.getModifiers() >>> 8));
+                digest.update(method.isFinal() ? (byte) 1 : (byte) 0);
+            }
+        }
+        return digest.digest();
+    }
+
+    @OnlyUsedByTests
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            full = true;
+            fileLock.release();
+            file.close();
+        }
+    }
+
+    private byte[] getAdviceFingerprint(ImmutableList<MixinType> mixinTypes,
+            ImmutableList<Advice> pluginAdvisors, ImmutableList<Advice> pointcutConfigAdvisors) {
+        AdviceFingerprint fingerprint = adviceFingerprint;
+        if (fingerprint != null && fingerprint.mixinTypes == mixinTypes
+                && fingerprint.pluginAdvisors == pluginAdvisors
+                && fingerprint.pointcutConfigAdvisors == pointcutConfigAdvisors) {
+            return fingerprint.bytes;
+        }
+        MessageDigest digest = newSha1();
+        digest.update(versionBytes);
+        for (MixinType mixinType : mixinTypes) {
+            update(digest, mixinType.getTargets().toString());
+            update(digest, mixinType.getImplementation().getName());
+            update(digest, mixinType.getInterfaceNames().toString());
+            update(digest, Objects.firstNonNull(mixinType.getInitMethodName(), ""));
+        }
+        for (Advice advice : pluginAdvisors) {
+            update(digest, advice);
+        }
+        for (Advice advice : pointcutConfigAdvisors) {
+            update(digest, advice);
+        }
+        fingerprint = new AdviceFingerprint(mixinTypes, pluginAdvisors, pointcutConfigAdvisors,
+                digest.digest());
+        adviceFingerprint = fingerprint;
+        return fingerprint.bytes;
+    }
+
+    private boolean isValidHeader(long size) throws IOException {
+        int headerLength = 8 + versionBytes.length;
+        if (size < headerLength) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) == -1) {
+                return false;
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != versionBytes.length) {
+            return false;
+        }
+        byte[] fileVersionBytes = new byte[versionBytes.length];
+        header.get(fileVersionBytes);
+        return ByteBuffer.wrap(fileVersionBytes).equals(ByteBuffer.wrap(versionBytes));
+    }
+
+    private long writeHeader() throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(8 + versionBytes.length);
+        header.putInt(MAGIC);
+        header.putInt(versionBytes.length);
+        header.put(versionBytes);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        return header.limit();
+    }
+
+    // returns the end position of the last complete entry
+    //
+    // only the entry headers are read here (using positional reads), the entry bodies are read
+    // later from the memory-mapped file
+    private long indexEntries(long size) throws IOException {
+        long position = 8 + versionBytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_HEADER_LENGTH);
+        while (position + ENTRY_HEADER_LENGTH <= size) {
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) == -1) {
+                    return position;
+                }
+            }
+            buffer.flip();
+            byte[] key = new byte[KEY_LENGTH];
+            buffer.get(key);
+            boolean hasReweavableAdvice = (buffer.get() & FLAG_HAS_REWEAVABLE_ADVICE) != 0;
+            int length = buffer.getInt();
+            long offset = position + ENTRY_HEADER_LENGTH;
+            if (length < 0 || offset + length > size) {
+                break;
+            }
+            locations.put(ByteBuffer.wrap(key), new Location(offset, length,
+                    hasReweavableAdvice));
+            position = offset + length;
+        }
+        return position;
+    }
+
+    @Override
+    @Pure
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("entries", locations.size())
+                .toString();
+    }
+
+    private static void update(MessageDigest digest, Advice advice) {
+        update(digest, advice.getPointcut().toString());
+        update(digest, advice.getAdviceType().getInternalName());
+        update(digest, advice.getGeneratedAdviceFlowClass().getName());
+        digest.update(advice.isReweavable() ? (byte) 1 : (byte) 0);
+        update(digest, advice.getIsEnabledAdvice());
+        update(digest, advice.getOnBeforeAdvice());
+        update(digest, advice.getOnReturnAdvice());
+        update(digest, advice.getOnThrowAdvice());
+        update(digest, advice.getOnAfterAdvice());
+        update(digest, advice.getIsEnabledParameters());
+        update(digest, advice.getOnBeforeParameters());
+        update(digest, advice.getOnReturnParameters());
+        update(digest, advice.getOnThrowParameters());
+        update(digest, advice.getOnAfterParameters());
+    }
+
+    private static void update(MessageDigest digest, @Nullable Method method) {
+        update(digest, method == null ? "" : method.toString());
+    }
+
+    private static void update(MessageDigest digest,
+            @ReadOnly Iterable<AdviceParameter> parameters) {
+        for (AdviceParameter parameter : parameters) {
+            update(digest, parameter.getKind().name());
+            update(digest, parameter.getType().getName());
+        }
+        // terminate the list so that parameters don't bleed across lists
+        digest.update((byte) 0);
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(Charsets.UTF_8));
+        // terminate the value so that values don't bleed across each other
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // sha-1 is required to be supported by every jvm
+            throw new AssertionError(e);
+        }
+    }
+
+    static class WovenClass {
+
+        private final byte[] bytes;
+        private final boolean hasReweavableAdvice;
+
+        private WovenClass(byte[] bytes, boolean hasReweavableAdvice) {
+            this.bytes = bytes;
+            this.hasReweavableAdvice = hasReweavableAdvice;
+        }
+
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        boolean hasReweavableAdvice() {
+            return hasReweavableAdvice;
+        }
+    }
+
+    private static class Location {
+
+        private final long offset;
+        private final int length;
+        private final boolean hasReweavableAdvice;
+
+        private Location(long offset, int length, boolean hasReweavableAdvice) {
+            this.offset = offset;
+            this.length = length;
+            this.hasReweavableAdvice = hasReweavableAdvice;
+        }
+    }
+
+    private static class AdviceFingerprint {
+
+        private final ImmutableList<MixinType> mixinTypes;
+        private final ImmutableList<Advice> pluginAdvisors;
+        private final ImmutableList<Advice> pointcutConfigAdvisors;
+        private final byte[] bytes;
+
+        private AdviceFingerprint(ImmutableList<MixinType> mixinTypes,
+                ImmutableList<Advice> pluginAdvisors,
+                ImmutableList<Advice> pointcutConfigAdvisors, byte[] bytes) {
+            this.mixinTypes = mixinTypes;
+            this.pluginAdvisors = pluginAdvisors;
+            this.pointcutConfigAdvisors = pointcutConfigAdvisors;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.collector;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.caliper.Param;
+import com.google.caliper.Runner;
+import com.google.caliper.SimpleBenchmark;
+import com.google.common.io.CharSource;
+
+import org.glowroot.common.Clock;
+
+/**
+ * This micro benchmark measures how {@link Aggregator#add(String, long)} scales as the number of
+ * threads completing traces concurrently increases.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class AggregatorBenchmark extends SimpleBenchmark {
+
+    @Param({"1", "2", "4", "8", "16", "32", "64"})
+    private int threadCount;
+
+    private ScheduledExecutorService scheduledExecutor;
+    private ExecutorService executor;
+    private Aggregator aggregator;
+
+    public static void main(String[] args) {
+        new Runner().run(AggregatorBenchmark.class.getName());
+    }
+
+    @Override
+    protected void setUp() {
+        scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        executor = Executors.newFixedThreadPool(threadCount);
+        aggregator = Aggregator.create(scheduledExecutor, new NopAggregateRepository(),
+                Clock.systemClock(), 300);
+    }
+
+    @Override
+    protected void tearDown() {
+        executor.shutdown();
+        scheduledExecutor.shutdown();
+    }
+
+    // each rep is one add() per thread, so with perfect scaling the time per rep stays constant as
+    // the thread count increases
+    public void timeAdd(final int reps) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            final String grouping = "grouping" + (i % 4);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < reps; j++) {
+                        aggregator.add(grouping, j);
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+    }
+
+    private static class NopAggregateRepository implements AggregateRepository {
+        @Override
+        public void store(long captureTime, Aggregate aggregate,
+                Map<String, Aggregate> groupingAggregates,
+                Map<String, CharSource> groupingProfiles) {}
+    }
+}
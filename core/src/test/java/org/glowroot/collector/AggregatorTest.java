@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.collector;
+
+import java.io.IOException;
+import java.lang.Thread.State;
+import java.lang.management.ThreadInfo;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.CharSource;
+import org.junit.Test;
+
+import org.glowroot.common.Clock;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class AggregatorTest {
+
+    @Test
+    public void shouldMergeConcurrentAddsAtFlush() throws Exception {
+        // given
+        ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        MockAggregateRepository aggregateRepository = new MockAggregateRepository();
+        MockClock clock = new MockClock(1000);
+        final Aggregator aggregator =
+                Aggregator.create(scheduledExecutor, aggregateRepository, clock, 300);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 8; i++) {
+            final String grouping = "grouping" + (i % 2);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = 0; j < 10000; j++) {
+                        aggregator.add(grouping, 3);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        // roll over to the next interval, which flushes the completed aggregates
+        clock.currentTimeMillis = 300001;
+        long captureTime = aggregator.add("grouping0", 3);
+        scheduledExecutor.shutdown();
+        scheduledExecutor.awaitTermination(10, SECONDS);
+        // then
+        assertThat(captureTime).isEqualTo(300001);
+        assertThat(aggregateRepository.captureTime).isEqualTo(300000);
+        assertThat(aggregateRepository.traceCount).isEqualTo(80000);
+        assertThat(aggregateRepository.durationTotal).isEqualTo(240000);
+        assertThat(aggregateRepository.groupingTraceCounts.get("grouping0")).isEqualTo(40000);
+        assertThat(aggregateRepository.groupingTraceCounts.get("grouping1")).isEqualTo(40000);
+    }
+
+    @Test
+    public void shouldStoreGroupingProfileAtFlush() throws Exception {
+        // given
+        ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        MockAggregateRepository aggregateRepository = new MockAggregateRepository();
+        MockClock clock = new MockClock(1000);
+        Aggregator aggregator =
+                Aggregator.create(scheduledExecutor, aggregateRepository, clock, 300);
+        StackTraceElement element = new StackTraceElement(AggregatorTest.class.getName(),
+                "shouldStoreGroupingProfileAtFlush", "AggregatorTest.java", 100);
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        when(threadInfo.getStackTrace()).thenReturn(new StackTraceElement[] {element});
+        when(threadInfo.getThreadState()).thenReturn(State.RUNNABLE);
+        // when
+        aggregator.addStackTrace("grouping0", threadInfo);
+        aggregator.addStackTrace("grouping0", threadInfo);
+        // roll over to the next interval, which flushes the completed aggregates
+        clock.currentTimeMillis = 300001;
+        aggregator.add("grouping1", 3);
+        scheduledExecutor.shutdown();
+        scheduledExecutor.awaitTermination(10, SECONDS);
+        // then
+        assertThat(aggregateRepository.groupingProfiles.keySet()).containsOnly("grouping0");
+        assertThat(aggregateRepository.groupingProfiles.get("grouping0"))
+                .contains("\"stackTraceElement\":\"" + element + "\"")
+                .contains("\"sampleCount\":2");
+    }
+
+    private static class MockClock extends Clock {
+
+        private volatile long currentTimeMillis;
+
+        private MockClock(long currentTimeMillis) {
+            this.currentTimeMillis = currentTimeMillis;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return currentTimeMillis;
+        }
+    }
+
+    private static class MockAggregateRepository implements AggregateRepository {
+
+        private volatile long captureTime;
+        private volatile long durationTotal;
+        private volatile long traceCount;
+        private final Map<String, Long> groupingTraceCounts = Maps.newConcurrentMap();
+        private final Map<String, String> groupingProfiles = Maps.newConcurrentMap();
+
+        @Override
+        public void store(long captureTime, Aggregate aggregate,
+                Map<String, Aggregate> groupingAggregates,
+                Map<String, CharSource> groupingProfiles) {
+            this.captureTime = captureTime;
+            durationTotal = aggregate.getDurationTotal();
+            traceCount = aggregate.getTraceCount();
+            for (Map.Entry<String, Aggregate> entry : groupingAggregates.entrySet()) {
+                groupingTraceCounts.put(entry.getKey(), entry.getValue().getTraceCount());
+            }
+            for (Map.Entry<String, CharSource> entry : groupingProfiles.entrySet()) {
+                try {
+                    this.groupingProfiles.put(entry.getKey(), entry.getValue().read());
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.collector;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class HistogramTest {
+
+    @Test
+    public void shouldCalculatePercentilesWithinBucketPrecision() {
+        // given
+        Histogram histogram = new Histogram();
+        // when
+        for (int i = 1; i <= 1000; i++) {
+            // 1 millisecond to 1 second
+            histogram.add(i * 1000000L);
+        }
+        // then
+        assertThat(histogram.getTotalCount()).isEqualTo(1000);
+        assertThat(histogram.getMaxDuration()).isEqualTo(1000000000L);
+        assertWithinPrecision(histogram.getDurationAtPercentile(50), 500000000L);
+        assertWithinPrecision(histogram.getDurationAtPercentile(95), 950000000L);
+        assertWithinPrecision(histogram.getDurationAtPercentile(99), 990000000L);
+        assertThat(histogram.getDurationAtPercentile(100)).isEqualTo(1000000000L);
+    }
+
+    @Test
+    public void shouldMerge() {
+        // given
+        Histogram histogram1 = new Histogram();
+        Histogram histogram2 = new Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram1.add(1000000);
+        }
+        histogram2.add(5000000000L);
+        // when
+        histogram1.merge(histogram2);
+        // then
+        assertThat(histogram1.getTotalCount()).isEqualTo(100);
+        assertWithinPrecision(histogram1.getDurationAtPercentile(99), 1000000);
+        assertThat(histogram1.getDurationAtPercentile(99.9)).isEqualTo(5000000000L);
+    }
+
+    @Test
+    public void shouldEncodeAndDecode() {
+        // given
+        Histogram histogram = new Histogram();
+        histogram.add(0);
+        histogram.add(123456789);
+        histogram.add(Long.MAX_VALUE);
+        // when
+        Histogram decoded = Histogram.decode(histogram.encode());
+        // then
+        assertThat(decoded.getTotalCount()).isEqualTo(3);
+        assertThat(decoded.getMaxDuration()).isEqualTo(Long.MAX_VALUE);
+        assertThat(decoded.getDurationAtPercentile(50))
+                .isEqualTo(histogram.getDurationAtPercentile(50));
+        assertThat(decoded.encode()).isEqualTo(histogram.encode());
+    }
+
+    @Test
+    public void shouldDecodeEmpty() {
+        assertThat(Histogram.decode(null).getTotalCount()).isEqualTo(0);
+        assertThat(Histogram.decode(new Histogram().encode()).getTotalCount()).isEqualTo(0);
+    }
+
+    private static void assertWithinPrecision(long actual, long expected) {
+        assertThat(actual).isGreaterThanOrEqualTo(expected);
+        assertThat(actual).isLessThanOrEqualTo((long) (expected * 1.07));
+    }
+}
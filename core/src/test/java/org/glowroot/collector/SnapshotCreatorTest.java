@@ -19,10 +19,19 @@ import java.io.IOException;
 import java.lang.Thread.State;
 import java.util.Arrays;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
 import com.google.common.io.CharSource;
 import org.junit.Test;
 
+import org.glowroot.api.ErrorMessage;
+import org.glowroot.api.MessageSupplier;
+import org.glowroot.trace.model.GarbageCollectorSnapshot;
 import org.glowroot.trace.model.MergedStackTree;
+import org.glowroot.trace.model.MetricNameImpl;
+import org.glowroot.trace.model.Span;
 import org.glowroot.trace.model.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -59,4 +68,74 @@ public class SnapshotCreatorTest {
         // (and an extra verification just to make sure the test was valid)
         assertThat(mergedStackTreeCharSource.read().length()).isGreaterThan(1000000);
     }
+
+    @Test
+    public void shouldDecodeEncodedSpansAsSameJson() throws IOException {
+        // given
+        Ticker ticker = Ticker.systemTicker();
+        MetricNameImpl metricName = new MetricNameImpl("metric", ticker);
+        Trace trace = new Trace(0, false, "grouping", MessageSupplier.from("root"), metricName,
+                null, GarbageCollectorSnapshot.capture(), ticker);
+        for (int i = 0; i < 10; i++) {
+            Span span = trace.pushSpan(metricName, ticker.read(),
+                    MessageSupplier.from("select x from y where z = ?"));
+            Span nested = trace.pushSpan(metricName, ticker.read(),
+                    MessageSupplier.from("nested {}", String.valueOf(i)));
+            trace.popSpan(nested, ticker.read(), null);
+            trace.popSpan(span, ticker.read(),
+                    i == 5 ? ErrorMessage.from(new IllegalStateException("bad")) : null);
+        }
+        Span active = trace.pushSpan(metricName, ticker.read(), MessageSupplier.from("active"));
+        active.setStackTrace(ImmutableList.copyOf(new Exception().getStackTrace()));
+        long captureTick = ticker.read();
+        // when
+        CharSource json = SnapshotCreator.createActiveSnapshot(trace, 0, captureTick, false)
+                .getSpans();
+        CharSource encoded = SnapshotCreator.createStuckSnapshot(trace, 0, captureTick)
+                .getSpans();
+        // then
+        assertThat(json.read()).contains("\"error\"").contains("\"active\":true")
+                .contains("\"stackTrace\"");
+        assertThat(encoded).isInstanceOf(EncodedSpansCharSource.class);
+        assertThat(encoded.read()).isEqualTo(json.read());
+        SharedStringRepository sharedStringRepository = mock(SharedStringRepository.class);
+        ByteSource stored = ((EncodedSpansCharSource) encoded).getEncoded();
+        assertThat(EncodedSpansCharSource.fromStored(stored, sharedStringRepository, "")
+                .read()).isEqualTo(json.read());
+        ByteSource storedJson = ByteSource.wrap(json.read().getBytes(Charsets.UTF_8));
+        assertThat(EncodedSpansCharSource.fromStored(storedJson, sharedStringRepository, "")
+                .read()).isEqualTo(json.read());
+    }
+
+    @Test
+    public void shouldDecodeSharedStrings() throws IOException {
+        // given
+        Ticker ticker = Ticker.systemTicker();
+        MetricNameImpl metricName = new MetricNameImpl("metric", ticker);
+        Trace trace = new Trace(0, false, "grouping", MessageSupplier.from("root"), metricName,
+                null, GarbageCollectorSnapshot.capture(), ticker);
+        for (int i = 0; i < 10; i++) {
+            Span span = trace.pushSpan(metricName, ticker.read(),
+                    MessageSupplier.from("select x from y where z = ?"));
+            trace.popSpan(span, ticker.read(), null);
+        }
+        trace.popSpan(trace.getRootSpan(), ticker.read(), null);
+        EncodedSpansCharSource encoded = (EncodedSpansCharSource) SnapshotCreator
+                .createCompletedSnapshot(trace, 0).getSpans();
+        SharedStringRepository sharedStringRepository = mock(SharedStringRepository.class);
+        byte[] ref = new byte[] {1, 2, 3};
+        when(sharedStringRepository.share("select x from y where z = ?")).thenReturn(ref);
+        when(sharedStringRepository.read(ref)).thenReturn("select x from y where z = ?");
+        // when
+        ByteSource stored = encoded.getEncoded(sharedStringRepository);
+        // then
+        assertThat(stored.size()).isLessThan(encoded.getEncoded().size());
+        assertThat(EncodedSpansCharSource.fromStored(stored, sharedStringRepository, "")
+                .read()).isEqualTo(encoded.read());
+        // and when the shared string is no longer available
+        when(sharedStringRepository.read(ref)).thenReturn(null);
+        // then
+        assertThat(EncodedSpansCharSource.fromStored(stored, sharedStringRepository,
+                "{\"rolledOver\":true}").read()).isEqualTo("{\"rolledOver\":true}");
+    }
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.collector;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.CharSource;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class SnapshotWriterTest {
+
+    @Test
+    public void shouldWriteSameJsonAsBytes() throws IOException {
+        // given
+        // surrogate pair straddles the boundary between the first and second encoded chunks
+        String spans = "[\"" + Strings.repeat("a", 8189) + "😀\"]";
+        final String mergedStackTree = "{\"stackTraceElement\":\"é\"}";
+        Snapshot snapshot = Snapshot.builder()
+                .id(1)
+                .startTime(0)
+                .captureTime(0)
+                .duration(1)
+                .grouping("test grouping é")
+                .spans(CharSource.wrap(spans))
+                .coarseMergedStackTree(new Utf8CharSource() {
+                    @Override
+                    public InputStream openUtf8Stream() {
+                        return new ByteArrayInputStream(mergedStackTree.getBytes(Charsets.UTF_8));
+                    }
+                })
+                .build();
+        // when
+        byte[] bytes = SnapshotWriter.toByteSource(snapshot, false).read();
+        // then
+        assertThat(new String(bytes, Charsets.UTF_8))
+                .isEqualTo(SnapshotWriter.toCharSource(snapshot, false).read());
+    }
+}
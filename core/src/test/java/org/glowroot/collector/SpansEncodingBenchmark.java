@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.collector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import checkers.nullness.quals.Nullable;
+import com.google.caliper.Param;
+import com.google.caliper.Runner;
+import com.google.caliper.SimpleBenchmark;
+import com.google.common.base.Charsets;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+import com.ning.compress.lzf.LZFEncoder;
+
+import org.glowroot.api.MessageSupplier;
+import org.glowroot.trace.model.GarbageCollectorSnapshot;
+import org.glowroot.trace.model.MetricNameImpl;
+import org.glowroot.trace.model.Span;
+import org.glowroot.trace.model.Trace;
+
+/**
+ * This micro benchmark compares the json and binary (see {@link SpansEncoder}) span formats for a
+ * sql heavy trace, measuring the time to encode the spans for storage and the time to decode the
+ * stored spans back into the json that is sent to the UI. The "shared" format is the binary format
+ * with the sql shared across traces (see {@link SharedStringRepository}), which is measured against
+ * an in-memory repository where every string has already been shared.
+ *
+ * Bytes per span (before and after the LZF compression that is applied by the rolling file) are
+ * printed by main() after the caliper run, since caliper only reports time.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class SpansEncodingBenchmark extends SimpleBenchmark {
+
+    private static final int SPAN_COUNT = 1000;
+    private static final int DISTINCT_SQL_COUNT = 20;
+
+    @Param({"json", "binary", "shared"})
+    private String format;
+
+    private Trace trace;
+    private ByteSource stored;
+    private final InMemorySharedStringRepository sharedStringRepository =
+            new InMemorySharedStringRepository();
+
+    public static void main(String[] args) throws IOException {
+        new Runner().run(SpansEncodingBenchmark.class.getName());
+        printBytesPerSpan("json");
+        printBytesPerSpan("binary");
+        printBytesPerSpan("shared");
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        Ticker ticker = Ticker.systemTicker();
+        MetricNameImpl metricName = new MetricNameImpl("jdbc execution", ticker);
+        trace = new Trace(0, false, "grouping", MessageSupplier.from("http request"), metricName,
+                null, GarbageCollectorSnapshot.capture(), ticker);
+        for (int i = 0; i < SPAN_COUNT; i++) {
+            Span span = trace.pushSpan(metricName, ticker.read(), MessageSupplier.from(
+                    "jdbc execution: select customer.id, customer.name, customer.email from"
+                            + " customer inner join orders on orders.customer_id = customer.id"
+                            + " where orders.status = ? and orders.region_id = "
+                            + i % DISTINCT_SQL_COUNT));
+            trace.popSpan(span, ticker.read(), null);
+        }
+        trace.popSpan(trace.getRootSpan(), ticker.read(), null);
+        stored = ByteSource.wrap(encode());
+    }
+
+    public void timeEncode(int reps) throws IOException {
+        for (int i = 0; i < reps; i++) {
+            encode();
+        }
+    }
+
+    public void timeDecode(int reps) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (int i = 0; i < reps; i++) {
+            InputStream in = EncodedSpansCharSource.fromStored(stored, sharedStringRepository, "")
+                    .openUtf8Stream();
+            while (in.read(buffer) != -1) {}
+            in.close();
+        }
+    }
+
+    private byte[] encode() throws IOException {
+        if (format.equals("json")) {
+            // this is the json that was previously stored in the rolling file
+            return SnapshotCreator.createPendingSnapshot(trace, 0, trace.getEndTick(), false)
+                    .getSpans().read().getBytes(Charsets.UTF_8);
+        }
+        Snapshot snapshot = SnapshotCreator.createCompletedSnapshot(trace, 0);
+        EncodedSpansCharSource spans = (EncodedSpansCharSource) snapshot.getSpans();
+        if (format.equals("binary")) {
+            return spans.getEncoded().read();
+        } else {
+            return spans.getEncoded(sharedStringRepository).read();
+        }
+    }
+
+    private static void printBytesPerSpan(String format) throws IOException {
+        SpansEncodingBenchmark benchmark = new SpansEncodingBenchmark();
+        benchmark.format = format;
+        benchmark.setUp();
+        byte[] bytes = ByteStreams.toByteArray(benchmark.stored.openStream());
+        // the root span is also included
+        int spanCount = SPAN_COUNT + 1;
+        System.out.println(format + ": " + bytes.length / spanCount + " bytes per span, "
+                + LZFEncoder.encode(bytes).length / spanCount + " bytes per span compressed");
+    }
+
+    private static class InMemorySharedStringRepository implements SharedStringRepository {
+
+        private final Map<String, byte[]> refs = Maps.newHashMap();
+        private final Map<String, String> strings = Maps.newHashMap();
+
+        @Override
+        public byte[] share(String string) {
+            byte[] ref = refs.get(string);
+            if (ref == null) {
+                ref = Ints.toByteArray(refs.size());
+                refs.put(string, ref);
+                strings.put(new String(ref, Charsets.ISO_8859_1), string);
+            }
+            return ref;
+        }
+
+        @Override
+        @Nullable
+        public String read(byte[] ref) {
+            return strings.get(new String(ref, Charsets.ISO_8859_1));
+        }
+    }
+}
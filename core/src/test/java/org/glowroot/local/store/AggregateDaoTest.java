@@ -18,12 +18,15 @@ package org.glowroot.local.store;
 import java.util.List;
 import java.util.Map;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.io.CharSource;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import org.glowroot.collector.Aggregate;
+import org.glowroot.collector.Histogram;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -33,6 +36,8 @@ import static org.assertj.core.api.Assertions.assertThat;
  */
 public class AggregateDaoTest {
 
+    private static final Map<String, CharSource> NO_PROFILES = ImmutableMap.of();
+
     private DataSource dataSource;
     private AggregateDao aggregateDao;
 
@@ -58,8 +63,8 @@ public class AggregateDaoTest {
         groupAggregates.put("one", new Aggregate(100, 1));
         groupAggregates.put("two", new Aggregate(300, 2));
         groupAggregates.put("seven", new Aggregate(1400, 7));
-        aggregateDao.store(10000, aggregate, groupAggregates);
-        aggregateDao.store(20000, aggregate, groupAggregates);
+        aggregateDao.store(10000, aggregate, groupAggregates, NO_PROFILES);
+        aggregateDao.store(20000, aggregate, groupAggregates, NO_PROFILES);
         // when
         List<AggregatePoint> aggregateIntervals = aggregateDao.readAggregates(0, 100000);
         List<GroupingAggregate> groupingAggregates =
@@ -77,4 +82,142 @@ public class AggregateDaoTest {
         assertThat(groupingAggregates.get(2).getDurationTotal()).isEqualTo(200);
         assertThat(groupingAggregates.get(2).getTraceCount()).isEqualTo(2);
     }
+
+    @Test
+    public void shouldMergeHistogramsAcrossIntervals() {
+        // given
+        Histogram histogram1 = new Histogram();
+        Histogram histogram2 = new Histogram();
+        for (int i = 0; i < 90; i++) {
+            histogram1.add(1000000);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram2.add(2000000000);
+        }
+        Map<String, Aggregate> groupAggregates1 = Maps.newHashMap();
+        groupAggregates1.put("one", new Aggregate(90000000, 90, histogram1));
+        Map<String, Aggregate> groupAggregates2 = Maps.newHashMap();
+        groupAggregates2.put("one", new Aggregate(20000000000L, 10, histogram2));
+        aggregateDao.store(10000, new Aggregate(90000000, 90, histogram1), groupAggregates1,
+                NO_PROFILES);
+        aggregateDao.store(20000, new Aggregate(20000000000L, 10, histogram2), groupAggregates2,
+                NO_PROFILES);
+        // when
+        List<AggregatePoint> aggregatePoints = aggregateDao.readAggregates(0, 100000);
+        List<AggregatePoint> groupingAggregatePoints =
+                aggregateDao.readGroupingAggregates("one", 0, 100000);
+        // then
+        assertThat(aggregatePoints).hasSize(2);
+        assertThat(groupingAggregatePoints).hasSize(2);
+        Histogram merged = new Histogram();
+        for (AggregatePoint aggregatePoint : groupingAggregatePoints) {
+            merged.merge(aggregatePoint.getHistogram());
+        }
+        assertThat(merged.getTotalCount()).isEqualTo(100);
+        assertThat(merged.getDurationAtPercentile(50)).isLessThan(2000000);
+        assertThat(merged.getDurationAtPercentile(95)).isEqualTo(2000000000);
+    }
+
+    @Test
+    public void shouldRollup() {
+        // given
+        long hour = 3600000;
+        Map<String, Aggregate> groupAggregates = Maps.newHashMap();
+        groupAggregates.put("one", new Aggregate(100, 1));
+        groupAggregates.put("two", new Aggregate(300, 2));
+        aggregateDao.store(hour + 300000, new Aggregate(400, 3), groupAggregates, NO_PROFILES);
+        aggregateDao.store(2 * hour, new Aggregate(400, 3), groupAggregates, NO_PROFILES);
+        aggregateDao.store(2 * hour + 300000, new Aggregate(400, 3), groupAggregates, NO_PROFILES);
+        // when
+        aggregateDao.rollup();
+        // then
+        List<AggregatePoint> rollupPoints = aggregateDao.readAggregates(0, 10 * hour, 1);
+        assertThat(rollupPoints).hasSize(2);
+        assertThat(rollupPoints.get(0).getCaptureTime()).isEqualTo(2 * hour);
+        assertThat(rollupPoints.get(0).getTraceCount()).isEqualTo(6);
+        assertThat(rollupPoints.get(0).getRollupLevel()).isEqualTo(1);
+        // the second point is read from the raw aggregates since it has not been rolled up yet
+        assertThat(rollupPoints.get(1).getCaptureTime()).isEqualTo(2 * hour + 300000);
+        assertThat(rollupPoints.get(1).getRollupLevel()).isEqualTo(0);
+        List<GroupingAggregate> groupingAggregates =
+                aggregateDao.readGroupingAggregates(0, 10 * hour, 10, 1);
+        assertThat(groupingAggregates).hasSize(2);
+        assertThat(groupingAggregates.get(0).getGrouping()).isEqualTo("two");
+        assertThat(groupingAggregates.get(0).getTraceCount()).isEqualTo(6);
+    }
+
+    @Test
+    public void shouldNotRollupBeforeWatermark() {
+        // given
+        long hour = 3600000;
+        Map<String, Aggregate> groupAggregates = Maps.newHashMap();
+        aggregateDao.store(hour + 300000, new Aggregate(400, 3), groupAggregates, NO_PROFILES);
+        aggregateDao.rollup();
+        // when
+        // the last raw aggregate of the interval is flushed late, after the rollup ran
+        aggregateDao.store(2 * hour, new Aggregate(400, 3), groupAggregates, NO_PROFILES);
+        aggregateDao.rollup();
+        // then
+        List<AggregatePoint> rollupPoints = aggregateDao.readAggregates(0, 10 * hour, 1);
+        assertThat(rollupPoints).hasSize(1);
+        assertThat(rollupPoints.get(0).getCaptureTime()).isEqualTo(2 * hour);
+        assertThat(rollupPoints.get(0).getTraceCount()).isEqualTo(6);
+        assertThat(rollupPoints.get(0).getRollupLevel()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReadGroupingProfiles() {
+        // given
+        Map<String, Aggregate> groupAggregates = Maps.newHashMap();
+        groupAggregates.put("one", new Aggregate(100, 1));
+        Map<String, CharSource> groupingProfiles = ImmutableMap.of("one",
+                CharSource.wrap("{\"stackTraceElement\":\"a.b(c.java:1)\",\"sampleCount\":1}"));
+        aggregateDao.store(10000, new Aggregate(100, 1), groupAggregates, groupingProfiles);
+        aggregateDao.store(20000, new Aggregate(100, 1), groupAggregates, NO_PROFILES);
+        aggregateDao.store(30000, new Aggregate(100, 1), groupAggregates, groupingProfiles);
+        // when
+        String profile = aggregateDao.readGroupingProfile("one", 0, 100000, 0);
+        // then
+        assertThat(profile).isEqualTo(
+                "{\"stackTraceElement\":\"a.b(c.java:1)\",\"sampleCount\":2}");
+        assertThat(aggregateDao.readGroupingProfile("two", 0, 100000, 0)).isNull();
+    }
+
+    @Test
+    public void shouldRollupGroupingProfiles() throws Exception {
+        // given
+        long hour = 3600000;
+        Map<String, Aggregate> groupAggregates = Maps.newHashMap();
+        groupAggregates.put("one", new Aggregate(100, 1));
+        Map<String, CharSource> groupingProfiles = ImmutableMap.of("one",
+                CharSource.wrap("{\"stackTraceElement\":\"a.b(c.java:1)\",\"sampleCount\":1}"));
+        aggregateDao.store(hour + 300000, new Aggregate(100, 1), groupAggregates,
+                groupingProfiles);
+        aggregateDao.store(2 * hour, new Aggregate(100, 1), groupAggregates, groupingProfiles);
+        aggregateDao.store(2 * hour + 300000, new Aggregate(100, 1), groupAggregates,
+                groupingProfiles);
+        // when
+        aggregateDao.rollup();
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from grouping_profile_rollup_1h"))
+                .isEqualTo(1);
+        // the last profile is read from the raw profiles since it has not been rolled up yet
+        assertThat(aggregateDao.readGroupingProfile("one", 0, 10 * hour, 1)).isEqualTo(
+                "{\"stackTraceElement\":\"a.b(c.java:1)\",\"sampleCount\":3}");
+    }
+
+    @Test
+    public void shouldDeleteExpiredAggregates() {
+        // given
+        Map<String, Aggregate> groupAggregates = Maps.newHashMap();
+        groupAggregates.put("one", new Aggregate(100, 1));
+        aggregateDao.store(10000, new Aggregate(100, 1), groupAggregates, ImmutableMap.of("one",
+                CharSource.wrap("{\"stackTraceElement\":\"a.b(c.java:1)\",\"sampleCount\":1}")));
+        // when
+        aggregateDao.deleteExpiredAggregates(10001 + aggregateDao.getRollupExpirationMillis(0));
+        // then
+        assertThat(aggregateDao.readAggregates(0, 100000)).isEmpty();
+        assertThat(aggregateDao.readGroupingAggregates(0, 100000, 10)).isEmpty();
+        assertThat(aggregateDao.readGroupingProfile("one", 0, 100000, 0)).isNull();
+    }
 }
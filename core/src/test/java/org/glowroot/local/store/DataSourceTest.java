@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.local.store;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.local.store.Schemas.Column;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class DataSourceTest {
+
+    private File dbFile;
+    private DataSource dataSource;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        dbFile.delete();
+        dataSource = new DataSource(dbFile);
+        dataSource.syncTable("test", ImmutableList.of(new Column("id", Types.BIGINT)));
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+        dbFile.delete();
+    }
+
+    @Test
+    public void shouldReadWhatWasWritten() throws SQLException {
+        // when
+        dataSource.update("insert into test (id) values (?)", 1);
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReadAndWriteAfterCompact() throws SQLException {
+        // given
+        dataSource.update("insert into test (id) values (?)", 1);
+        // when
+        dataSource.compact();
+        dataSource.update("insert into test (id) values (?)", 2);
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldUseMvccSoThatQueriesDoNotBlockWrites() throws SQLException {
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from information_schema.settings"
+                + " where name = 'MVCC' and value = 'TRUE'")).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldApplyQueryTimeoutToQueries() throws SQLException {
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from information_schema.settings"
+                + " where name = 'QUERY_TIMEOUT' and value = '30000'")).isEqualTo(1);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.local.store;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class ProfileMergerTest {
+
+    @Test
+    public void shouldMergeMatchingNodes() throws IOException {
+        // given
+        ProfileMerger profileMerger = new ProfileMerger();
+        // when
+        profileMerger.merge("{\"stackTraceElement\":\"a.b(c.java:1)\",\"sampleCount\":1,"
+                + "\"childNodes\":[{\"stackTraceElement\":\"d.e(f.java:2)\",\"sampleCount\":1,"
+                + "\"leafThreadState\":\"RUNNABLE\"}]}");
+        profileMerger.merge("{\"stackTraceElement\":\"a.b(c.java:1)\",\"sampleCount\":2,"
+                + "\"childNodes\":[{\"stackTraceElement\":\"d.e(f.java:2)\",\"sampleCount\":2,"
+                + "\"leafThreadState\":\"RUNNABLE\"}]}");
+        // then
+        assertThat(profileMerger.write()).isEqualTo("{\"stackTraceElement\":\"a.b(c.java:1)\","
+                + "\"sampleCount\":3,\"childNodes\":[{\"stackTraceElement\":\"d.e(f.java:2)\","
+                + "\"sampleCount\":3,\"leafThreadState\":\"RUNNABLE\"}]}");
+    }
+
+    @Test
+    public void shouldMergeMultipleRootNodes() throws IOException {
+        // given
+        ProfileMerger profileMerger = new ProfileMerger();
+        // when
+        profileMerger.merge("{\"stackTraceElement\":\"a.b(c.java:1)\",\"sampleCount\":1}");
+        profileMerger.merge("{\"stackTraceElement\":\"d.e(f.java:2)\",\"sampleCount\":2}");
+        String merged = profileMerger.write();
+        // re-merging the synthetic root node should not nest it
+        ProfileMerger profileMerger2 = new ProfileMerger();
+        profileMerger2.merge(merged);
+        // then
+        assertThat(profileMerger2.write()).isEqualTo(merged);
+        assertThat(merged).contains("\"sampleCount\":3");
+    }
+
+    @Test
+    public void shouldUseSupersetOfMetricNames() throws IOException {
+        // given
+        ProfileMerger profileMerger = new ProfileMerger();
+        // when
+        profileMerger.merge("{\"stackTraceElement\":\"a.b(c.java:1)\",\"sampleCount\":1,"
+                + "\"metricNames\":[\"http request\"]}");
+        profileMerger.merge("{\"stackTraceElement\":\"a.b(c.java:1)\",\"sampleCount\":1,"
+                + "\"metricNames\":[\"http request\",\"jdbc execute\"]}");
+        profileMerger.merge("{\"stackTraceElement\":\"a.b(c.java:1)\",\"sampleCount\":1}");
+        // then
+        assertThat(profileMerger.write()).isEqualTo("{\"stackTraceElement\":\"a.b(c.java:1)\","
+                + "\"sampleCount\":3,\"metricNames\":[\"http request\",\"jdbc execute\"]}");
+    }
+}
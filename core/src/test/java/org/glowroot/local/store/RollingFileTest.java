@@ -17,11 +17,16 @@ package org.glowroot.local.store;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import com.google.common.io.CharSource;
 import org.junit.After;
 import org.junit.Before;
@@ -120,4 +125,27 @@ public class RollingFileTest {
         String text2 = rollingFile.read(block, "").read();
         assertThat(text2).isEqualTo("");
     }
+
+    @Test
+    public void shouldReadConcurrently() throws Exception {
+        // given
+        final String text = "0123456789";
+        final FileBlock block = rollingFile.write(CharSource.wrap(text));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<String>> futures = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 100; i++) {
+            futures.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return rollingFile.read(block, "").read();
+                }
+            }));
+        }
+        // then
+        for (Future<String> future : futures) {
+            assertThat(future.get()).isEqualTo(text);
+        }
+        executor.shutdown();
+    }
 }
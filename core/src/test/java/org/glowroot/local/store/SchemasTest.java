@@ -16,7 +16,10 @@
 package org.glowroot.local.store;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 
@@ -24,6 +27,7 @@ import com.google.common.collect.ImmutableList;
 import org.h2.jdbc.JdbcConnection;
 import org.junit.Test;
 
+import org.glowroot.local.store.Schemas.Column;
 import org.glowroot.local.store.Schemas.Index;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -49,5 +53,47 @@ public class SchemasTest {
         // then
     }
 
+    @Test
+    public void shouldKeepDataWhenAddingColumns() throws Exception {
+        // given
+        Connection connection = new JdbcConnection("jdbc:h2:mem:", new Properties());
+        Statement statement = connection.createStatement();
+        statement.execute("create table tab (a varchar, b bigint)");
+        statement.execute("insert into tab (a, b) values ('x', 1)");
+        // when
+        Schemas.syncTable("tab", ImmutableList.of(new Column("a", Types.VARCHAR),
+                new Column("b", Types.BIGINT), new Column("c", Types.VARBINARY)), connection);
+        // then
+        List<Column> columns = Schemas.getColumns("tab", connection);
+        assertThat(columns).hasSize(3);
+        assertThat(columns.get(2).getName()).isEqualTo("c");
+        assertThat(columns.get(2).getType()).isEqualTo(Types.VARBINARY);
+        ResultSet resultSet = statement.executeQuery("select a, b, c from tab");
+        assertThat(resultSet.next()).isTrue();
+        assertThat(resultSet.getString(1)).isEqualTo("x");
+        assertThat(resultSet.getLong(2)).isEqualTo(1);
+        assertThat(resultSet.getBytes(3)).isNull();
+        resultSet.close();
+        connection.close();
+    }
+
+    @Test
+    public void shouldRecreateTableWhenColumnTypeChanges() throws Exception {
+        // given
+        Connection connection = new JdbcConnection("jdbc:h2:mem:", new Properties());
+        Statement statement = connection.createStatement();
+        statement.execute("create table tab (a varchar, b bigint)");
+        statement.execute("insert into tab (a, b) values ('x', 1)");
+        // when
+        Schemas.syncTable("tab", ImmutableList.of(new Column("a", Types.VARCHAR),
+                new Column("b", Types.VARCHAR)), connection);
+        // then
+        ResultSet resultSet = statement.executeQuery("select count(*) from tab");
+        resultSet.next();
+        assertThat(resultSet.getLong(1)).isEqualTo(0);
+        resultSet.close();
+        connection.close();
+    }
+
     // Schemas.syncIndexes("tab", indexes, connection);
 }
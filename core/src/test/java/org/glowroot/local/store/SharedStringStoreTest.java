@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.local.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CharSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class SharedStringStoreTest {
+
+    private static final String SQL = "select customer.id, customer.name from customer where"
+            + " customer.region_id = ?";
+
+    private DataSource dataSource;
+    private File tempFile;
+    private ScheduledExecutorService scheduledExecutor;
+    private RollingFile rollingFile;
+    private SharedStringStore sharedStringStore;
+
+    @Before
+    public void onBefore() throws SQLException, IOException {
+        dataSource = new DataSource();
+        if (dataSource.tableExists("shared_string")) {
+            dataSource.execute("drop table shared_string");
+        }
+        tempFile = File.createTempFile("glowroot-test-", ".rolling.db");
+        scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        rollingFile = new RollingFile(tempFile, 1, scheduledExecutor, Ticker.systemTicker());
+        sharedStringStore = new SharedStringStore(dataSource, rollingFile);
+    }
+
+    @After
+    public void onAfter() throws Exception {
+        scheduledExecutor.shutdownNow();
+        dataSource.close();
+        rollingFile.close();
+        tempFile.delete();
+    }
+
+    @Test
+    public void shouldShareOnSecondSighting() {
+        // given
+        // when
+        byte[] ref1 = sharedStringStore.share(SQL);
+        byte[] ref2 = sharedStringStore.share(SQL);
+        byte[] ref3 = sharedStringStore.share(SQL);
+        // then
+        assertThat(ref1).isNull();
+        assertThat(ref2).isNotNull();
+        assertThat(ref3).isEqualTo(ref2);
+        assertThat(sharedStringStore.read(ref2)).isEqualTo(SQL);
+    }
+
+    @Test
+    public void shouldNotShareShortStrings() {
+        // given
+        // when
+        sharedStringStore.share("select 1");
+        byte[] ref = sharedStringStore.share("select 1");
+        // then
+        assertThat(ref).isNull();
+    }
+
+    @Test
+    public void shouldKeepReferencedStringAcrossRollover() {
+        // given
+        sharedStringStore.share(SQL);
+        byte[] ref = sharedStringStore.share(SQL);
+        // when
+        // each write rolls a little more of the 1kb rolling file over, and keeps referencing the
+        // shared string
+        for (int i = 0; i < 50; i++) {
+            writeRandomBlock();
+            sharedStringStore.share(SQL);
+        }
+        // then
+        assertThat(sharedStringStore.read(ref)).isEqualTo(SQL);
+    }
+
+    @Test
+    public void shouldDropUnreferencedStringAtRollover() {
+        // given
+        sharedStringStore.share(SQL);
+        byte[] ref = sharedStringStore.share(SQL);
+        // when
+        for (int i = 0; i < 50; i++) {
+            writeRandomBlock();
+        }
+        // then
+        assertThat(sharedStringStore.read(ref)).isNull();
+    }
+
+    @Test
+    public void shouldReadSharedStringAfterRestart() throws SQLException {
+        // given
+        sharedStringStore.share(SQL);
+        byte[] ref = sharedStringStore.share(SQL);
+        sharedStringStore.flush();
+        // when
+        SharedStringStore restarted = new SharedStringStore(dataSource, rollingFile);
+        // then
+        assertThat(restarted.read(ref)).isEqualTo(SQL);
+    }
+
+    private void writeRandomBlock() {
+        // use random text so that the lzf compressed text is also large
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        rollingFile.write(ImmutableList.of(CharSource.wrap(sb.toString())), sharedStringStore);
+    }
+}
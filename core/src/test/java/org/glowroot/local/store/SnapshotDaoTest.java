@@ -17,18 +17,28 @@ package org.glowroot.local.store;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
+import checkers.nullness.quals.Nullable;
+import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import org.glowroot.collector.Snapshot;
+import org.glowroot.local.store.DataSource.RowMapper;
+import org.glowroot.local.store.TracePointQuery.ParameterizedSql;
+import org.glowroot.local.store.TracePointQuery.StringComparator;
+import org.glowroot.trace.model.TraceUniqueId;
 
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 
 /**
@@ -125,6 +135,30 @@ public class SnapshotDaoTest {
         assertThat(points).isEmpty();
     }
 
+    @Test
+    public void shouldStoreAll() throws IOException {
+        // given
+        Snapshot snapshot1 = new SnapshotTestData().createSnapshot();
+        Snapshot snapshot2 = Snapshot.builder()
+                .id(Long.MAX_VALUE)
+                .startTime(0)
+                .captureTime(0)
+                .duration(1)
+                .grouping("test grouping")
+                .build();
+        Snapshot snapshot3 = new SnapshotTestData().createSnapshot();
+        // when
+        snapshotDao.storeAll(ImmutableList.of(snapshot1, snapshot2, snapshot3));
+        // then
+        assertThat(snapshotDao.count()).isEqualTo(3);
+        Snapshot readSnapshot1 = snapshotDao.readSnapshot(snapshot1.getId());
+        Snapshot readSnapshot2 = snapshotDao.readSnapshot(snapshot2.getId());
+        Snapshot readSnapshot3 = snapshotDao.readSnapshot(snapshot3.getId());
+        assertThat(readSnapshot1.getSpans().read()).isEqualTo(snapshot1.getSpans().read());
+        assertThat(readSnapshot2.getSpans()).isNull();
+        assertThat(readSnapshot3.getSpans().read()).isEqualTo(snapshot3.getSpans().read());
+    }
+
     @Test
     public void shouldDeletedTrace() {
         // given
@@ -134,4 +168,255 @@ public class SnapshotDaoTest {
         // then
         assertThat(snapshotDao.count()).isEqualTo(0);
     }
+
+    @Test
+    public void shouldDeleteExpiredSnapshotsAcrossPartitions() {
+        // given
+        long hour = HOURS.toMillis(1);
+        Snapshot expired = createSnapshot(0, 10);
+        Snapshot straddlingExpired = createSnapshot(hour, hour + 1);
+        Snapshot straddlingNotExpired = createSnapshot(hour, hour + 10);
+        Snapshot notExpired = createSnapshot(3 * hour, 3 * hour + 10);
+        snapshotDao.storeAll(ImmutableList.of(expired, straddlingExpired, straddlingNotExpired,
+                notExpired));
+        // when
+        snapshotDao.deleteSnapshotsBefore(hour + 5);
+        // then
+        assertThat(snapshotDao.count()).isEqualTo(2);
+        assertThat(snapshotDao.readSnapshot(expired.getId())).isNull();
+        assertThat(snapshotDao.readSnapshot(straddlingExpired.getId())).isNull();
+        assertThat(snapshotDao.readSnapshot(straddlingNotExpired.getId())).isNotNull();
+        assertThat(snapshotDao.readSnapshot(notExpired.getId())).isNotNull();
+    }
+
+    @Test
+    public void shouldReadPointsAcrossPartitions() {
+        // given
+        long hour = HOURS.toMillis(1);
+        snapshotDao.storeAll(ImmutableList.of(createSnapshot(0, 10), createSnapshot(hour, hour),
+                createSnapshot(2 * hour, 2 * hour), createSnapshot(3 * hour, 3 * hour)));
+        TracePointQuery query = new TracePointQuery(10, 2 * hour, 0, Long.MAX_VALUE, null, false,
+                false, null, null, null, null, null, null, 2);
+        // when
+        List<TracePoint> points = snapshotDao.readPoints(query);
+        // then
+        assertThat(points).hasSize(2);
+        assertThat(points.get(0).getDuration()).isGreaterThanOrEqualTo(
+                points.get(1).getDuration());
+        for (TracePoint point : points) {
+            assertThat(point.getCaptureTime()).isGreaterThanOrEqualTo(10);
+            assertThat(point.getCaptureTime()).isLessThanOrEqualTo(2 * hour);
+        }
+    }
+
+    @Test
+    public void shouldMigrateUnpartitionedSnapshots() throws SQLException {
+        // given
+        dataSource.execute("create table snapshot (id bigint primary key, stuck boolean,"
+                + " start_time bigint, capture_time bigint, duration bigint, background boolean,"
+                + " error boolean, fine boolean, grouping varchar, error_message varchar,"
+                + " user varchar, attributes varchar, metrics varchar, jvm_info varchar,"
+                + " spans varchar, coarse_merged_stack_tree varchar,"
+                + " fine_merged_stack_tree varchar)");
+        long hour = HOURS.toMillis(1);
+        long firstId = TraceUniqueId.from(0, 1);
+        long secondId = TraceUniqueId.from(2 * hour, 2);
+        dataSource.update("insert into snapshot (id, stuck, start_time, capture_time, duration,"
+                + " background, error, fine, grouping) values (?, false, 0, 10, 10000000, false,"
+                + " false, false, 'test grouping')", firstId);
+        dataSource.update("insert into snapshot (id, stuck, start_time, capture_time, duration,"
+                + " background, error, fine, grouping) values (?, false, ?, ?, 10000000, false,"
+                + " false, false, 'test grouping')", secondId, 2 * hour, 2 * hour + 10);
+        // when
+        snapshotDao = new SnapshotDao(dataSource, rollingFile);
+        // then
+        assertThat(snapshotDao.count()).isEqualTo(2);
+        assertThat(snapshotDao.readSnapshot(firstId).getCaptureTime()).isEqualTo(10);
+        assertThat(snapshotDao.readSnapshot(secondId).getStartTime()).isEqualTo(2 * hour);
+        assertThat(dataSource.tableExists("snapshot")).isFalse();
+    }
+
+    @Test
+    public void shouldMigrateStringIdSnapshots() throws SQLException {
+        // given
+        dataSource.execute("create table snapshot (id varchar primary key, stuck boolean,"
+                + " start_time bigint, capture_time bigint, duration bigint, background boolean,"
+                + " error boolean, fine boolean, headline varchar, error_message varchar,"
+                + " user varchar, attributes varchar, metrics varchar, jvm_info varchar,"
+                + " spans varchar, coarse_merged_stack_tree varchar,"
+                + " fine_merged_stack_tree varchar)");
+        dataSource.execute("insert into snapshot (id, stuck, start_time, capture_time, duration,"
+                + " background, error, fine, headline, error_message, user) values"
+                + " ('0000000000001', false, 0, 10, 10000000, false, true, false,"
+                + " 'test grouping', 'test error', 'able'), ('00000036ee802', false, 3600000,"
+                + " 3600010, 10000000, false, false, false, 'test grouping', null, 'baker')");
+        // when
+        snapshotDao = new SnapshotDao(dataSource, rollingFile);
+        // then
+        assertThat(snapshotDao.count()).isEqualTo(2);
+        Snapshot first = snapshotDao.readSnapshot(TraceUniqueId.from(0, 1));
+        Snapshot second = snapshotDao.readSnapshot(TraceUniqueId.from(3600000, 2));
+        assertThat(first.getGrouping()).isEqualTo("test grouping");
+        assertThat(first.getError()).isEqualTo("test error");
+        assertThat(second.getStartTime()).isEqualTo(3600000);
+        assertThat(second.getUser()).isEqualTo("baker");
+        assertThat(dataSource.tableExists("snapshot")).isFalse();
+    }
+
+    @Test
+    public void shouldResumeInterruptedStringIdMigration() throws SQLException {
+        // given
+        dataSource.execute("create table snapshot_string_id (id varchar primary key,"
+                + " stuck boolean, start_time bigint, capture_time bigint, duration bigint,"
+                + " background boolean, error boolean, fine boolean, grouping varchar,"
+                + " error_message varchar, user varchar, attributes varchar, metrics varchar,"
+                + " jvm_info varchar, spans varchar, coarse_merged_stack_tree varchar,"
+                + " fine_merged_stack_tree varchar)");
+        dataSource.execute("insert into snapshot_string_id (id, stuck, start_time, capture_time,"
+                + " duration, background, error, fine, grouping) values ('0000000000001', false,"
+                + " 0, 10, 10000000, false, false, false, 'test grouping')");
+        // when
+        snapshotDao = new SnapshotDao(dataSource, rollingFile);
+        // then
+        assertThat(snapshotDao.count()).isEqualTo(1);
+        assertThat(snapshotDao.readSnapshot(TraceUniqueId.from(0, 1)).getGrouping())
+                .isEqualTo("test grouping");
+        assertThat(dataSource.tableExists("snapshot_string_id")).isFalse();
+    }
+
+    @Test
+    public void shouldKeepUsingPartitionsCreatedWithDifferentWidth() throws SQLException {
+        // given
+        long hour = HOURS.toMillis(1);
+        Snapshot first = createSnapshot(0, 10);
+        snapshotDao.store(first);
+        // simulate a partition that was created with glowroot.experimental.snapshotPartitionHours=3
+        dataSource.execute("alter table snapshot_0_3600000 rename to snapshot_0_10800000");
+        dataSource.execute("alter table snapshot_0_3600000_trigram rename to"
+                + " snapshot_0_10800000_trigram");
+        snapshotDao = new SnapshotDao(dataSource, rollingFile);
+        // when
+        Snapshot second = createSnapshot(2 * hour, 2 * hour);
+        Snapshot third = createSnapshot(3 * hour, 3 * hour);
+        snapshotDao.storeAll(ImmutableList.of(second, third));
+        // then
+        assertThat(snapshotDao.readSnapshot(first.getId())).isNotNull();
+        assertThat(snapshotDao.readSnapshot(second.getId())).isNotNull();
+        assertThat(snapshotDao.readSnapshot(third.getId())).isNotNull();
+        assertThat(snapshotDao.count()).isEqualTo(3);
+        assertThat(dataSource.getTableNames()).contains("snapshot_0_10800000",
+                "snapshot_10800000_3600000").doesNotContain("snapshot_7200000_3600000");
+    }
+
+    @Test
+    public void shouldSearchUsingTrigramIndex() {
+        // given
+        Snapshot snapshot1 = Snapshot.builder()
+                .id(TraceUniqueId.next(0))
+                .duration(1)
+                .grouping("GET /shopping/cart")
+                .error("Something bad happened")
+                .user("able")
+                .build();
+        Snapshot snapshot2 = Snapshot.builder()
+                .id(TraceUniqueId.next(0))
+                .duration(2)
+                .grouping("GET /shopping/checkout")
+                .user("baker")
+                .build();
+        snapshotDao.storeAll(ImmutableList.of(snapshot1, snapshot2));
+        // when
+        List<TracePoint> groupingContains = snapshotDao.readPoints(query(StringComparator.CONTAINS,
+                "pping/c", null, null, null, null));
+        List<TracePoint> groupingEnds = snapshotDao.readPoints(query(StringComparator.ENDS,
+                "checkout", null, null, null, null));
+        List<TracePoint> groupingNotContains = snapshotDao.readPoints(query(
+                StringComparator.NOT_CONTAINS, "cart", null, null, null, null));
+        List<TracePoint> errorContains = snapshotDao.readPoints(query(null, null,
+                StringComparator.CONTAINS, "BAD HAP", null, null));
+        List<TracePoint> userWildcard = snapshotDao.readPoints(query(null, null, null, null,
+                StringComparator.BEGINS, "bak_r"));
+        List<TracePoint> noMatch = snapshotDao.readPoints(query(StringComparator.CONTAINS,
+                "cartx", null, null, null, null));
+        // then
+        assertThat(groupingContains).hasSize(2);
+        assertThat(groupingEnds).hasSize(1);
+        assertThat(groupingEnds.get(0).getId()).isEqualTo(snapshot2.getId());
+        assertThat(groupingNotContains).hasSize(1);
+        assertThat(groupingNotContains.get(0).getId()).isEqualTo(snapshot2.getId());
+        assertThat(errorContains).hasSize(1);
+        assertThat(errorContains.get(0).getId()).isEqualTo(snapshot1.getId());
+        assertThat(userWildcard).hasSize(1);
+        assertThat(userWildcard.get(0).getId()).isEqualTo(snapshot2.getId());
+        assertThat(noMatch).isEmpty();
+    }
+
+    @Test
+    public void shouldSearchPastTrigramIndexedLength() {
+        // given
+        Snapshot snapshot1 = Snapshot.builder()
+                .id(TraceUniqueId.next(0))
+                .duration(1)
+                .error(Strings.repeat("x", Trigrams.MAX_INDEXED_LENGTH) + " connection refused")
+                .build();
+        Snapshot snapshot2 = Snapshot.builder()
+                .id(TraceUniqueId.next(0))
+                .duration(2)
+                .error("timeout")
+                .build();
+        snapshotDao.storeAll(ImmutableList.of(snapshot1, snapshot2));
+        // when
+        List<TracePoint> errorContains = snapshotDao.readPoints(query(null, null,
+                StringComparator.CONTAINS, "refused", null, null));
+        List<TracePoint> errorEnds = snapshotDao.readPoints(query(null, null,
+                StringComparator.ENDS, "connection refused", null, null));
+        // then
+        assertThat(errorContains).hasSize(1);
+        assertThat(errorContains.get(0).getId()).isEqualTo(snapshot1.getId());
+        assertThat(errorEnds).hasSize(1);
+        assertThat(errorEnds.get(0).getId()).isEqualTo(snapshot1.getId());
+    }
+
+    @Test
+    public void shouldUseIndexesForTrigramSearch() throws SQLException {
+        // given
+        snapshotDao.store(createSnapshot(0, 10));
+        TracePointQuery query = new TracePointQuery(0, 10, 0, Long.MAX_VALUE, null, false, false,
+                StringComparator.CONTAINS, "grouping", null, null, null, null, 10);
+        ParameterizedSql parameterizedSql =
+                query.getParameterizedSql("snapshot_0_3600000", "snapshot_0_3600000_trigram");
+        // when
+        String plan = dataSource.query("explain " + parameterizedSql.getSql(),
+                parameterizedSql.getArgs(), new RowMapper<String>() {
+                    @Override
+                    public String mapRow(ResultSet resultSet) throws SQLException {
+                        return resultSet.getString(1);
+                    }
+                }).get(0);
+        // then
+        // the partition table rows are looked up by primary key from the trigram index matches,
+        // instead of scanning the capture time range
+        assertThat(plan).contains("/* PUBLIC.PRIMARY_KEY");
+        assertThat(plan).contains(": ID IN(");
+        assertThat(plan).contains("/* PUBLIC.SNAPSHOT_0_3600000_TRIGRAM_IDX: TRIGRAM IN(");
+        assertThat(plan).contains("/* PUBLIC.SNAPSHOT_0_3600000_TRIGRAM_IDX: NAME = ");
+    }
+
+    private static TracePointQuery query(@Nullable StringComparator groupingComparator,
+            @Nullable String grouping, @Nullable StringComparator errorComparator,
+            @Nullable String error, @Nullable StringComparator userComparator,
+            @Nullable String user) {
+        return new TracePointQuery(0, 0, 0, Long.MAX_VALUE, null, false, false,
+                groupingComparator, grouping, errorComparator, error, userComparator, user, 10);
+    }
+
+    private static Snapshot createSnapshot(long startTime, long captureTime) {
+        return Snapshot.builder()
+                .id(TraceUniqueId.next(startTime))
+                .startTime(startTime)
+                .captureTime(captureTime)
+                .duration(MILLISECONDS.toNanos(captureTime - startTime))
+                .grouping("test grouping")
+                .build();
+    }
 }
@@ -33,7 +33,7 @@ class SnapshotTestData {
 
     Snapshot createSnapshot() {
         return Snapshot.builder()
-                .id("abc" + counter.getAndIncrement())
+                .id(counter.getAndIncrement())
                 .stuck(false)
                 .startTime(0)
                 .captureTime(0)
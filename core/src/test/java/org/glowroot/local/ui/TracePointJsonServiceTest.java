@@ -59,10 +59,10 @@ public class TracePointJsonServiceTest {
     public void shouldReturnCompletedStoredPointInPlaceOfActivePoint() throws IOException {
         // given
         List<Trace> activeTraces = Lists.newArrayList();
-        activeTraces.add(mockActiveTrace("id1", 500));
+        activeTraces.add(mockActiveTrace(1, 500));
         List<Trace> pendingTraces = Lists.newArrayList();
         List<TracePoint> points = Lists.newArrayList();
-        points.add(mockPoint("id1", 123, 500));
+        points.add(mockPoint(1, 123, 500));
         TracePointJsonService tracePointJsonService = buildTracePointJsonService(activeTraces,
                 pendingTraces, points);
         // when
@@ -77,9 +77,9 @@ public class TracePointJsonServiceTest {
     public void shouldReturnCompletedPendingPointInPlaceOfActivePoint() throws IOException {
         // given
         List<Trace> activeTraces = Lists.newArrayList();
-        activeTraces.add(mockActiveTrace("id1", 500));
+        activeTraces.add(mockActiveTrace(1, 500));
         List<Trace> pendingTraces = Lists.newArrayList();
-        pendingTraces.add(mockPendingTrace("id1", 500));
+        pendingTraces.add(mockPendingTrace(1, 500));
         List<TracePoint> points = Lists.newArrayList();
         TracePointJsonService tracePointJsonService = buildTracePointJsonService(activeTraces,
                 pendingTraces, points);
@@ -98,9 +98,9 @@ public class TracePointJsonServiceTest {
         // given
         List<Trace> activeTraces = Lists.newArrayList();
         List<Trace> pendingTraces = Lists.newArrayList();
-        pendingTraces.add(mockPendingTrace("id1", 500));
+        pendingTraces.add(mockPendingTrace(1, 500));
         List<TracePoint> points = Lists.newArrayList();
-        points.add(mockPoint("id1", 10001, 500));
+        points.add(mockPoint(1, 10001, 500));
         TracePointJsonService tracePointJsonService = buildTracePointJsonService(activeTraces,
                 pendingTraces, points, 10000, DEFAULT_CURRENT_TICK);
         // when
@@ -117,15 +117,15 @@ public class TracePointJsonServiceTest {
         // given
         List<Trace> activeTraces = Lists.newArrayList();
         for (int i = 0; i < 100; i++) {
-            activeTraces.add(mockActiveTrace("id" + i, random.nextInt(1000)));
+            activeTraces.add(mockActiveTrace(i, random.nextInt(1000)));
         }
         List<Trace> pendingTraces = Lists.newArrayList();
         for (int i = 100; i < 200; i++) {
-            pendingTraces.add(mockPendingTrace("id" + i, random.nextInt(1000)));
+            pendingTraces.add(mockPendingTrace(i, random.nextInt(1000)));
         }
         List<TracePoint> points = Lists.newArrayList();
         for (int i = 200; i < 300; i++) {
-            points.add(mockPoint("id" + i, 1, random.nextInt(1000)));
+            points.add(mockPoint(i, 1, random.nextInt(1000)));
         }
         TracePointJsonService tracePointJsonService = buildTracePointJsonService(activeTraces,
                 pendingTraces, points);
@@ -149,7 +149,7 @@ public class TracePointJsonServiceTest {
         // given
         List<Trace> activeTraces = Lists.newArrayList();
         for (int i = 0; i < 110; i++) {
-            activeTraces.add(mockActiveTrace("id" + i, 500));
+            activeTraces.add(mockActiveTrace(i, 500));
         }
         List<Trace> pendingTraces = Lists.newArrayList();
         List<TracePoint> points = Lists.newArrayList();
@@ -202,7 +202,7 @@ public class TracePointJsonServiceTest {
                 ticker, clock);
     }
 
-    private static Trace mockActiveTrace(String id, long durationMillis) {
+    private static Trace mockActiveTrace(long id, long durationMillis) {
         Trace trace = mock(Trace.class);
         when(trace.getId()).thenReturn(id);
         when(trace.getStartTick()).thenReturn(
@@ -210,7 +210,7 @@ public class TracePointJsonServiceTest {
         return trace;
     }
 
-    private static Trace mockPendingTrace(String id, long durationMillis) {
+    private static Trace mockPendingTrace(long id, long durationMillis) {
         Trace trace = mock(Trace.class);
         when(trace.getId()).thenReturn(id);
         when(trace.getDuration()).thenReturn(MILLISECONDS.toNanos(durationMillis));
@@ -218,7 +218,7 @@ public class TracePointJsonServiceTest {
         return trace;
     }
 
-    private static TracePoint mockPoint(String id, long end, long durationMillis) {
+    private static TracePoint mockPoint(long id, long end, long durationMillis) {
         return TracePoint.from(id, end, MILLISECONDS.toNanos(durationMillis), false);
     }
 }
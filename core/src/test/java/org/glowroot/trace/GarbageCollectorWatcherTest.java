@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace;
+
+import org.junit.Test;
+
+import org.glowroot.trace.model.GarbageCollectorSnapshot;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class GarbageCollectorWatcherTest {
+
+    @Test
+    public void shouldShareSnapshotUntilNextCapture() {
+        // given
+        GarbageCollectorWatcher garbageCollectorWatcher = new GarbageCollectorWatcher();
+        GarbageCollectorSnapshot snapshot = garbageCollectorWatcher.getLatestSnapshot();
+        // when
+        GarbageCollectorSnapshot sameSnapshot = garbageCollectorWatcher.getLatestSnapshot();
+        garbageCollectorWatcher.runInternal();
+        GarbageCollectorSnapshot nextSnapshot = garbageCollectorWatcher.getLatestSnapshot();
+        // then
+        assertThat(sameSnapshot).isSameAs(snapshot);
+        assertThat(nextSnapshot).isNotSameAs(snapshot);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import org.glowroot.api.MessageSupplier;
+import org.glowroot.trace.model.GarbageCollectorSnapshot;
+import org.glowroot.trace.model.MetricNameImpl;
+import org.glowroot.trace.model.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class StackTraceCollectorTest {
+
+    private final Ticker ticker = Ticker.systemTicker();
+
+    @Test
+    public void shouldCaptureDueTracesOnly() {
+        // given
+        StackTraceCollector stackTraceCollector = new StackTraceCollector(ticker);
+        Trace coarseTrace = createTrace();
+        Trace fineTrace = createTrace();
+        Trace notYetDueTrace = createTrace();
+        long endTick = ticker.read() + 60000000000L;
+        stackTraceCollector.register(coarseTrace, 0, 1000, endTick, false);
+        stackTraceCollector.register(fineTrace, 0, 1000, endTick, true);
+        stackTraceCollector.register(notYetDueTrace, 60000, 1000, endTick, false);
+        // when
+        stackTraceCollector.runInternal();
+        // then
+        assertThat(coarseTrace.getCoarseMergedStackTree()).isNotNull();
+        assertThat(coarseTrace.getFineMergedStackTree()).isNull();
+        assertThat(fineTrace.getCoarseMergedStackTree()).isNull();
+        assertThat(fineTrace.getFineMergedStackTree()).isNotNull();
+        assertThat(notYetDueTrace.getCoarseMergedStackTree()).isNull();
+    }
+
+    @Test
+    public void shouldNotCaptureCompletedTrace() {
+        // given
+        StackTraceCollector stackTraceCollector = new StackTraceCollector(ticker);
+        Trace trace = createTrace();
+        trace.popSpan(trace.getRootSpan(), ticker.read(), null);
+        stackTraceCollector.register(trace, 0, 1000, ticker.read() + 60000000000L, false);
+        // when
+        stackTraceCollector.runInternal();
+        // then
+        assertThat(trace.getCoarseMergedStackTree()).isNull();
+    }
+
+    private Trace createTrace() {
+        return new Trace(0, false, "grouping", MessageSupplier.from("message"),
+                new MetricNameImpl("metric", ticker), null, GarbageCollectorSnapshot.capture(),
+                ticker);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import org.glowroot.api.MessageSupplier;
+import org.glowroot.trace.model.GarbageCollectorSnapshot;
+import org.glowroot.trace.model.MetricNameImpl;
+import org.glowroot.trace.model.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class TraceRegistryTest {
+
+    @Test
+    public void shouldRemoveTraceById() {
+        // given
+        TraceRegistry traceRegistry = new TraceRegistry();
+        Trace later = newTrace(2000);
+        Trace earlier = newTrace(1000);
+        traceRegistry.addTrace(later);
+        traceRegistry.addTrace(earlier);
+        // when
+        Iterable<Trace> traces = traceRegistry.getTraces();
+        traceRegistry.removeTrace(later);
+        // then
+        assertThat(traces).containsExactly(earlier);
+        assertThat(traceRegistry.getTrace(earlier.getId())).isSameAs(earlier);
+        assertThat(traceRegistry.getTrace(later.getId())).isNull();
+    }
+
+    @Test
+    public void shouldIterateInStartTimeOrder() {
+        // given
+        TraceRegistry traceRegistry = new TraceRegistry();
+        Trace later = newTrace(2000);
+        Trace earlier = newTrace(1000);
+        // when
+        traceRegistry.addTrace(later);
+        traceRegistry.addTrace(earlier);
+        // then
+        assertThat(traceRegistry.getTraces()).containsExactly(earlier, later);
+    }
+
+    private static Trace newTrace(long startTime) {
+        Ticker ticker = Ticker.systemTicker();
+        return new Trace(startTime, false, "grouping", MessageSupplier.from("test"),
+                new MetricNameImpl("test", ticker), null, GarbageCollectorSnapshot.capture(),
+                ticker);
+    }
+}
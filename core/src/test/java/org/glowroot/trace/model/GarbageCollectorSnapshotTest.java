@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace.model;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CharStreams;
+import org.junit.Test;
+
+import org.glowroot.trace.model.GarbageCollectorSnapshot.CollectorInfo;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class GarbageCollectorSnapshotTest {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    @Test
+    public void shouldCaptureAllCollectors() {
+        // given
+        // when
+        GarbageCollectorSnapshot snapshot = GarbageCollectorSnapshot.capture();
+        // then
+        for (GarbageCollectorMXBean garbageCollectorBean : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            assertThat(snapshot.getCollectorInfos()).containsKey(garbageCollectorBean.getName());
+        }
+    }
+
+    @Test
+    public void shouldWriteCollectionDeltas() throws IOException {
+        // given
+        GarbageCollectorSnapshot start = snapshot("young", 10, 100, "old", 2, 500);
+        GarbageCollectorSnapshot end = snapshot("young", 13, 130, "old", 3, 800);
+        // when
+        String json = writeCollectionsSince(end, start);
+        // then
+        assertThat(json).isEqualTo("[{\"name\":\"young\",\"collectionCount\":3,"
+                + "\"collectionTime\":30},{\"name\":\"old\",\"collectionCount\":1,"
+                + "\"collectionTime\":300}]");
+    }
+
+    @Test
+    public void shouldOnlyAttributeCollectorsThatCollected() throws IOException {
+        // given
+        GarbageCollectorSnapshot start = snapshot("young", 10, 100, "old", 2, 500);
+        GarbageCollectorSnapshot end = snapshot("young", 10, 100, "old", 3, 800);
+        // when
+        String json = writeCollectionsSince(end, start);
+        // then
+        assertThat(json).isEqualTo(
+                "[{\"name\":\"old\",\"collectionCount\":1,\"collectionTime\":300}]");
+    }
+
+    @Test
+    public void shouldSkipCollectorsThatDidNotExistAtStartOrEnd() throws IOException {
+        // given
+        GarbageCollectorSnapshot start = snapshot("young", 10, 100, "old", 2, 500);
+        GarbageCollectorSnapshot end = snapshot("young", 11, 110, "other", 3, 800);
+        // when
+        String json = writeCollectionsSince(end, start);
+        // then
+        assertThat(json).isEqualTo(
+                "[{\"name\":\"young\",\"collectionCount\":1,\"collectionTime\":10}]");
+    }
+
+    @Test
+    public void shouldWriteEmptyArrayWhenNoCollections() throws IOException {
+        // given
+        GarbageCollectorSnapshot snapshot = snapshot("young", 10, 100, "old", 2, 500);
+        // when
+        String json = writeCollectionsSince(snapshot, snapshot);
+        // then
+        assertThat(json).isEqualTo("[]");
+    }
+
+    private static GarbageCollectorSnapshot snapshot(String name1, long collectionCount1,
+            long collectionTime1, String name2, long collectionCount2, long collectionTime2) {
+        return new GarbageCollectorSnapshot(ImmutableMap.of(
+                name1, new CollectorInfo(collectionCount1, collectionTime1),
+                name2, new CollectorInfo(collectionCount2, collectionTime2)));
+    }
+
+    private static String writeCollectionsSince(GarbageCollectorSnapshot end,
+            GarbageCollectorSnapshot start) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
+        end.writeCollectionsSince(start, jg);
+        jg.close();
+        return sb.toString();
+    }
+}
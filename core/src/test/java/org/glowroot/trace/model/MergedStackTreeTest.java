@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace.model;
+
+import java.lang.Thread.State;
+import java.lang.management.ThreadInfo;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class MergedStackTreeTest {
+
+    @Test
+    public void shouldMergeNodesWithManyChildNodes() {
+        // given
+        MergedStackTree mergedStackTree = new MergedStackTree();
+        // when
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 20; j++) {
+                mergedStackTree.addStackTrace(threadInfo(State.RUNNABLE,
+                        element("leaf" + j), element("dispatch"), element("main")));
+            }
+            mergedStackTree.addStackTrace(threadInfo(State.BLOCKED,
+                    element("leaf0"), element("dispatch"), element("main")));
+        }
+        // then
+        synchronized (mergedStackTree.getLock()) {
+            MergedStackTreeNode rootNode = mergedStackTree.getRootNode();
+            assertThat(rootNode.getStackTraceElement()).isEqualTo(element("main"));
+            assertThat(rootNode.getSampleCount()).isEqualTo(42);
+            MergedStackTreeNode dispatchNode = rootNode.getChildNodes().get(0);
+            assertThat(dispatchNode.getChildNodes()).hasSize(21);
+            for (MergedStackTreeNode leafNode : dispatchNode.getChildNodes()) {
+                assertThat(leafNode.getSampleCount()).isEqualTo(2);
+                assertThat(leafNode.getChildNodes()).isEmpty();
+            }
+            MergedStackTreeNode blockedLeafNode = dispatchNode.getChildNodes().get(20);
+            assertThat(blockedLeafNode.getStackTraceElement()).isEqualTo(element("leaf0"));
+            assertThat(blockedLeafNode.getLeafThreadState()).isEqualTo(State.BLOCKED);
+        }
+    }
+
+    @Test
+    public void shouldStripSyntheticMetricMethods() {
+        // given
+        MergedStackTree mergedStackTree = new MergedStackTree();
+        // when
+        mergedStackTree.addStackTrace(threadInfo(State.RUNNABLE, element("leaf"),
+                element("execute$glowroot$metric$jdbc$execute$0"), element("execute"),
+                element("main")));
+        // then
+        synchronized (mergedStackTree.getLock()) {
+            MergedStackTreeNode rootNode = mergedStackTree.getRootNode();
+            assertThat(rootNode.getChildNodes()).hasSize(1);
+            MergedStackTreeNode executeNode = rootNode.getChildNodes().get(0);
+            assertThat(executeNode.getStackTraceElement().getMethodName()).isEqualTo("execute");
+            assertThat(executeNode.getMetricNames()).containsExactly("jdbc execute");
+            assertThat(executeNode.getChildNodes().get(0).getStackTraceElement())
+                    .isEqualTo(element("leaf"));
+        }
+    }
+
+    @Test
+    public void shouldShareFramesAcrossTrees() {
+        // given
+        MergedStackTree mergedStackTree1 = new MergedStackTree();
+        MergedStackTree mergedStackTree2 = new MergedStackTree();
+        // when
+        mergedStackTree1.addStackTrace(threadInfo(State.RUNNABLE, element("main")));
+        mergedStackTree2.addStackTrace(threadInfo(State.RUNNABLE, element("main")));
+        // then
+        StackTraceElement element1;
+        synchronized (mergedStackTree1.getLock()) {
+            element1 = mergedStackTree1.getRootNode().getStackTraceElement();
+        }
+        synchronized (mergedStackTree2.getLock()) {
+            assertThat(mergedStackTree2.getRootNode().getStackTraceElement()).isSameAs(element1);
+        }
+    }
+
+    private static ThreadInfo threadInfo(State threadState, StackTraceElement... stackTrace) {
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        when(threadInfo.getStackTrace()).thenReturn(stackTrace);
+        when(threadInfo.getThreadState()).thenReturn(threadState);
+        return threadInfo;
+    }
+
+    private static StackTraceElement element(String methodName) {
+        return new StackTraceElement(MergedStackTreeTest.class.getName(), methodName,
+                "MergedStackTreeTest.java", 100);
+    }
+}
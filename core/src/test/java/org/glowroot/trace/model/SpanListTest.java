@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace.model;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class SpanListTest {
+
+    @Test
+    public void shouldIterateAcrossSegments() {
+        // given
+        SpanList spanList = new SpanList();
+        List<Span> spans = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 10000; i++) {
+            Span span = new Span(null, 0, i, 1, null);
+            spanList.add(span);
+            spans.add(span);
+        }
+        // then
+        assertThat(spanList.size()).isEqualTo(10000);
+        assertThat(Lists.newArrayList(spanList)).isEqualTo(spans);
+    }
+
+    @Test
+    public void shouldIterateWhileAdding() throws Exception {
+        // given
+        final SpanList spanList = new SpanList();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Void> future = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (int i = 0; i < 100000; i++) {
+                    spanList.add(new Span(null, 0, i, 1, null));
+                }
+                return null;
+            }
+        });
+        // when
+        while (!future.isDone()) {
+            // then
+            long expectedStartTick = 0;
+            for (Span span : spanList) {
+                assertThat(span.getStartTick()).isEqualTo(expectedStartTick++);
+            }
+        }
+        future.get();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace.model;
+
+import java.lang.management.ManagementFactory;
+
+import com.google.caliper.Param;
+import com.google.caliper.Runner;
+import com.google.caliper.SimpleBenchmark;
+import com.google.common.base.Ticker;
+
+import org.glowroot.api.MessageSupplier;
+
+/**
+ * This micro benchmark measures the time and the bytes allocated per traced request (that is not
+ * stored) with and without recycling of metric instances, see
+ * {@link Trace#clearThreadLocalMetrics(boolean)}.
+ *
+ * Bytes allocated per trace are printed by main() after the caliper run, since caliper only
+ * reports time.
+ *
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class TraceAllocationBenchmark extends SimpleBenchmark {
+
+    private static final int SPAN_COUNT = 20;
+    private static final int METRIC_NAME_COUNT = 8;
+
+    @Param({"false", "true"})
+    private boolean recycleMetrics;
+
+    private MetricNameImpl rootMetricName;
+    private MetricNameImpl[] metricNames;
+    private MessageSupplier messageSupplier;
+    private GarbageCollectorSnapshot garbageCollectorSnapshot;
+    private Ticker ticker;
+
+    public static void main(String[] args) {
+        new Runner().run(TraceAllocationBenchmark.class.getName());
+        printAllocatedBytesPerTrace(false);
+        printAllocatedBytesPerTrace(true);
+    }
+
+    @Override
+    protected void setUp() {
+        ticker = Ticker.systemTicker();
+        rootMetricName = new MetricNameImpl("http request", ticker);
+        metricNames = new MetricNameImpl[METRIC_NAME_COUNT];
+        for (int i = 0; i < METRIC_NAME_COUNT; i++) {
+            metricNames[i] = new MetricNameImpl("metric " + i, ticker);
+        }
+        messageSupplier = MessageSupplier.from("message");
+        // capturing the garbage collector snapshot is not part of what is being measured
+        garbageCollectorSnapshot = GarbageCollectorSnapshot.capture();
+    }
+
+    public void timeTrace(int reps) {
+        for (int i = 0; i < reps; i++) {
+            runTrace();
+        }
+    }
+
+    private void runTrace() {
+        Trace trace = new Trace(0, false, "grouping", messageSupplier, rootMetricName, null,
+                garbageCollectorSnapshot, ticker);
+        for (int i = 0; i < SPAN_COUNT; i++) {
+            Span span = trace.pushSpan(metricNames[i % METRIC_NAME_COUNT], ticker.read(),
+                    messageSupplier);
+            trace.popSpan(span, ticker.read(), null);
+        }
+        trace.popSpan(trace.getRootSpan(), ticker.read(), null);
+        trace.clearThreadLocalMetrics(recycleMetrics);
+    }
+
+    private static void printAllocatedBytesPerTrace(boolean recycleMetrics) {
+        TraceAllocationBenchmark benchmark = new TraceAllocationBenchmark();
+        benchmark.recycleMetrics = recycleMetrics;
+        benchmark.setUp();
+        // warm up
+        benchmark.timeTrace(100000);
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int reps = 100000;
+        long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+        benchmark.timeTrace(reps);
+        long bytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+        System.out.println("recycleMetrics=" + recycleMetrics + ": " + bytes / reps
+                + " bytes allocated per trace");
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.trace.model;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import org.glowroot.api.MessageSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class TraceTest {
+
+    private final Ticker ticker = Ticker.systemTicker();
+    private final MetricNameImpl rootMetricName = new MetricNameImpl("root", ticker);
+    private final MetricNameImpl metricName = new MetricNameImpl("metric", ticker);
+
+    @Test
+    public void shouldRecycleMetrics() {
+        // given
+        Trace trace = runTrace();
+        Metric metric = trace.getMetrics().get(1);
+        // when
+        trace.clearThreadLocalMetrics(true);
+        Trace nextTrace = runTrace();
+        // then
+        assertThat(trace.markExposed()).isFalse();
+        assertThat(nextTrace.getMetrics().get(1)).isSameAs(metric);
+        assertThat(metric.toString()).contains("count=1");
+    }
+
+    @Test
+    public void shouldNotRecycleMetricsOfExposedTrace() {
+        // given
+        Trace trace = runTrace();
+        Metric metric = trace.getMetrics().get(1);
+        // when
+        assertThat(trace.markExposed()).isTrue();
+        trace.clearThreadLocalMetrics(true);
+        Trace nextTrace = runTrace();
+        // then
+        assertThat(trace.markExposed()).isTrue();
+        assertThat(nextTrace.getMetrics().get(1)).isNotSameAs(metric);
+        nextTrace.clearThreadLocalMetrics(false);
+    }
+
+    private Trace runTrace() {
+        MessageSupplier messageSupplier = MessageSupplier.from("message");
+        Trace trace = new Trace(0, false, "grouping", messageSupplier, rootMetricName, null,
+                GarbageCollectorSnapshot.capture(), ticker);
+        Span span = trace.pushSpan(metricName, ticker.read(), messageSupplier);
+        trace.popSpan(span, ticker.read(), null);
+        trace.popSpan(trace.getRootSpan(), ticker.read(), null);
+        return trace;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.weaving;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.api.weaving.Pointcut;
+import org.glowroot.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.weaving.SomeAspect.BasicMiscConstructorAdvice;
+import org.glowroot.weaving.SomeAspect.TypeNamePatternAdvice;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class AdviceIndexTest {
+
+    @Test
+    public void shouldReturnCandidatesInOriginalOrder() throws Exception {
+        // given
+        Advice patternAdvice = advice(TypeNamePatternAdvice.class);
+        Advice miscAdvice = advice(BasicAdvice.class);
+        Advice basicMiscAdvice = advice(BasicMiscConstructorAdvice.class);
+        AdviceIndex adviceIndex =
+                AdviceIndex.of(ImmutableList.of(basicMiscAdvice, patternAdvice, miscAdvice));
+        ParsedType misc = ParsedType.from(true, Misc.class.getName(), null,
+                ImmutableList.<String>of(), ImmutableList.<ParsedMethod>of());
+        // when
+        List<Advice> basicMiscCandidates =
+                adviceIndex.getCandidates(BasicMisc.class.getName(), ImmutableList.of(misc));
+        List<Advice> misc2Candidates =
+                adviceIndex.getCandidates(Misc2.class.getName(), ImmutableList.<ParsedType>of());
+        // then
+        assertThat(basicMiscCandidates).containsExactly(basicMiscAdvice, patternAdvice,
+                miscAdvice);
+        assertThat(misc2Candidates).containsExactly(patternAdvice);
+    }
+
+    private static Advice advice(Class<?> adviceClass) throws Exception {
+        Pointcut pointcut = adviceClass.getAnnotation(Pointcut.class);
+        return Advice.from(pointcut, adviceClass, false);
+    }
+}
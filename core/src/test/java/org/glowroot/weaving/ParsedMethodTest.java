@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.weaving;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class ParsedMethodTest {
+
+    @Test
+    public void shouldOnlyAddNamesToStringTable() {
+        // given
+        StringTable stringTable = StringTable.instance();
+        ParsedMethod.from("execute", ImmutableList.of(Type.getType(String.class)), Type.VOID_TYPE,
+                0, "(Ljava/lang/String;)V", null, ImmutableList.<String>of());
+        int size = stringTable.size();
+        // when
+        ParsedMethod parsedMethod = ParsedMethod.from("execute",
+                ImmutableList.of(Type.getType(String.class)), Type.VOID_TYPE, 0,
+                "(Ljava/lang/String;)V", "(Ljava/lang/String;)V^Lorg/example/Generated123;",
+                ImmutableList.<String>of());
+        // then
+        assertThat(stringTable.size()).isEqualTo(size);
+        assertThat(parsedMethod.getDesc()).isEqualTo("(Ljava/lang/String;)V");
+        assertThat(parsedMethod.getSignature())
+                .isEqualTo("(Ljava/lang/String;)V^Lorg/example/Generated123;");
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.weaving;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.api.weaving.Pointcut;
+import org.glowroot.weaving.ParsedTypeCache.LoaderTypeNames;
+import org.glowroot.weaving.ParsedTypeCache.ParseContext;
+import org.glowroot.weaving.SomeAspect.BasicAdvice;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class ParsedTypeCacheTest {
+
+    private static final String MISSING_TYPE_NAME = "org.glowroot.weaving.DoesNotExist";
+
+    @Test
+    public void shouldCacheUnresolvableType() {
+        // given
+        ParsedTypeCache parsedTypeCache = new ParsedTypeCache();
+        ClassLoader loader = ParsedTypeCacheTest.class.getClassLoader();
+        ParseContext parseContext = new ParseContext("test", null);
+        // when
+        List<ParsedType> first =
+                parsedTypeCache.getTypeHierarchy(MISSING_TYPE_NAME, loader, parseContext);
+        List<ParsedType> second =
+                parsedTypeCache.getTypeHierarchy(MISSING_TYPE_NAME, loader, parseContext);
+        // then
+        assertThat(first).isEmpty();
+        assertThat(second).isEmpty();
+        assertThat(parsedTypeCache.getMissCount()).isEqualTo(1);
+        assertThat(parsedTypeCache.getNegativeHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldClearUnresolvableTypeWhenAdded() {
+        // given
+        ParsedTypeCache parsedTypeCache = new ParsedTypeCache();
+        ClassLoader loader = ParsedTypeCacheTest.class.getClassLoader();
+        ParseContext parseContext = new ParseContext("test", null);
+        parsedTypeCache.getTypeHierarchy(MISSING_TYPE_NAME, loader, parseContext);
+        // when
+        parsedTypeCache.add(ParsedType.from(false, MISSING_TYPE_NAME, null,
+                ImmutableList.<String>of(), ImmutableList.<ParsedMethod>of()), loader);
+        List<ParsedType> typeHierarchy =
+                parsedTypeCache.getTypeHierarchy(MISSING_TYPE_NAME, loader, parseContext);
+        // then
+        assertThat(typeHierarchy).hasSize(1);
+        assertThat(parsedTypeCache.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldClearUnresolvableTypeInChildLoaderWhenAddedToParentLoader() {
+        // given
+        ParsedTypeCache parsedTypeCache = new ParsedTypeCache();
+        ClassLoader parentLoader = ParsedTypeCacheTest.class.getClassLoader();
+        ClassLoader childLoader = new URLClassLoader(new URL[0], parentLoader);
+        ParseContext parseContext = new ParseContext("test", null);
+        parsedTypeCache.getTypeHierarchy(MISSING_TYPE_NAME, childLoader, parseContext);
+        // when
+        parsedTypeCache.add(ParsedType.from(false, MISSING_TYPE_NAME, null,
+                ImmutableList.<String>of(), ImmutableList.<ParsedMethod>of()), parentLoader);
+        parsedTypeCache.getTypeHierarchy(MISSING_TYPE_NAME, childLoader, parseContext);
+        // then
+        // the type is looked up again from the child loader instead of hitting the stale negative
+        // cache entry
+        assertThat(parsedTypeCache.getNegativeHitCount()).isEqualTo(0);
+        assertThat(parsedTypeCache.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldResolveSameHierarchyWithPrefetch() {
+        // given
+        ParsedTypeCache parsedTypeCache = new ParsedTypeCache();
+        ParsedTypeCache prefetchingParsedTypeCache = new ParsedTypeCache(2);
+        ClassLoader loader = ParsedTypeCacheTest.class.getClassLoader();
+        ParseContext parseContext = new ParseContext("test", null);
+        // when
+        List<ParsedType> typeHierarchy = parsedTypeCache.getTypeHierarchy(
+                SubBasicMisc.class.getName(), loader, parseContext);
+        List<ParsedType> prefetchedTypeHierarchy = prefetchingParsedTypeCache.getTypeHierarchy(
+                SubBasicMisc.class.getName(), loader, parseContext);
+        prefetchingParsedTypeCache.close();
+        // then
+        assertThat(getNames(prefetchedTypeHierarchy)).isEqualTo(getNames(typeHierarchy));
+    }
+
+    @Test
+    public void shouldMaintainMatchingTypeNamesAfterFirstUse() {
+        // given
+        ParsedTypeCache parsedTypeCache = new ParsedTypeCache();
+        ClassLoader loader = ParsedTypeCacheTest.class.getClassLoader();
+        parsedTypeCache.add(ParsedType.from(false, "org.example.FirstAbc", null,
+                ImmutableList.<String>of(), ImmutableList.<ParsedMethod>of()), loader);
+        // when
+        List<String> first = parsedTypeCache.getMatchingTypeNames("abc", 10);
+        parsedTypeCache.add(ParsedType.from(false, "org.example.SecondAbc", null,
+                ImmutableList.<String>of(), ImmutableList.<ParsedMethod>of()), loader);
+        List<String> second = parsedTypeCache.getMatchingTypeNames("abc", 10);
+        // then
+        assertThat(first).containsExactly("org.example.FirstAbc");
+        assertThat(second).containsExactly("org.example.FirstAbc", "org.example.SecondAbc");
+    }
+
+    @Test
+    public void shouldFindExistingTypeNamesToReweave() throws Exception {
+        // given
+        ParsedTypeCache parsedTypeCache = new ParsedTypeCache();
+        ClassLoader loader = ParsedTypeCacheTest.class.getClassLoader();
+        parsedTypeCache.add(ParsedType.from(true, Misc.class.getName(), null,
+                ImmutableList.<String>of(), ImmutableList.<ParsedMethod>of()), loader);
+        parsedTypeCache.add(ParsedType.from(false, BasicMisc.class.getName(), null,
+                ImmutableList.of(Misc.class.getName()), ImmutableList.<ParsedMethod>of()),
+                loader);
+        parsedTypeCache.add(ParsedType.from(false, Misc2.class.getName(), null,
+                ImmutableList.<String>of(), ImmutableList.<ParsedMethod>of()), loader);
+        Pointcut pointcut = BasicAdvice.class.getAnnotation(Pointcut.class);
+        AdviceIndex addedAdvisors =
+                AdviceIndex.of(ImmutableList.of(Advice.from(pointcut, BasicAdvice.class, false)));
+        // when
+        LoaderTypeNames typeNamesToReweave =
+                parsedTypeCache.getExistingTypeNamesToReweave(addedAdvisors, AdviceIndex.of());
+        // removed advisors only affect types that were woven with reweavable advice
+        LoaderTypeNames typeNamesToUnweave =
+                parsedTypeCache.getExistingTypeNamesToReweave(AdviceIndex.of(), addedAdvisors);
+        // then
+        assertThat(typeNamesToReweave.getTypeNames(loader)).containsOnly(Misc.class.getName(),
+                BasicMisc.class.getName());
+        assertThat(typeNamesToUnweave.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldFindExistingTypeNamesToReweavePerClassLoader() throws Exception {
+        // given
+        ParsedTypeCache parsedTypeCache = new ParsedTypeCache();
+        ClassLoader loader = ParsedTypeCacheTest.class.getClassLoader();
+        ClassLoader otherLoader = new URLClassLoader(new URL[0], null);
+        parsedTypeCache.add(ParsedType.from(true, Misc.class.getName(), null,
+                ImmutableList.<String>of(), ImmutableList.<ParsedMethod>of()), loader);
+        // same name but without the Misc interface
+        parsedTypeCache.add(ParsedType.from(false, BasicMisc.class.getName(), null,
+                ImmutableList.<String>of(), ImmutableList.<ParsedMethod>of()), otherLoader);
+        parsedTypeCache.add(ParsedType.from(false, BasicMisc.class.getName(), null,
+                ImmutableList.of(Misc.class.getName()), ImmutableList.<ParsedMethod>of()),
+                loader);
+        Pointcut pointcut = BasicAdvice.class.getAnnotation(Pointcut.class);
+        AdviceIndex addedAdvisors =
+                AdviceIndex.of(ImmutableList.of(Advice.from(pointcut, BasicAdvice.class, false)));
+        // when
+        LoaderTypeNames typeNamesToReweave =
+                parsedTypeCache.getExistingTypeNamesToReweave(addedAdvisors, AdviceIndex.of());
+        // then
+        assertThat(typeNamesToReweave.contains(loader, BasicMisc.class.getName())).isTrue();
+        assertThat(typeNamesToReweave.contains(otherLoader, BasicMisc.class.getName())).isFalse();
+        assertThat(typeNamesToReweave.contains(null, BasicMisc.class.getName())).isFalse();
+    }
+
+    private static List<String> getNames(List<ParsedType> parsedTypes) {
+        ImmutableList.Builder<String> names = ImmutableList.builder();
+        for (ParsedType parsedType : parsedTypes) {
+            names.add(parsedType.getName());
+        }
+        return names.build();
+    }
+}
@@ -45,7 +45,8 @@ public class PreInitializeClassesTest {
                 "org/glowroot/weaving/WeavingClassFileTransformer", "<init>",
                 "(Ljava/util/List;Ljava/util/List;Lcom/google/common/base/Supplier;"
                         + "Lorg/glowroot/weaving/ParsedTypeCache;"
-                        + "Lorg/glowroot/weaving/MetricTimerService;Z)V"));
+                        + "Lorg/glowroot/weaving/MetricTimerService;Z"
+                        + "Lorg/glowroot/weaving/WovenClassCache;)V"));
         // "call" WeavingClassFileTransformer.transform()
         globalCollector.processMethodFailIfNotFound(ReferencedMethod.from(
                 "org/glowroot/weaving/WeavingClassFileTransformer", "transform",
@@ -15,7 +15,9 @@
  */
 package org.glowroot.weaving;
 
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
 import org.junit.Test;
 
 import org.glowroot.api.MetricName;
@@ -132,6 +134,27 @@ public class WeaverTest {
         assertThat(SomeAspect.onAfterCount.get()).isEqualTo(0);
     }
 
+    @Test
+    public void shouldNotExecuteDisarmedAdvice() throws Exception {
+        // given
+        BasicAdvice.resetThreadLocals();
+        BasicAdvice.enable();
+        Misc test = newWovenObject(BasicMisc.class, Misc.class, BasicAdvice.class);
+        // when
+        AdviceSwitch.setArmed(false);
+        try {
+            test.execute1();
+        } finally {
+            AdviceSwitch.setArmed(true);
+        }
+        // then
+        assertThat(SomeAspect.enabledCount.get()).isEqualTo(0);
+        assertThat(SomeAspect.onBeforeCount.get()).isEqualTo(0);
+        assertThat(SomeAspect.onReturnCount.get()).isEqualTo(0);
+        assertThat(SomeAspect.onThrowCount.get()).isEqualTo(0);
+        assertThat(SomeAspect.onAfterCount.get()).isEqualTo(0);
+    }
+
     @Test
     public void shouldNotExecuteDisabledAdviceOnThrow() throws Exception {
         // given
@@ -985,6 +1008,56 @@ public class WeaverTest {
         test.executeWithReturn();
     }
 
+    // ===================== pre-scan =====================
+
+    @Test
+    public void shouldSkipRewriteWhenNothingToWeave() throws Exception {
+        // given
+        ParsedTypeCache parsedTypeCache = new ParsedTypeCache();
+        Weaver weaver = newWeaver(BasicAdvice.class, parsedTypeCache);
+        // when
+        byte[] wovenBytes = weaveClass(weaver, AbstractNotMisc.class);
+        // then
+        assertThat(wovenBytes).isNull();
+        assertThat(parsedTypeCache.getParsedTypes(AbstractNotMisc.class.getName())).hasSize(1);
+    }
+
+    @Test
+    public void shouldRewriteWhenMethodMatches() throws Exception {
+        // given
+        Weaver weaver = newWeaver(BasicAdvice.class, new ParsedTypeCache());
+        // when
+        byte[] wovenBytes = weaveClass(weaver, BasicMisc.class);
+        // then
+        assertThat(wovenBytes).isNotNull();
+    }
+
+    @Test
+    public void shouldRewriteWhenInheritedMethodMayFulfillInterface() throws Exception {
+        // given
+        Weaver weaver = newWeaver(BasicAdvice.class, new ParsedTypeCache());
+        // when
+        byte[] wovenBytes = weaveClass(weaver, ExtendsAbstractNotMisc.class);
+        // then
+        assertThat(wovenBytes).isNotNull();
+    }
+
+    private static Weaver newWeaver(Class<?> adviceClass, ParsedTypeCache parsedTypeCache)
+            throws Exception {
+        Pointcut pointcut = adviceClass.getAnnotation(Pointcut.class);
+        return new Weaver(ImmutableList.<MixinType>of(),
+                AdviceIndex.of(ImmutableList.of(Advice.from(pointcut, adviceClass, false))),
+                Suppliers.ofInstance(AdviceIndex.of()), parsedTypeCache,
+                NopMetricTimerService.INSTANCE, true, null);
+    }
+
+    private static byte/*@Nullable*/[] weaveClass(Weaver weaver, Class<?> clazz)
+            throws Exception {
+        String internalName = TypeNames.toInternal(clazz.getName());
+        byte[] bytes = Resources.toByteArray(Resources.getResource(internalName + ".class"));
+        return weaver.weave(bytes, internalName, null, WeaverTest.class.getClassLoader());
+    }
+
     public static <S, T extends S> S newWovenObject(Class<T> implClass, Class<S> bridgeClass,
             Class<?> adviceClass, Class<?>... extraBridgeClasses) throws Exception {
 
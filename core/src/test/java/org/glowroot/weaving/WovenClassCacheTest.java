@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.weaving;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.api.weaving.Pointcut;
+import org.glowroot.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.weaving.SomeAspect.StaticAdvice;
+import org.glowroot.weaving.WovenClassCache.WovenClass;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Trask Stalnaker
+ * @since 0.5
+ */
+public class WovenClassCacheTest {
+
+    private File tempFile;
+
+    @Before
+    public void onBefore() throws IOException {
+        tempFile = File.createTempFile("glowroot-test-", ".woven.db");
+    }
+
+    @After
+    public void onAfter() throws IOException {
+        tempFile.delete();
+    }
+
+    @Test
+    public void shouldReadAfterReopen() throws Exception {
+        // given
+        WovenClassCache cache = WovenClassCache.create(tempFile, "1.0");
+        byte[] key = getKey(cache, BasicAdvice.class);
+        cache.put(key, new byte[] {1, 2, 3}, true);
+        WovenClass wovenClassBeforeReopen = cache.get(key);
+        cache.close();
+        // when
+        cache = WovenClassCache.create(tempFile, "1.0");
+        WovenClass wovenClass = cache.get(key);
+        cache.close();
+        // then
+        assertThat(wovenClassBeforeReopen.getBytes()).isEqualTo(new byte[] {1, 2, 3});
+        assertThat(wovenClass.getBytes()).isEqualTo(new byte[] {1, 2, 3});
+        assertThat(wovenClass.hasReweavableAdvice()).isTrue();
+    }
+
+    @Test
+    public void shouldStartOverOnVersionChange() throws Exception {
+        // given
+        WovenClassCache cache = WovenClassCache.create(tempFile, "1.0");
+        byte[] key = getKey(cache, BasicAdvice.class);
+        cache.put(key, new byte[] {1, 2, 3}, false);
+        cache.close();
+        // when
+        cache = WovenClassCache.create(tempFile, "1.1");
+        WovenClass wovenClass = cache.get(key);
+        cache.close();
+        // then
+        assertThat(wovenClass).isNull();
+    }
+
+    @Test
+    public void shouldHaveDifferentKeyForDifferentAdvice() throws Exception {
+        // given
+        WovenClassCache cache = WovenClassCache.create(tempFile, "1.0");
+        // when
+        byte[] key1 = getKey(cache, BasicAdvice.class);
+        byte[] key2 = getKey(cache, StaticAdvice.class);
+        cache.close();
+        // then
+        assertThat(key1).isNotEqualTo(key2);
+    }
+
+    @Test
+    public void shouldNotOpenLockedCacheFile() throws Exception {
+        // given
+        WovenClassCache cache = WovenClassCache.create(tempFile, "1.0");
+        // when
+        WovenClassCache cache2 = WovenClassCache.create(tempFile, "1.0");
+        cache.close();
+        // then
+        assertThat(cache2).isNull();
+    }
+
+    private static byte[] getKey(WovenClassCache cache, Class<?> adviceClass) throws Exception {
+        Pointcut pointcut = adviceClass.getAnnotation(Pointcut.class);
+        Advice advice = Advice.from(pointcut, adviceClass, false);
+        return cache.getKey(new byte[] {4, 5, 6}, "org/glowroot/weaving/BasicMisc",
+                ImmutableList.<ParsedType>of(), ImmutableList.<MixinType>of(),
+                ImmutableList.of(advice), ImmutableList.<Advice>of(), false);
+    }
+}
@@ -296,6 +296,7 @@ public class ConfigTest {
         config.setMetricWrapperMethodsDisabled(!config.isMetricWrapperMethodsDisabled());
         config.setWarnOnSpanOutsideTrace(!config.isWarnOnSpanOutsideTrace());
         config.setWeavingDisabled(!config.isWeavingDisabled());
+        config.setAggregateProfilingDisabled(!config.isAggregateProfilingDisabled());
     }
 
     private static void updateAllFields(PluginConfig config) {
@@ -33,6 +33,7 @@ public class AdvancedConfig {
     private boolean metricWrapperMethodsDisabled;
     private boolean warnOnSpanOutsideTrace;
     private boolean weavingDisabled;
+    private boolean aggregateProfilingDisabled;
 
     private final String version;
 
@@ -64,6 +65,14 @@ public class AdvancedConfig {
         this.weavingDisabled = weavingDisabled;
     }
 
+    public boolean isAggregateProfilingDisabled() {
+        return aggregateProfilingDisabled;
+    }
+
+    public void setAggregateProfilingDisabled(boolean aggregateProfilingDisabled) {
+        this.aggregateProfilingDisabled = aggregateProfilingDisabled;
+    }
+
     public String getVersion() {
         return version;
     }
@@ -78,7 +87,9 @@ public class AdvancedConfig {
             // the server
             return Objects.equal(metricWrapperMethodsDisabled, that.metricWrapperMethodsDisabled)
                     && Objects.equal(warnOnSpanOutsideTrace, that.warnOnSpanOutsideTrace)
-                    && Objects.equal(weavingDisabled, that.weavingDisabled);
+                    && Objects.equal(weavingDisabled, that.weavingDisabled)
+                    && Objects.equal(aggregateProfilingDisabled,
+                            that.aggregateProfilingDisabled);
         }
         return false;
     }
@@ -90,7 +101,7 @@ public class AdvancedConfig {
         // sending to the server, and represents the current version hash when receiving from the
         // server
         return Objects.hashCode(metricWrapperMethodsDisabled, warnOnSpanOutsideTrace,
-                weavingDisabled);
+                weavingDisabled, aggregateProfilingDisabled);
     }
 
     @Override
@@ -100,6 +111,7 @@ public class AdvancedConfig {
                 .add("metricWrapperMethodsDisabled", metricWrapperMethodsDisabled)
                 .add("warnOnSpanOutsideTrace", warnOnSpanOutsideTrace)
                 .add("weavingDisabled", weavingDisabled)
+                .add("aggregateProfilingDisabled", aggregateProfilingDisabled)
                 .add("version", version)
                 .toString();
     }
@@ -109,15 +121,18 @@ public class AdvancedConfig {
             @JsonProperty("metricWrapperMethodsDisabled") @Nullable Boolean metricWrapperMethodsDisabled,
             @JsonProperty("warnOnSpanOutsideTrace") @Nullable Boolean warnOnSpanOutsideTrace,
             @JsonProperty("weavingDisabled") @Nullable Boolean weavingDisabled,
+            @JsonProperty("aggregateProfilingDisabled") @Nullable Boolean aggregateProfilingDisabled,
             @JsonProperty("version") @Nullable String version) throws JsonMappingException {
         checkRequiredProperty(metricWrapperMethodsDisabled, "metricWrapperMethodsDisabled");
         checkRequiredProperty(warnOnSpanOutsideTrace, "warnOnSpanOutsideTrace");
         checkRequiredProperty(weavingDisabled, "weavingDisabled");
+        checkRequiredProperty(aggregateProfilingDisabled, "aggregateProfilingDisabled");
         checkRequiredProperty(version, "version");
         AdvancedConfig config = new AdvancedConfig(version);
         config.setMetricWrapperMethodsDisabled(metricWrapperMethodsDisabled);
         config.setWarnOnSpanOutsideTrace(warnOnSpanOutsideTrace);
         config.setWeavingDisabled(weavingDisabled);
+        config.setAggregateProfilingDisabled(aggregateProfilingDisabled);
         return config;
     }
 }
@@ -23,6 +23,7 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Stopwatch;
 
 import org.glowroot.container.common.ObjectMappers;
 import org.glowroot.container.config.AdvancedConfig;
@@ -37,6 +38,8 @@ import org.glowroot.container.config.UserInterfaceConfig;
 import org.glowroot.container.config.UserOverridesConfig;
 import org.glowroot.markers.ThreadSafe;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 /**
  * @author Trask Stalnaker
  * @since 0.5
@@ -191,7 +194,18 @@ class JavaagentConfigService implements ConfigService {
 
     @Override
     public void reweavePointcutConfigs() throws Exception {
-        httpClient.post("/backend/admin/pointcuts/reweave", "");
+        String response = httpClient.post("/backend/admin/pointcuts/reweave", "");
+        // the reweave runs in the background
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (stopwatch.elapsed(SECONDS) < 30) {
+            JsonNode node = mapper.readTree(response);
+            if (!node.has("completed") || node.get("completed").asBoolean()) {
+                return;
+            }
+            Thread.sleep(10);
+            response = httpClient.get("/backend/admin/pointcuts/reweave-progress");
+        }
+        throw new AssertionError("Reweave did not complete within 30 seconds");
     }
 
     @Override
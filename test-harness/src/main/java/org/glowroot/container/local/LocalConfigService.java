@@ -209,6 +209,7 @@ class LocalConfigService implements ConfigService {
         config.setMetricWrapperMethodsDisabled(coreConfig.isMetricWrapperMethodsDisabled());
         config.setWarnOnSpanOutsideTrace(coreConfig.isWarnOnSpanOutsideTrace());
         config.setWeavingDisabled(coreConfig.isWeavingDisabled());
+        config.setAggregateProfilingDisabled(coreConfig.isAggregateProfilingDisabled());
         return config;
     }
 
@@ -216,7 +217,8 @@ class LocalConfigService implements ConfigService {
     public void updateAdvancedConfig(AdvancedConfig config) throws Exception {
         org.glowroot.config.AdvancedConfig updatedConfig =
                 new org.glowroot.config.AdvancedConfig(config.isMetricWrapperMethodsDisabled(),
-                        config.isWarnOnSpanOutsideTrace(), config.isWeavingDisabled());
+                        config.isWarnOnSpanOutsideTrace(), config.isWeavingDisabled(),
+                        config.isAggregateProfilingDisabled());
         configService.updateAdvancedConfig(updatedConfig, config.getVersion());
     }
 
@@ -185,14 +185,14 @@ public class Trace {
         return fineMergedStackTree;
     }
 
-    // the glowroot weaving metric is a bit unpredictable since tests are often run inside the
+    // the glowroot weaving metrics are a bit unpredictable since tests are often run inside the
     // same GlowrootContainer for test speed, so test order affects whether any classes are
     // woven during the test or not
-    // it's easiest to just ignore this metric completely
+    // it's easiest to just ignore these metrics completely
     private ImmutableList<Metric> getStableAndOrderedMetrics() {
         List<Metric> stableMetrics = Lists.newArrayList(metrics);
         for (Iterator<Metric> i = stableMetrics.iterator(); i.hasNext();) {
-            if ("glowroot weaving".equals(i.next().getName())) {
+            if (i.next().getName().startsWith("glowroot weaving")) {
                 i.remove();
             }
         }